@@ -40,6 +40,7 @@ import com.google.ads.interactivemedia.v3.api.player.VideoAdPlayer;
 import com.google.ads.interactivemedia.v3.api.player.VideoProgressUpdate;
 import com.google.android.exoplayer.ExoPlayer;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper;
+import com.google.android.libraries.mediaframework.exoplayerextensions.PlaybackSnapshot;
 import com.google.android.libraries.mediaframework.exoplayerextensions.Video;
 import com.google.android.libraries.mediaframework.layeredvideo.PlaybackControlLayer;
 import com.google.android.libraries.mediaframework.layeredvideo.SimpleVideoPlayer;
@@ -127,6 +128,12 @@ public class ImaPlayer {
    */
   private VideoProgressUpdate oldVpu;
 
+  /**
+   * The snapshot from which {@link #oldVpu} was read. The snapshots are republished at a bounded
+   * rate, so two progress updates read from the same snapshot do not mean that the ad is stuck.
+   */
+  private PlaybackSnapshot oldSnapshot;
+
   /**
    * This is the layout of the container before fullscreen mode has been entered.
    * When we leave fullscreen mode, we restore the layout of the container to this layout.
@@ -311,25 +318,26 @@ public class ImaPlayer {
     @Override
     public VideoProgressUpdate getAdProgress() {
       VideoProgressUpdate vpu;
+      PlaybackSnapshot snapshot = null;
 
       if (adPlayer == null && contentPlayer == null) {
         // If neither player is available, indicate that the time is not ready.
         vpu = VideoProgressUpdate.VIDEO_TIME_NOT_READY;
-      } else if (adPlayer != null) {
-        // If an ad is playing, report the progress of the ad player.
-        vpu = new VideoProgressUpdate(adPlayer.getCurrentPosition(),
-            adPlayer.getDuration());
       } else {
-        // If the cotntent is playing, report the progress of the content player.
-        vpu = new VideoProgressUpdate(contentPlayer.getCurrentPosition(),
-            contentPlayer.getDuration());
+        // If an ad is playing, report the progress of the ad player. Otherwise, report the
+        // progress of the content player. The position and the duration are read from one
+        // snapshot, so they are consistent.
+        snapshot = adPlayer != null ? adPlayer.getPlaybackSnapshot()
+            : contentPlayer.getPlaybackSnapshot();
+        vpu = new VideoProgressUpdate(snapshot.positionMs,
+            snapshot.durationMs == ExoPlayer.UNKNOWN_TIME ? 0 : snapshot.durationMs);
       }
 
 
       if (oldVpu == null) {
         oldVpu = vpu;
       } else if ((!vpu.equals(VideoProgressUpdate.VIDEO_TIME_NOT_READY))
-          && vpu.getCurrentTime() == oldVpu.getCurrentTime()) {
+          && vpu.getCurrentTime() == oldVpu.getCurrentTime() && snapshot != oldSnapshot) {
         // TODO(hsubrama): Find better method for detecting ad pause and resuming ad playback.
         // Resume the ad player if it has paused due to buffering.
         if (adPlayer != null && adPlayer.shouldBePlaying()) {
@@ -339,6 +347,7 @@ public class ImaPlayer {
       }
 
       oldVpu = vpu;
+      oldSnapshot = snapshot;
       return vpu;
     }
   };
@@ -346,11 +355,15 @@ public class ImaPlayer {
   private final ContentProgressProvider contentProgressProvider = new ContentProgressProvider() {
     @Override
     public VideoProgressUpdate getContentProgress() {
-      if (adPlayer != null || contentPlayer == null || contentPlayer.getDuration() <= 0) {
+      if (adPlayer != null || contentPlayer == null) {
+        return VideoProgressUpdate.VIDEO_TIME_NOT_READY;
+      }
+      PlaybackSnapshot snapshot = contentPlayer.getPlaybackSnapshot();
+      // The duration is ExoPlayer.UNKNOWN_TIME until the content is prepared.
+      if (snapshot.durationMs <= 0) {
         return VideoProgressUpdate.VIDEO_TIME_NOT_READY;
       }
-      return new VideoProgressUpdate(contentPlayer.getCurrentPosition(),
-          contentPlayer.getDuration());
+      return new VideoProgressUpdate(snapshot.positionMs, snapshot.durationMs);
     }
   };
 
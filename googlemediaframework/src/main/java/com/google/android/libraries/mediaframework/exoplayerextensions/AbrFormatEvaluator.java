@@ -0,0 +1,91 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.chunk.Chunk;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
+import com.google.android.exoplayer.chunk.MediaChunk;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+
+import java.util.List;
+
+/**
+ * Lets an {@link AbrStrategy} select the formats of a chunk source.
+ */
+/* package */ final class AbrFormatEvaluator implements FormatEvaluator {
+
+  private final AbrStrategy strategy;
+  private final BandwidthMeter bandwidthMeter;
+
+  /**
+   * The formats for which {@link #bitrates} was filled.
+   */
+  private Format[] formats;
+  private int[] bitrates;
+
+  /**
+   * @param strategy Selects the formats.
+   * @param bandwidthMeter Provides the bandwidth estimate.
+   */
+  public AbrFormatEvaluator(AbrStrategy strategy, BandwidthMeter bandwidthMeter) {
+    this.strategy = strategy;
+    this.bandwidthMeter = bandwidthMeter;
+  }
+
+  @Override
+  public void enable() {
+    // Do nothing.
+  }
+
+  @Override
+  public void disable() {
+    // Do nothing.
+  }
+
+  @Override
+  public void evaluate(List<? extends MediaChunk> queue, long playbackPositionUs,
+                       Format[] formats, Evaluation evaluation) {
+    if (formats != this.formats) {
+      // The chunk sources sort the formats by decreasing bandwidth.
+      this.formats = formats;
+      bitrates = new int[formats.length];
+      for (int i = 0; i < formats.length; i++) {
+        bitrates[i] = formats[i].bitrate;
+      }
+    }
+    int selectedIndex = -1;
+    for (int i = 0; i < formats.length && evaluation.format != null; i++) {
+      if (formats[i].equals(evaluation.format)) {
+        selectedIndex = i;
+        break;
+      }
+    }
+    long bufferedDurationUs = queue.isEmpty() ? 0
+        : Math.max(0, queue.get(queue.size() - 1).endTimeUs - playbackPositionUs);
+    long bitrateEstimate = bandwidthMeter.getBitrateEstimate();
+    int index = strategy.selectFormat(bitrates, selectedIndex, bufferedDurationUs,
+        bitrateEstimate == BandwidthMeter.NO_ESTIMATE ? AbrStrategy.NO_ESTIMATE
+            : bitrateEstimate);
+    Format format = formats[index];
+    if (evaluation.format != null && !format.equals(evaluation.format)) {
+      evaluation.trigger = Chunk.TRIGGER_ADAPTIVE;
+    }
+    evaluation.queueSize = queue.size();
+    evaluation.format = format;
+  }
+}
@@ -0,0 +1,355 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scores {@link AbrStrategy}s by simulating the playback of a video over a recorded bandwidth
+ * trace. It only depends on the JDK, so that strategies can be compared on a plain JVM.
+ *
+ * <p>The video is a sequence of segments of equal duration, available at a set of bitrates. The
+ * segments are downloaded one after the other at the bandwidth of the trace (which loops if it is
+ * shorter than the session), and the buffer drains in real time once playback has started. The
+ * strategy sees the bandwidth estimated from the last downloads, like a bandwidth meter would.
+ */
+public final class AbrSimulator {
+
+  /**
+   * The bandwidth of a network over time.
+   */
+  public static final class Trace {
+
+    private final long[] durationsMs;
+    private final long[] bandwidthsBps;
+
+    /**
+     * @param durationsMs The duration of each period of the trace, which must be positive.
+     * @param bandwidthsBps The bandwidth during each period, in bits per second.
+     */
+    public Trace(long[] durationsMs, long[] bandwidthsBps) {
+      if (durationsMs.length != bandwidthsBps.length || durationsMs.length == 0) {
+        throw new IllegalArgumentException("A trace needs as many durations as bandwidths.");
+      }
+      for (int i = 0; i < durationsMs.length; i++) {
+        if (durationsMs[i] <= 0 || bandwidthsBps[i] < 0) {
+          throw new IllegalArgumentException("Invalid trace period: " + durationsMs[i] + " ms at "
+              + bandwidthsBps[i] + " bps.");
+        }
+      }
+      this.durationsMs = durationsMs;
+      this.bandwidthsBps = bandwidthsBps;
+    }
+
+    /**
+     * Read a trace with one period per line: its duration in milliseconds and its bandwidth in
+     * bits per second, separated by white space. Empty lines and lines starting with # are
+     * skipped.
+     */
+    public static Trace parse(Reader reader) throws IOException {
+      BufferedReader lineReader = new BufferedReader(reader);
+      List<long[]> periods = new ArrayList<long[]>();
+      String line;
+      while ((line = lineReader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\s+");
+        if (fields.length != 2) {
+          throw new IOException("Invalid trace line: " + line);
+        }
+        long[] period;
+        try {
+          period = new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])};
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid trace line: " + line);
+        }
+        if (period[0] <= 0 || period[1] < 0) {
+          throw new IOException("Invalid trace line: " + line);
+        }
+        periods.add(period);
+      }
+      long[] durationsMs = new long[periods.size()];
+      long[] bandwidthsBps = new long[periods.size()];
+      for (int i = 0; i < periods.size(); i++) {
+        durationsMs[i] = periods.get(i)[0];
+        bandwidthsBps[i] = periods.get(i)[1];
+      }
+      return new Trace(durationsMs, bandwidthsBps);
+    }
+  }
+
+  /**
+   * The outcome of a simulated session.
+   */
+  public static final class Result {
+
+    /**
+     * The average bitrate of the downloaded segments, in bits per second.
+     */
+    public final long averageBitrate;
+
+    /**
+     * The number of times the bitrate changed between consecutive segments.
+     */
+    public final int switchCount;
+
+    /**
+     * The time between the start of the session and the start of playback.
+     */
+    public final long startupTimeMs;
+
+    /**
+     * The number of times playback stalled after it started.
+     */
+    public final int rebufferCount;
+
+    /**
+     * The time during which playback stalled after it started.
+     */
+    public final long rebufferTimeMs;
+
+    /**
+     * A single quality of experience figure: the average bitrate in kbps, minus
+     * {@link #SWITCH_PENALTY_KBPS} per switch and {@link #REBUFFER_PENALTY_KBPS} per second of
+     * rebuffering, per segment.
+     */
+    public final double score;
+
+    public Result(long averageBitrate, int switchCount, long startupTimeMs, int rebufferCount,
+                  long rebufferTimeMs, double score) {
+      this.averageBitrate = averageBitrate;
+      this.switchCount = switchCount;
+      this.startupTimeMs = startupTimeMs;
+      this.rebufferCount = rebufferCount;
+      this.rebufferTimeMs = rebufferTimeMs;
+      this.score = score;
+    }
+
+    @Override
+    public String toString() {
+      return "averageBitrate=" + averageBitrate + ", switchCount=" + switchCount
+          + ", startupTimeMs=" + startupTimeMs + ", rebufferCount=" + rebufferCount
+          + ", rebufferTimeMs=" + rebufferTimeMs + ", score=" + score;
+    }
+  }
+
+  /**
+   * The score is reduced by this many kbps, spread over the segments, for each switch.
+   */
+  public static final double SWITCH_PENALTY_KBPS = 1000;
+
+  /**
+   * The score is reduced by this many kbps, spread over the segments, per second of rebuffering.
+   */
+  public static final double REBUFFER_PENALTY_KBPS = 4300;
+
+  public static final int DEFAULT_MIN_BUFFER_MS = 2500;
+  public static final int DEFAULT_MAX_BUFFER_MS = 30000;
+
+  /**
+   * The bandwidth estimate is the harmonic mean of the throughput of this many last downloads.
+   */
+  private static final int ESTIMATE_WINDOW = 5;
+
+  private final int[] bitrates;
+  private final int segmentDurationMs;
+  private final int segmentCount;
+  private final int minBufferMs;
+  private final int maxBufferMs;
+
+  /**
+   * @param bitrates The bitrates of the video, in bits per second, in decreasing order.
+   * @param segmentDurationMs The duration of each segment.
+   * @param segmentCount The number of segments of the video.
+   */
+  public AbrSimulator(int[] bitrates, int segmentDurationMs, int segmentCount) {
+    this(bitrates, segmentDurationMs, segmentCount, DEFAULT_MIN_BUFFER_MS, DEFAULT_MAX_BUFFER_MS);
+  }
+
+  /**
+   * @param bitrates The bitrates of the video, in bits per second, in decreasing order.
+   * @param segmentDurationMs The duration of each segment.
+   * @param segmentCount The number of segments of the video.
+   * @param minBufferMs Playback starts, and resumes after a stall, once this much is buffered.
+   * @param maxBufferMs Downloads pause while this much is buffered.
+   */
+  public AbrSimulator(int[] bitrates, int segmentDurationMs, int segmentCount, int minBufferMs,
+                      int maxBufferMs) {
+    for (int i = 1; i < bitrates.length; i++) {
+      if (bitrates[i] > bitrates[i - 1]) {
+        throw new IllegalArgumentException("The bitrates must be in decreasing order.");
+      }
+    }
+    this.bitrates = bitrates;
+    this.segmentDurationMs = segmentDurationMs;
+    this.segmentCount = segmentCount;
+    this.minBufferMs = minBufferMs;
+    this.maxBufferMs = maxBufferMs;
+  }
+
+  /**
+   * Simulate a session of the given strategy over the given trace.
+   */
+  public Result simulate(AbrStrategy strategy, Trace trace) {
+    TraceCursor cursor = new TraceCursor(trace);
+    double[] throughputs = new double[ESTIMATE_WINDOW];
+    int throughputCount = 0;
+
+    long timeMs = 0;
+    long bufferMs = 0;
+    boolean playing = false;
+    boolean started = false;
+    long startupTimeMs = 0;
+    long stallStartTimeMs = 0;
+    int rebufferCount = 0;
+    long rebufferTimeMs = 0;
+    long bitrateSum = 0;
+    int switchCount = 0;
+    int selectedIndex = -1;
+
+    for (int segment = 0; segment < segmentCount; segment++) {
+      // Wait for room in the buffer.
+      if (playing && bufferMs + segmentDurationMs > maxBufferMs) {
+        long waitMs = bufferMs + segmentDurationMs - maxBufferMs;
+        cursor.advance(waitMs);
+        timeMs += waitMs;
+        bufferMs -= waitMs;
+      }
+
+      long estimate = AbrStrategy.NO_ESTIMATE;
+      if (throughputCount > 0) {
+        int sampleCount = Math.min(throughputCount, ESTIMATE_WINDOW);
+        double inverseSum = 0;
+        for (int i = 0; i < sampleCount; i++) {
+          inverseSum += 1 / throughputs[i];
+        }
+        estimate = (long) (sampleCount / inverseSum);
+      }
+      int index = strategy.selectFormat(bitrates, selectedIndex, bufferMs * 1000, estimate);
+      if (selectedIndex != -1 && index != selectedIndex) {
+        switchCount++;
+      }
+      selectedIndex = index;
+      bitrateSum += bitrates[index];
+
+      long downloadMs = cursor.download((long) bitrates[index] * segmentDurationMs / 1000);
+      throughputs[throughputCount++ % ESTIMATE_WINDOW] =
+          (double) bitrates[index] * segmentDurationMs / Math.max(1, downloadMs);
+      timeMs += downloadMs;
+      if (playing) {
+        if (downloadMs > bufferMs) {
+          // Playback stalls when the buffer runs out, and resumes like it started.
+          rebufferCount++;
+          playing = false;
+          stallStartTimeMs = timeMs - (downloadMs - bufferMs);
+          bufferMs = 0;
+        } else {
+          bufferMs -= downloadMs;
+        }
+      }
+      bufferMs += segmentDurationMs;
+      if (!playing && (bufferMs >= minBufferMs || segment == segmentCount - 1)) {
+        playing = true;
+        if (started) {
+          rebufferTimeMs += timeMs - stallStartTimeMs;
+        } else {
+          started = true;
+          startupTimeMs = timeMs;
+        }
+      }
+    }
+
+    long averageBitrate = segmentCount == 0 ? 0 : bitrateSum / segmentCount;
+    double score = segmentCount == 0 ? 0 : averageBitrate / 1000.0
+        - (SWITCH_PENALTY_KBPS * switchCount + REBUFFER_PENALTY_KBPS * rebufferTimeMs / 1000.0)
+        / segmentCount;
+    return new Result(averageBitrate, switchCount, startupTimeMs, rebufferCount, rebufferTimeMs,
+        score);
+  }
+
+  /**
+   * Tracks the position in a trace, which loops.
+   */
+  private static final class TraceCursor {
+
+    private final Trace trace;
+    private int period;
+
+    /**
+     * The time elapsed in the current period.
+     */
+    private double periodTimeMs;
+
+    public TraceCursor(Trace trace) {
+      this.trace = trace;
+    }
+
+    /**
+     * Let the given time elapse.
+     */
+    public void advance(long durationMs) {
+      double remainingMs = durationMs;
+      while (remainingMs > 0) {
+        double periodRemainingMs = trace.durationsMs[period] - periodTimeMs;
+        if (remainingMs < periodRemainingMs) {
+          periodTimeMs += remainingMs;
+          return;
+        }
+        remainingMs -= periodRemainingMs;
+        nextPeriod();
+      }
+    }
+
+    /**
+     * Download the given number of bits, and return the time it took.
+     */
+    public long download(long bits) {
+      double remainingBits = bits;
+      double elapsedMs = 0;
+      int idlePeriodCount = 0;
+      while (remainingBits > 0) {
+        double periodRemainingMs = trace.durationsMs[period] - periodTimeMs;
+        double bitsPerMs = trace.bandwidthsBps[period] / 1000.0;
+        if (bitsPerMs * periodRemainingMs > remainingBits) {
+          double durationMs = remainingBits / bitsPerMs;
+          periodTimeMs += durationMs;
+          elapsedMs += durationMs;
+          break;
+        }
+        remainingBits -= bitsPerMs * periodRemainingMs;
+        elapsedMs += periodRemainingMs;
+        idlePeriodCount = bitsPerMs == 0 ? idlePeriodCount + 1 : 0;
+        if (idlePeriodCount > trace.durationsMs.length) {
+          throw new IllegalArgumentException("The trace has no bandwidth.");
+        }
+        nextPeriod();
+      }
+      return (long) Math.ceil(elapsedMs);
+    }
+
+    private void nextPeriod() {
+      period = (period + 1) % trace.durationsMs.length;
+      periodTimeMs = 0;
+    }
+  }
+}
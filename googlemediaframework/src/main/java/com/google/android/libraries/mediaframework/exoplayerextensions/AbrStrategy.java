@@ -0,0 +1,53 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+/**
+ * Selects the format of the next segment of an adaptive stream.
+ *
+ * <p>A strategy only depends on plain values, so that it can be evaluated on recorded bandwidth
+ * traces by the {@link AbrSimulator} outside of Android. The {@link DashRendererBuilder} plays
+ * with the strategies created by the factory given to
+ * {@link RendererBuilderFactory#createRendererBuilder(android.content.Context, Video,
+ * AbrStrategy.Factory)}.
+ */
+public interface AbrStrategy {
+
+  /**
+   * Creates a strategy for each adaptive stream, since strategies may keep state.
+   */
+  interface Factory {
+    AbrStrategy createAbrStrategy();
+  }
+
+  /**
+   * Indicates that the bandwidth has not been measured yet.
+   */
+  long NO_ESTIMATE = -1;
+
+  /**
+   * Select the format of the next segment.
+   * @param bitrates The bitrates of the formats, in bits per second, in decreasing order.
+   * @param selectedIndex The index of the format of the previous segment, or -1 if none.
+   * @param bufferedDurationUs The duration of the media buffered ahead of the playback position.
+   * @param bandwidthEstimateBps The estimated bandwidth, in bits per second, or
+   *                             {@link #NO_ESTIMATE}.
+   * @return The index of the selected format.
+   */
+  int selectFormat(int[] bitrates, int selectedIndex, long bufferedDurationUs,
+                   long bandwidthEstimateBps);
+}
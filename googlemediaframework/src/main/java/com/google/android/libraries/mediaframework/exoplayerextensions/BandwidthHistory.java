@@ -0,0 +1,268 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Handler;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the bandwidth measured by the players across sessions, by host and network type, so
+ * that the adaptive track selection of a new session starts from the bandwidth of the previous
+ * ones instead of a conservative initial bitrate.
+ *
+ * <p>Each bandwidth sample is blended into the stored estimate with an exponential moving
+ * average. Estimates which have not been updated for {@link #MAX_AGE_MS} are ignored. The
+ * estimates are kept in memory and written to the shared preferences at most every
+ * {@link #MIN_PERSIST_INTERVAL_MS}, as the players report a sample per segment. This class is
+ * thread safe.
+ */
+public final class BandwidthHistory {
+
+  /**
+   * The name of the shared preferences which hold the estimates.
+   */
+  private static final String PREFERENCES_NAME = "bandwidth_history";
+
+  private static final String ESTIMATE_KEY_SUFFIX = ".estimate";
+  private static final String TIME_KEY_SUFFIX = ".time";
+
+  /**
+   * The weight of a new sample in the stored estimate.
+   */
+  public static final float SAMPLE_WEIGHT = 0.3f;
+
+  /**
+   * Estimates which have not been updated for this many milliseconds are ignored.
+   */
+  public static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+  /**
+   * The estimate of a key is written to the shared preferences at most once in this many
+   * milliseconds. The estimate in memory is always up to date.
+   */
+  public static final int MIN_PERSIST_INTERVAL_MS = 60000;
+
+  private static BandwidthHistory instance;
+
+  /**
+   * The estimate of a host on a network, as held in memory.
+   */
+  private static final class Estimate {
+
+    public long bitrate;
+
+    /**
+     * The time at which the estimate was last updated, in milliseconds since the epoch.
+     */
+    public long timeMs;
+
+    /**
+     * The time at which the estimate was last written to the shared preferences, or 0.
+     */
+    public long persistTimeMs;
+  }
+
+  private final SharedPreferences preferences;
+  private final ConnectivityManager connectivityManager;
+
+  /**
+   * The estimates which have been read or updated, by key.
+   */
+  private final Map<String, Estimate> estimates;
+
+  /**
+   * @param context The context (ex {@link android.app.Activity}) of the application.
+   */
+  public BandwidthHistory(Context context) {
+    Context applicationContext = context.getApplicationContext();
+    preferences = applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    connectivityManager =
+        (ConnectivityManager) applicationContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    estimates = new HashMap<String, Estimate>();
+  }
+
+  /**
+   * Returns the history shared by all the players of the application.
+   * @param context The context (ex {@link android.app.Activity}) of the application.
+   */
+  public static synchronized BandwidthHistory getInstance(Context context) {
+    if (instance == null) {
+      instance = new BandwidthHistory(context);
+    }
+    return instance;
+  }
+
+  /**
+   * Create a bandwidth meter for a video, which reports the estimate stored for the host of the
+   * video on the current network until it has measured the bandwidth itself, and stores the
+   * bandwidth it measures.
+   * @param url The URL of the video.
+   * @param eventHandler Delivers the bandwidth samples to the history and the listener.
+   * @param eventListener Receives the bandwidth samples. May be null.
+   */
+  public BandwidthMeter newBandwidthMeter(String url, Handler eventHandler,
+                                          DefaultBandwidthMeter.EventListener eventListener) {
+    String key = getKey(url);
+    return new SeededBandwidthMeter(key, getStoredEstimate(key), eventHandler, eventListener);
+  }
+
+  /**
+   * Returns the estimate stored for the host of the given URL on the current network, in bits per
+   * second, or {@link BandwidthMeter#NO_ESTIMATE}.
+   */
+  public long getEstimate(String url) {
+    return getStoredEstimate(getKey(url));
+  }
+
+  /**
+   * Remove all the stored estimates.
+   */
+  public synchronized void clear() {
+    estimates.clear();
+    preferences.edit().clear().apply();
+  }
+
+  /**
+   * Blend a bandwidth sample into the estimate stored for the given key. The estimate is only
+   * written to the shared preferences if it was written more than
+   * {@link #MIN_PERSIST_INTERVAL_MS} ago.
+   * @param bitrateEstimate The bandwidth measured by a player, in bits per second.
+   */
+  /* package */ synchronized void onBandwidthSample(String key, long bitrateEstimate) {
+    if (bitrateEstimate <= 0) {
+      return;
+    }
+    long storedEstimate = getStoredEstimate(key);
+    Estimate estimate = estimates.get(key);
+    long nowMs = System.currentTimeMillis();
+    estimate.bitrate = storedEstimate == BandwidthMeter.NO_ESTIMATE ? bitrateEstimate
+        : (long) (storedEstimate * (1 - SAMPLE_WEIGHT) + bitrateEstimate * SAMPLE_WEIGHT);
+    estimate.timeMs = nowMs;
+    if (nowMs - estimate.persistTimeMs >= MIN_PERSIST_INTERVAL_MS) {
+      preferences.edit()
+          .putLong(key + ESTIMATE_KEY_SUFFIX, estimate.bitrate)
+          .putLong(key + TIME_KEY_SUFFIX, nowMs)
+          .apply();
+      estimate.persistTimeMs = nowMs;
+    }
+  }
+
+  /**
+   * Returns the estimate stored for the given key, reading it from the shared preferences the
+   * first time.
+   */
+  private synchronized long getStoredEstimate(String key) {
+    Estimate estimate = estimates.get(key);
+    if (estimate == null) {
+      estimate = new Estimate();
+      estimate.bitrate = preferences.getLong(key + ESTIMATE_KEY_SUFFIX,
+          BandwidthMeter.NO_ESTIMATE);
+      estimate.timeMs = preferences.getLong(key + TIME_KEY_SUFFIX, 0);
+      estimates.put(key, estimate);
+    }
+    if (System.currentTimeMillis() - estimate.timeMs > MAX_AGE_MS) {
+      return BandwidthMeter.NO_ESTIMATE;
+    }
+    return estimate.bitrate;
+  }
+
+  /**
+   * Returns the key of the estimates for the host of the given URL on the current network.
+   */
+  private String getKey(String url) {
+    return getNetworkType() + "/" + Uri.parse(url).getHost();
+  }
+
+  /**
+   * Returns the type of the active network (ex. "WIFI" or "MOBILE/LTE"), or "UNKNOWN".
+   */
+  private String getNetworkType() {
+    NetworkInfo networkInfo;
+    try {
+      networkInfo = connectivityManager.getActiveNetworkInfo();
+    } catch (SecurityException e) {
+      // The application does not hold the ACCESS_NETWORK_STATE permission.
+      networkInfo = null;
+    }
+    if (networkInfo == null) {
+      return "UNKNOWN";
+    }
+    if (networkInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
+      return networkInfo.getTypeName() + "/" + networkInfo.getSubtypeName();
+    }
+    return networkInfo.getTypeName();
+  }
+
+  /**
+   * Reports the stored estimate until the first bandwidth sample, and stores the samples.
+   */
+  private final class SeededBandwidthMeter implements BandwidthMeter,
+      DefaultBandwidthMeter.EventListener {
+
+    private final String key;
+    private final long initialEstimate;
+    private final DefaultBandwidthMeter bandwidthMeter;
+    private final DefaultBandwidthMeter.EventListener eventListener;
+
+    public SeededBandwidthMeter(String key, long initialEstimate, Handler eventHandler,
+                                DefaultBandwidthMeter.EventListener eventListener) {
+      this.key = key;
+      this.initialEstimate = initialEstimate;
+      this.eventListener = eventListener;
+      bandwidthMeter = new DefaultBandwidthMeter(eventHandler, this);
+    }
+
+    @Override
+    public long getBitrateEstimate() {
+      long bitrateEstimate = bandwidthMeter.getBitrateEstimate();
+      return bitrateEstimate == NO_ESTIMATE ? initialEstimate : bitrateEstimate;
+    }
+
+    @Override
+    public void onTransferStart() {
+      bandwidthMeter.onTransferStart();
+    }
+
+    @Override
+    public void onBytesTransferred(int bytes) {
+      bandwidthMeter.onBytesTransferred(bytes);
+    }
+
+    @Override
+    public void onTransferEnd() {
+      bandwidthMeter.onTransferEnd();
+    }
+
+    @Override
+    public void onBandwidthSample(int elapsedMs, long bytes, long bitrate) {
+      BandwidthHistory.this.onBandwidthSample(key, bitrate);
+      if (eventListener != null) {
+        eventListener.onBandwidthSample(elapsedMs, bytes, bitrate);
+      }
+    }
+  }
+}
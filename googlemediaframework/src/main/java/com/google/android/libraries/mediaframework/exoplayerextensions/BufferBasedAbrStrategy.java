@@ -0,0 +1,133 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+/**
+ * Selects the bitrate from the buffer occupancy, following the BOLA algorithm: the utility of a
+ * bitrate is the logarithm of its ratio to the lowest bitrate, and the selected bitrate maximizes
+ * {@code (V * (utility + gamma) - buffer) / bitrate}. The lowest bitrate is selected when the
+ * buffer holds the minimum duration, and the highest one once it approaches the target duration.
+ *
+ * <p>The bandwidth estimate is only used before any media is buffered, and to keep the bitrate
+ * from increasing beyond what the bandwidth can sustain.
+ */
+public class BufferBasedAbrStrategy implements AbrStrategy {
+
+  public static final int DEFAULT_MIN_BUFFER_MS = 10000;
+  public static final int DEFAULT_TARGET_BUFFER_MS = 30000;
+
+  /**
+   * Creates strategies with the default parameters.
+   */
+  public static final Factory FACTORY = new Factory() {
+    @Override
+    public AbrStrategy createAbrStrategy() {
+      return new BufferBasedAbrStrategy();
+    }
+  };
+
+  /**
+   * The lowest bitrate is selected while the buffer holds less than this many seconds.
+   */
+  private final double minBufferS;
+
+  /**
+   * The highest bitrate is selected once the buffer holds about this many seconds.
+   */
+  private final double targetBufferS;
+
+  /**
+   * The bitrates for which {@link #utilities}, {@link #gamma} and {@link #v} were computed.
+   */
+  private int[] bitrates;
+  private double[] utilities;
+  private double gamma;
+  private double v;
+
+  public BufferBasedAbrStrategy() {
+    this(DEFAULT_MIN_BUFFER_MS, DEFAULT_TARGET_BUFFER_MS);
+  }
+
+  /**
+   * @param minBufferMs The lowest bitrate is selected while the buffer holds less than this
+   *                    duration.
+   * @param targetBufferMs The highest bitrate is selected once the buffer holds about this
+   *                       duration. It must be greater than minBufferMs.
+   */
+  public BufferBasedAbrStrategy(int minBufferMs, int targetBufferMs) {
+    if (targetBufferMs <= minBufferMs) {
+      throw new IllegalArgumentException("The target buffer must exceed the minimum buffer.");
+    }
+    minBufferS = minBufferMs / 1000.0;
+    targetBufferS = targetBufferMs / 1000.0;
+  }
+
+  @Override
+  public int selectFormat(int[] bitrates, int selectedIndex, long bufferedDurationUs,
+                          long bandwidthEstimateBps) {
+    if (bitrates.length == 1) {
+      return 0;
+    }
+    int throughputIndex = bandwidthEstimateBps == NO_ESTIMATE ? bitrates.length - 1
+        : ThroughputAbrStrategy.getIndexForBitrate(bitrates,
+            (long) (bandwidthEstimateBps * ThroughputAbrStrategy.DEFAULT_BANDWIDTH_FRACTION));
+    if (selectedIndex == -1) {
+      // There is no buffer to base the decision on yet.
+      return throughputIndex;
+    }
+
+    updateParameters(bitrates);
+    double bufferS = bufferedDurationUs / 1000000.0;
+    int bestIndex = bitrates.length - 1;
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < bitrates.length; i++) {
+      double score = (v * (utilities[i] + gamma) - bufferS) / bitrates[i];
+      if (score > bestScore) {
+        bestScore = score;
+        bestIndex = i;
+      }
+    }
+
+    // Do not increase the bitrate beyond what the bandwidth can sustain.
+    if (bestIndex < selectedIndex && bestIndex < throughputIndex) {
+      bestIndex = Math.min(selectedIndex, throughputIndex);
+    }
+    return bestIndex;
+  }
+
+  /**
+   * Compute the utilities and the BOLA parameters for the given bitrates, unless they were already
+   * computed for them.
+   */
+  private void updateParameters(int[] bitrates) {
+    if (bitrates == this.bitrates) {
+      return;
+    }
+    this.bitrates = bitrates;
+    int lowestBitrate = bitrates[bitrates.length - 1];
+    if (utilities == null || utilities.length != bitrates.length) {
+      utilities = new double[bitrates.length];
+    }
+    for (int i = 0; i < bitrates.length; i++) {
+      // The utility of the lowest bitrate is 1.
+      utilities[i] = Math.log((double) bitrates[i] / lowestBitrate) + 1;
+    }
+    // Select the lowest bitrate at the minimum buffer, and the highest one at the target buffer.
+    gamma = (utilities[0] - 1) / (targetBufferS / minBufferS - 1);
+    v = gamma == 0 ? 0 : minBufferS / gamma;
+  }
+}
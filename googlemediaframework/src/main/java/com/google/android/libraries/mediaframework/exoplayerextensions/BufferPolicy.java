@@ -0,0 +1,185 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+
+import com.google.android.exoplayer.DefaultLoadControl;
+import com.google.android.exoplayer.LoadControl;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.util.Util;
+
+/**
+ * Describes how much media an {@link ExoplayerWrapper} buffers, both in media time and in bytes.
+ *
+ * <p>The player is created with the policy's start and rebuffer thresholds, and every
+ * {@link ExoplayerWrapper.RendererBuilder} sizes its load control and sample sources from the
+ * policy of the player it builds renderers for (see {@link ExoplayerWrapper#getBufferPolicy()}).
+ *
+ * <p>A number of profiles are provided. {@link #forDevice(Context)} picks the one which fits the
+ * memory of the device.
+ */
+public final class BufferPolicy {
+
+  /**
+   * The size of the individual buffer segments.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+  /**
+   * The buffer load below which the load control asks for media to be loaded at a high priority.
+   */
+  private static final float LOW_BUFFER_LOAD = 0.2f;
+
+  /**
+   * The buffer load above which the load control stops loading at a high priority.
+   */
+  private static final float HIGH_BUFFER_LOAD = 0.8f;
+
+  /**
+   * The values which were hard-coded before buffer policies were introduced. About 16 MB of
+   * buffer per player.
+   */
+  public static final BufferPolicy DEFAULT = new BufferPolicy(1000, 5000, 15000, 30000,
+      DEFAULT_SEGMENT_SIZE, 200, 54, 2, 256);
+
+  /**
+   * Starts playback with as little buffered media as possible, at the cost of more rebuffering
+   * on poor connections.
+   */
+  public static final BufferPolicy LOW_LATENCY_START = new BufferPolicy(500, 2500, 10000, 20000,
+      DEFAULT_SEGMENT_SIZE, 160, 40, 2, 200);
+
+  /**
+   * Caps the buffer at about 5 MB per player, for low RAM devices and for players which are alive
+   * at the same time as another one (ex. ads).
+   */
+  public static final BufferPolicy MEMORY_CONSTRAINED = new BufferPolicy(1000, 5000, 8000, 15000,
+      DEFAULT_SEGMENT_SIZE, 64, 16, 2, 80);
+
+  /**
+   * Buffers further ahead to ride out bandwidth drops during long sessions.
+   */
+  public static final BufferPolicy LONG_FORM = new BufferPolicy(2500, 5000, 30000, 60000,
+      DEFAULT_SEGMENT_SIZE, 320, 80, 2, 400);
+
+  /**
+   * Keeps a short buffer, since media close to the live edge is not available anyway.
+   */
+  public static final BufferPolicy LIVE = new BufferPolicy(1000, 3000, 8000, 16000,
+      DEFAULT_SEGMENT_SIZE, 100, 30, 2, 128);
+
+  /**
+   * The minimum duration of media which must be buffered for playback to start.
+   */
+  public final int minBufferMs;
+
+  /**
+   * The minimum duration of media which must be buffered for playback to resume after a rebuffer.
+   */
+  public final int minRebufferMs;
+
+  /**
+   * Below this duration of buffered media, the load control keeps loading.
+   */
+  public final int lowWatermarkMs;
+
+  /**
+   * Above this duration of buffered media, the load control stops loading.
+   */
+  public final int highWatermarkMs;
+
+  /**
+   * The size of the individual buffer segments in bytes.
+   */
+  public final int segmentSize;
+
+  /**
+   * The maximum number of bytes buffered for the video track of a DASH stream.
+   */
+  public final int videoBufferSize;
+
+  /**
+   * The maximum number of bytes buffered for the audio track of a DASH stream.
+   */
+  public final int audioBufferSize;
+
+  /**
+   * The maximum number of bytes buffered for a text track.
+   */
+  public final int textBufferSize;
+
+  /**
+   * The maximum number of bytes buffered for a stream which muxes its tracks together (HLS and
+   * streams read with an extractor).
+   */
+  public final int mainBufferSize;
+
+  /**
+   * @param minBufferMs The minimum duration of media which must be buffered for playback to start.
+   * @param minRebufferMs The minimum duration of media which must be buffered for playback to
+   *                      resume after a rebuffer.
+   * @param lowWatermarkMs Below this duration of buffered media, the load control keeps loading.
+   * @param highWatermarkMs Above this duration of buffered media, the load control stops loading.
+   * @param segmentSize The size of the individual buffer segments in bytes.
+   * @param videoBufferSegments The maximum number of segments buffered for a DASH video track.
+   * @param audioBufferSegments The maximum number of segments buffered for a DASH audio track.
+   * @param textBufferSegments The maximum number of segments buffered for a text track.
+   * @param mainBufferSegments The maximum number of segments buffered for a muxed stream.
+   */
+  public BufferPolicy(int minBufferMs, int minRebufferMs, int lowWatermarkMs,
+                      int highWatermarkMs, int segmentSize, int videoBufferSegments,
+                      int audioBufferSegments, int textBufferSegments, int mainBufferSegments) {
+    this.minBufferMs = minBufferMs;
+    this.minRebufferMs = minRebufferMs;
+    this.lowWatermarkMs = lowWatermarkMs;
+    this.highWatermarkMs = highWatermarkMs;
+    this.segmentSize = segmentSize;
+    this.videoBufferSize = videoBufferSegments * segmentSize;
+    this.audioBufferSize = audioBufferSegments * segmentSize;
+    this.textBufferSize = textBufferSegments * segmentSize;
+    this.mainBufferSize = mainBufferSegments * segmentSize;
+  }
+
+  /**
+   * Returns {@link #MEMORY_CONSTRAINED} on low RAM devices and {@link #DEFAULT} otherwise.
+   * @param context The context (ex {@link android.app.Activity}) in which the video is played.
+   */
+  public static BufferPolicy forDevice(Context context) {
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    boolean lowRam = activityManager.getMemoryClass() <= 64
+        || (Util.SDK_INT >= 19 && isLowRamDevice(activityManager));
+    return lowRam ? MEMORY_CONSTRAINED : DEFAULT;
+  }
+
+  /**
+   * Create a load control which buffers according to this policy.
+   * @param allocator The allocator from which the buffer segments are obtained.
+   */
+  public LoadControl newLoadControl(Allocator allocator) {
+    return new DefaultLoadControl(allocator, null, null, lowWatermarkMs, highWatermarkMs,
+        LOW_BUFFER_LOAD, HIGH_BUFFER_LOAD);
+  }
+
+  @TargetApi(19)
+  private static boolean isLowRamDevice(ActivityManager activityManager) {
+    return activityManager.isLowRamDevice();
+  }
+}
@@ -0,0 +1,302 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser;
+import com.google.android.exoplayer.dash.mpd.SegmentBase.SegmentTimelineElement;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A DASH manifest parser which keeps the segment timelines of segment templates in primitive
+ * arrays, instead of one object per segment.
+ *
+ * <p>The start times and durations of the segments are stored in {@link Store}s. The timeline of
+ * each representation is a view of a range of a store, so the representations which share a
+ * timeline (usually every representation of an adaptation set) share its store. When a live
+ * manifest is refreshed, the timelines are matched against the stores of the previous manifest:
+ * the segments which were already known are shared with the previous manifest, and only the new
+ * segments are appended. A store is copied once the segments which have left the window take more
+ * than half of it.
+ *
+ * <p>The media URLs of segment templates are already built from a URL template, so a multi-hour
+ * DVR window costs 16 bytes per segment instead of the objects of the default parser.
+ *
+ * <p>A parser must only be used by one manifest fetcher, since it keeps the stores of the last
+ * manifest it parsed.
+ */
+public class CompactMpdParser extends MediaPresentationDescriptionParser {
+
+  /**
+   * The capacity of a new store, in segments.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * The stores of the last manifest which was parsed.
+   */
+  private List<Store> previousStores;
+
+  /**
+   * The stores of the manifest which is being parsed.
+   */
+  private List<Store> currentStores;
+
+  public CompactMpdParser() {
+    previousStores = new ArrayList<Store>();
+  }
+
+  @Override
+  public synchronized MediaPresentationDescription parse(String connectionUrl,
+                                                         InputStream inputStream)
+      throws IOException, ParserException {
+    startManifest();
+    MediaPresentationDescription manifest = super.parse(connectionUrl, inputStream);
+    endManifest();
+    return manifest;
+  }
+
+  /**
+   * Start collecting the stores of a new manifest.
+   */
+  /* package */ synchronized void startManifest() {
+    currentStores = new ArrayList<Store>();
+  }
+
+  /**
+   * Keep the stores of the manifest which was parsed for the next one.
+   */
+  /* package */ synchronized void endManifest() {
+    // The stores which the new manifest does not use are released with the previous manifest.
+    previousStores = currentStores;
+    currentStores = null;
+  }
+
+  /**
+   * Returns the number of stores used by the last manifest which was parsed.
+   */
+  /* package */ synchronized int getStoreCount() {
+    return previousStores.size();
+  }
+
+  /**
+   * Returns the number of segments held by the stores of the last manifest which was parsed,
+   * including the segments which have left its window but were not compacted yet.
+   */
+  /* package */ synchronized int getStoredSegmentCount() {
+    int count = 0;
+    for (int i = 0; i < previousStores.size(); i++) {
+      count += previousStores.get(i).size;
+    }
+    return count;
+  }
+
+  @Override
+  protected List<SegmentTimelineElement> parseSegmentTimeline(XmlPullParser xpp)
+      throws XmlPullParserException, IOException {
+    TimelineBuilder builder = new TimelineBuilder();
+    long elapsedTime = 0;
+    do {
+      xpp.next();
+      if (xpp.getEventType() == XmlPullParser.START_TAG && "S".equals(xpp.getName())) {
+        elapsedTime = parseAttribute(xpp, "t", elapsedTime);
+        long duration = parseAttribute(xpp, "d", -1);
+        int count = 1 + (int) parseAttribute(xpp, "r", 0);
+        for (int i = 0; i < count; i++) {
+          builder.add(elapsedTime, duration);
+          elapsedTime += duration;
+        }
+      }
+    } while (xpp.getEventType() != XmlPullParser.END_TAG
+        || !"SegmentTimeline".equals(xpp.getName()));
+    return builder.build();
+  }
+
+  private static long parseAttribute(XmlPullParser xpp, String name, long defaultValue) {
+    String value = xpp.getAttributeValue(null, name);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  /**
+   * Returns the store which contains a segment starting at the given time, looking first at the
+   * stores of the manifest being parsed, or null. The store is added to the stores of the manifest
+   * being parsed, and copied first if most of it has left the window.
+   */
+  private Store findStore(long startTime) {
+    for (int i = 0; i < currentStores.size(); i++) {
+      Store store = currentStores.get(i);
+      if (store.indexOf(startTime) >= 0) {
+        return store;
+      }
+    }
+    for (int i = 0; i < previousStores.size(); i++) {
+      Store store = previousStores.get(i);
+      int index = store.indexOf(startTime);
+      if (index >= 0) {
+        if (index > store.size / 2) {
+          store = store.copy(index);
+        }
+        currentStores.add(store);
+        return store;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The start times and durations of a sequence of segments. Segments are only ever appended, so
+   * the views of a store remain valid while it grows.
+   */
+  private static final class Store {
+
+    private long[] startTimes;
+    private long[] durations;
+    private int size;
+
+    public Store(int capacity) {
+      startTimes = new long[capacity];
+      durations = new long[capacity];
+    }
+
+    /**
+     * Returns the index of the segment which starts at the given time, or -1.
+     */
+    public int indexOf(long startTime) {
+      int index = Arrays.binarySearch(startTimes, 0, size, startTime);
+      return index >= 0 ? index : -1;
+    }
+
+    public boolean matches(int index, long startTime, long duration) {
+      return index < size && startTimes[index] == startTime && durations[index] == duration;
+    }
+
+    public void append(long startTime, long duration) {
+      if (size == startTimes.length) {
+        // The views keep the previous arrays, which hold every segment they can see.
+        startTimes = Arrays.copyOf(startTimes, size * 2);
+        durations = Arrays.copyOf(durations, size * 2);
+      }
+      startTimes[size] = startTime;
+      durations[size] = duration;
+      size++;
+    }
+
+    /**
+     * Returns a new store which holds the segments of this store from the given index.
+     */
+    public Store copy(int fromIndex) {
+      Store store = new Store(Math.max(INITIAL_CAPACITY, (size - fromIndex) * 2));
+      System.arraycopy(startTimes, fromIndex, store.startTimes, 0, size - fromIndex);
+      System.arraycopy(durations, fromIndex, store.durations, 0, size - fromIndex);
+      store.size = size - fromIndex;
+      return store;
+    }
+
+    public SegmentTimeline view(int fromIndex, int toIndex) {
+      return new SegmentTimeline(startTimes, durations, fromIndex, toIndex);
+    }
+  }
+
+  /**
+   * Builds the timeline of a representation, sharing the segments it has in common with a store.
+   */
+  private final class TimelineBuilder {
+
+    private Store store;
+    private int fromIndex;
+    private int index;
+
+    public void add(long startTime, long duration) {
+      if (store == null) {
+        store = findStore(startTime);
+        if (store == null) {
+          store = new Store(INITIAL_CAPACITY);
+          currentStores.add(store);
+        }
+        fromIndex = store.size == 0 ? 0 : store.indexOf(startTime);
+        index = fromIndex;
+      }
+      if (store.matches(index, startTime, duration)) {
+        index++;
+        return;
+      }
+      if (index < store.size) {
+        // The timeline differs from the store, so it continues in a store of its own.
+        Store divergedStore = new Store(Math.max(INITIAL_CAPACITY, (index - fromIndex) * 2));
+        for (int i = fromIndex; i < index; i++) {
+          divergedStore.append(store.startTimes[i], store.durations[i]);
+        }
+        currentStores.add(divergedStore);
+        store = divergedStore;
+        fromIndex = 0;
+        index = divergedStore.size;
+      }
+      store.append(startTime, duration);
+      index++;
+    }
+
+    public List<SegmentTimelineElement> build() {
+      return store == null ? new SegmentTimeline(new long[0], new long[0], 0, 0)
+          : store.view(fromIndex, index);
+    }
+  }
+
+  /**
+   * A segment timeline backed by the arrays of a store. The elements are created when they are
+   * read, and are short lived.
+   */
+  private static final class SegmentTimeline extends AbstractList<SegmentTimelineElement>
+      implements RandomAccess {
+
+    private final long[] startTimes;
+    private final long[] durations;
+    private final int fromIndex;
+    private final int size;
+
+    private SegmentTimeline(long[] startTimes, long[] durations, int fromIndex, int toIndex) {
+      this.startTimes = startTimes;
+      this.durations = durations;
+      this.fromIndex = fromIndex;
+      this.size = toIndex - fromIndex;
+    }
+
+    @Override
+    public SegmentTimelineElement get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+      }
+      return new SegmentTimelineElement(startTimes[fromIndex + index],
+          durations[fromIndex + index]);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
@@ -20,21 +20,22 @@
  */
 package com.google.android.libraries.mediaframework.exoplayerextensions;
 
-import com.google.android.exoplayer.DefaultLoadControl;
 import com.google.android.exoplayer.LoadControl;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecSelector;
+import com.google.android.exoplayer.MediaCodecUtil;
+import com.google.android.exoplayer.MediaCodecUtil.DecoderQueryException;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.TrackRenderer;
 import com.google.android.exoplayer.audio.AudioCapabilities;
 import com.google.android.exoplayer.chunk.ChunkSampleSource;
 import com.google.android.exoplayer.chunk.ChunkSource;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
 import com.google.android.exoplayer.chunk.FormatEvaluator.AdaptiveEvaluator;
 import com.google.android.exoplayer.dash.DashChunkSource;
 import com.google.android.exoplayer.dash.DefaultDashTrackSelector;
 import com.google.android.exoplayer.dash.mpd.AdaptationSet;
 import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
-import com.google.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser;
 import com.google.android.exoplayer.dash.mpd.Period;
 import com.google.android.exoplayer.dash.mpd.UtcTimingElement;
 import com.google.android.exoplayer.dash.mpd.UtcTimingElementResolver;
@@ -43,12 +44,11 @@ import com.google.android.exoplayer.drm.MediaDrmCallback;
 import com.google.android.exoplayer.drm.StreamingDrmSessionManager;
 import com.google.android.exoplayer.drm.UnsupportedDrmException;
 import com.google.android.exoplayer.text.TextTrackRenderer;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
-import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.DefaultUriDataSource;
 import com.google.android.exoplayer.upstream.UriDataSource;
 import com.google.android.exoplayer.util.ManifestFetcher;
+import com.google.android.exoplayer.util.MimeTypes;
 import com.google.android.exoplayer.util.Util;
 
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.RendererBuilder;
@@ -57,9 +57,14 @@ import android.content.Context;
 import android.media.AudioManager;
 import android.media.MediaCodec;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A {@link RendererBuilder} for DASH.
@@ -68,37 +73,121 @@ public class DashRendererBuilder implements RendererBuilder {
 
   private static final String TAG = "DashRendererBuilder";
 
-  private static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
-  private static final int VIDEO_BUFFER_SEGMENTS = 200;
-  private static final int AUDIO_BUFFER_SEGMENTS = 54;
-  private static final int TEXT_BUFFER_SEGMENTS = 2;
+  /**
+   * The latency behind the live edge at which live streams start without a target latency.
+   */
   private static final int LIVE_EDGE_LATENCY_MS = 30000;
 
   private static final int SECURITY_LEVEL_UNKNOWN = -1;
   private static final int SECURITY_LEVEL_1 = 1;
   private static final int SECURITY_LEVEL_3 = 3;
 
+  /**
+   * Runs the startup stages which block (opening DRM and probing the decoders) off the main
+   * thread, so that they overlap with each other and with the network requests.
+   */
+  private static final ExecutorService startupExecutor = Executors.newCachedThreadPool();
+
   private final Context context;
   private final String userAgent;
   private final String url;
   private final MediaDrmCallback drmCallback;
+  private final SegmentCache segmentCache;
+  private final Download download;
+
+  /**
+   * Creates the strategies which select the video formats, or null to use an AdaptiveEvaluator.
+   */
+  private AbrStrategy.Factory abrStrategyFactory;
+
+  /**
+   * Prefetches the segments of the tracks, or null to load them one at a time.
+   */
+  private SegmentPrefetcher segmentPrefetcher;
+
+  /**
+   * The latency which live streams keep behind the live edge, or LiveLatencyController.NO_TARGET.
+   */
+  private long targetLiveLatencyMs;
 
   private AsyncRendererBuilder currentAsyncBuilder;
 
   public DashRendererBuilder(Context context, String userAgent, String url,
                              MediaDrmCallback drmCallback) {
+    this(context, userAgent, url, drmCallback, null);
+  }
+
+  /**
+   * @param segmentCache The cache through which the segments are read, or null to always read
+   *                     them from the network.
+   */
+  public DashRendererBuilder(Context context, String userAgent, String url,
+                             MediaDrmCallback drmCallback, SegmentCache segmentCache) {
+    this(context, userAgent, url, drmCallback, segmentCache, null);
+  }
+
+  /**
+   * Create a renderer builder which plays a downloaded video without any network access.
+   * @param download A download which has completed.
+   */
+  public DashRendererBuilder(Context context, String userAgent, Download download) {
+    this(context, userAgent, download.getVideo().getUrl(), null, null, download);
+  }
+
+  private DashRendererBuilder(Context context, String userAgent, String url,
+                              MediaDrmCallback drmCallback, SegmentCache segmentCache,
+                              Download download) {
     this.context = context;
     this.userAgent = userAgent;
     this.url = url;
     this.drmCallback = drmCallback;
+    this.segmentCache = segmentCache;
+    this.download = download;
+    targetLiveLatencyMs = LiveLatencyController.NO_TARGET;
+  }
+
+  /**
+   * Set the factory of the strategies which select the video formats. By default, the formats are
+   * selected by an AdaptiveEvaluator.
+   * @param abrStrategyFactory A factory, or null to restore the default.
+   */
+  public void setAbrStrategyFactory(AbrStrategy.Factory abrStrategyFactory) {
+    this.abrStrategyFactory = abrStrategyFactory;
+  }
+
+  /**
+   * Set the prefetcher which keeps several segment requests in flight for each track. By default,
+   * the segments are loaded one at a time. Downloaded videos are not prefetched.
+   * @param segmentPrefetcher A prefetcher, or null to restore the default.
+   */
+  public void setSegmentPrefetcher(SegmentPrefetcher segmentPrefetcher) {
+    this.segmentPrefetcher = segmentPrefetcher;
+  }
+
+  /**
+   * Play live streams at the given latency behind the live edge. The player starts at this
+   * latency, and its {@link LiveLatencyController} keeps it there by adjusting the playback rate
+   * or seeking. By default, live streams start 30 seconds behind the edge and the latency is only
+   * measured.
+   * @param targetLatencyMs The target latency, or LiveLatencyController.NO_TARGET to restore the
+   *                        default.
+   */
+  public void setTargetLiveLatencyMs(long targetLatencyMs) {
+    this.targetLiveLatencyMs = targetLatencyMs;
   }
 
   @Override
   public void buildRenderers(ExoplayerWrapper player) {
-    currentAsyncBuilder = new AsyncRendererBuilder(context, userAgent, url, drmCallback, player);
+    currentAsyncBuilder = new AsyncRendererBuilder(context, userAgent, url, drmCallback,
+        segmentCache, download, abrStrategyFactory, segmentPrefetcher, targetLiveLatencyMs,
+        player);
     currentAsyncBuilder.init();
   }
 
+  /**
+   * Cancel the build in progress. The player also cancels its renderer builder when it stops
+   * playing the video, which stops the segment prefetches of the renderers.
+   */
   @Override
   public void cancel() {
     if (currentAsyncBuilder != null) {
@@ -107,38 +196,104 @@ public class DashRendererBuilder implements RendererBuilder {
     }
   }
 
+  /**
+   * Builds the renderers in stages. The manifest fetch overlaps with the decoder capability probe.
+   * Once the manifest is available, the clock synchronization of live streams overlaps with the
+   * opening of the DRM session manager. The renderers are built when both have completed. The
+   * duration of each stage is reported to the player's metrics.
+   *
+   * <p>The stages complete and the renderers are built on the event thread of the player, so that
+   * they do not compete with the UI. Only the renderers, the errors and the stage durations are
+   * posted to the main thread.
+   */
   private static final class AsyncRendererBuilder
           implements ManifestFetcher.ManifestCallback<MediaPresentationDescription>,
           UtcTimingCallback {
 
     private final Context context;
     private final String userAgent;
+    private final String url;
     private final MediaDrmCallback drmCallback;
+    private final SegmentCache segmentCache;
+    private final Download download;
+    private final AbrStrategy.Factory abrStrategyFactory;
+    private final SegmentPrefetcher segmentPrefetcher;
+    private final long targetLiveLatencyMs;
     private final ExoplayerWrapper player;
+
+    /**
+     * The build of the player which the results are delivered to.
+     */
+    private final ExoplayerWrapper.RendererBuild build;
     private final ManifestFetcher<MediaPresentationDescription> manifestFetcher;
     private final UriDataSource manifestDataSource;
+    private final UriDataSource timingDataSource;
+
+    private volatile boolean canceled;
 
-    private boolean canceled;
+    /**
+     * The prefetching data sources of the renderers, which are released when the build is
+     * canceled. Guarded by itself.
+     */
+    private final List<SegmentPrefetcher.PrefetchingDataSource> prefetchingDataSources;
+
+    /**
+     * Whether a stage has failed, after which the renderers are not built.
+     */
+    private boolean failed;
     private MediaPresentationDescription manifest;
     private long elapsedRealtimeOffset;
 
+    /**
+     * The number of stages which must complete before the renderers are built.
+     */
+    private int pendingStageCount;
+    private long manifestStartTimeMs;
+    private long clockSyncStartTimeMs;
+    private StreamingDrmSessionManager drmSessionManager;
+    private boolean filterHdContent;
+
     public AsyncRendererBuilder(Context context, String userAgent, String url,
-                                MediaDrmCallback drmCallback, ExoplayerWrapper player) {
+                                MediaDrmCallback drmCallback, SegmentCache segmentCache,
+                                Download download, AbrStrategy.Factory abrStrategyFactory,
+                                SegmentPrefetcher segmentPrefetcher, long targetLiveLatencyMs,
+                                ExoplayerWrapper player) {
       this.context = context;
       this.userAgent = userAgent;
+      this.url = url;
       this.drmCallback = drmCallback;
+      this.segmentCache = segmentCache;
+      this.download = download;
+      this.abrStrategyFactory = abrStrategyFactory;
+      this.segmentPrefetcher = segmentPrefetcher;
+      this.targetLiveLatencyMs = targetLiveLatencyMs;
       this.player = player;
-      MediaPresentationDescriptionParser parser = new MediaPresentationDescriptionParser();
-      manifestDataSource = new DefaultUriDataSource(context, userAgent);
+      build = player.getRendererBuild();
+      prefetchingDataSources = new ArrayList<SegmentPrefetcher.PrefetchingDataSource>();
+      // Refreshes of live manifests which have not changed are not parsed again.
+      IncrementalManifestParser<MediaPresentationDescription> parser =
+          new IncrementalManifestParser<>(new CompactMpdParser());
+      manifestDataSource = download != null ? download.createDataSource()
+          : ManifestCache.getInstance(context).createDataSource(context, userAgent);
+      // Timing responses must not be served from the manifest cache.
+      timingDataSource = HttpTransport.getInstance().createDataSource(context, null, userAgent);
       manifestFetcher = new ManifestFetcher<>(url, manifestDataSource, parser);
     }
 
     public void init() {
-      manifestFetcher.singleLoad(player.getMainHandler().getLooper(), this);
+      manifestStartTimeMs = SystemClock.elapsedRealtime();
+      manifestFetcher.singleLoad(player.getEventHandler().getLooper(), this);
+      startCapabilityProbe();
     }
 
     public void cancel() {
       canceled = true;
+      synchronized (prefetchingDataSources) {
+        for (SegmentPrefetcher.PrefetchingDataSource dataSource : prefetchingDataSources) {
+          dataSource.release();
+        }
+        prefetchingDataSources.clear();
+      }
     }
 
     @Override
@@ -148,10 +303,27 @@ public class DashRendererBuilder implements RendererBuilder {
       }
 
       this.manifest = manifest;
-      if (manifest.dynamic && manifest.utcTiming != null) {
-        UtcTimingElementResolver.resolveTimingElement(manifestDataSource, manifest.utcTiming,
+      reportStage(PlaybackMetricsCollector.STARTUP_STAGE_MANIFEST,
+          SystemClock.elapsedRealtime() - manifestStartTimeMs);
+
+      boolean syncClock = manifest.dynamic && manifest.utcTiming != null;
+      boolean openDrm = hasContentProtection(manifest.getPeriod(0));
+      if (openDrm && Util.SDK_INT < 18) {
+        deliverError(
+                new UnsupportedDrmException(UnsupportedDrmException.REASON_UNSUPPORTED_SCHEME));
+        return;
+      }
+
+      pendingStageCount = (syncClock ? 1 : 0) + (openDrm ? 1 : 0);
+      if (syncClock) {
+        clockSyncStartTimeMs = SystemClock.elapsedRealtime();
+        UtcTimingElementResolver.resolveTimingElement(timingDataSource, manifest.utcTiming,
                 manifestFetcher.getManifestLoadCompleteTimestamp(), this);
-      } else {
+      }
+      if (openDrm) {
+        openDrm();
+      }
+      if (pendingStageCount == 0) {
         buildRenderers();
       }
     }
@@ -162,7 +334,7 @@ public class DashRendererBuilder implements RendererBuilder {
         return;
       }
 
-      player.onRenderersError(e);
+      deliverError(e);
     }
 
     @Override
@@ -172,7 +344,7 @@ public class DashRendererBuilder implements RendererBuilder {
       }
 
       this.elapsedRealtimeOffset = elapsedRealtimeOffset;
-      buildRenderers();
+      onClockSyncCompleted();
     }
 
     @Override
@@ -183,15 +355,95 @@ public class DashRendererBuilder implements RendererBuilder {
 
       Log.e(TAG, "Failed to resolve UtcTiming element [" + utcTiming + "]", e);
       // Be optimistic and continue in the hope that the device clock is correct.
-      buildRenderers();
+      onClockSyncCompleted();
     }
 
-    private void buildRenderers() {
-      Period period = manifest.getPeriod(0);
-      Handler mainHandler = player.getMainHandler();
-      LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
-      DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(mainHandler, player);
+    private void onClockSyncCompleted() {
+      reportStage(PlaybackMetricsCollector.STARTUP_STAGE_CLOCK_SYNC,
+          SystemClock.elapsedRealtime() - clockSyncStartTimeMs);
+      onStageCompleted();
+    }
+
+    /**
+     * Create the DRM session manager and read the security level on a background thread.
+     */
+    private void openDrm() {
+      final Handler mainHandler = player.getMainHandler();
+      final Handler eventHandler = player.getEventHandler();
+      final long startTimeMs = SystemClock.elapsedRealtime();
+      startupExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          StreamingDrmSessionManager sessionManager = null;
+          boolean filterHd = false;
+          UnsupportedDrmException error = null;
+          try {
+            sessionManager = StreamingDrmSessionManager.newWidevineInstance(
+                    player.getPlaybackLooper(), drmCallback, null, mainHandler, player);
+            filterHd = getWidevineSecurityLevel(sessionManager) != SECURITY_LEVEL_1;
+          } catch (UnsupportedDrmException e) {
+            error = e;
+          }
+          final StreamingDrmSessionManager openedSessionManager = sessionManager;
+          final boolean openedFilterHd = filterHd;
+          final UnsupportedDrmException openError = error;
+          eventHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              onDrmOpened(openedSessionManager, openedFilterHd, openError,
+                  SystemClock.elapsedRealtime() - startTimeMs);
+            }
+          });
+        }
+      });
+    }
+
+    private void onDrmOpened(StreamingDrmSessionManager sessionManager, boolean filterHd,
+                             UnsupportedDrmException error, long durationMs) {
+      if (canceled) {
+        return;
+      }
+
+      reportStage(PlaybackMetricsCollector.STARTUP_STAGE_DRM, durationMs);
+      if (error != null) {
+        deliverError(error);
+        return;
+      }
+      drmSessionManager = sessionManager;
+      filterHdContent = filterHd;
+      onStageCompleted();
+    }
 
+    /**
+     * Query the decoders on a background thread. The results are cached by
+     * {@link MediaCodecUtil}, so the track selection and the renderers do not have to wait for
+     * them later on.
+     */
+    private void startCapabilityProbe() {
+      final long startTimeMs = SystemClock.elapsedRealtime();
+      startupExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            MediaCodecUtil.getDecoderInfo(MimeTypes.VIDEO_H264, false);
+            MediaCodecUtil.getDecoderInfo(MimeTypes.AUDIO_AAC, false);
+            MediaCodecUtil.maxH264DecodableFrameSize();
+          } catch (DecoderQueryException e) {
+            Log.w(TAG, "Failed to probe the decoders", e);
+          }
+          reportStage(PlaybackMetricsCollector.STARTUP_STAGE_CAPABILITY_PROBE,
+              SystemClock.elapsedRealtime() - startTimeMs);
+        }
+      });
+    }
+
+    private void onStageCompleted() {
+      if (--pendingStageCount == 0 && !failed) {
+        buildRenderers();
+      }
+    }
+
+    private static boolean hasContentProtection(Period period) {
       boolean hasContentProtection = false;
       for (int i = 0; i < period.adaptationSets.size(); i++) {
         AdaptationSet adaptationSet = period.adaptationSets.get(i);
@@ -199,58 +451,60 @@ public class DashRendererBuilder implements RendererBuilder {
           hasContentProtection |= adaptationSet.hasContentProtection();
         }
       }
+      return hasContentProtection;
+    }
 
-      // Check drm support if necessary.
-      boolean filterHdContent = false;
-      StreamingDrmSessionManager drmSessionManager = null;
-      if (hasContentProtection) {
-        if (Util.SDK_INT < 18) {
-          player.onRenderersError(
-                  new UnsupportedDrmException(UnsupportedDrmException.REASON_UNSUPPORTED_SCHEME));
-          return;
-        }
-        try {
-          drmSessionManager = StreamingDrmSessionManager.newWidevineInstance(
-                  player.getPlaybackLooper(), drmCallback, null, player.getMainHandler(), player);
-          filterHdContent = getWidevineSecurityLevel(drmSessionManager) != SECURITY_LEVEL_1;
-        } catch (UnsupportedDrmException e) {
-          player.onRenderersError(e);
-          return;
-        }
-      }
+    private void buildRenderers() {
+      long startTimeMs = SystemClock.elapsedRealtime();
+      Handler mainHandler = player.getMainHandler();
+      // The high-frequency load and bandwidth events are delivered on the event thread.
+      Handler eventHandler = player.getEventHandler();
+      BufferPolicy bufferPolicy = player.getBufferPolicy();
+      LoadControl loadControl =
+          bufferPolicy.newLoadControl(player.getAllocator());
+      // Start from the bandwidth measured by the previous sessions on this host and network.
+      BandwidthMeter bandwidthMeter =
+          BandwidthHistory.getInstance(context).newBandwidthMeter(url, eventHandler, player);
+      long liveEdgeLatencyMs = targetLiveLatencyMs != LiveLatencyController.NO_TARGET
+          ? targetLiveLatencyMs : LIVE_EDGE_LATENCY_MS;
 
       // Build the video renderer.
-      DataSource videoDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+      DataSource videoDataSource = newDataSource(bandwidthMeter, ExoplayerWrapper.TYPE_VIDEO);
       ChunkSource videoChunkSource = new DashChunkSource(manifestFetcher,
-              DefaultDashTrackSelector.newVideoInstance(context, true, filterHdContent),
-              videoDataSource, new AdaptiveEvaluator(bandwidthMeter), LIVE_EDGE_LATENCY_MS,
+              download != null ? download.newDashTrackSelector(AdaptationSet.TYPE_VIDEO)
+                  : DefaultDashTrackSelector.newVideoInstance(context, true, filterHdContent),
+              videoDataSource, newFormatEvaluator(bandwidthMeter), liveEdgeLatencyMs,
               elapsedRealtimeOffset, mainHandler, player, ExoplayerWrapper.TYPE_VIDEO);
       ChunkSampleSource videoSampleSource = new ChunkSampleSource(videoChunkSource, loadControl,
-              VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, mainHandler, player,
+              bufferPolicy.videoBufferSize, eventHandler, player,
               ExoplayerWrapper.TYPE_VIDEO);
       TrackRenderer videoRenderer = new MediaCodecVideoTrackRenderer(context, videoSampleSource,
               MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000, drmSessionManager, true,
               mainHandler, player, 50);
 
       // Build the audio renderer.
-      DataSource audioDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+      DataSource audioDataSource = newDataSource(bandwidthMeter, ExoplayerWrapper.TYPE_AUDIO);
       ChunkSource audioChunkSource = new DashChunkSource(manifestFetcher,
-              DefaultDashTrackSelector.newAudioInstance(), audioDataSource, null, LIVE_EDGE_LATENCY_MS,
+              download != null ? download.newDashTrackSelector(AdaptationSet.TYPE_AUDIO)
+                  : DefaultDashTrackSelector.newAudioInstance(),
+              audioDataSource, null, liveEdgeLatencyMs,
               elapsedRealtimeOffset, mainHandler, player, ExoplayerWrapper.TYPE_AUDIO);
       ChunkSampleSource audioSampleSource = new ChunkSampleSource(audioChunkSource, loadControl,
-              AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, mainHandler, player,
+              bufferPolicy.audioBufferSize, eventHandler, player,
               ExoplayerWrapper.TYPE_AUDIO);
       TrackRenderer audioRenderer = new MediaCodecAudioTrackRenderer(audioSampleSource,
               MediaCodecSelector.DEFAULT, drmSessionManager, true, mainHandler, player,
               AudioCapabilities.getCapabilities(context), AudioManager.STREAM_MUSIC);
 
       // Build the text renderer.
-      DataSource textDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+      DataSource textDataSource = newDataSource(bandwidthMeter, ExoplayerWrapper.TYPE_TEXT);
       ChunkSource textChunkSource = new DashChunkSource(manifestFetcher,
-              DefaultDashTrackSelector.newTextInstance(), textDataSource, null, LIVE_EDGE_LATENCY_MS,
+              download != null ? download.newDashTrackSelector(AdaptationSet.TYPE_TEXT)
+                  : DefaultDashTrackSelector.newTextInstance(),
+              textDataSource, null, liveEdgeLatencyMs,
               elapsedRealtimeOffset, mainHandler, player, ExoplayerWrapper.TYPE_TEXT);
       ChunkSampleSource textSampleSource = new ChunkSampleSource(textChunkSource, loadControl,
-              TEXT_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, mainHandler, player,
+              bufferPolicy.textBufferSize, eventHandler, player,
               ExoplayerWrapper.TYPE_TEXT);
       TrackRenderer textRenderer = new TextTrackRenderer(textSampleSource, player,
               mainHandler.getLooper());
@@ -260,7 +514,107 @@ public class DashRendererBuilder implements RendererBuilder {
       renderers[ExoplayerWrapper.TYPE_VIDEO] = videoRenderer;
       renderers[ExoplayerWrapper.TYPE_AUDIO] = audioRenderer;
       renderers[ExoplayerWrapper.TYPE_TEXT] = textRenderer;
-      player.onRenderers(renderers, bandwidthMeter);
+      deliverRenderers(renderers, bandwidthMeter, SystemClock.elapsedRealtime() - startTimeMs);
+    }
+
+    /**
+     * Deliver the renderers to the player on the main thread, unless the build has been canceled
+     * in the meantime.
+     */
+    private void deliverRenderers(final TrackRenderer[] renderers,
+                                  final BandwidthMeter bandwidthMeter, final long buildDurationMs) {
+      final long targetLatencyMs = manifest.dynamic ? targetLiveLatencyMs
+          : LiveLatencyController.NO_TARGET;
+      player.getMainHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          if (!canceled) {
+            build.onStartupStageCompleted(PlaybackMetricsCollector.STARTUP_STAGE_RENDERER_BUILD,
+                buildDurationMs);
+            build.setTargetLiveLatencyMs(targetLatencyMs);
+            build.onRenderers(renderers, bandwidthMeter);
+          }
+        }
+      });
+    }
+
+    /**
+     * Report the failure of the build to the player on the main thread, unless the build has been
+     * canceled in the meantime. The renderers are not built after a failure.
+     */
+    private void deliverError(final Exception e) {
+      failed = true;
+      player.getMainHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          if (!canceled) {
+            build.onRenderersError(e);
+          }
+        }
+      });
+    }
+
+    /**
+     * Report the duration of a stage to the player on the main thread.
+     * @param stage One of the PlaybackMetricsCollector.STARTUP_STAGE_* constants.
+     */
+    private void reportStage(final int stage, final long durationMs) {
+      player.getMainHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          if (!canceled) {
+            build.onStartupStageCompleted(stage, durationMs);
+          }
+        }
+      });
+    }
+
+    private FormatEvaluator newFormatEvaluator(BandwidthMeter bandwidthMeter) {
+      return abrStrategyFactory != null
+          ? new AbrFormatEvaluator(abrStrategyFactory.createAbrStrategy(), bandwidthMeter)
+          : new AdaptiveEvaluator(bandwidthMeter);
+    }
+
+    /**
+     * Create the data source of a renderer, which reports the requests of the renderer to the
+     * player.
+     * @param sourceId The renderer type (one of the ExoplayerWrapper TYPE_* constants).
+     */
+    private DataSource newDataSource(final BandwidthMeter bandwidthMeter, final int sourceId) {
+      DataSource dataSource;
+      if (download != null) {
+        dataSource = download.createDataSource();
+      } else {
+        dataSource = newNetworkDataSource(bandwidthMeter);
+        if (segmentPrefetcher != null) {
+          SegmentPrefetcher.PrefetchingDataSource prefetchingDataSource =
+              segmentPrefetcher.createDataSource(dataSource,
+                  new SegmentPrefetcher.UpstreamFactory() {
+                    @Override
+                    public DataSource createUpstream() {
+                      // The prefetches are the network requests of the segments served from
+                      // memory, so they are reported in their place.
+                      return new InstrumentedDataSource(newNetworkDataSource(bandwidthMeter),
+                          player, sourceId, false);
+                    }
+                  }, manifestFetcher, player.getAllocator());
+          synchronized (prefetchingDataSources) {
+            if (canceled) {
+              prefetchingDataSource.release();
+            } else {
+              prefetchingDataSources.add(prefetchingDataSource);
+            }
+          }
+          dataSource = prefetchingDataSource;
+        }
+      }
+      return new InstrumentedDataSource(dataSource, player, sourceId, false);
+    }
+
+    private DataSource newNetworkDataSource(BandwidthMeter bandwidthMeter) {
+      return segmentCache != null
+          ? segmentCache.createDataSource(context, bandwidthMeter, userAgent)
+          : HttpTransport.getInstance().createDataSource(context, bandwidthMeter, userAgent);
     }
 
     private static int getWidevineSecurityLevel(StreamingDrmSessionManager sessionManager) {
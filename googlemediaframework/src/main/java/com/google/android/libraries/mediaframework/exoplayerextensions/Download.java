@@ -0,0 +1,626 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.dash.DashTrackSelector;
+import com.google.android.exoplayer.dash.mpd.AdaptationSet;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.dash.mpd.Period;
+import com.google.android.exoplayer.hls.HlsMasterPlaylist;
+import com.google.android.exoplayer.hls.HlsTrackSelector;
+import com.google.android.exoplayer.hls.Variant;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.UriDataSource;
+import com.google.android.exoplayer.upstream.cache.Cache;
+import com.google.android.exoplayer.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer.upstream.cache.CacheSpan;
+import com.google.android.exoplayer.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer.upstream.cache.SimpleCache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A video which is downloaded, or has been downloaded, for offline playback by the
+ * {@link DownloadManager}.
+ *
+ * <p>The downloaded data is stored in a cache of its own, keyed by URI, so that the renderer
+ * builders can play the video from it without any network access: the manifest (or playlists)
+ * and the segments of the selected renditions are read from the cache, and the track selection
+ * is restricted to the selected renditions. This class is thread safe.
+ */
+public final class Download {
+
+  /**
+   * The download is waiting for a worker.
+   */
+  public static final int STATE_QUEUED = 0;
+
+  /**
+   * The download is in progress.
+   */
+  public static final int STATE_DOWNLOADING = 1;
+
+  /**
+   * The download has been paused, or the process has been killed while it was in progress.
+   */
+  public static final int STATE_PAUSED = 2;
+
+  /**
+   * All the segments have been downloaded. The video can be played offline.
+   */
+  public static final int STATE_COMPLETED = 3;
+
+  /**
+   * A segment could not be downloaded.
+   */
+  public static final int STATE_FAILED = 4;
+
+  /**
+   * Returned by {@link #nextTask()} when there is no segment left to download.
+   */
+  /* package */ static final int NO_TASK = -1;
+
+  /**
+   * The version of the format of the files which hold the state of the downloads.
+   */
+  private static final int STATE_VERSION = 2;
+
+  private final Video video;
+
+  /**
+   * The renditions whose bitrate is above this many bits per second are not downloaded.
+   */
+  private final int maxBitrate;
+
+  /**
+   * The video renditions whose height is above this many pixels are not downloaded.
+   */
+  private final int maxHeight;
+
+  /**
+   * The directory of the cache which holds the downloaded data.
+   */
+  private final File cacheDirectory;
+
+  private Cache cache;
+
+  /**
+   * The ids of the selected renditions: the format ids of the DASH representations, or the URL
+   * of the HLS variant.
+   */
+  private String[] selectedIds;
+
+  private int state;
+
+  /**
+   * Whether each segment has been downloaded, or null if the manifest has not been resolved.
+   */
+  private boolean[] completedTasks;
+  private int completedTaskCount;
+
+  /**
+   * The index from which {@link #nextTask()} looks for a segment to download.
+   */
+  private int nextTaskIndex;
+  private int activeWorkerCount;
+  private boolean removed;
+  private boolean dataDeleted;
+
+  private long bytesDownloaded;
+
+  /**
+   * The number of bytes of the downloaded data on disk, as last reported by the cache.
+   */
+  private long diskBytes;
+
+  /**
+   * The time spent downloading before the current run.
+   */
+  private long downloadTimeMs;
+
+  /**
+   * The time at which the current run started.
+   */
+  private long runStartTimeMs;
+
+  private IOException error;
+
+  /**
+   * @param video The video which is downloaded.
+   * @param maxBitrate The renditions whose bitrate is above this many bits per second are not
+   *                   downloaded.
+   * @param maxHeight The video renditions whose height is above this many pixels are not
+   *                  downloaded.
+   * @param cacheDirectory The directory of the cache which holds the downloaded data.
+   */
+  /* package */ Download(Video video, int maxBitrate, int maxHeight, File cacheDirectory) {
+    this.video = video;
+    this.maxBitrate = maxBitrate;
+    this.maxHeight = maxHeight;
+    this.cacheDirectory = cacheDirectory;
+    selectedIds = new String[0];
+    state = STATE_QUEUED;
+  }
+
+  public Video getVideo() {
+    return video;
+  }
+
+  public int getMaxBitrate() {
+    return maxBitrate;
+  }
+
+  public int getMaxHeight() {
+    return maxHeight;
+  }
+
+  /**
+   * Returns one of the STATE_* constants.
+   */
+  public synchronized int getState() {
+    return state;
+  }
+
+  /**
+   * Returns the share of the segments which have been downloaded, between 0 and 1.
+   */
+  public synchronized float getProgress() {
+    if (completedTasks == null || completedTasks.length == 0) {
+      return state == STATE_COMPLETED ? 1 : 0;
+    }
+    return (float) completedTaskCount / completedTasks.length;
+  }
+
+  /**
+   * Returns the number of segments to download, or -1 if the manifest has not been resolved yet.
+   */
+  public synchronized int getTaskCount() {
+    return completedTasks == null ? -1 : completedTasks.length;
+  }
+
+  /**
+   * Returns the number of segments which have been downloaded.
+   */
+  public synchronized int getCompletedTaskCount() {
+    return completedTaskCount;
+  }
+
+  /**
+   * Returns the number of bytes downloaded from the network.
+   */
+  public synchronized long getBytesDownloaded() {
+    return bytesDownloaded;
+  }
+
+  /**
+   * Returns the average number of bits per second downloaded while the download was in progress.
+   */
+  public synchronized long getThroughputBps() {
+    long timeMs = getDownloadTimeMs();
+    return timeMs == 0 ? 0 : bytesDownloaded * 8000 / timeMs;
+  }
+
+  /**
+   * Returns the number of bytes of the downloaded data on disk. It is updated as segments are
+   * downloaded, so that it can be read on the main thread without loading the cache.
+   */
+  public synchronized long getDiskBytes() {
+    return diskBytes;
+  }
+
+  /**
+   * Returns the error which made the download fail, or null.
+   */
+  public synchronized IOException getError() {
+    return error;
+  }
+
+  /**
+   * Returns the cache which holds the downloaded data. The cache is loaded from disk the first
+   * time, which blocks, so this must not be called on the main thread.
+   */
+  /* package */ synchronized Cache getCache() {
+    if (cache == null) {
+      cache = new SimpleCache(cacheDirectory, new NoOpCacheEvictor());
+    }
+    return cache;
+  }
+
+  /**
+   * Remove the downloaded data from the cache, if it has been loaded, and drop the cache so that
+   * a later download of the same video loads a new one. The data sources created before keep
+   * reading from the old cache, which no longer holds any data.
+   */
+  /* package */ void releaseCache() {
+    Cache cache;
+    synchronized (this) {
+      cache = this.cache;
+      this.cache = null;
+    }
+    if (cache == null) {
+      return;
+    }
+    for (String key : cache.getKeys()) {
+      Set<CacheSpan> spans = cache.getCachedSpans(key);
+      if (spans != null) {
+        for (CacheSpan span : new ArrayList<CacheSpan>(spans)) {
+          cache.removeSpan(span);
+        }
+      }
+    }
+  }
+
+  /* package */ File getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  /**
+   * Create a data source which reads the downloaded data, and fails on data which has not been
+   * downloaded. The cache is loaded when the data source is first opened, on the loading thread.
+   */
+  /* package */ UriDataSource createDataSource() {
+    return new OfflineDataSource(this);
+  }
+
+  /**
+   * Create a track selector which only selects the downloaded representations of the adaptation
+   * sets of the given type.
+   * @param adaptationSetType One of the AdaptationSet.TYPE_* constants.
+   */
+  /* package */ DashTrackSelector newDashTrackSelector(final int adaptationSetType) {
+    return new DashTrackSelector() {
+      @Override
+      public void selectTracks(MediaPresentationDescription manifest, int periodIndex,
+                               Output output) throws IOException {
+        Period period = manifest.getPeriod(periodIndex);
+        for (int i = 0; i < period.adaptationSets.size(); i++) {
+          AdaptationSet adaptationSet = period.adaptationSets.get(i);
+          if (adaptationSet.type != adaptationSetType) {
+            continue;
+          }
+          for (int j = 0; j < adaptationSet.representations.size(); j++) {
+            if (isSelected(adaptationSet.representations.get(j).format.id)) {
+              output.fixedTrack(manifest, periodIndex, i, j);
+            }
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Create a track selector which only selects the downloaded HLS variant. A media playlist is
+   * presented by ExoPlayer as a master playlist with a single variant, which is selected although
+   * no variant was recorded for it.
+   */
+  /* package */ HlsTrackSelector newHlsTrackSelector() {
+    return new HlsTrackSelector() {
+      @Override
+      public void selectTracks(HlsMasterPlaylist playlist, Output output) throws IOException {
+        for (int i = 0; i < playlist.variants.size(); i++) {
+          Variant variant = playlist.variants.get(i);
+          if (isSelected(variant.url)) {
+            output.fixedTrack(playlist, variant);
+            return;
+          }
+        }
+        if (playlist.variants.size() == 1) {
+          output.fixedTrack(playlist, playlist.variants.get(0));
+        }
+      }
+    };
+  }
+
+  /**
+   * Record the renditions selected from the manifest and the number of segments to download.
+   * If the number of segments has changed since the state was saved, the download starts over.
+   */
+  /* package */ synchronized void onResolved(String[] selectedIds, int taskCount) {
+    if (completedTasks == null || completedTasks.length != taskCount
+        || !Arrays.equals(this.selectedIds, selectedIds)) {
+      completedTasks = new boolean[taskCount];
+      completedTaskCount = 0;
+    }
+    this.selectedIds = selectedIds;
+    nextTaskIndex = 0;
+  }
+
+  /**
+   * Put a paused or failed download back in the queue, to start once it may.
+   * @return Whether the state of the download has changed.
+   */
+  /* package */ synchronized boolean onQueued() {
+    if (removed || (state != STATE_PAUSED && state != STATE_FAILED)) {
+      return false;
+    }
+    state = STATE_QUEUED;
+    error = null;
+    return true;
+  }
+
+  /**
+   * Returns whether the download may start: it is not in progress, completed or removed.
+   */
+  /* package */ synchronized boolean onStart() {
+    if (removed || state == STATE_DOWNLOADING || state == STATE_COMPLETED) {
+      return false;
+    }
+    state = STATE_DOWNLOADING;
+    error = null;
+    runStartTimeMs = SystemClock.elapsedRealtime();
+    return true;
+  }
+
+  /**
+   * Returns the index of a segment which has not been downloaded and is not being downloaded, or
+   * {@link #NO_TASK} if there is none or the download has stopped.
+   */
+  /* package */ synchronized int nextTask() {
+    if (state != STATE_DOWNLOADING || completedTasks == null) {
+      return NO_TASK;
+    }
+    while (nextTaskIndex < completedTasks.length) {
+      int index = nextTaskIndex++;
+      if (!completedTasks[index]) {
+        return index;
+      }
+    }
+    return NO_TASK;
+  }
+
+  /* package */ synchronized void onWorkerStarted() {
+    activeWorkerCount++;
+  }
+
+  /**
+   * Returns whether the given worker was the last one running.
+   */
+  /* package */ synchronized boolean onWorkerFinished() {
+    return --activeWorkerCount == 0;
+  }
+
+  /* package */ synchronized void onTaskCompleted(int index) {
+    if (!completedTasks[index]) {
+      completedTasks[index] = true;
+      completedTaskCount++;
+    }
+  }
+
+  /* package */ synchronized void onBytesTransferred(int byteCount) {
+    bytesDownloaded += byteCount;
+  }
+
+  /* package */ synchronized void setDiskBytes(long diskBytes) {
+    this.diskBytes = diskBytes;
+  }
+
+  /**
+   * Stop the download once the segments being downloaded are complete.
+   * @return Whether the download was in progress.
+   */
+  /* package */ synchronized boolean pause() {
+    if (state != STATE_DOWNLOADING && state != STATE_QUEUED) {
+      return false;
+    }
+    onStop(STATE_PAUSED);
+    return true;
+  }
+
+  /* package */ synchronized void onFailed(IOException error) {
+    if (state == STATE_DOWNLOADING) {
+      this.error = error;
+      onStop(STATE_FAILED);
+    }
+  }
+
+  /**
+   * Complete the download if all the segments have been downloaded.
+   * @return Whether the download has completed.
+   */
+  /* package */ synchronized boolean maybeComplete() {
+    if (state != STATE_DOWNLOADING || completedTasks == null
+        || completedTaskCount < completedTasks.length) {
+      return false;
+    }
+    onStop(STATE_COMPLETED);
+    return true;
+  }
+
+  /* package */ synchronized void onRemoved() {
+    removed = true;
+    if (state == STATE_DOWNLOADING || state == STATE_QUEUED) {
+      onStop(STATE_PAUSED);
+    }
+  }
+
+  /* package */ synchronized boolean isRemoved() {
+    return removed;
+  }
+
+  /**
+   * Returns whether the caller should delete the data of the download: it has been removed, no
+   * worker is running and no other caller has been told to delete it.
+   */
+  /* package */ synchronized boolean shouldDeleteData() {
+    if (!removed || activeWorkerCount > 0 || dataDeleted) {
+      return false;
+    }
+    dataDeleted = true;
+    return true;
+  }
+
+  /* package */ synchronized void writeState(DataOutputStream output) throws IOException {
+    output.writeInt(STATE_VERSION);
+    output.writeUTF(video.getUrl());
+    output.writeUTF(video.getVideoType().name());
+    output.writeBoolean(video.getContentId() != null);
+    if (video.getContentId() != null) {
+      output.writeUTF(video.getContentId());
+    }
+    output.writeInt(maxBitrate);
+    output.writeInt(maxHeight);
+    output.writeInt(state);
+    output.writeInt(selectedIds.length);
+    for (String selectedId : selectedIds) {
+      output.writeUTF(selectedId);
+    }
+    output.writeLong(bytesDownloaded);
+    output.writeLong(diskBytes);
+    output.writeLong(getDownloadTimeMs());
+    output.writeInt(completedTasks == null ? -1 : completedTasks.length);
+    if (completedTasks != null) {
+      for (boolean completedTask : completedTasks) {
+        output.writeBoolean(completedTask);
+      }
+    }
+  }
+
+  /**
+   * Restore a download from its saved state. A download which was in progress is paused.
+   * @param cacheDirectory The directory of the cache which holds the downloaded data.
+   */
+  /* package */ static Download readState(DataInputStream input, File cacheDirectory)
+      throws IOException {
+    int version = input.readInt();
+    if (version != 1 && version != STATE_VERSION) {
+      throw new IOException("Unsupported download state version");
+    }
+    String url = input.readUTF();
+    Video.VideoType videoType;
+    try {
+      videoType = Video.VideoType.valueOf(input.readUTF());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unsupported video type");
+    }
+    String contentId = input.readBoolean() ? input.readUTF() : null;
+    Download download = new Download(new Video(url, videoType, contentId), input.readInt(),
+        input.readInt(), cacheDirectory);
+    int state = input.readInt();
+    download.state = state == STATE_COMPLETED || state == STATE_FAILED ? state : STATE_PAUSED;
+    download.selectedIds = new String[input.readInt()];
+    for (int i = 0; i < download.selectedIds.length; i++) {
+      download.selectedIds[i] = input.readUTF();
+    }
+    download.bytesDownloaded = input.readLong();
+    // Version 1 did not save the size on disk. All the downloaded bytes were written to disk.
+    download.diskBytes = version == 1 ? download.bytesDownloaded : input.readLong();
+    download.downloadTimeMs = input.readLong();
+    int taskCount = input.readInt();
+    if (taskCount >= 0) {
+      download.completedTasks = new boolean[taskCount];
+      for (int i = 0; i < taskCount; i++) {
+        download.completedTasks[i] = input.readBoolean();
+        if (download.completedTasks[i]) {
+          download.completedTaskCount++;
+        }
+      }
+    }
+    return download;
+  }
+
+  private void onStop(int state) {
+    if (this.state == STATE_DOWNLOADING) {
+      downloadTimeMs += SystemClock.elapsedRealtime() - runStartTimeMs;
+    }
+    this.state = state;
+  }
+
+  private long getDownloadTimeMs() {
+    return state == STATE_DOWNLOADING
+        ? downloadTimeMs + SystemClock.elapsedRealtime() - runStartTimeMs : downloadTimeMs;
+  }
+
+  private synchronized boolean isSelected(String id) {
+    for (String selectedId : selectedIds) {
+      if (selectedId.equals(id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the downloaded data, keyed by URI.
+   */
+  private static final class OfflineDataSource implements UriDataSource {
+
+    private final Download download;
+    private CacheDataSource cacheDataSource;
+    private String uri;
+
+    public OfflineDataSource(Download download) {
+      this.download = download;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      if (cacheDataSource == null) {
+        cacheDataSource = new CacheDataSource(download.getCache(), new MissingDataSource(), false,
+            false);
+      }
+      uri = dataSpec.uri.toString();
+      return cacheDataSource.open(SegmentCache.keyByUri(dataSpec));
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      return cacheDataSource.read(buffer, offset, readLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (cacheDataSource != null) {
+        cacheDataSource.close();
+      }
+    }
+
+    @Override
+    public String getUri() {
+      return uri;
+    }
+  }
+
+  /**
+   * Fails to read the data which has not been downloaded, instead of reading it from the network.
+   */
+  private static final class MissingDataSource implements DataSource {
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      throw new IOException("Not downloaded: " + dataSpec.uri);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      throw new IOException("Not downloaded");
+    }
+
+    @Override
+    public void close() {
+      // Do nothing.
+    }
+  }
+}
@@ -0,0 +1,740 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.dash.DashSegmentIndex;
+import com.google.android.exoplayer.dash.mpd.AdaptationSet;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser;
+import com.google.android.exoplayer.dash.mpd.Period;
+import com.google.android.exoplayer.dash.mpd.RangedUri;
+import com.google.android.exoplayer.dash.mpd.Representation;
+import com.google.android.exoplayer.hls.HlsMasterPlaylist;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylistParser;
+import com.google.android.exoplayer.hls.Variant;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer.util.UriUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads DASH and HLS videos for offline playback.
+ *
+ * <p>A download resolves the manifest of the video with the same parsers as the renderer
+ * builders, selects the best renditions within a bitrate and resolution cap, and fetches their
+ * segments with a bounded pool of workers. The state of the downloads is saved in the
+ * application's files directory, so that a download interrupted by the death of the process
+ * resumes where it stopped, and the segments which were partially downloaded are completed with
+ * range requests.
+ *
+ * <p>Once a download has completed, {@link RendererBuilderFactory} plays the video from the
+ * downloaded data without any network access. Live and protected content cannot be downloaded.
+ * This class is thread safe.
+ */
+public final class DownloadManager {
+
+  /**
+   * Receives the progress of the downloads, on the main thread.
+   */
+  public interface Listener {
+
+    /**
+     * Invoked when a download has started, paused, completed or failed.
+     */
+    void onDownloadStateChanged(Download download);
+
+    /**
+     * Invoked when a segment of a download has been downloaded.
+     */
+    void onDownloadProgress(Download download);
+  }
+
+  private static final String TAG = "DownloadManager";
+
+  /**
+   * The name of the directory in the application's files directory which holds the downloads.
+   */
+  private static final String DIRECTORY_NAME = "downloads";
+
+  private static final String STATE_FILE_SUFFIX = ".download";
+
+  /**
+   * By default, at most this many segments are downloaded at once, across all the downloads.
+   */
+  public static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 3;
+
+  /**
+   * A segment which fails to download this many times makes the download fail.
+   */
+  private static final int MAX_ATTEMPT_COUNT = 3;
+
+  /**
+   * The state of a download in progress is saved at most once per this many milliseconds.
+   */
+  private static final int STATE_WRITE_INTERVAL_MS = 1000;
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private static DownloadManager instance;
+
+  private final Context context;
+  private final String userAgent;
+
+  /**
+   * The directory which holds the state of the downloads and their data.
+   */
+  private final File directory;
+
+  private final int maxParallelDownloads;
+  private final ExecutorService executor;
+  private final Handler mainHandler;
+  private final CopyOnWriteArrayList<Listener> listeners;
+
+  /**
+   * The downloads by video URL.
+   */
+  private final Map<String, Download> downloads;
+
+  /**
+   * The number of removed downloads whose data is not deleted yet, by video URL. A new download
+   * of the same video uses the same directory, so it waits until they are deleted.
+   */
+  private final Map<String, Integer> pendingDeletionCounts;
+
+  /**
+   * @param context The context (ex {@link android.app.Activity}) of the application.
+   * @param directory The directory which holds the state of the downloads and their data.
+   * @param maxParallelDownloads The maximum number of segments downloaded at once.
+   */
+  public DownloadManager(Context context, File directory, int maxParallelDownloads) {
+    this(context.getApplicationContext(), directory, maxParallelDownloads,
+        ExoplayerUtil.getUserAgent(context), Executors.newFixedThreadPool(maxParallelDownloads),
+        new Handler(Looper.getMainLooper()));
+  }
+
+  /**
+   * @param context The context of the application.
+   * @param directory The directory which holds the state of the downloads and their data.
+   * @param maxParallelDownloads The maximum number of segments downloaded at once.
+   * @param userAgent The User-Agent sent with the requests.
+   * @param executor Runs the workers, and deletes the data of the removed downloads.
+   * @param mainHandler Delivers the notifications of the listeners on the main thread.
+   */
+  /* package */ DownloadManager(Context context, File directory, int maxParallelDownloads,
+                                String userAgent, ExecutorService executor, Handler mainHandler) {
+    this.context = context;
+    this.directory = directory;
+    this.maxParallelDownloads = maxParallelDownloads;
+    this.userAgent = userAgent;
+    this.executor = executor;
+    this.mainHandler = mainHandler;
+    listeners = new CopyOnWriteArrayList<Listener>();
+    downloads = new LinkedHashMap<String, Download>();
+    pendingDeletionCounts = new HashMap<String, Integer>();
+    restoreDownloads();
+  }
+
+  /**
+   * Returns the download manager of the application, which stores the downloads in the
+   * application's files directory.
+   * @param context The context (ex {@link android.app.Activity}) of the application.
+   */
+  public static synchronized DownloadManager getInstance(Context context) {
+    if (instance == null) {
+      File directory = new File(context.getApplicationContext().getFilesDir(), DIRECTORY_NAME);
+      instance = new DownloadManager(context, directory, DEFAULT_MAX_PARALLEL_DOWNLOADS);
+    }
+    return instance;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Download the given video, or resume its download if it was paused or failed. If the video
+   * was downloaded with other caps, that download is removed and the video is downloaded again.
+   * @param video A DASH or HLS video.
+   * @param maxBitrate The renditions whose bitrate is above this many bits per second are not
+   *                   downloaded, unless no rendition is below it.
+   * @param maxHeight The video renditions whose height is above this many pixels are not
+   *                  downloaded, unless no rendition is below it.
+   */
+  public Download download(Video video, int maxBitrate, int maxHeight) {
+    if (video.getVideoType() != Video.VideoType.DASH
+        && video.getVideoType() != Video.VideoType.HLS) {
+      throw new IllegalArgumentException("Only DASH and HLS videos can be downloaded.");
+    }
+    Download download = getDownload(video);
+    if (download != null
+        && (download.getMaxBitrate() != maxBitrate || download.getMaxHeight() != maxHeight)) {
+      // The renditions which were downloaded are not those the new caps select.
+      remove(download);
+    }
+    synchronized (this) {
+      download = downloads.get(video.getUrl());
+      if (download == null) {
+        download = new Download(video, maxBitrate, maxHeight,
+            new File(directory, ManifestCache.getFileName(video.getUrl())));
+        downloads.put(video.getUrl(), download);
+      }
+    }
+    resume(download);
+    return download;
+  }
+
+  /**
+   * Returns the download of the given video, or null.
+   */
+  public synchronized Download getDownload(Video video) {
+    return downloads.get(video.getUrl());
+  }
+
+  /**
+   * Returns all the downloads, in the order in which they were started.
+   */
+  public synchronized List<Download> getDownloads() {
+    return new ArrayList<Download>(downloads.values());
+  }
+
+  /**
+   * Stop the given download once the segments being downloaded are complete.
+   */
+  public void pause(Download download) {
+    if (download.pause()) {
+      writeState(download);
+      notifyStateChanged(download);
+    }
+  }
+
+  /**
+   * Resume the given download if it is paused or has failed.
+   */
+  public void resume(final Download download) {
+    synchronized (this) {
+      if (pendingDeletionCounts.containsKey(download.getVideo().getUrl())) {
+        // Start once the data of the removed downloads of the video is deleted.
+        if (download.onQueued()) {
+          notifyStateChanged(download);
+        }
+        return;
+      }
+    }
+    if (!download.onStart()) {
+      return;
+    }
+    notifyStateChanged(download);
+    download.onWorkerStarted();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        List<DataSpec> tasks = null;
+        try {
+          tasks = resolveTasks(download);
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to resolve " + download.getVideo().getUrl(), e);
+          download.onFailed(e);
+        }
+        writeState(download);
+        if (tasks != null) {
+          int workerCount = Math.min(maxParallelDownloads, Math.max(1, tasks.size()));
+          for (int i = 0; i < workerCount; i++) {
+            download.onWorkerStarted();
+            executor.execute(new Worker(download, tasks));
+          }
+        }
+        onWorkerFinished(download);
+      }
+    });
+  }
+
+  /**
+   * Resume the downloads which were paused or interrupted by the death of the process. Call this
+   * when the application starts, if it wants downloads to continue in the background.
+   */
+  public void resumeDownloads() {
+    for (Download download : getDownloads()) {
+      if (download.getState() == Download.STATE_PAUSED) {
+        resume(download);
+      }
+    }
+  }
+
+  /**
+   * Stop the given download and delete its data. The data is deleted in the background, once the
+   * segments being downloaded are complete.
+   */
+  public void remove(final Download download) {
+    String url = download.getVideo().getUrl();
+    synchronized (this) {
+      if (downloads.get(url) != download) {
+        return;
+      }
+      downloads.remove(url);
+      Integer count = pendingDeletionCounts.get(url);
+      pendingDeletionCounts.put(url, count == null ? 1 : count + 1);
+    }
+    download.onRemoved();
+    getStateFile(download).delete();
+    if (download.shouldDeleteData()) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          deleteData(download);
+        }
+      });
+    }
+    notifyStateChanged(download);
+  }
+
+  /**
+   * Build the list of the segments to download: the manifest is fetched (or read from the data
+   * which has already been downloaded) and the renditions within the caps are selected.
+   */
+  private List<DataSpec> resolveTasks(Download download) throws IOException {
+    DataSource dataSource = newDataSource(download, null);
+    List<DataSpec> tasks = new ArrayList<DataSpec>();
+    List<String> selectedIds = new ArrayList<String>();
+    if (download.getVideo().getVideoType() == Video.VideoType.DASH) {
+      resolveDashTasks(download, dataSource, tasks, selectedIds);
+    } else {
+      resolveHlsTasks(download, dataSource, tasks, selectedIds);
+    }
+    download.onResolved(selectedIds.toArray(new String[selectedIds.size()]), tasks.size());
+    download.setDiskBytes(download.getCache().getCacheSpace());
+    return tasks;
+  }
+
+  private void resolveDashTasks(Download download, DataSource dataSource, List<DataSpec> tasks,
+                                List<String> selectedIds) throws IOException {
+    String url = download.getVideo().getUrl();
+    MediaPresentationDescription manifest = new MediaPresentationDescriptionParser().parse(url,
+        new ByteArrayInputStream(load(dataSource, url)));
+    if (manifest.dynamic) {
+      throw new IOException("Live streams cannot be downloaded.");
+    }
+    for (int i = 0; i < manifest.getPeriodCount(); i++) {
+      Period period = manifest.getPeriod(i);
+      long periodDurationUs = manifest.getPeriodDuration(i) * 1000;
+      for (int j = 0; j < period.adaptationSets.size(); j++) {
+        AdaptationSet adaptationSet = period.adaptationSets.get(j);
+        if (adaptationSet.type == AdaptationSet.TYPE_UNKNOWN) {
+          continue;
+        }
+        if (adaptationSet.hasContentProtection()) {
+          throw new IOException("Protected content cannot be downloaded.");
+        }
+        for (Representation representation : selectRepresentations(adaptationSet,
+            download.getMaxBitrate(), download.getMaxHeight())) {
+          selectedIds.add(representation.format.id);
+          addDashTasks(representation, periodDurationUs, tasks);
+        }
+      }
+    }
+  }
+
+  private void resolveHlsTasks(Download download, DataSource dataSource, List<DataSpec> tasks,
+                               List<String> selectedIds) throws IOException {
+    HlsPlaylistParser parser = new HlsPlaylistParser();
+    String url = download.getVideo().getUrl();
+    HlsPlaylist playlist = parser.parse(url, new ByteArrayInputStream(load(dataSource, url)));
+    if (playlist.type == HlsPlaylist.TYPE_MASTER) {
+      HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) playlist;
+      Variant variant = selectVariant(masterPlaylist.variants, download.getMaxBitrate(),
+          download.getMaxHeight());
+      selectedIds.add(variant.url);
+      String mediaPlaylistUrl = UriUtil.resolve(masterPlaylist.baseUri, variant.url);
+      playlist = parser.parse(mediaPlaylistUrl,
+          new ByteArrayInputStream(load(dataSource, mediaPlaylistUrl)));
+    }
+    HlsMediaPlaylist mediaPlaylist = (HlsMediaPlaylist) playlist;
+    if (mediaPlaylist.live) {
+      throw new IOException("Live streams cannot be downloaded.");
+    }
+    Set<String> keyUris = new HashSet<String>();
+    for (HlsMediaPlaylist.Segment segment : mediaPlaylist.segments) {
+      if (segment.isEncrypted) {
+        Uri keyUri = UriUtil.resolveToUri(mediaPlaylist.baseUri, segment.encryptionKeyUri);
+        if (keyUris.add(keyUri.toString())) {
+          tasks.add(new DataSpec(keyUri, 0, C.LENGTH_UNBOUNDED, keyUri.toString()));
+        }
+      }
+      Uri uri = UriUtil.resolveToUri(mediaPlaylist.baseUri, segment.url);
+      tasks.add(new DataSpec(uri, segment.byterangeOffset, segment.byterangeLength,
+          uri.toString()));
+    }
+  }
+
+  /**
+   * Select the text representations, and the representation with the highest bitrate within the
+   * caps for the other types.
+   */
+  private static List<Representation> selectRepresentations(AdaptationSet adaptationSet,
+                                                            int maxBitrate, int maxHeight) {
+    List<Representation> representations = adaptationSet.representations;
+    if (adaptationSet.type == AdaptationSet.TYPE_TEXT) {
+      return representations;
+    }
+    Representation selected = null;
+    for (Representation representation : representations) {
+      if (selected == null || isBetter(representation.format, selected.format, maxBitrate,
+          maxHeight)) {
+        selected = representation;
+      }
+    }
+    List<Representation> selectedRepresentations = new ArrayList<Representation>();
+    if (selected != null) {
+      selectedRepresentations.add(selected);
+    }
+    return selectedRepresentations;
+  }
+
+  private static Variant selectVariant(List<Variant> variants, int maxBitrate, int maxHeight) {
+    Variant selected = variants.get(0);
+    for (Variant variant : variants) {
+      if (isBetter(variant.format, selected.format, maxBitrate, maxHeight)) {
+        selected = variant;
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Returns whether the given format should be downloaded rather than the selected one: formats
+   * within the caps are preferred, then the highest bitrate within the caps, or the lowest
+   * bitrate if none is within them.
+   */
+  private static boolean isBetter(Format format, Format selected, int maxBitrate, int maxHeight) {
+    boolean withinCaps = format.bitrate <= maxBitrate && format.height <= maxHeight;
+    boolean selectedWithinCaps = selected.bitrate <= maxBitrate && selected.height <= maxHeight;
+    if (withinCaps != selectedWithinCaps) {
+      return withinCaps;
+    }
+    return withinCaps ? format.bitrate > selected.bitrate : format.bitrate < selected.bitrate;
+  }
+
+  private static void addDashTasks(Representation representation, long periodDurationUs,
+                                   List<DataSpec> tasks) throws IOException {
+    if (representation instanceof Representation.SingleSegmentRepresentation) {
+      // The initialization data, the index and the media are ranges of the same file.
+      Uri uri = ((Representation.SingleSegmentRepresentation) representation).uri;
+      tasks.add(new DataSpec(uri, 0, C.LENGTH_UNBOUNDED, uri.toString()));
+      return;
+    }
+    RangedUri initializationUri = representation.getInitializationUri();
+    if (initializationUri != null) {
+      addDashTask(initializationUri, tasks);
+    }
+    DashSegmentIndex index = representation.getIndex();
+    int lastSegmentNum = index.getLastSegmentNum(periodDurationUs);
+    if (lastSegmentNum == DashSegmentIndex.INDEX_UNBOUNDED) {
+      throw new IOException("The segments of " + representation.format.id + " are unbounded.");
+    }
+    for (int i = index.getFirstSegmentNum(); i <= lastSegmentNum; i++) {
+      addDashTask(index.getSegmentUrl(i), tasks);
+    }
+  }
+
+  private static void addDashTask(RangedUri rangedUri, List<DataSpec> tasks) {
+    Uri uri = rangedUri.getUri();
+    tasks.add(new DataSpec(uri, rangedUri.start, rangedUri.length, uri.toString()));
+  }
+
+  /**
+   * Read the whole resource at the given URL through the given data source.
+   */
+  private static byte[] load(DataSource dataSource, String url) throws IOException {
+    Uri uri = Uri.parse(url);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try {
+      dataSource.open(new DataSpec(uri, 0, C.LENGTH_UNBOUNDED, uri.toString()));
+      int bytesRead;
+      while ((bytesRead = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        output.write(buffer, 0, bytesRead);
+      }
+    } finally {
+      dataSource.close();
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Create a data source which reads the data of the given download which is already on disk,
+   * and downloads the rest into it.
+   */
+  private DataSource newDataSource(Download download, TransferListener transferListener) {
+    return new CacheDataSource(download.getCache(),
+        HttpTransport.getInstance().createDataSource(context, transferListener, userAgent), true,
+        false);
+  }
+
+  private void onWorkerFinished(Download download) {
+    if (!download.onWorkerFinished()) {
+      return;
+    }
+    if (download.isRemoved()) {
+      if (download.shouldDeleteData()) {
+        deleteData(download);
+      }
+      return;
+    }
+    if (download.maybeComplete()) {
+      notifyStateChanged(download);
+    } else if (download.getState() == Download.STATE_FAILED) {
+      notifyStateChanged(download);
+    }
+    writeState(download);
+  }
+
+  private void restoreDownloads() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.endsWith(STATE_FILE_SUFFIX)) {
+        continue;
+      }
+      File cacheDirectory = new File(directory,
+          name.substring(0, name.length() - STATE_FILE_SUFFIX.length()));
+      DataInputStream input = null;
+      try {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        Download download = Download.readState(input, cacheDirectory);
+        downloads.put(download.getVideo().getUrl(), download);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to restore " + name, e);
+        file.delete();
+      } finally {
+        closeQuietly(input);
+      }
+    }
+  }
+
+  /**
+   * Save the state of the given download, unless it has been removed.
+   */
+  private void writeState(Download download) {
+    synchronized (download) {
+      if (download.isRemoved()) {
+        return;
+      }
+      directory.mkdirs();
+      File file = getStateFile(download);
+      File temporaryFile = new File(file.getPath() + ".tmp");
+      DataOutputStream output = null;
+      try {
+        output = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+        download.writeState(output);
+        output.close();
+        output = null;
+        if (!temporaryFile.renameTo(file)) {
+          throw new IOException("Failed to rename " + temporaryFile);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to save the state of " + download.getVideo().getUrl(), e);
+      } finally {
+        closeQuietly(output);
+      }
+    }
+  }
+
+  private File getStateFile(Download download) {
+    return new File(download.getCacheDirectory().getPath() + STATE_FILE_SUFFIX);
+  }
+
+  /**
+   * Delete the data of a removed download, then start the new download of the same video if it
+   * was waiting for the deletion.
+   */
+  private void deleteData(Download download) {
+    download.releaseCache();
+    File[] files = download.getCacheDirectory().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    download.getCacheDirectory().delete();
+    String url = download.getVideo().getUrl();
+    Download nextDownload = null;
+    synchronized (this) {
+      int count = pendingDeletionCounts.get(url) - 1;
+      if (count > 0) {
+        pendingDeletionCounts.put(url, count);
+      } else {
+        pendingDeletionCounts.remove(url);
+        nextDownload = downloads.get(url);
+      }
+    }
+    if (nextDownload != null && nextDownload.getState() == Download.STATE_QUEUED) {
+      resume(nextDownload);
+    }
+  }
+
+  private void notifyStateChanged(final Download download) {
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (Listener listener : listeners) {
+          listener.onDownloadStateChanged(download);
+        }
+      }
+    });
+  }
+
+  private void notifyProgress(final Download download) {
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (Listener listener : listeners) {
+          listener.onDownloadProgress(download);
+        }
+      }
+    });
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+    }
+  }
+
+  /**
+   * Downloads segments of a download until there is none left or the download stops.
+   */
+  private final class Worker implements Runnable, TransferListener {
+
+    private final Download download;
+    private final List<DataSpec> tasks;
+    private final byte[] buffer;
+
+    public Worker(Download download, List<DataSpec> tasks) {
+      this.download = download;
+      this.tasks = tasks;
+      buffer = new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public void run() {
+      DataSource dataSource = newDataSource(download, this);
+      long lastStateWriteTimeMs = SystemClock.elapsedRealtime();
+      int index;
+      while ((index = download.nextTask()) != Download.NO_TASK) {
+        IOException error = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPT_COUNT; attempt++) {
+          try {
+            downloadTask(dataSource, tasks.get(index));
+            error = null;
+            break;
+          } catch (IOException e) {
+            error = e;
+          }
+        }
+        if (error != null) {
+          Log.e(TAG, "Failed to download " + tasks.get(index).uri, error);
+          download.onFailed(error);
+          break;
+        }
+        download.onTaskCompleted(index);
+        download.setDiskBytes(download.getCache().getCacheSpace());
+        notifyProgress(download);
+        long nowMs = SystemClock.elapsedRealtime();
+        if (nowMs - lastStateWriteTimeMs >= STATE_WRITE_INTERVAL_MS) {
+          lastStateWriteTimeMs = nowMs;
+          writeState(download);
+        }
+      }
+      onWorkerFinished(download);
+    }
+
+    @Override
+    public void onTransferStart() {
+      // Do nothing.
+    }
+
+    @Override
+    public void onBytesTransferred(int bytesTransferred) {
+      download.onBytesTransferred(bytesTransferred);
+    }
+
+    @Override
+    public void onTransferEnd() {
+      // Do nothing.
+    }
+
+    /**
+     * Read the given segment through the cache, so that the ranges which are missing from it are
+     * downloaded into it.
+     */
+    private void downloadTask(DataSource dataSource, DataSpec dataSpec) throws IOException {
+      try {
+        dataSource.open(dataSpec);
+        while (dataSource.read(buffer, 0, buffer.length) != C.RESULT_END_OF_INPUT) {
+          // Keep reading.
+        }
+      } finally {
+        dataSource.close();
+      }
+    }
+  }
+}
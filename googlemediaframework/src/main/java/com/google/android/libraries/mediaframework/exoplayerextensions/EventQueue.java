@@ -0,0 +1,133 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+
+import com.google.android.exoplayer.chunk.Format;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Delivers events to the thread of a handler without a message and a runnable for each of them.
+ *
+ * <p>The events are recycled objects which are filled by the posting thread, queued, and
+ * dispatched in order by a single runnable. At most one post is outstanding: the events queued
+ * while it is pending are dispatched with it. Events can be posted from any thread.
+ */
+/* package */ final class EventQueue implements Runnable {
+
+  /**
+   * Handles the events on the thread of the handler.
+   */
+  /* package */ interface Dispatcher {
+    void dispatch(Event event);
+  }
+
+  /**
+   * An event and its arguments, whose meaning depends on its type. The references are cleared
+   * when the event is recycled.
+   */
+  /* package */ static final class Event {
+    public int type;
+    public int session;
+    public int sourceId;
+    public int int0;
+    public int int1;
+    public long long0;
+    public long long1;
+    public long long2;
+    public long long3;
+    public long long4;
+    public Format format;
+    public IOException error;
+  }
+
+  /**
+   * At most this many dispatched events are kept for reuse.
+   */
+  private static final int MAX_RECYCLED_EVENTS = 64;
+
+  private final Handler handler;
+  private final Dispatcher dispatcher;
+
+  private ArrayList<Event> pendingEvents;
+  private ArrayList<Event> dispatchingEvents;
+  private final ArrayList<Event> recycledEvents;
+  private boolean posted;
+
+  /**
+   * @param handler The handler on whose thread the events are dispatched.
+   * @param dispatcher Handles the events.
+   */
+  public EventQueue(Handler handler, Dispatcher dispatcher) {
+    this.handler = handler;
+    this.dispatcher = dispatcher;
+    pendingEvents = new ArrayList<Event>();
+    dispatchingEvents = new ArrayList<Event>();
+    recycledEvents = new ArrayList<Event>();
+  }
+
+  /**
+   * Returns an event to fill and pass to {@link #post(Event)}.
+   */
+  public synchronized Event obtain(int type, int session) {
+    int recycledCount = recycledEvents.size();
+    Event event = recycledCount > 0 ? recycledEvents.remove(recycledCount - 1) : new Event();
+    event.type = type;
+    event.session = session;
+    return event;
+  }
+
+  /**
+   * Queue an event obtained from {@link #obtain(int, int)}, and post the dispatch of the queue
+   * unless it is already pending.
+   */
+  public synchronized void post(Event event) {
+    pendingEvents.add(event);
+    if (!posted) {
+      posted = true;
+      handler.post(this);
+    }
+  }
+
+  @Override
+  public void run() {
+    ArrayList<Event> events;
+    synchronized (this) {
+      events = pendingEvents;
+      pendingEvents = dispatchingEvents;
+      dispatchingEvents = events;
+      posted = false;
+    }
+    for (int i = 0; i < events.size(); i++) {
+      dispatcher.dispatch(events.get(i));
+    }
+    synchronized (this) {
+      for (int i = 0; i < events.size(); i++) {
+        Event event = events.get(i);
+        event.format = null;
+        event.error = null;
+        if (recycledEvents.size() < MAX_RECYCLED_EVENTS) {
+          recycledEvents.add(event);
+        }
+      }
+    }
+    events.clear();
+  }
+}
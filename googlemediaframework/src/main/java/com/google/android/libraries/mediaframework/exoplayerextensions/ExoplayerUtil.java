@@ -28,15 +28,8 @@ import android.os.Build;
 
 import com.google.android.exoplayer.ExoPlayerLibraryInfo;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.Map;
 import java.util.UUID;
 
@@ -74,54 +67,12 @@ public class ExoplayerUtil {
   }
 
   /**
-   * Do an HTTP POST and return the data as a byte array.
+   * Do an HTTP POST and return the data as a byte array. The request goes through the shared
+   * {@link HttpTransport}, so that its connection is kept alive for the next request to the host.
    */
   public static byte[] executePost(String url, byte[] data, Map<String, String> requestProperties)
       throws MalformedURLException, IOException {
-    HttpURLConnection urlConnection = null;
-    try {
-      urlConnection = (HttpURLConnection) new URL(url).openConnection();
-      urlConnection.setRequestMethod("POST");
-      urlConnection.setDoOutput(data != null);
-      urlConnection.setDoInput(true);
-      if (requestProperties != null) {
-        for (Map.Entry<String, String> requestProperty : requestProperties.entrySet()) {
-          urlConnection.setRequestProperty(requestProperty.getKey(), requestProperty.getValue());
-        }
-      }
-      if (data != null) {
-        OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-        out.write(data);
-        out.close();
-      }
-      InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-      return convertInputStreamToByteArray(in);
-    } finally {
-      if (urlConnection != null) {
-        urlConnection.disconnect();
-      }
-    }
-  }
-
-  /**
-   * Write the contents of an input stream into a byte array.
-   * @param inputStream The stream to convert into a byte array.
-   * @return A byte array containing the contents of the input stream.
-   * @throws IOException
-   */
-  private static byte[] convertInputStreamToByteArray(InputStream inputStream) throws IOException {
-    byte[] bytes = null;
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    byte data[] = new byte[1024];
-    int count;
-    while ((count = inputStream.read(data)) != -1) {
-      bos.write(data, 0, count);
-    }
-    bos.flush();
-    bos.close();
-    inputStream.close();
-    bytes = bos.toByteArray();
-    return bytes;
+    return HttpTransport.getInstance().executePost(url, data, requestProperties);
   }
 
 }
\ No newline at end of file
@@ -20,8 +20,11 @@
  */
 package com.google.android.libraries.mediaframework.exoplayerextensions;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec.CryptoException;
+import android.media.PlaybackParams;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.view.Surface;
 
@@ -36,10 +39,12 @@ import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.TimeRange;
 import com.google.android.exoplayer.TrackRenderer;
 import com.google.android.exoplayer.audio.AudioTrack;
+import com.google.android.exoplayer.chunk.Chunk;
 import com.google.android.exoplayer.chunk.ChunkSampleSource;
 import com.google.android.exoplayer.chunk.Format;
 import com.google.android.exoplayer.dash.DashChunkSource;
 import com.google.android.exoplayer.drm.StreamingDrmSessionManager;
+import com.google.android.exoplayer.extractor.ExtractorSampleSource;
 import com.google.android.exoplayer.hls.HlsSampleSource;
 import com.google.android.exoplayer.metadata.MetadataTrackRenderer;
 import com.google.android.exoplayer.metadata.MetadataTrackRenderer.MetadataRenderer;
@@ -48,6 +53,8 @@ import com.google.android.exoplayer.text.Cue;
 import com.google.android.exoplayer.text.TextRenderer;
 import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer.util.SystemClock;
+import com.google.android.exoplayer.util.Util;
 
 import java.io.IOException;
 import java.util.Collections;
@@ -59,12 +66,18 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * A wrapper around {@link ExoPlayer} that provides a higher level interface. It can be prepared
  * with one of a number of {@link RendererBuilder} classes to suit different use cases (e.g. DASH,
  * SmoothStreaming and so on).
+ *
+ * <p>The wrapper must be used from the main thread, on which its listeners are called. The load,
+ * request and bandwidth events of the sample sources and the asynchronous renderer builds are
+ * handled on a separate event thread, and only the events which the listeners or the UI need are
+ * posted to the main thread.
  */
 public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.EventListener,
     DefaultBandwidthMeter.EventListener, MediaCodecVideoTrackRenderer.EventListener,
     MediaCodecAudioTrackRenderer.EventListener, TextRenderer,
     StreamingDrmSessionManager.EventListener, DashChunkSource.EventListener,
-        HlsSampleSource.EventListener, MetadataRenderer<List<Id3Frame>> {
+        HlsSampleSource.EventListener, ExtractorSampleSource.EventListener,
+        MetadataRenderer<List<Id3Frame>> {
 
   /**
    * Builds renderers for the player.
@@ -83,6 +96,60 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     void cancel();
   }
 
+  /**
+   * The callbacks of one renderer build. The player starts a build for the current item and one
+   * for the next item (see {@link #prebuildNext(RendererBuilder)}), and applies the results of
+   * each build to the item it was started for. The results of a build which has been canceled or
+   * replaced are ignored.
+   *
+   * <p>A renderer builder which delivers its results after
+   * {@link RendererBuilder#buildRenderers(ExoplayerWrapper)} returns gets its build from
+   * {@link #getRendererBuild()} and delivers them to it, on the main thread.
+   */
+  public final class RendererBuild {
+
+    private RendererBuild() {}
+
+    /**
+     * Deliver the renderers of the build. See {@link ExoplayerWrapper#onRenderers}.
+     */
+    public void onRenderers(TrackRenderer[] renderers, BandwidthMeter bandwidthMeter) {
+      onBuildRenderers(this, renderers, bandwidthMeter);
+    }
+
+    /**
+     * Report the failure of the build. See {@link ExoplayerWrapper#onRenderersError(Exception)}.
+     */
+    public void onRenderersError(Exception e) {
+      onBuildError(this, e);
+    }
+
+    /**
+     * Report the duration of a stage of the build. Only the stages of the current item's build are
+     * added to the metrics.
+     * @param stage One of the PlaybackMetricsCollector.STARTUP_STAGE_* constants.
+     * @param durationMs The duration of the stage.
+     */
+    /* package */ void onStartupStageCompleted(int stage, long durationMs) {
+      if (this == currentBuild) {
+        metricsCollector.onStartupStageCompleted(stage, durationMs);
+      }
+    }
+
+    /**
+     * Set the latency which the live stream of the build keeps behind the live edge. Called before
+     * the renderers are delivered.
+     * @param targetLatencyMs The target latency, or LiveLatencyController.NO_TARGET.
+     */
+    /* package */ void setTargetLiveLatencyMs(long targetLatencyMs) {
+      if (this == currentBuild) {
+        liveLatencyController.setTargetLatencyMs(targetLatencyMs);
+      } else if (this == nextBuild) {
+        nextTargetLiveLatencyMs = targetLatencyMs;
+      }
+    }
+  }
+
   /**
    * A listener for basic playback events.
    */
@@ -234,6 +301,23 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     void onAvailableRangeChanged(int sourceId, TimeRange availableRange);
   }
 
+  /**
+   * A listener for the requests made by the renderers, whichever renderer builder made them.
+   */
+  public interface RequestListener {
+
+    /**
+     * Respond to the completion of a request for media.
+     * @param sourceId The renderer type (one of the TYPE_* constants) of the request.
+     * @param format The rendition of the request, or null if it is unknown.
+     * @param timeToFirstByteMs The time between opening the request and receiving its first byte.
+     * @param transferTimeMs The time between the first byte and the end of the request.
+     * @param bytesTransferred The number of bytes received.
+     */
+    void onRequestCompleted(int sourceId, Format format, long timeToFirstByteMs,
+                            long transferTimeMs, long bytesTransferred);
+  }
+
   /**
    * A listener for receiving notifications of timed text.
    */
@@ -314,6 +398,22 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   private static final int RENDERER_BUILDING_STATE_BUILT = 3;
 
+  /**
+   * The types of the events posted to the event thread by the instrumented data sources.
+   */
+  private static final int REQUEST_EVENT_OPENED = 0;
+  private static final int REQUEST_EVENT_CLOSED = 1;
+
+  /**
+   * The types of the events posted to the main thread.
+   */
+  private static final int INFO_EVENT_LOAD_STARTED = 0;
+  private static final int INFO_EVENT_LOAD_COMPLETED = 1;
+  private static final int INFO_EVENT_LOAD_ERROR = 2;
+  private static final int INFO_EVENT_BANDWIDTH_SAMPLE = 3;
+  private static final int INFO_EVENT_REQUEST_COMPLETED = 4;
+  private static final int INFO_EVENT_FORMAT_CHANGED = 5;
+
   /**
    * This variable must be an int, not part of an enum because it has significance within the
    * Exoplayer library.
@@ -326,12 +426,88 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   public static final int PRIMARY_TRACK = 0;
 
+  /**
+   * The interval in milliseconds at which the {@link PlaybackSnapshot} is republished while a video
+   * is playing or buffering.
+   */
+  public static final int SNAPSHOT_INTERVAL_MS = 100;
+
   /**
    * Responsible for loading the data from the source, processing it, and providing byte streams.
    * By modifying the renderer builder, we can support different video formats like DASH, MP4, and
-   * SmoothStreaming.
+   * SmoothStreaming. May be null while the wrapper sits idle in an {@link ExoplayerWrapperPool}.
    */
-  private final RendererBuilder rendererBuilder;
+  private RendererBuilder rendererBuilder;
+
+  /**
+   * The renderer builder of the item which will be played after the current one. Its renderers
+   * are built ahead of time so that {@link #playNext()} does not have to wait for them. May be
+   * null.
+   */
+  private RendererBuilder nextRendererBuilder;
+
+  /**
+   * The build of the current item, which is started by {@link #prepare()} or handed over by
+   * {@link #playNext()}, or null. Results of other builds are not applied to the current item.
+   */
+  private RendererBuild currentBuild;
+
+  /**
+   * The build of {@link #nextRendererBuilder}, or null if it has not been asked to build its
+   * renderers.
+   */
+  private RendererBuild nextBuild;
+
+  /**
+   * The build whose {@link RendererBuilder#buildRenderers(ExoplayerWrapper)} is being called, or
+   * null. See {@link #getRendererBuild()}.
+   */
+  private RendererBuild startingBuild;
+
+  /**
+   * The renderers built by {@link #nextRendererBuilder}, or null if they are not built yet.
+   */
+  private TrackRenderer[] nextRenderers;
+
+  /**
+   * The bandwidth meter built by {@link #nextRendererBuilder}.
+   */
+  private BandwidthMeter nextBandwidthMeter;
+
+  /**
+   * The target live latency requested by {@link #nextRendererBuilder}.
+   */
+  private long nextTargetLiveLatencyMs;
+
+  /**
+   * How much media the player and its renderers buffer.
+   */
+  private final BufferPolicy bufferPolicy;
+
+  /**
+   * Aggregates the events of the player into quality of experience metrics.
+   */
+  private final PlaybackMetricsCollector metricsCollector;
+
+  /**
+   * Coalesces the seeks requested while the user scrubs through the video.
+   */
+  private final SeekScheduler seekScheduler;
+
+  /**
+   * The share of the process-wide buffer pool used by the renderers of this player.
+   */
+  private final SharedAllocator.Partition allocator;
+
+  /**
+   * Shrinks the buffer of this player when the system is low on memory.
+   */
+  private final MemoryPressureController memoryPressureController;
+
+  /**
+   * Measures and corrects the latency of live streams.
+   */
+  private final LiveLatencyController liveLatencyController;
 
   /**
    * The underlying Exoplayer instance responsible for playing the video.
@@ -348,6 +524,28 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   private final Handler mainHandler;
 
+  /**
+   * Runs the event looper, which receives the load, request and bandwidth events of the sample
+   * sources and the callbacks of the renderer builders, so that they do not compete with the UI for
+   * the main thread. Only the events which the listeners or the UI need are posted to the main
+   * thread.
+   */
+  private final HandlerThread eventThread;
+  private final Handler eventHandler;
+
+  /**
+   * Deliver the events of the loader threads to the event thread, and the events of the event
+   * thread to the main thread, each with at most one outstanding post.
+   */
+  private final EventQueue requestEventQueue;
+  private final EventQueue infoEventQueue;
+
+  /**
+   * Incremented when the player starts playing another video (see {@link #reset()} and
+   * {@link #playNext()}), so that the events queued for the previous one are dropped.
+   */
+  private volatile int session;
+
   /**
    * Listeners are notified when the video size changes, when the underlying player's state changes,
    * or when an error occurs.
@@ -380,8 +578,19 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    */
   private TrackRenderer videoRenderer;
 
+  /**
+   * Renders the audio data, and drives the playback clock.
+   */
+  private TrackRenderer audioRenderer;
+
   private CodecCounters codecCounters;
   private Format videoFormat;
+
+  /**
+   * The format of the load in progress for each renderer type, or null. Only used on the event
+   * thread.
+   */
+  private final Format[] loadingFormats;
   private int videoTrackToRestore;
   private BandwidthMeter bandwidthMeter;
   private boolean backgrounded;
@@ -413,13 +622,41 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
   /**
    * Respond to errors that occur in Exoplayer.
    */
-  private InternalErrorListener internalErrorListener;
+  private volatile InternalErrorListener internalErrorListener;
 
   /**
    * Respond to changes in media format changes, load events, bandwidth estimates,
    * and dropped frames.
    */
-  private InfoListener infoListener;
+  private volatile InfoListener infoListener;
+
+  /**
+   * Respond to the completion of the requests of the renderers.
+   */
+  private volatile RequestListener requestListener;
+
+  /**
+   * Records the events of the player for later inspection. May be null.
+   */
+  private volatile PlaybackEventRecorder eventRecorder;
+
+  /**
+   * The latest view of the state of the player, which any thread may read.
+   */
+  private volatile PlaybackSnapshot playbackSnapshot;
+
+  /**
+   * The selected tracks of the latest snapshot, which the next snapshot shares unless the
+   * selection has changed. Only accessed on the main thread.
+   */
+  private int[] snapshotSelectedTracks;
+
+  private final Runnable snapshotRunnable = new Runnable() {
+    @Override
+    public void run() {
+      updatePlaybackSnapshot();
+    }
+  };
 
   /**
    * @param rendererBuilder Responsible for loading the data from the source, processing it,
@@ -427,18 +664,66 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    *                        support different video formats like DASH, MP4, and SmoothStreaming.
    */
   public ExoplayerWrapper(RendererBuilder rendererBuilder) {
+    this(rendererBuilder, BufferPolicy.DEFAULT);
+  }
+
+  /**
+   * @param rendererBuilder Responsible for loading the data from the source, processing it,
+   *                        and providing byte streams. By modifying the renderer builder, we can
+   *                        support different video formats like DASH, MP4, and SmoothStreaming.
+   * @param bufferPolicy How much media the player and its renderers buffer.
+   */
+  public ExoplayerWrapper(RendererBuilder rendererBuilder, BufferPolicy bufferPolicy) {
     this.rendererBuilder = rendererBuilder;
-    player = ExoPlayer.Factory.newInstance(RENDERER_COUNT, 1000, 5000);
+    this.bufferPolicy = bufferPolicy;
+    allocator = SharedAllocator.getInstance().createPartition(SharedAllocator.DEFAULT_PRIORITY);
+    metricsCollector = new PlaybackMetricsCollector(new SystemClock());
+    player = ExoPlayer.Factory.newInstance(RENDERER_COUNT, bufferPolicy.minBufferMs,
+        bufferPolicy.minRebufferMs);
     player.addListener(this);
-    playerControl = new ObservablePlayerControl(player);
+    playerControl = new ObservablePlayerControl(player, metricsCollector);
     mainHandler = new Handler();
+    eventThread = new HandlerThread("ExoplayerWrapper:Events");
+    eventThread.start();
+    eventHandler = new Handler(eventThread.getLooper());
+    requestEventQueue = new EventQueue(eventHandler, new EventQueue.Dispatcher() {
+      @Override
+      public void dispatch(EventQueue.Event event) {
+        dispatchRequestEvent(event);
+      }
+    });
+    infoEventQueue = new EventQueue(mainHandler, new EventQueue.Dispatcher() {
+      @Override
+      public void dispatch(EventQueue.Event event) {
+        dispatchInfoEvent(event);
+      }
+    });
+    seekScheduler = new SeekScheduler(this, mainHandler);
+    memoryPressureController = new MemoryPressureController(allocator, bufferPolicy, mainHandler);
+    liveLatencyController = new LiveLatencyController(this, mainHandler);
     playbackListeners = new CopyOnWriteArrayList<PlaybackListener>();
     lastReportedPlaybackState = ExoPlayer.STATE_IDLE;
     rendererBuildingState = RENDERER_BUILDING_STATE_IDLE;
     trackStateForType = new int[RENDERER_COUNT];
+    loadingFormats = new Format[RENDERER_COUNT];
+    nextTargetLiveLatencyMs = LiveLatencyController.NO_TARGET;
     // Disable text initially.
     trackStateForType[TYPE_TEXT] = DISABLED_TRACK;
     player.setSelectedTrack(TYPE_TEXT, TRACK_DISABLED);
+    updatePlaybackSnapshot();
+  }
+
+  /**
+   * Set the renderer builder which will be used the next time {@link #prepare()} is called. Any
+   * build operation of the previous renderer builder is canceled.
+   * @param rendererBuilder Responsible for loading the data from the source, processing it,
+   *                        and providing byte streams.
+   */
+  public void setRendererBuilder(RendererBuilder rendererBuilder) {
+    if (this.rendererBuilder != null && this.rendererBuilder != rendererBuilder) {
+      this.rendererBuilder.cancel();
+    }
+    this.rendererBuilder = rendererBuilder;
   }
 
   /**
@@ -485,6 +770,29 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     infoListener = listener;
   }
 
+  /**
+   * Set a listener to respond to the completion of the requests made by the renderers.
+   * @param listener Listens to the timing and the size of the requests, or null.
+   */
+  public void setRequestListener(RequestListener listener) {
+    requestListener = listener;
+  }
+
+  /**
+   * Set the recorder which keeps a trace of the events of the player.
+   * @param eventRecorder The recorder, or null to stop recording.
+   */
+  public void setEventRecorder(PlaybackEventRecorder eventRecorder) {
+    this.eventRecorder = eventRecorder;
+  }
+
+  /**
+   * Returns the recorder which keeps a trace of the events of the player, or null.
+   */
+  public PlaybackEventRecorder getEventRecorder() {
+    return eventRecorder;
+  }
+
   public void setCaptionListener(CaptionListener listener) {
     captionListener = listener;
   }
@@ -548,6 +856,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   public void setSelectedTrack(int type, int index) {
     player.setSelectedTrack(type, index);
+    updatePlaybackSnapshot();
     if (type == TYPE_TEXT && index < 0 && captionListener != null) {
       captionListener.onCues(Collections.<Cue>emptyList());
     }
@@ -575,26 +884,71 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
    * Build the renderers.
    */
   public void prepare() {
+    if (rendererBuilder == null) {
+      throw new IllegalStateException("A renderer builder must be set before preparing.");
+    }
     if (rendererBuildingState == RENDERER_BUILDING_STATE_BUILT) {
       player.stop();
     }
     rendererBuilder.cancel();
+    seekScheduler.cancel();
+    liveLatencyController.reset();
+    memoryPressureController.resetFormats();
     videoFormat = null;
     videoRenderer = null;
+    audioRenderer = null;
+    metricsCollector.onPrepare();
     rendererBuildingState = RENDERER_BUILDING_STATE_BUILDING;
     maybeReportPlayerState();
-    rendererBuilder.buildRenderers(this);
+    startBuild(rendererBuilder, false);
+  }
+
+  /**
+   * Returns the build which the renderer builder being started must deliver its results to. It is
+   * only available while {@link RendererBuilder#buildRenderers(ExoplayerWrapper)} is being called.
+   */
+  public RendererBuild getRendererBuild() {
+    if (startingBuild == null) {
+      throw new IllegalStateException("No renderer build is being started.");
+    }
+    return startingBuild;
   }
 
   /**
    * Invoked with the results from a {@link RendererBuilder}.
    *
+   * <p>The renderers are applied to the build being started if this is called from
+   * {@link RendererBuilder#buildRenderers(ExoplayerWrapper)}, and to the current item's build
+   * otherwise. Renderer builders which deliver later use {@link #getRendererBuild()} instead.
+   *
    * @param renderers Renderers indexed by {@link ExoplayerWrapper} TYPE_* constants. An
    *                  individual element may be null if there do not exist tracks of the
    *                  corresponding type.
    * @param bandwidthMeter Provides an estimate of the currently available bandwidth. May be null.
    */
   public void onRenderers(TrackRenderer[] renderers,  BandwidthMeter bandwidthMeter) {
+    onBuildRenderers(startingBuild != null ? startingBuild : currentBuild, renderers,
+        bandwidthMeter);
+  }
+
+  private void onBuildRenderers(RendererBuild build, TrackRenderer[] renderers,
+                                BandwidthMeter bandwidthMeter) {
+    if (build == null) {
+      return;
+    }
+    if (build == nextBuild) {
+      nextRenderers = renderers;
+      nextBandwidthMeter = bandwidthMeter;
+      return;
+    }
+    if (build != currentBuild) {
+      // The build was canceled or replaced.
+      return;
+    }
+    applyRenderers(renderers, bandwidthMeter);
+  }
+
+  private void applyRenderers(TrackRenderer[] renderers, BandwidthMeter bandwidthMeter) {
     // Normalize the results.
     if (trackNames == null) {
       trackNames = new String[RENDERER_COUNT][];
@@ -609,6 +963,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
     // Complete preparation.
     this.videoRenderer = renderers[TYPE_VIDEO];
+    this.audioRenderer = renderers[TYPE_AUDIO];
     this.codecCounters = videoRenderer instanceof MediaCodecTrackRenderer
             ? ((MediaCodecTrackRenderer) videoRenderer).codecCounters
             : renderers[TYPE_AUDIO] instanceof MediaCodecTrackRenderer
@@ -618,16 +973,37 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     maybeReportPlayerState();
     pushSurfaceAndVideoTrack(false);
     player.prepare(renderers);
+
+    if (nextRendererBuilder != null && nextBuild == null) {
+      startBuild(nextRendererBuilder, true);
+    }
   }
 
   /**
-   * Notify the listeners when an exception is thrown.
+   * Notify the listeners when an exception is thrown. Like {@link #onRenderers}, this applies to
+   * the build being started, or else to the current item's build.
    * @param e The exception that has been thrown.
    */
   public void onRenderersError(Exception e) {
+    onBuildError(startingBuild != null ? startingBuild : currentBuild, e);
+  }
+
+  private void onBuildError(RendererBuild build, Exception e) {
+    if (build == null || (build != currentBuild && build != nextBuild)) {
+      return;
+    }
+    recordEvent(PlaybackEventRecorder.EVENT_RENDERERS_ERROR, 0, 0, 0, 0);
     if (internalErrorListener != null) {
       internalErrorListener.onRendererInitializationError(e);
     }
+    if (build == nextBuild) {
+      // The current item keeps playing. The next item is built again when it is played.
+      RendererBuilder failedRendererBuilder = nextRendererBuilder;
+      cancelNext();
+      nextRendererBuilder = failedRendererBuilder;
+      return;
+    }
+    currentBuild = null;
     for (PlaybackListener playbackListener : playbackListeners) {
       playbackListener.onError(e);
     }
@@ -635,6 +1011,93 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     maybeReportPlayerState();
   }
 
+  /**
+   * Start building the renderers of the item which will be played after the current one, so that
+   * {@link #playNext()} can switch to it without waiting for its manifest and renderers. If the
+   * current renderers are still being built, the next item is built right after them.
+   * @param nextRendererBuilder The renderer builder of the next item.
+   */
+  public void prebuildNext(RendererBuilder nextRendererBuilder) {
+    cancelNext();
+    this.nextRendererBuilder = nextRendererBuilder;
+    if (rendererBuildingState == RENDERER_BUILDING_STATE_BUILT) {
+      startBuild(nextRendererBuilder, true);
+    }
+  }
+
+  /**
+   * Cancel the build of the next item, if there is one.
+   */
+  public void cancelNext() {
+    if (nextRendererBuilder != null) {
+      nextRendererBuilder.cancel();
+    }
+    nextRendererBuilder = null;
+    nextBuild = null;
+    nextRenderers = null;
+    nextBandwidthMeter = null;
+    nextTargetLiveLatencyMs = LiveLatencyController.NO_TARGET;
+  }
+
+  /**
+   * Returns whether an item has been passed to {@link #prebuildNext(RendererBuilder)}.
+   */
+  public boolean hasNext() {
+    return nextRendererBuilder != null;
+  }
+
+  /**
+   * Switch playback to the item passed to {@link #prebuildNext(RendererBuilder)}. The surface,
+   * listeners and play when ready state are kept, so the layers displaying this player do not
+   * need to be rebuilt.
+   * @return False if there is no next item.
+   */
+  public boolean playNext() {
+    if (nextRendererBuilder == null) {
+      return false;
+    }
+    RendererBuilder builder = nextRendererBuilder;
+    RendererBuild build = nextBuild;
+    TrackRenderer[] renderers = nextRenderers;
+    BandwidthMeter meter = nextBandwidthMeter;
+    long targetLiveLatencyMs = nextTargetLiveLatencyMs;
+    nextRendererBuilder = null;
+    nextBuild = null;
+    nextRenderers = null;
+    nextBandwidthMeter = null;
+    nextTargetLiveLatencyMs = LiveLatencyController.NO_TARGET;
+
+    if (rendererBuilder != null) {
+      rendererBuilder.cancel();
+    }
+    rendererBuilder = builder;
+    // The build of the next item, whether it has delivered or not, is now the current one.
+    currentBuild = build;
+    session++;
+    player.stop();
+    player.seekTo(0);
+    seekScheduler.cancel();
+    liveLatencyController.reset();
+    liveLatencyController.setTargetLatencyMs(targetLiveLatencyMs);
+    memoryPressureController.resetFormats();
+    videoFormat = null;
+    videoRenderer = null;
+    audioRenderer = null;
+    metricsCollector.onPrepare();
+
+    if (renderers != null) {
+      applyRenderers(renderers, meter);
+    } else {
+      rendererBuildingState = RENDERER_BUILDING_STATE_BUILDING;
+      maybeReportPlayerState();
+      if (build == null) {
+        startBuild(builder, false);
+      }
+      // Otherwise the build in progress delivers its renderers to the current item.
+    }
+    return true;
+  }
+
   /**
    * Set whether the player should begin as soon as it is setup.
    * @param playWhenReady If true, playback will start as soon as the player is setup. If false, it
@@ -645,21 +1108,90 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
   }
 
   /**
-   * Move the seek head to the given position.
+   * Move the seek head to the given position right away. Use {@link #getSeekScheduler()} for
+   * seeks which follow each other quickly (ex. while the user drags a seek bar).
    * @param positionMs A number of milliseconds after the start of the video.
    */
   public void seekTo(int positionMs) {
+    metricsCollector.onSeek();
+    recordEvent(PlaybackEventRecorder.EVENT_SEEK, 0, positionMs, 0, 0);
     player.seekTo(positionMs);
+    updatePlaybackSnapshot();
+  }
+
+  /**
+   * Return the player to the state it was in right after construction so that it can be prepared
+   * again with another {@link RendererBuilder}. Unlike {@link #release()}, the underlying
+   * {@link ExoPlayer} and its playback thread are kept alive.
+   *
+   * <p>All listeners, callbacks and the surface are cleared.
+   */
+  public void reset() {
+    cancelNext();
+    if (rendererBuilder != null) {
+      rendererBuilder.cancel();
+      rendererBuilder = null;
+    }
+    currentBuild = null;
+    session++;
+    seekScheduler.cancel();
+    liveLatencyController.reset();
+    memoryPressureController.resetFormats();
+    player.stop();
+    player.setPlayWhenReady(false);
+    player.seekTo(0);
+    rendererBuildingState = RENDERER_BUILDING_STATE_IDLE;
+    lastReportedPlaybackState = ExoPlayer.STATE_IDLE;
+    lastReportedPlayWhenReady = false;
+    surface = null;
+    videoRenderer = null;
+    audioRenderer = null;
+    codecCounters = null;
+    videoFormat = null;
+    bandwidthMeter = null;
+    trackNames = null;
+    backgrounded = false;
+    metricsCollector.reset();
+    allocator.setPriority(SharedAllocator.DEFAULT_PRIORITY);
+
+    playbackListeners.clear();
+    playerControl.removeAllCallbacks();
+    textListener = null;
+    captionListener = null;
+    id3MetadataListener = null;
+    internalErrorListener = null;
+    infoListener = null;
+    requestListener = null;
+    eventRecorder = null;
+
+    for (int i = 0; i < RENDERER_COUNT; i++) {
+      trackStateForType[i] = PRIMARY_TRACK;
+      player.setSelectedTrack(i, ExoPlayer.TRACK_DEFAULT);
+    }
+    // Disable text initially.
+    trackStateForType[TYPE_TEXT] = DISABLED_TRACK;
+    player.setSelectedTrack(TYPE_TEXT, TRACK_DISABLED);
+    updatePlaybackSnapshot();
   }
 
   /**
    * When you are finished using this object, make sure to call this method.
    */
   public void release() {
-    rendererBuilder.cancel();
+    cancelNext();
+    if (rendererBuilder != null) {
+      rendererBuilder.cancel();
+    }
+    currentBuild = null;
+    seekScheduler.cancel();
+    memoryPressureController.release();
+    liveLatencyController.release();
+    mainHandler.removeCallbacks(snapshotRunnable);
     rendererBuildingState = RENDERER_BUILDING_STATE_IDLE;
     surface = null;
     player.release();
+    allocator.release();
+    eventThread.quit();
   }
 
   /**
@@ -679,6 +1211,71 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     return playerState;
   }
 
+  /**
+   * Returns the scheduler which coalesces the seeks requested while the user scrubs through the
+   * video.
+   */
+  public SeekScheduler getSeekScheduler() {
+    return seekScheduler;
+  }
+
+  /**
+   * Returns the allocator from which the renderers of this player obtain their buffer. Its
+   * priority decides how much of the shared buffer pool this player keeps when the pool is full
+   * (ex. an ad player can be given a lower priority than the content player).
+   */
+  public SharedAllocator.Partition getAllocator() {
+    return allocator;
+  }
+
+  /**
+   * Returns the controller which shrinks the buffer of this player when the system is low on
+   * memory.
+   */
+  public MemoryPressureController getMemoryPressureController() {
+    return memoryPressureController;
+  }
+
+  /**
+   * Give buffer memory back when the system asks the application to release memory. The buffer
+   * grows back once the pressure has cleared.
+   * @param level One of the ComponentCallbacks2.TRIM_MEMORY_* constants.
+   */
+  public void onTrimMemory(int level) {
+    memoryPressureController.onTrimMemory(level);
+  }
+
+  /**
+   * Returns the controller which measures how far live streams play behind the live edge, and
+   * keeps them at the target latency of their renderer builder.
+   */
+  public LiveLatencyController getLiveLatencyController() {
+    return liveLatencyController;
+  }
+
+  /**
+   * Returns the policy which the renderer builders follow to size the buffers of this player.
+   */
+  public BufferPolicy getBufferPolicy() {
+    return bufferPolicy;
+  }
+
+  /**
+   * Returns the latest snapshot of the state of the player. Unlike the other getters, this method
+   * may be called from any thread. The snapshot is at most {@link #SNAPSHOT_INTERVAL_MS} old while
+   * a video is playing or buffering.
+   */
+  public PlaybackSnapshot getPlaybackSnapshot() {
+    return playbackSnapshot;
+  }
+
+  /**
+   * Returns the quality of experience metrics of the video which is currently prepared.
+   */
+  public PlaybackMetricsCollector.Snapshot getPlaybackMetrics() {
+    return metricsCollector.getSnapshot();
+  }
+
   public Format getFormat() {
     return videoFormat;
   }
@@ -727,6 +1324,87 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     return player.getPlaybackLooper();
   }
 
+  /**
+   * Returns whether {@link #setPlaybackRate(float)} is supported by the current renderers.
+   */
+  /* package */ boolean canSetPlaybackRate() {
+    return Util.SDK_INT >= 23 && audioRenderer instanceof MediaCodecAudioTrackRenderer;
+  }
+
+  /**
+   * Change the speed of playback without changing the pitch of the audio. The audio renderer
+   * drives the playback clock, so the video follows.
+   * @param rate The playback rate, where 1 is the normal speed.
+   */
+  @TargetApi(23)
+  /* package */ void setPlaybackRate(float rate) {
+    if (canSetPlaybackRate()) {
+      player.sendMessage(audioRenderer, MediaCodecAudioTrackRenderer.MSG_SET_PLAYBACK_PARAMS,
+          new PlaybackParams().setSpeed(rate));
+    }
+  }
+
+  /**
+   * Report the completion of a request made by one of the renderers. The request is attributed to
+   * the rendition of the load in progress for its renderer. Called on the event thread.
+   * @param sourceId The renderer type (one of the TYPE_* constants) of the request.
+   * @param timeToFirstByteMs The time between opening the request and receiving its first byte.
+   * @param transferTimeMs The time between the first byte and the end of the request.
+   * @param bytesTransferred The number of bytes received.
+   */
+  /* package */ void onRequestCompleted(int sourceId, long timeToFirstByteMs,
+                                        long transferTimeMs, long bytesTransferred) {
+    Format format = sourceId >= 0 && sourceId < RENDERER_COUNT ? loadingFormats[sourceId] : null;
+    metricsCollector.onRequestCompleted(timeToFirstByteMs, transferTimeMs);
+    recordEvent(PlaybackEventRecorder.EVENT_REQUEST_COMPLETED, sourceId, timeToFirstByteMs,
+        transferTimeMs, bytesTransferred);
+    if (requestListener != null) {
+      EventQueue.Event event = infoEventQueue.obtain(INFO_EVENT_REQUEST_COMPLETED, session);
+      event.sourceId = sourceId;
+      event.format = format;
+      event.long0 = timeToFirstByteMs;
+      event.long1 = transferTimeMs;
+      event.long2 = bytesTransferred;
+      infoEventQueue.post(event);
+    }
+  }
+
+  /**
+   * Report the opening of a request by an {@link InstrumentedDataSource}, as the start of a load.
+   * Called on a loader thread: the load is reported on the event thread.
+   * @param sourceId The renderer type (one of the TYPE_* constants) of the request.
+   * @param length The length of the request, or C.LENGTH_UNBOUNDED.
+   */
+  /* package */ void postLoadStarted(int sourceId, long length) {
+    EventQueue.Event event = requestEventQueue.obtain(REQUEST_EVENT_OPENED, session);
+    event.sourceId = sourceId;
+    event.long0 = length;
+    requestEventQueue.post(event);
+  }
+
+  /**
+   * Report the end of a request by an {@link InstrumentedDataSource}. Called on a loader thread:
+   * the request is reported on the event thread.
+   * @param sourceId The renderer type (one of the TYPE_* constants) of the request.
+   * @param timeToFirstByteMs The time between opening the request and receiving its first byte.
+   * @param transferTimeMs The time between the first byte and the end of the request.
+   * @param bytesTransferred The number of bytes received.
+   * @param closeTimeMs The time at which the request was closed.
+   * @param reportLoad Whether to also report the end of the request as the end of a load.
+   */
+  /* package */ void postRequestCompleted(int sourceId, long timeToFirstByteMs,
+                                          long transferTimeMs, long bytesTransferred,
+                                          long closeTimeMs, boolean reportLoad) {
+    EventQueue.Event event = requestEventQueue.obtain(REQUEST_EVENT_CLOSED, session);
+    event.sourceId = sourceId;
+    event.int0 = reportLoad ? 1 : 0;
+    event.long0 = timeToFirstByteMs;
+    event.long1 = transferTimeMs;
+    event.long2 = bytesTransferred;
+    event.long3 = closeTimeMs;
+    requestEventQueue.post(event);
+  }
+
   /**
    * Returns the handler which responds to messages.
    */
@@ -734,13 +1412,24 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     return mainHandler;
   }
 
+  /**
+   * Returns the handler of the event looper, which receives the load, request and bandwidth events
+   * of the sample sources. The renderer builders also use it to build the renderers off the main
+   * thread.
+   */
+  Handler getEventHandler() {
+    return eventHandler;
+  }
+
   @Override
   public void onPlayerStateChanged(boolean playWhenReady, int state) {
+    seekScheduler.onPlayerStateChanged(state);
     maybeReportPlayerState();
   }
 
   @Override
   public void onPlayerError(ExoPlaybackException exception) {
+    recordEvent(PlaybackEventRecorder.EVENT_PLAYER_ERROR, 0, 0, 0, 0);
     rendererBuildingState = RENDERER_BUILDING_STATE_IDLE;
     for (PlaybackListener playbackListener : playbackListeners) {
       playbackListener.onError(exception);
@@ -750,6 +1439,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
   @Override
   public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees,
                                  float pixelWidthHeightRatio) {
+    recordEvent(PlaybackEventRecorder.EVENT_VIDEO_SIZE_CHANGED, width, height, 0, 0);
     for (PlaybackListener listener : playbackListeners) {
       listener.onVideoSizeChanged(width, height, unappliedRotationDegrees, pixelWidthHeightRatio);
     }
@@ -757,26 +1447,57 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onDroppedFrames(int count, long elapsed) {
+    metricsCollector.onDroppedFrames(count);
+    recordEvent(PlaybackEventRecorder.EVENT_DROPPED_FRAMES, count, elapsed, 0, 0);
     if (infoListener != null) {
       infoListener.onDroppedFrames(count, elapsed);
     }
   }
 
+  // The bandwidth samples, and the load and format events of the sample sources, are delivered on
+  // the event thread: onBandwidthSample, onDownstreamFormatChanged, onLoadStarted,
+  // onLoadCompleted, onLoadCanceled, onLoadError and onUpstreamDiscarded.
+
   @Override
   public void onBandwidthSample(int elapsedMs, long bytes, long bandwidthEstimate) {
+    metricsCollector.onBandwidthSample(elapsedMs, bytes, bandwidthEstimate);
+    recordEvent(PlaybackEventRecorder.EVENT_BANDWIDTH_SAMPLE, elapsedMs, bytes, bandwidthEstimate,
+        0);
     if (infoListener != null) {
-      infoListener.onBandwidthSample(elapsedMs, bytes, bandwidthEstimate);
+      EventQueue.Event event = infoEventQueue.obtain(INFO_EVENT_BANDWIDTH_SAMPLE, session);
+      event.int0 = elapsedMs;
+      event.long0 = bytes;
+      event.long1 = bandwidthEstimate;
+      infoEventQueue.post(event);
     }
   }
 
   @Override
   public void onDownstreamFormatChanged(int sourceId, Format format, int trigger,
                                         long mediaTimeMs) {
+    recordEvent(PlaybackEventRecorder.EVENT_FORMAT_CHANGED, sourceId,
+        format != null ? format.bitrate : -1, trigger, mediaTimeMs);
+    // The format is part of the state of the player, which the UI reads on the main thread.
+    EventQueue.Event event = infoEventQueue.obtain(INFO_EVENT_FORMAT_CHANGED, session);
+    event.sourceId = sourceId;
+    event.format = format;
+    event.int0 = trigger;
+    event.long0 = mediaTimeMs;
+    infoEventQueue.post(event);
+  }
+
+  private void onDownstreamFormatApplied(int sourceId, Format format, int trigger,
+                                         long mediaTimeMs) {
+    memoryPressureController.onFormatChanged(sourceId, format);
+    if (sourceId == TYPE_VIDEO) {
+      videoFormat = format;
+      metricsCollector.onVideoFormatChanged(format);
+      updatePlaybackSnapshot();
+    }
     if (infoListener == null) {
       return;
     }
     if (sourceId == TYPE_VIDEO) {
-      videoFormat = format;
       infoListener.onVideoFormatEnabled(format, trigger, mediaTimeMs);
     } else if (sourceId == TYPE_AUDIO) {
       infoListener.onAudioFormatEnabled(format, trigger, mediaTimeMs);
@@ -786,29 +1507,54 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
   @Override
   public void onLoadStarted(int sourceId, long length, int type, int trigger, Format format,
                             long mediaStartTimeMs, long mediaEndTimeMs) {
+    setLoadingFormat(sourceId, format);
+    recordEvent(PlaybackEventRecorder.EVENT_LOAD_STARTED, sourceId, length,
+        format != null ? format.bitrate : -1, mediaStartTimeMs);
     if (infoListener != null) {
-      infoListener.onLoadStarted(sourceId, length, type, trigger, format, mediaStartTimeMs,
-              mediaEndTimeMs);
+      EventQueue.Event event = infoEventQueue.obtain(INFO_EVENT_LOAD_STARTED, session);
+      event.sourceId = sourceId;
+      event.format = format;
+      event.int0 = type;
+      event.int1 = trigger;
+      event.long0 = length;
+      event.long1 = mediaStartTimeMs;
+      event.long2 = mediaEndTimeMs;
+      infoEventQueue.post(event);
     }
   }
 
   @Override
-  public void onLoadCompleted(int sourceId, long bytesLoaded, int type, int trigger, Format format,
-                              long mediaStartTimeMs, long mediaEndTimeMs, long elapsedRealtimeMs,
-                              long loadDurationMs) {
+  public void onLoadCompleted(int sourceId, long bytesLoaded, int type, int trigger,
+                              Format format, long mediaStartTimeMs, long mediaEndTimeMs,
+                              long elapsedRealtimeMs, long loadDurationMs) {
+    setLoadingFormat(sourceId, null);
+    metricsCollector.onLoadCompleted(bytesLoaded);
+    recordEvent(PlaybackEventRecorder.EVENT_LOAD_COMPLETED, sourceId, bytesLoaded, loadDurationMs,
+        mediaStartTimeMs);
     if (infoListener != null) {
-      infoListener.onLoadCompleted(sourceId, bytesLoaded, type, trigger, format, mediaStartTimeMs,
-              mediaEndTimeMs, elapsedRealtimeMs, loadDurationMs);
+      EventQueue.Event event = infoEventQueue.obtain(INFO_EVENT_LOAD_COMPLETED, session);
+      event.sourceId = sourceId;
+      event.format = format;
+      event.int0 = type;
+      event.int1 = trigger;
+      event.long0 = bytesLoaded;
+      event.long1 = mediaStartTimeMs;
+      event.long2 = mediaEndTimeMs;
+      event.long3 = elapsedRealtimeMs;
+      event.long4 = loadDurationMs;
+      infoEventQueue.post(event);
     }
   }
 
   @Override
   public void onLoadCanceled(int sourceId, long bytesLoaded) {
-    // Do nothing.
+    setLoadingFormat(sourceId, null);
+    recordEvent(PlaybackEventRecorder.EVENT_LOAD_CANCELED, sourceId, bytesLoaded, 0, 0);
   }
 
   @Override
   public void onDrmSessionManagerError(Exception e) {
+    recordEvent(PlaybackEventRecorder.EVENT_DRM_ERROR, 0, 0, 0, 0);
     if (internalErrorListener != null) {
       internalErrorListener.onDrmSessionManagerError(e);
     }
@@ -816,6 +1562,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onDecoderInitializationError(DecoderInitializationException e) {
+    recordEvent(PlaybackEventRecorder.EVENT_DECODER_ERROR, 0, 0, 0, 0);
     if (internalErrorListener != null) {
       internalErrorListener.onDecoderInitializationError(e);
     }
@@ -823,6 +1570,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onAudioTrackInitializationError(AudioTrack.InitializationException e) {
+    recordEvent(PlaybackEventRecorder.EVENT_AUDIO_ERROR, 0, 0, 0, 0);
     if (internalErrorListener != null) {
       internalErrorListener.onAudioTrackInitializationError(e);
     }
@@ -830,6 +1578,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onAudioTrackWriteError(AudioTrack.WriteException e) {
+    recordEvent(PlaybackEventRecorder.EVENT_AUDIO_ERROR, 0, 0, 0, 0);
     if (internalErrorListener != null) {
       internalErrorListener.onAudioTrackWriteError(e);
     }
@@ -837,6 +1586,8 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onAudioTrackUnderrun(int bufferSize, long bufferSizeMs, long elapsedSinceLastFeedMs) {
+    recordEvent(PlaybackEventRecorder.EVENT_AUDIO_UNDERRUN, bufferSize, bufferSizeMs,
+        elapsedSinceLastFeedMs, 0);
     if (internalErrorListener != null) {
       internalErrorListener.onAudioTrackUnderrun(bufferSize, bufferSizeMs, elapsedSinceLastFeedMs);
     }
@@ -844,6 +1595,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onCryptoError(CryptoException e) {
+    recordEvent(PlaybackEventRecorder.EVENT_CRYPTO_ERROR, 0, 0, 0, 0);
     if (internalErrorListener != null) {
       internalErrorListener.onCryptoError(e);
     }
@@ -851,7 +1603,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onDrmKeysLoaded() {
-    // Do nothing.
+    recordEvent(PlaybackEventRecorder.EVENT_DRM_KEYS_LOADED, 0, 0, 0, 0);
   }
 
   /* package */ MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>>
@@ -869,6 +1621,8 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
   @Override
   public void onDecoderInitialized(String decoderName, long elapsedRealtimeMs,
                                    long initializationDurationMs) {
+    recordEvent(PlaybackEventRecorder.EVENT_DECODER_INITIALIZED, 0, initializationDurationMs, 0,
+        0);
     if (infoListener != null) {
       infoListener.onDecoderInitialized(decoderName, elapsedRealtimeMs, initializationDurationMs);
     }
@@ -876,8 +1630,13 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onLoadError(int sourceId, IOException e) {
+    setLoadingFormat(sourceId, null);
+    recordEvent(PlaybackEventRecorder.EVENT_LOAD_ERROR, sourceId, 0, 0, 0);
     if (internalErrorListener != null) {
-      internalErrorListener.onLoadError(sourceId, e);
+      EventQueue.Event event = infoEventQueue.obtain(INFO_EVENT_LOAD_ERROR, session);
+      event.sourceId = sourceId;
+      event.error = e;
+      infoEventQueue.post(event);
     }
   }
 
@@ -897,6 +1656,7 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onAvailableRangeChanged(int sourceId, TimeRange availableRange) {
+    liveLatencyController.onAvailableRangeChanged(availableRange);
     if (infoListener != null) {
       infoListener.onAvailableRangeChanged(sourceId, availableRange);
     }
@@ -914,7 +1674,75 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
 
   @Override
   public void onUpstreamDiscarded(int sourceId, long mediaStartTimeMs, long mediaEndTimeMs) {
-    // Do nothing.
+    recordEvent(PlaybackEventRecorder.EVENT_UPSTREAM_DISCARDED, sourceId, mediaStartTimeMs,
+        mediaEndTimeMs, 0);
+  }
+
+  /**
+   * Handle an event of an {@link InstrumentedDataSource} on the event thread, unless it was posted
+   * for a previous video.
+   */
+  private void dispatchRequestEvent(EventQueue.Event event) {
+    if (event.session != session) {
+      return;
+    }
+    switch (event.type) {
+      case REQUEST_EVENT_OPENED:
+        onLoadStarted(event.sourceId, event.long0, Chunk.TYPE_MEDIA, Chunk.TRIGGER_UNSPECIFIED,
+            null, -1, -1);
+        break;
+      case REQUEST_EVENT_CLOSED:
+        onRequestCompleted(event.sourceId, event.long0, event.long1, event.long2);
+        if (event.int0 != 0) {
+          onLoadCompleted(event.sourceId, event.long2, Chunk.TYPE_MEDIA,
+              Chunk.TRIGGER_UNSPECIFIED, null, -1, -1, event.long3,
+              event.long0 + event.long1);
+        }
+        break;
+    }
+  }
+
+  /**
+   * Handle an event of the event thread on the main thread, unless it was posted for a previous
+   * video.
+   */
+  private void dispatchInfoEvent(EventQueue.Event event) {
+    if (event.session != session) {
+      return;
+    }
+    if (event.type == INFO_EVENT_FORMAT_CHANGED) {
+      onDownstreamFormatApplied(event.sourceId, event.format, event.int0, event.long0);
+      return;
+    }
+    if (event.type == INFO_EVENT_LOAD_ERROR) {
+      if (internalErrorListener != null) {
+        internalErrorListener.onLoadError(event.sourceId, event.error);
+      }
+      return;
+    }
+    if (event.type == INFO_EVENT_REQUEST_COMPLETED) {
+      if (requestListener != null) {
+        requestListener.onRequestCompleted(event.sourceId, event.format, event.long0, event.long1,
+            event.long2);
+      }
+      return;
+    }
+    if (infoListener == null) {
+      return;
+    }
+    switch (event.type) {
+      case INFO_EVENT_LOAD_STARTED:
+        infoListener.onLoadStarted(event.sourceId, event.long0, event.int0, event.int1,
+            event.format, event.long1, event.long2);
+        break;
+      case INFO_EVENT_LOAD_COMPLETED:
+        infoListener.onLoadCompleted(event.sourceId, event.long0, event.int0, event.int1,
+            event.format, event.long1, event.long2, event.long3, event.long4);
+        break;
+      case INFO_EVENT_BANDWIDTH_SAMPLE:
+        infoListener.onBandwidthSample(event.int0, event.long0, event.long1);
+        break;
+    }
   }
 
   /**
@@ -925,11 +1753,96 @@ public class ExoplayerWrapper implements ExoPlayer.Listener, ChunkSampleSource.E
     boolean playWhenReady = player.getPlayWhenReady();
     int playbackState = getPlaybackState();
     if (lastReportedPlayWhenReady != playWhenReady || lastReportedPlaybackState != playbackState) {
+      metricsCollector.onStateChanged(playWhenReady, playbackState);
+      recordEvent(PlaybackEventRecorder.EVENT_STATE_CHANGED, playbackState, playWhenReady ? 1 : 0,
+          0, 0);
       for (PlaybackListener playbackListener : playbackListeners) {
         playbackListener.onStateChanged(playWhenReady, playbackState);
       }
       lastReportedPlayWhenReady = playWhenReady;
       lastReportedPlaybackState = playbackState;
+      updatePlaybackSnapshot();
+    }
+  }
+
+  /**
+   * Publish a new snapshot of the state of the player. While a video is playing or buffering, the
+   * snapshot is republished every {@link #SNAPSHOT_INTERVAL_MS}, since the position and the buffer
+   * change without events. A paused player which is ready (ex. a pooled or preloaded player) only
+   * republishes when its state changes, it seeks or its track selection changes.
+   */
+  private void updatePlaybackSnapshot() {
+    mainHandler.removeCallbacks(snapshotRunnable);
+    int playbackState = getPlaybackState();
+    boolean playWhenReady = player.getPlayWhenReady();
+    playbackSnapshot = new PlaybackSnapshot(android.os.SystemClock.elapsedRealtime(),
+        player.getCurrentPosition(), player.getDuration(), player.getBufferedPosition(),
+        player.getBufferedPercentage(), playbackState, playWhenReady, getSnapshotSelectedTracks(),
+        videoFormat,
+        bandwidthMeter != null ? bandwidthMeter.getBitrateEstimate() : BandwidthMeter.NO_ESTIMATE);
+    if (playbackState != ExoPlayer.STATE_IDLE && playbackState != ExoPlayer.STATE_ENDED
+        && (playWhenReady || playbackState != ExoPlayer.STATE_READY)) {
+      mainHandler.postDelayed(snapshotRunnable, SNAPSHOT_INTERVAL_MS);
+    }
+  }
+
+  /**
+   * Returns the selected tracks for a snapshot. The array of the previous snapshot is returned if
+   * the selection has not changed, since the snapshots never modify it.
+   */
+  private int[] getSnapshotSelectedTracks() {
+    int[] selectedTracks = snapshotSelectedTracks;
+    for (int i = 0; selectedTracks != null && i < RENDERER_COUNT; i++) {
+      if (selectedTracks[i] != player.getSelectedTrack(i)) {
+        selectedTracks = null;
+      }
+    }
+    if (selectedTracks == null) {
+      selectedTracks = new int[RENDERER_COUNT];
+      for (int i = 0; i < RENDERER_COUNT; i++) {
+        selectedTracks[i] = player.getSelectedTrack(i);
+      }
+      snapshotSelectedTracks = selectedTracks;
+    }
+    return selectedTracks;
+  }
+
+  /**
+   * Record an event if an event recorder is set. See {@link PlaybackEventRecorder} for the meaning
+   * of the arguments of each event type.
+   */
+  private void recordEvent(int type, int arg0, long arg1, long arg2, long arg3) {
+    if (eventRecorder != null) {
+      eventRecorder.record(type, arg0, arg1, arg2, arg3);
+    }
+  }
+
+  private void setLoadingFormat(int sourceId, Format format) {
+    if (sourceId >= 0 && sourceId < RENDERER_COUNT) {
+      loadingFormats[sourceId] = format;
+    }
+  }
+
+  /**
+   * Start a new build of the current or the next item. The build replaces the previous one of the
+   * same item before the renderer builder is called, since it may deliver its results right away.
+   * @param builder The renderer builder of the item.
+   * @param next Whether the item is the next one rather than the current one.
+   */
+  private void startBuild(RendererBuilder builder, boolean next) {
+    RendererBuild build = new RendererBuild();
+    if (next) {
+      nextBuild = build;
+    } else {
+      currentBuild = build;
+    }
+    // A synchronous build of the current item may start the build of the next one.
+    RendererBuild previousStartingBuild = startingBuild;
+    startingBuild = build;
+    try {
+      builder.buildRenderers(this);
+    } finally {
+      startingBuild = previousStartingBuild;
     }
   }
 
@@ -0,0 +1,194 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps a set of idle {@link ExoplayerWrapper} objects whose playback threads are already running,
+ * so that starting playback does not have to pay for creating a new
+ * {@link com.google.android.exoplayer.ExoPlayer}.
+ *
+ * <p>Players are handed out by {@link #acquire(ExoplayerWrapper.RendererBuilder)} and must be
+ * given back with {@link #release(ExoplayerWrapper)} instead of calling
+ * {@link ExoplayerWrapper#release()} on them directly.
+ *
+ * <p>This class must be used from the main thread, since {@link ExoplayerWrapper} objects deliver
+ * their events to the thread on which they were created.
+ */
+public class ExoplayerWrapperPool {
+
+  /**
+   * By default, at most this many idle players are kept alive.
+   */
+  public static final int DEFAULT_MAX_IDLE_PLAYERS = 2;
+
+  /**
+   * The maximum number of idle players kept in the pool. Players which are released while the
+   * pool is full are released for real.
+   */
+  private final int maxIdlePlayers;
+
+  /**
+   * The buffer policy of the players created by the pool.
+   */
+  private final BufferPolicy bufferPolicy;
+
+  /**
+   * The players which are ready to be handed out.
+   */
+  private final ArrayDeque<ExoplayerWrapper> idlePlayers;
+
+  /**
+   * The number of acquisitions which were served by an idle player.
+   */
+  private int hitCount;
+
+  /**
+   * The number of acquisitions which required creating a new player.
+   */
+  private int missCount;
+
+  /**
+   * The sum of the time spent in {@link #acquire(ExoplayerWrapper.RendererBuilder)}.
+   */
+  private long totalAcquireLatencyNs;
+
+  /**
+   * The longest time spent in a single call to {@link #acquire(ExoplayerWrapper.RendererBuilder)}.
+   */
+  private long maxAcquireLatencyNs;
+
+  public ExoplayerWrapperPool() {
+    this(DEFAULT_MAX_IDLE_PLAYERS);
+  }
+
+  /**
+   * @param maxIdlePlayers The maximum number of idle players which are kept alive.
+   */
+  public ExoplayerWrapperPool(int maxIdlePlayers) {
+    this(maxIdlePlayers, BufferPolicy.DEFAULT);
+  }
+
+  /**
+   * @param maxIdlePlayers The maximum number of idle players which are kept alive.
+   * @param bufferPolicy The buffer policy of the players created by the pool.
+   */
+  public ExoplayerWrapperPool(int maxIdlePlayers, BufferPolicy bufferPolicy) {
+    this.maxIdlePlayers = maxIdlePlayers;
+    this.bufferPolicy = bufferPolicy;
+    idlePlayers = new ArrayDeque<ExoplayerWrapper>(maxIdlePlayers);
+  }
+
+  /**
+   * Create idle players ahead of time (ex. while the screen which will show a video is loading)
+   * so that later calls to {@link #acquire(ExoplayerWrapper.RendererBuilder)} are served
+   * instantly.
+   * @param count The number of idle players the pool should hold. This is capped at the maximum
+   *              number of idle players of the pool.
+   */
+  public void prewarm(int count) {
+    int target = Math.min(count, maxIdlePlayers);
+    while (idlePlayers.size() < target) {
+      idlePlayers.push(new ExoplayerWrapper(null, bufferPolicy));
+    }
+  }
+
+  /**
+   * Returns a player which will be prepared with the given renderer builder. An idle player is
+   * reused if one is available, otherwise a new one is created.
+   * @param rendererBuilder Responsible for loading the data from the source, processing it,
+   *                        and providing byte streams.
+   */
+  public ExoplayerWrapper acquire(ExoplayerWrapper.RendererBuilder rendererBuilder) {
+    long startTimeNs = System.nanoTime();
+    ExoplayerWrapper player = idlePlayers.poll();
+    if (player != null) {
+      hitCount++;
+      player.setRendererBuilder(rendererBuilder);
+    } else {
+      missCount++;
+      player = new ExoplayerWrapper(rendererBuilder, bufferPolicy);
+    }
+    long latencyNs = System.nanoTime() - startTimeNs;
+    totalAcquireLatencyNs += latencyNs;
+    maxAcquireLatencyNs = Math.max(maxAcquireLatencyNs, latencyNs);
+    return player;
+  }
+
+  /**
+   * Give a player back to the pool. The player is reset and kept alive if there is room for it,
+   * otherwise it is released. The player must not be used by the caller afterwards.
+   * @param player A player which was returned by
+   *               {@link #acquire(ExoplayerWrapper.RendererBuilder)}.
+   */
+  public void release(ExoplayerWrapper player) {
+    if (idlePlayers.size() < maxIdlePlayers && !idlePlayers.contains(player)) {
+      player.reset();
+      idlePlayers.push(player);
+    } else {
+      player.release();
+    }
+  }
+
+  /**
+   * Release all the idle players (ex. when the activity is destroyed or the system is low on
+   * memory).
+   */
+  public void clear() {
+    while (!idlePlayers.isEmpty()) {
+      idlePlayers.pop().release();
+    }
+  }
+
+  /**
+   * Returns the number of players which are currently idle in the pool.
+   */
+  public int getIdleCount() {
+    return idlePlayers.size();
+  }
+
+  /**
+   * Returns the number of acquisitions which were served by an idle player.
+   */
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of acquisitions which required creating a new player.
+   */
+  public int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the average time spent acquiring a player in milliseconds, or 0 if no player has been
+   * acquired yet.
+   */
+  public float getAverageAcquireLatencyMs() {
+    int acquireCount = hitCount + missCount;
+    return acquireCount == 0 ? 0 : totalAcquireLatencyNs / (acquireCount * 1000000f);
+  }
+
+  /**
+   * Returns the longest time spent acquiring a player in milliseconds.
+   */
+  public float getMaxAcquireLatencyMs() {
+    return maxAcquireLatencyNs / 1000000f;
+  }
+}
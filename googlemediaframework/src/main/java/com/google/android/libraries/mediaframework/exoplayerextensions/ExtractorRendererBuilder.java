@@ -25,10 +25,8 @@ import com.google.android.exoplayer.extractor.Extractor;
 import com.google.android.exoplayer.extractor.ExtractorSampleSource;
 import com.google.android.exoplayer.text.TextTrackRenderer;
 import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
-import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.DefaultUriDataSource;
 
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.RendererBuilder;
 
@@ -41,29 +39,47 @@ import android.net.Uri;
  * A {@link RendererBuilder} for streams that can be read using an {@link Extractor}.
  */
 public class ExtractorRendererBuilder implements RendererBuilder {
-    private static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
-    private static final int BUFFER_SEGMENT_COUNT = 256;
-
     private final Context context;
     private final String userAgent;
     private final Uri uri;
+    private final SegmentCache segmentCache;
 
     public ExtractorRendererBuilder(Context context, String userAgent, Uri uri) {
+        this(context, userAgent, uri, null);
+    }
+
+    /**
+     * @param segmentCache The cache through which the media is read, or null to always read it
+     *                     from the network.
+     */
+    public ExtractorRendererBuilder(Context context, String userAgent, Uri uri,
+                                    SegmentCache segmentCache) {
         this.context = context;
         this.userAgent = userAgent;
         this.uri = uri;
+        this.segmentCache = segmentCache;
     }
 
     @Override
     public void buildRenderers(ExoplayerWrapper player) {
-        Allocator allocator = new DefaultAllocator(BUFFER_SEGMENT_SIZE);
+        BufferPolicy bufferPolicy = player.getBufferPolicy();
+        Allocator allocator = player.getAllocator();
 
-        // Build the video and audio renderers.
-        DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(player.getMainHandler(),
-                null);
-        DataSource dataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+        // Build the video and audio renderers. The load and bandwidth events are delivered on the
+        // event thread.
+        BandwidthMeter bandwidthMeter = BandwidthHistory.getInstance(context)
+                .newBandwidthMeter(uri.toString(), player.getEventHandler(), player);
+        DataSource dataSource = segmentCache != null
+                ? segmentCache.createDataSource(context, bandwidthMeter, userAgent)
+                : HttpTransport.getInstance().createDataSource(context, bandwidthMeter,
+                        userAgent);
+        // The extractor sample source does not report its loads, so the data source reports each
+        // request as a load of the muxed media.
+        dataSource = new InstrumentedDataSource(dataSource, player, ExoplayerWrapper.TYPE_VIDEO,
+                true);
         ExtractorSampleSource sampleSource = new ExtractorSampleSource(uri, dataSource, allocator,
-                BUFFER_SEGMENT_COUNT * BUFFER_SEGMENT_SIZE);
+                bufferPolicy.mainBufferSize, player.getEventHandler(), player,
+                ExoplayerWrapper.TYPE_VIDEO);
         MediaCodecVideoTrackRenderer videoRenderer = new MediaCodecVideoTrackRenderer(context,
                 sampleSource, MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT,
                 5000, player.getMainHandler(), player, 50);
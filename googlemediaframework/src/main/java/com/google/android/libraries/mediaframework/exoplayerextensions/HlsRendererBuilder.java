@@ -20,7 +20,6 @@
  */
 package com.google.android.libraries.mediaframework.exoplayerextensions;
 
-import com.google.android.exoplayer.DefaultLoadControl;
 import com.google.android.exoplayer.LoadControl;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecSelector;
@@ -41,10 +40,8 @@ import com.google.android.exoplayer.metadata.id3.Id3Frame;
 import com.google.android.exoplayer.metadata.id3.Id3Parser;
 import com.google.android.exoplayer.text.TextTrackRenderer;
 import com.google.android.exoplayer.text.eia608.Eia608TrackRenderer;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
-import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.DefaultUriDataSource;
 import com.google.android.exoplayer.util.ManifestFetcher;
 import com.google.android.exoplayer.util.ManifestFetcher.ManifestCallback;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper.RendererBuilder;
@@ -62,28 +59,51 @@ import java.util.List;
  */
 public class HlsRendererBuilder implements RendererBuilder {
 
-  private static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
-  private static final int MAIN_BUFFER_SEGMENTS = 256;
-  private static final int TEXT_BUFFER_SEGMENTS = 2;
-
   private final Context context;
   private final String userAgent;
   private final String url;
+  private final SegmentCache segmentCache;
+  private final Download download;
 
   private ExoplayerWrapper player;
 
   private AsyncRendererBuilder currentAsyncBuilder;
 
   public HlsRendererBuilder(Context context, String userAgent, String url) {
+    this(context, userAgent, url, null);
+  }
+
+  /**
+   * @param segmentCache The cache through which the segments are read, or null to always read
+   *                     them from the network.
+   */
+  public HlsRendererBuilder(Context context, String userAgent, String url,
+                            SegmentCache segmentCache) {
+    this(context, userAgent, url, segmentCache, null);
+  }
+
+  /**
+   * Create a renderer builder which plays a downloaded video without any network access.
+   * @param download A download which has completed.
+   */
+  public HlsRendererBuilder(Context context, String userAgent, Download download) {
+    this(context, userAgent, download.getVideo().getUrl(), null, download);
+  }
+
+  private HlsRendererBuilder(Context context, String userAgent, String url,
+                             SegmentCache segmentCache, Download download) {
     this.context = context;
     this.userAgent = userAgent;
     this.url = url;
+    this.segmentCache = segmentCache;
+    this.download = download;
   }
 
   @Override
   public void buildRenderers(ExoplayerWrapper player) {
     this.player = player;
-    currentAsyncBuilder = new AsyncRendererBuilder(context, userAgent, url, player);
+    currentAsyncBuilder = new AsyncRendererBuilder(context, userAgent, url, segmentCache, download,
+        player);
     currentAsyncBuilder.init();
   }
 
@@ -100,23 +120,38 @@ public class HlsRendererBuilder implements RendererBuilder {
     private final Context context;
     private final String userAgent;
     private final String url;
+    private final SegmentCache segmentCache;
+    private final Download download;
     private final ExoplayerWrapper player;
+
+    /**
+     * The build of the player which the results are delivered to.
+     */
+    private final ExoplayerWrapper.RendererBuild build;
     private final ManifestFetcher<HlsPlaylist> playlistFetcher;
 
-    private boolean canceled;
+    private volatile boolean canceled;
 
-    public AsyncRendererBuilder(Context context, String userAgent, String url, ExoplayerWrapper player) {
+    public AsyncRendererBuilder(Context context, String userAgent, String url,
+                                SegmentCache segmentCache, Download download,
+                                ExoplayerWrapper player) {
       this.context = context;
       this.userAgent = userAgent;
       this.url = url;
+      this.segmentCache = segmentCache;
+      this.download = download;
       this.player = player;
+      build = player.getRendererBuild();
       HlsPlaylistParser parser = new HlsPlaylistParser();
-      playlistFetcher = new ManifestFetcher<>(url, new DefaultUriDataSource(context, userAgent),
+      playlistFetcher = new ManifestFetcher<>(url,
+              download != null ? download.createDataSource()
+                  : ManifestCache.getInstance(context).createDataSource(context, userAgent),
               parser);
     }
 
     public void init() {
-      playlistFetcher.singleLoad(player.getMainHandler().getLooper(), this);
+      // The renderers are built on the event thread, so that they do not compete with the UI.
+      playlistFetcher.singleLoad(player.getEventHandler().getLooper(), this);
     }
 
     public void cancel() {
@@ -129,7 +164,7 @@ public class HlsRendererBuilder implements RendererBuilder {
         return;
       }
 
-      player.onRenderersError(e);
+      deliverError(e);
     }
 
     @Override
@@ -139,32 +174,40 @@ public class HlsRendererBuilder implements RendererBuilder {
       }
 
       Handler mainHandler = player.getMainHandler();
-      LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
-      DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+      // The high-frequency load and bandwidth events are delivered on the event thread.
+      Handler eventHandler = player.getEventHandler();
+      BufferPolicy bufferPolicy = player.getBufferPolicy();
+      LoadControl loadControl =
+          bufferPolicy.newLoadControl(player.getAllocator());
+      // Start from the bandwidth measured by the previous sessions on this host and network.
+      BandwidthMeter bandwidthMeter =
+          BandwidthHistory.getInstance(context).newBandwidthMeter(url, eventHandler, player);
 
       int[] variantIndices = null;
-      if (manifest instanceof HlsMasterPlaylist) {
+      // Only the main variant of a downloaded video is available.
+      if (manifest instanceof HlsMasterPlaylist && download == null) {
         HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) manifest;
         try {
           variantIndices = VideoFormatSelectorUtil.selectVideoFormatsForDefaultDisplay(
                   context, masterPlaylist.variants, null, false);
         } catch (DecoderQueryException e) {
-          player.onRenderersError(e);
+          deliverError(e);
           return;
         }
         if (variantIndices.length == 0) {
-          player.onRenderersError(new IllegalStateException("No variants selected."));
+          deliverError(new IllegalStateException("No variants selected."));
           return;
         }
       }
 
       PtsTimestampAdjusterProvider timestampAdjusterProvider = new PtsTimestampAdjusterProvider();
-      DataSource dataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+      DataSource dataSource = newDataSource(bandwidthMeter, ExoplayerWrapper.TYPE_VIDEO);
       HlsChunkSource chunkSource = new HlsChunkSource(true /* isMaster */, dataSource, url,
-              manifest, DefaultHlsTrackSelector.newDefaultInstance(context), bandwidthMeter,
+              manifest, download != null ? download.newHlsTrackSelector()
+                  : DefaultHlsTrackSelector.newDefaultInstance(context), bandwidthMeter,
               timestampAdjusterProvider, HlsChunkSource.ADAPTIVE_MODE_SPLICE);
       HlsSampleSource sampleSource = new HlsSampleSource(chunkSource, loadControl,
-              MAIN_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, mainHandler, player, ExoplayerWrapper.TYPE_VIDEO);
+              bufferPolicy.mainBufferSize, eventHandler, player, ExoplayerWrapper.TYPE_VIDEO);
       MediaCodecVideoTrackRenderer videoRenderer = new MediaCodecVideoTrackRenderer(context,
               sampleSource, MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000, mainHandler, player, 50);
       MediaCodecAudioTrackRenderer audioRenderer = new MediaCodecAudioTrackRenderer(sampleSource,
@@ -181,12 +224,12 @@ public class HlsRendererBuilder implements RendererBuilder {
       }
       TrackRenderer textRenderer;
       if (preferWebvtt) {
-        DataSource textDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+        DataSource textDataSource = newDataSource(bandwidthMeter, ExoplayerWrapper.TYPE_TEXT);
         HlsChunkSource textChunkSource = new HlsChunkSource(false /* isMaster */, textDataSource,
                 url, manifest, DefaultHlsTrackSelector.newSubtitleInstance(), bandwidthMeter,
                 timestampAdjusterProvider, HlsChunkSource.ADAPTIVE_MODE_SPLICE);
         HlsSampleSource textSampleSource = new HlsSampleSource(textChunkSource, loadControl,
-                TEXT_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, mainHandler, player, ExoplayerWrapper.TYPE_TEXT);
+                bufferPolicy.textBufferSize, eventHandler, player, ExoplayerWrapper.TYPE_TEXT);
         textRenderer = new TextTrackRenderer(textSampleSource, player, mainHandler.getLooper());
       } else {
         textRenderer = new Eia608TrackRenderer(sampleSource, player, mainHandler.getLooper());
@@ -197,7 +240,56 @@ public class HlsRendererBuilder implements RendererBuilder {
       renderers[ExoplayerWrapper.TYPE_AUDIO] = audioRenderer;
       renderers[ExoplayerWrapper.TYPE_METADATA] = id3Renderer;
       renderers[ExoplayerWrapper.TYPE_TEXT] = textRenderer;
-      player.onRenderers(renderers, bandwidthMeter);
+      deliverRenderers(renderers, bandwidthMeter);
+    }
+
+    /**
+     * Deliver the renderers to the player on the main thread, unless the build has been canceled
+     * in the meantime.
+     */
+    private void deliverRenderers(final TrackRenderer[] renderers,
+                                  final BandwidthMeter bandwidthMeter) {
+      player.getMainHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          if (!canceled) {
+            build.onRenderers(renderers, bandwidthMeter);
+          }
+        }
+      });
+    }
+
+    /**
+     * Report the failure of the build to the player on the main thread, unless the build has been
+     * canceled in the meantime.
+     */
+    private void deliverError(final Exception e) {
+      player.getMainHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          if (!canceled) {
+            build.onRenderersError(e);
+          }
+        }
+      });
+    }
+
+    /**
+     * Create the data source of a renderer, which reports the requests of the renderer to the
+     * player.
+     * @param sourceId The renderer type (one of the ExoplayerWrapper TYPE_* constants).
+     */
+    private DataSource newDataSource(BandwidthMeter bandwidthMeter, int sourceId) {
+      DataSource dataSource;
+      if (download != null) {
+        dataSource = download.createDataSource();
+      } else if (segmentCache != null) {
+        dataSource = segmentCache.createDataSource(context, bandwidthMeter, userAgent);
+      } else {
+        dataSource = HttpTransport.getInstance().createDataSource(context, bandwidthMeter,
+            userAgent);
+      }
+      return new InstrumentedDataSource(dataSource, player, sourceId, false);
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,677 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.DefaultUriDataSource;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.UriDataSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP transport shared by the players, the downloads and the DRM callbacks.
+ *
+ * <p>{@link HttpURLConnection} keeps the connections to each host alive in a pool, but only gets
+ * a connection back once its response has been read to the end and its stream closed. Calling
+ * {@link HttpURLConnection#disconnect()}, as the default data sources do after every request,
+ * closes the socket, so that the next segment or license request to the same host pays for a new
+ * TCP and TLS handshake. The requests of this transport drain short remainders of their responses
+ * and close the streams instead, and only disconnect when a large part of a response is left.
+ *
+ * <p>The data sources of this transport also coalesce adjacent byte ranges of the same resource,
+ * as the segments of a DASH representation with a single segment index are. Once a byte range
+ * starts where the previous range of the same resource ended, the data source expects the next
+ * one to follow as well: it asks for the rest of the resource, and holds the response after the
+ * range was read. When the next request starts where the previous one ended, it is served from
+ * the held response without a new round trip. Other ranges ask for their exact bytes, so that
+ * their connection can return to the pool. A held response which is not claimed within
+ * {@link #HOLD_TIMEOUT_MS} is released, even if the data source is not used again.
+ *
+ * <p>Requests which allow gzip (ex manifests) may be compressed, and are never coalesced.
+ */
+public final class HttpTransport {
+
+  /**
+   * Receives the completed requests of a transport. It is called on the thread which made the
+   * request.
+   */
+  public interface RequestListener {
+
+    /**
+     * Respond to the completion of a request.
+     * @param uri The URI of the request.
+     * @param responseCode The HTTP status code of the response.
+     * @param coalesced Whether the request was served from the held response of the previous one.
+     * @param timeToResponseMs The time between the start of the request and its response headers.
+     * @param durationMs The time between the start of the request and its end.
+     * @param bytes The number of bytes read.
+     */
+    void onRequestCompleted(Uri uri, int responseCode, boolean coalesced, long timeToResponseMs,
+                            long durationMs, long bytes);
+  }
+
+  public static final int DEFAULT_CONNECT_TIMEOUT_MS = 8000;
+  public static final int DEFAULT_READ_TIMEOUT_MS = 8000;
+
+  /**
+   * A held response is released if the next request does not claim it within this time.
+   */
+  public static final long HOLD_TIMEOUT_MS = 10000;
+
+  /**
+   * Responses with at most this many unread bytes are drained, so that their connection returns
+   * to the pool. Responses with more are disconnected.
+   */
+  private static final int MAX_DRAIN_BYTES = 32 * 1024;
+
+  private static final int HTTP_PARTIAL_CONTENT = 206;
+
+  private static HttpTransport instance;
+
+  /**
+   * Releases the held responses which are not claimed in time.
+   */
+  private static final ScheduledExecutorService releaseExecutor =
+      Executors.newSingleThreadScheduledExecutor();
+
+  private volatile int connectTimeoutMs;
+  private volatile int readTimeoutMs;
+
+  private volatile RequestListener requestListener;
+
+  private int requestCount;
+  private int coalescedRequestCount;
+  private long bytesTransferred;
+
+  public HttpTransport() {
+    this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+  }
+
+  /**
+   * @param connectTimeoutMs The connect timeout of the requests.
+   * @param readTimeoutMs The read timeout of the requests.
+   */
+  public HttpTransport(int connectTimeoutMs, int readTimeoutMs) {
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.readTimeoutMs = readTimeoutMs;
+  }
+
+  /**
+   * Returns the transport shared by all the players of the application.
+   */
+  public static synchronized HttpTransport getInstance() {
+    if (instance == null) {
+      instance = new HttpTransport();
+    }
+    return instance;
+  }
+
+  /**
+   * Set the timeouts of the requests started afterwards.
+   * @param connectTimeoutMs The connect timeout of the requests.
+   * @param readTimeoutMs The read timeout of the requests.
+   */
+  public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.readTimeoutMs = readTimeoutMs;
+  }
+
+  /**
+   * Set the listener which receives the completed requests.
+   * @param listener The listener, or null.
+   */
+  public void setRequestListener(RequestListener listener) {
+    requestListener = listener;
+  }
+
+  /**
+   * Create a data source which reads HTTP URIs through this transport.
+   * @param userAgent The User-Agent sent with the requests.
+   * @param listener Notified of the transfers. May be null.
+   */
+  public HttpDataSource createHttpDataSource(String userAgent, TransferListener listener) {
+    return new PooledHttpDataSource(userAgent, listener);
+  }
+
+  /**
+   * Create a data source which reads HTTP URIs through this transport, and other URIs (files,
+   * assets and content providers) directly.
+   * @param context The context (ex {@link android.app.Activity}) in which the video is played.
+   * @param listener Notified of the transfers. May be null.
+   * @param userAgent The User-Agent sent with the requests.
+   */
+  public UriDataSource createDataSource(Context context, TransferListener listener,
+                                        String userAgent) {
+    return new DefaultUriDataSource(context, listener,
+        createHttpDataSource(userAgent, listener));
+  }
+
+  /**
+   * Do an HTTP POST and return the response.
+   * @param url The URL of the request.
+   * @param data The body of the request, or null.
+   * @param requestProperties The headers of the request, or null.
+   */
+  public byte[] executePost(String url, byte[] data, Map<String, String> requestProperties)
+      throws IOException {
+    long startTimeMs = SystemClock.elapsedRealtime();
+    HttpURLConnection connection = openConnection(new URL(url));
+    boolean released = false;
+    try {
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(data != null);
+      connection.setDoInput(true);
+      if (requestProperties != null) {
+        for (Map.Entry<String, String> requestProperty : requestProperties.entrySet()) {
+          connection.setRequestProperty(requestProperty.getKey(), requestProperty.getValue());
+        }
+      }
+      if (data != null) {
+        OutputStream out = connection.getOutputStream();
+        out.write(data);
+        out.close();
+      }
+      int responseCode = connection.getResponseCode();
+      long timeToResponseMs = SystemClock.elapsedRealtime() - startTimeMs;
+      InputStream in = connection.getInputStream();
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        response.write(buffer, 0, count);
+      }
+      // The response was read to the end, so closing its stream returns the connection to the
+      // pool.
+      in.close();
+      released = true;
+      onRequestCompleted(Uri.parse(url), responseCode, false, timeToResponseMs,
+          SystemClock.elapsedRealtime() - startTimeMs, response.size());
+      return response.toByteArray();
+    } finally {
+      if (!released) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of requests completed by this transport.
+   */
+  public synchronized int getRequestCount() {
+    return requestCount;
+  }
+
+  /**
+   * Returns the number of requests served from the held response of the previous request.
+   */
+  public synchronized int getCoalescedRequestCount() {
+    return coalescedRequestCount;
+  }
+
+  /**
+   * Returns the number of bytes read by the requests of this transport.
+   */
+  public synchronized long getBytesTransferred() {
+    return bytesTransferred;
+  }
+
+  private HttpURLConnection openConnection(URL url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(connectTimeoutMs);
+    connection.setReadTimeout(readTimeoutMs);
+    return connection;
+  }
+
+  private void onRequestCompleted(Uri uri, int responseCode, boolean coalesced,
+                                  long timeToResponseMs, long durationMs, long bytes) {
+    synchronized (this) {
+      requestCount++;
+      if (coalesced) {
+        coalescedRequestCount++;
+      }
+      bytesTransferred += bytes;
+    }
+    RequestListener listener = requestListener;
+    if (listener != null) {
+      listener.onRequestCompleted(uri, responseCode, coalesced, timeToResponseMs, durationMs,
+          bytes);
+    }
+  }
+
+  private static boolean isGzipAllowed(DataSpec dataSpec) {
+    return (dataSpec.flags & DataSpec.FLAG_ALLOW_GZIP) != 0;
+  }
+
+  /**
+   * Release a connection, keeping it alive if the rest of its response is short enough to be
+   * drained.
+   * @param connection The connection.
+   * @param inputStream The stream of its response.
+   * @param bytesRemaining The number of unread bytes of the response, or C.LENGTH_UNBOUNDED if it
+   *                       is unknown.
+   */
+  private static void releaseConnection(HttpURLConnection connection, InputStream inputStream,
+                                        long bytesRemaining) {
+    if (bytesRemaining != C.LENGTH_UNBOUNDED && bytesRemaining <= MAX_DRAIN_BYTES) {
+      try {
+        byte[] buffer = new byte[4096];
+        while (inputStream.read(buffer) != -1) {
+          // Drain the response.
+        }
+        inputStream.close();
+        return;
+      } catch (IOException e) {
+        // Fall through and disconnect.
+      }
+    }
+    connection.disconnect();
+  }
+
+  /**
+   * Reads HTTP URIs through the connection pool, coalescing adjacent byte ranges.
+   */
+  private final class PooledHttpDataSource implements HttpDataSource {
+
+    private final String userAgent;
+    private final TransferListener listener;
+    private final HashMap<String, String> requestProperties;
+
+    private DataSpec dataSpec;
+    private HttpURLConnection connection;
+    private InputStream inputStream;
+    private boolean opened;
+    private boolean coalesced;
+    private int responseCode;
+    private long openTimeMs;
+    private long timeToResponseMs;
+
+    /**
+     * The number of bytes of the request left to read, or C.LENGTH_UNBOUNDED.
+     */
+    private long bytesRemaining;
+
+    /**
+     * The number of bytes of the response left after the bytes of the request, or
+     * C.LENGTH_UNBOUNDED if it is unknown.
+     */
+    private long responseBytesAfterRequest;
+
+    private long bytesRead;
+
+    /**
+     * The URI of the last request, and the position in the resource after its range, or -1 if its
+     * length was unbounded.
+     */
+    private Uri lastUri;
+    private long lastEndPosition;
+
+    /**
+     * Releases the held response when it is not claimed in time.
+     */
+    private final Runnable releaseHeldResponseRunnable;
+    private ScheduledFuture<?> pendingRelease;
+
+    /**
+     * The response held after the last request, or null. The held response is guarded by the
+     * data source, since it may be released by {@link #releaseExecutor}.
+     */
+    private HttpURLConnection heldConnection;
+    private InputStream heldInputStream;
+    private Uri heldUri;
+    private int heldResponseCode;
+
+    /**
+     * The position in the resource of the next byte of the held response.
+     */
+    private long heldPosition;
+
+    /**
+     * The number of bytes left in the held response, or C.LENGTH_UNBOUNDED.
+     */
+    private long heldBytesRemaining;
+
+    private long heldTimeMs;
+
+    public PooledHttpDataSource(String userAgent, TransferListener listener) {
+      this.userAgent = userAgent;
+      this.listener = listener;
+      requestProperties = new HashMap<String, String>();
+      lastEndPosition = -1;
+      releaseHeldResponseRunnable = new Runnable() {
+        @Override
+        public void run() {
+          releaseExpiredHeldResponse();
+        }
+      };
+    }
+
+    @Override
+    public String getUri() {
+      return connection == null ? null : connection.getURL().toString();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+      return connection == null ? null : connection.getHeaderFields();
+    }
+
+    @Override
+    public void setRequestProperty(String name, String value) {
+      synchronized (requestProperties) {
+        requestProperties.put(name, value);
+      }
+    }
+
+    @Override
+    public void clearRequestProperty(String name) {
+      synchronized (requestProperties) {
+        requestProperties.remove(name);
+      }
+    }
+
+    @Override
+    public void clearAllRequestProperties() {
+      synchronized (requestProperties) {
+        requestProperties.clear();
+      }
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws HttpDataSourceException {
+      this.dataSpec = dataSpec;
+      bytesRead = 0;
+      openTimeMs = SystemClock.elapsedRealtime();
+      if (!openHeldResponse(dataSpec)) {
+        releaseHeldResponse();
+        openNewResponse(dataSpec);
+      }
+      lastUri = dataSpec.uri;
+      lastEndPosition = dataSpec.length == C.LENGTH_UNBOUNDED ? -1
+          : dataSpec.absoluteStreamPosition + dataSpec.length;
+      opened = true;
+      if (listener != null) {
+        listener.onTransferStart();
+      }
+      return bytesRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+      if (bytesRemaining == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+        readLength = (int) Math.min(readLength, bytesRemaining);
+      }
+      int read;
+      try {
+        read = inputStream.read(buffer, offset, readLength);
+      } catch (IOException e) {
+        throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_READ);
+      }
+      if (read == -1) {
+        if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+          throw new HttpDataSourceException(new EOFException(), dataSpec,
+              HttpDataSourceException.TYPE_READ);
+        }
+        responseBytesAfterRequest = 0;
+        bytesRemaining = 0;
+        return C.RESULT_END_OF_INPUT;
+      }
+      bytesRead += read;
+      if (bytesRemaining != C.LENGTH_UNBOUNDED) {
+        bytesRemaining -= read;
+      }
+      if (listener != null) {
+        listener.onBytesTransferred(read);
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws HttpDataSourceException {
+      if (connection == null) {
+        return;
+      }
+      if (bytesRemaining == 0 && responseBytesAfterRequest != 0 && dataSpec.postBody == null
+          && !isGzipAllowed(dataSpec)) {
+        // The range was read and the response goes on: hold it for the next range.
+        holdResponse();
+      } else {
+        long unreadBytes = bytesRemaining == C.LENGTH_UNBOUNDED
+            || responseBytesAfterRequest == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED
+            : bytesRemaining + responseBytesAfterRequest;
+        releaseConnection(connection, inputStream, unreadBytes);
+      }
+      connection = null;
+      inputStream = null;
+      if (opened) {
+        opened = false;
+        if (listener != null) {
+          listener.onTransferEnd();
+        }
+        onRequestCompleted(dataSpec.uri, responseCode, coalesced, timeToResponseMs,
+            SystemClock.elapsedRealtime() - openTimeMs, bytesRead);
+      }
+    }
+
+    private synchronized void holdResponse() {
+      heldConnection = connection;
+      heldInputStream = inputStream;
+      heldUri = dataSpec.uri;
+      heldResponseCode = responseCode;
+      heldPosition = dataSpec.absoluteStreamPosition + bytesRead;
+      heldBytesRemaining = responseBytesAfterRequest;
+      heldTimeMs = SystemClock.elapsedRealtime();
+      pendingRelease = releaseExecutor.schedule(releaseHeldResponseRunnable, HOLD_TIMEOUT_MS,
+          TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized boolean canServeFromHeldResponse(DataSpec dataSpec) {
+      if (heldConnection == null) {
+        return false;
+      }
+      synchronized (requestProperties) {
+        // Conditional and other custom requests need their own headers.
+        if (!requestProperties.isEmpty()) {
+          return false;
+        }
+      }
+      return dataSpec.postBody == null && !isGzipAllowed(dataSpec) && dataSpec.uri.equals(heldUri)
+          && dataSpec.absoluteStreamPosition == heldPosition
+          && (heldBytesRemaining == C.LENGTH_UNBOUNDED || (dataSpec.length != C.LENGTH_UNBOUNDED
+              && dataSpec.length <= heldBytesRemaining));
+    }
+
+    /**
+     * Serve the request from the held response if it can be, and return whether it was.
+     */
+    private synchronized boolean openHeldResponse(DataSpec dataSpec) {
+      if (!canServeFromHeldResponse(dataSpec)) {
+        return false;
+      }
+      cancelPendingRelease();
+      connection = heldConnection;
+      inputStream = heldInputStream;
+      responseCode = heldResponseCode;
+      long heldBytesRemaining = this.heldBytesRemaining;
+      heldConnection = null;
+      heldInputStream = null;
+      heldUri = null;
+      coalesced = true;
+      timeToResponseMs = 0;
+      bytesRemaining = dataSpec.length != C.LENGTH_UNBOUNDED ? dataSpec.length
+          : heldBytesRemaining;
+      responseBytesAfterRequest = heldBytesRemaining == C.LENGTH_UNBOUNDED
+          || dataSpec.length == C.LENGTH_UNBOUNDED ? heldBytesRemaining
+          : heldBytesRemaining - dataSpec.length;
+      return true;
+    }
+
+    private void openNewResponse(DataSpec dataSpec) throws HttpDataSourceException {
+      coalesced = false;
+      long position = dataSpec.position;
+      long length = dataSpec.length;
+      boolean allowGzip = isGzipAllowed(dataSpec);
+      // Ask for the rest of the resource after a range which follows the previous one, so that the
+      // next range can follow on the same response.
+      boolean openEnded = length != C.LENGTH_UNBOUNDED && dataSpec.postBody == null && !allowGzip
+          && dataSpec.uri.equals(lastUri) && dataSpec.absoluteStreamPosition == lastEndPosition;
+      try {
+        connection = openConnection(new URL(dataSpec.uri.toString()));
+        synchronized (requestProperties) {
+          for (Map.Entry<String, String> property : requestProperties.entrySet()) {
+            connection.setRequestProperty(property.getKey(), property.getValue());
+          }
+        }
+        if (position != 0 || length != C.LENGTH_UNBOUNDED) {
+          String range = "bytes=" + position + "-";
+          if (length != C.LENGTH_UNBOUNDED && !openEnded) {
+            range += (position + length - 1);
+          }
+          connection.setRequestProperty("Range", range);
+        }
+        connection.setRequestProperty("User-Agent", userAgent);
+        if (!allowGzip) {
+          // Compressed responses would not match the byte ranges.
+          connection.setRequestProperty("Accept-Encoding", "identity");
+        }
+        if (dataSpec.postBody != null) {
+          connection.setDoOutput(true);
+          connection.setRequestMethod("POST");
+          OutputStream out = connection.getOutputStream();
+          out.write(dataSpec.postBody);
+          out.close();
+        }
+        responseCode = connection.getResponseCode();
+      } catch (IOException e) {
+        disconnect();
+        throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri.toString(), e,
+            dataSpec, HttpDataSourceException.TYPE_OPEN);
+      }
+      timeToResponseMs = SystemClock.elapsedRealtime() - openTimeMs;
+
+      if (responseCode < 200 || responseCode > 299) {
+        Map<String, List<String>> headers = connection.getHeaderFields();
+        disconnect();
+        throw new InvalidResponseCodeException(responseCode,
+            headers != null ? headers : Collections.<String, List<String>>emptyMap(), dataSpec);
+      }
+
+      // A server which ignores the range sends the whole resource.
+      long bytesToSkip = responseCode != HTTP_PARTIAL_CONTENT ? position : 0;
+      // The length of a compressed response is not the length of its data.
+      long responseLength = allowGzip ? C.LENGTH_UNBOUNDED : getContentLength(connection);
+      long availableLength = responseLength == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED
+          : responseLength - bytesToSkip;
+      if (length != C.LENGTH_UNBOUNDED) {
+        bytesRemaining = length;
+        responseBytesAfterRequest = availableLength == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED
+            : Math.max(0, availableLength - length);
+      } else {
+        bytesRemaining = availableLength;
+        responseBytesAfterRequest = availableLength == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED
+            : 0;
+      }
+
+      try {
+        inputStream = connection.getInputStream();
+        skip(bytesToSkip);
+      } catch (IOException e) {
+        disconnect();
+        throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_OPEN);
+      }
+    }
+
+    private void skip(long bytesToSkip) throws IOException {
+      byte[] buffer = bytesToSkip > 0 ? new byte[4096] : null;
+      while (bytesToSkip > 0) {
+        int read = inputStream.read(buffer, 0, (int) Math.min(bytesToSkip, buffer.length));
+        if (read == -1) {
+          throw new EOFException();
+        }
+        bytesToSkip -= read;
+      }
+    }
+
+    private synchronized void releaseHeldResponse() {
+      cancelPendingRelease();
+      if (heldConnection != null) {
+        releaseConnection(heldConnection, heldInputStream, heldBytesRemaining);
+        heldConnection = null;
+        heldInputStream = null;
+        heldUri = null;
+      }
+    }
+
+    private synchronized void releaseExpiredHeldResponse() {
+      // The response may have been claimed, and another one held, since the release was scheduled.
+      if (heldConnection != null
+          && SystemClock.elapsedRealtime() - heldTimeMs >= HOLD_TIMEOUT_MS) {
+        releaseHeldResponse();
+      }
+    }
+
+    private void cancelPendingRelease() {
+      if (pendingRelease != null) {
+        pendingRelease.cancel(false);
+        pendingRelease = null;
+      }
+    }
+
+    private void disconnect() {
+      if (connection != null) {
+        connection.disconnect();
+        connection = null;
+      }
+      inputStream = null;
+    }
+
+    private long getContentLength(HttpURLConnection connection) {
+      String contentLength = connection.getHeaderField("Content-Length");
+      if (contentLength != null) {
+        try {
+          return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+          // Treat the length as unknown.
+        }
+      }
+      return C.LENGTH_UNBOUNDED;
+    }
+  }
+}
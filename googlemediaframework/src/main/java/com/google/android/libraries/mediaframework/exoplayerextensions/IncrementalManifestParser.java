@@ -0,0 +1,104 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.upstream.UriLoadable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Parses the refreshes of a live manifest, returning the previous manifest when the bytes of the
+ * manifest have not changed.
+ *
+ * <p>The manifests are read through the {@link ManifestCache}, which revalidates them with a
+ * conditional GET, so an unchanged manifest costs a 304 response and is served from the cache.
+ * This parser then skips parsing it again. Returning the same manifest also tells the chunk
+ * sources that there is nothing new to process. Manifests which have changed are parsed by the
+ * upstream parser, which for DASH is a {@link CompactMpdParser} that only appends the new segments.
+ *
+ * <p>A parser must only be used by one manifest fetcher.
+ *
+ * @param <T> The type of the manifest.
+ */
+public final class IncrementalManifestParser<T> implements UriLoadable.Parser<T> {
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private final UriLoadable.Parser<T> upstream;
+
+  private String lastConnectionUrl;
+  private byte[] lastData;
+  private T lastManifest;
+
+  private int parseCount;
+  private int skippedParseCount;
+
+  /**
+   * @param upstream The parser of the manifests which have changed.
+   */
+  public IncrementalManifestParser(UriLoadable.Parser<T> upstream) {
+    this.upstream = upstream;
+  }
+
+  @Override
+  public synchronized T parse(String connectionUrl, InputStream inputStream)
+      throws ParserException, IOException {
+    byte[] data = readFully(inputStream);
+    // Relative URLs in the manifest are resolved against the connection URL, which a redirect
+    // may change.
+    if (lastManifest != null && connectionUrl.equals(lastConnectionUrl)
+        && Arrays.equals(data, lastData)) {
+      skippedParseCount++;
+      return lastManifest;
+    }
+    T manifest = upstream.parse(connectionUrl, new ByteArrayInputStream(data));
+    parseCount++;
+    lastConnectionUrl = connectionUrl;
+    lastData = data;
+    lastManifest = manifest;
+    return manifest;
+  }
+
+  /**
+   * Returns the number of manifests which have been parsed.
+   */
+  public synchronized int getParseCount() {
+    return parseCount;
+  }
+
+  /**
+   * Returns the number of manifests which were unchanged, and were not parsed again.
+   */
+  public synchronized int getSkippedParseCount() {
+    return skippedParseCount;
+  }
+
+  private static byte[] readFully(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int bytesRead;
+    while ((bytesRead = inputStream.read(buffer)) != -1) {
+      outputStream.write(buffer, 0, bytesRead);
+    }
+    return outputStream.toByteArray();
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+
+import java.io.IOException;
+
+/**
+ * Times the requests of a renderer and reports them to the {@link ExoplayerWrapper} on its event
+ * thread, so that the requests of every renderer builder reach the player through the same path.
+ * The reports are queued by the player, so that a request costs no allocation on the loader
+ * thread, and are dropped if the player moves on to another video meanwhile.
+ *
+ * <p>The time to first byte runs from the request being opened to the first byte being read, and
+ * the transfer time from the first byte to the request being closed. Requests which an upstream
+ * {@link MemorySource} serves from memory are not reported, since their timing says nothing about
+ * the network.
+ */
+/* package */ final class InstrumentedDataSource implements DataSource {
+
+  /**
+   * A data source which may serve a request from memory rather than from the network.
+   */
+  /* package */ interface MemorySource {
+
+    /**
+     * Returns whether the open request is served from memory.
+     */
+    boolean isOpenFromMemory();
+  }
+
+  private final DataSource upstream;
+  private final ExoplayerWrapper player;
+  private final int sourceId;
+  private final boolean reportLoads;
+
+  /**
+   * The time at which the open request was opened, or -1 if no request is open.
+   */
+  private long openTimeMs;
+
+  /**
+   * The time at which the first byte of the open request was read, or -1.
+   */
+  private long firstByteTimeMs;
+
+  private long bytesRead;
+
+  /**
+   * @param upstream The data source which serves the requests.
+   * @param player The player to which the requests are reported.
+   * @param sourceId The renderer type (one of the ExoplayerWrapper TYPE_* constants) of the
+   *                 requests.
+   * @param reportLoads Whether to also report each request as a load to the player, for the sample
+   *                    sources which do not report their loads themselves.
+   */
+  public InstrumentedDataSource(DataSource upstream, ExoplayerWrapper player, int sourceId,
+                                boolean reportLoads) {
+    this.upstream = upstream;
+    this.player = player;
+    this.sourceId = sourceId;
+    this.reportLoads = reportLoads;
+    openTimeMs = -1;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    long openTimeMs = SystemClock.elapsedRealtime();
+    long length = upstream.open(dataSpec);
+    if (upstream instanceof MemorySource && ((MemorySource) upstream).isOpenFromMemory()) {
+      return length;
+    }
+    this.openTimeMs = openTimeMs;
+    firstByteTimeMs = -1;
+    bytesRead = 0;
+    if (reportLoads) {
+      player.postLoadStarted(sourceId, length);
+    }
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    int read = upstream.read(buffer, offset, readLength);
+    if (read > 0) {
+      if (firstByteTimeMs == -1) {
+        firstByteTimeMs = SystemClock.elapsedRealtime();
+      }
+      bytesRead += read;
+    }
+    return read;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      upstream.close();
+    } finally {
+      if (openTimeMs != -1) {
+        onRequestClosed();
+      }
+    }
+  }
+
+  private void onRequestClosed() {
+    long closeTimeMs = SystemClock.elapsedRealtime();
+    // A request which returned no data has no first byte, and its whole duration is waiting.
+    long timeToFirstByteMs = (firstByteTimeMs != -1 ? firstByteTimeMs : closeTimeMs) - openTimeMs;
+    long transferTimeMs = firstByteTimeMs != -1 ? closeTimeMs - firstByteTimeMs : 0;
+    openTimeMs = -1;
+    player.postRequestCompleted(sourceId, timeToFirstByteMs, transferTimeMs, bytesRead,
+        closeTimeMs, reportLoads);
+  }
+}
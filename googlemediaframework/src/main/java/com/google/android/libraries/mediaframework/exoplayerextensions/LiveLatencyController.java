@@ -0,0 +1,252 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+
+import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.exoplayer.TimeRange;
+
+/**
+ * Measures how far the playback of a live stream is behind the live edge, and keeps it close to a
+ * target latency.
+ *
+ * <p>The live edge is the end of the available range reported by the chunk sources, which they
+ * compute from the clock of the server once it has been resolved from the UTC timing element of
+ * the manifest. The latency is measured every {@link #UPDATE_INTERVAL_MS} while a live stream is
+ * playing.
+ *
+ * <p>When a target latency is set, small drifts are corrected gently: on API 23 and above the
+ * playback rate is raised or lowered by {@link #CATCH_UP_RATE_CHANGE} until the latency is back
+ * within {@link #TOLERANCE_MS} of the target, and below API 23, where the rate cannot be changed,
+ * the player seeks to the target once it is {@link #SEEK_CATCH_UP_THRESHOLD_MS} behind it. When
+ * the latency drifts more than {@link #MAX_DRIFT_MS} from the target (ex. after a long rebuffer),
+ * the player seeks back to the target right away.
+ *
+ * <p>This class must be used from the main thread.
+ */
+public class LiveLatencyController {
+
+  /**
+   * The value of the target latency when the latency is measured but not corrected.
+   */
+  public static final long NO_TARGET = -1;
+
+  public static final int UPDATE_INTERVAL_MS = 1000;
+
+  /**
+   * The latency is not corrected while it is within this many milliseconds of the target.
+   */
+  public static final long TOLERANCE_MS = 500;
+
+  /**
+   * The playback rate differs from 1 by this much while the latency is corrected.
+   */
+  public static final float CATCH_UP_RATE_CHANGE = 0.05f;
+
+  /**
+   * Without control of the playback rate, the player seeks to the target latency once it is this
+   * many milliseconds behind it.
+   */
+  public static final long SEEK_CATCH_UP_THRESHOLD_MS = 3000;
+
+  /**
+   * The player seeks to the target latency once the latency is this many milliseconds away from
+   * it.
+   */
+  public static final long MAX_DRIFT_MS = 10000;
+
+  private final ExoplayerWrapper player;
+  private final Handler handler;
+  private final long[] bounds;
+
+  private final Runnable updateRunnable = new Runnable() {
+    @Override
+    public void run() {
+      update();
+    }
+  };
+
+  private long targetLatencyMs;
+
+  /**
+   * The range available in the live stream, or null if the video is not live.
+   */
+  private TimeRange availableRange;
+
+  private long latencyMs;
+  private long latencySumMs;
+  private int latencySampleCount;
+  private float playbackRate;
+  private int catchUpCount;
+  private int resyncCount;
+
+  /**
+   * @param player The player whose latency is controlled.
+   * @param handler Delivers the periodic updates. It must run on the main thread.
+   */
+  /* package */ LiveLatencyController(ExoplayerWrapper player, Handler handler) {
+    this.player = player;
+    this.handler = handler;
+    bounds = new long[2];
+    reset();
+  }
+
+  /**
+   * Set the latency which the player keeps behind the live edge.
+   * @param targetLatencyMs The target latency, or {@link #NO_TARGET} to only measure the latency.
+   */
+  public void setTargetLatencyMs(long targetLatencyMs) {
+    this.targetLatencyMs = targetLatencyMs;
+    if (targetLatencyMs == NO_TARGET) {
+      setPlaybackRate(1);
+    }
+  }
+
+  /**
+   * Returns the target latency, or {@link #NO_TARGET}.
+   */
+  public long getTargetLatencyMs() {
+    return targetLatencyMs;
+  }
+
+  /**
+   * Returns the last measured latency, or -1 if no live stream has been measured.
+   */
+  public long getLatencyMs() {
+    return latencyMs;
+  }
+
+  /**
+   * Returns the average of the measured latencies, or -1 if no live stream has been measured.
+   */
+  public long getAverageLatencyMs() {
+    return latencySampleCount == 0 ? -1 : latencySumMs / latencySampleCount;
+  }
+
+  /**
+   * Returns the current playback rate, which differs from 1 while the latency is corrected.
+   */
+  public float getPlaybackRate() {
+    return playbackRate;
+  }
+
+  /**
+   * Returns the number of times the playback rate was changed or the player seeked to correct a
+   * small drift.
+   */
+  public int getCatchUpCount() {
+    return catchUpCount;
+  }
+
+  /**
+   * Returns the number of times the player seeked back to the target latency after a large drift.
+   */
+  public int getResyncCount() {
+    return resyncCount;
+  }
+
+  /**
+   * Respond to a change of the range available in the video. Only live streams have a dynamic
+   * range.
+   */
+  /* package */ void onAvailableRangeChanged(TimeRange availableRange) {
+    boolean wasLive = this.availableRange != null;
+    this.availableRange = availableRange.isStatic() ? null : availableRange;
+    if (this.availableRange != null && !wasLive) {
+      handler.postDelayed(updateRunnable, UPDATE_INTERVAL_MS);
+    } else if (this.availableRange == null && wasLive) {
+      handler.removeCallbacks(updateRunnable);
+    }
+  }
+
+  /**
+   * Stop measuring and clear the measurements, before the player plays another video. The target
+   * latency is cleared too, since it belongs to the renderer builder of the previous video.
+   */
+  /* package */ void reset() {
+    handler.removeCallbacks(updateRunnable);
+    availableRange = null;
+    targetLatencyMs = NO_TARGET;
+    latencyMs = -1;
+    latencySumMs = 0;
+    latencySampleCount = 0;
+    catchUpCount = 0;
+    resyncCount = 0;
+    playbackRate = 1;
+  }
+
+  /**
+   * Stop measuring.
+   */
+  /* package */ void release() {
+    handler.removeCallbacks(updateRunnable);
+  }
+
+  private void update() {
+    handler.postDelayed(updateRunnable, UPDATE_INTERVAL_MS);
+    if (player.getPlaybackState() != ExoPlayer.STATE_READY || !player.getPlayWhenReady()) {
+      // The latency grows while paused and buffering, and is corrected once playback resumes.
+      return;
+    }
+    availableRange.getCurrentBoundsMs(bounds);
+    long liveEdgeMs = bounds[1];
+    latencyMs = liveEdgeMs - player.getCurrentPosition();
+    latencySumMs += latencyMs;
+    latencySampleCount++;
+    if (targetLatencyMs == NO_TARGET) {
+      return;
+    }
+
+    long driftMs = latencyMs - targetLatencyMs;
+    if (Math.abs(driftMs) > MAX_DRIFT_MS) {
+      resyncCount++;
+      seekToTarget(liveEdgeMs);
+    } else if (player.canSetPlaybackRate()) {
+      float rate = playbackRate;
+      if (driftMs > TOLERANCE_MS) {
+        rate = 1 + CATCH_UP_RATE_CHANGE;
+      } else if (driftMs < -TOLERANCE_MS) {
+        // Too close to the live edge to absorb a slow segment.
+        rate = 1 - CATCH_UP_RATE_CHANGE;
+      } else if (Math.abs(driftMs) <= TOLERANCE_MS / 2) {
+        rate = 1;
+      }
+      if (rate != playbackRate) {
+        if (rate != 1) {
+          catchUpCount++;
+        }
+        setPlaybackRate(rate);
+      }
+    } else if (driftMs > SEEK_CATCH_UP_THRESHOLD_MS) {
+      catchUpCount++;
+      seekToTarget(liveEdgeMs);
+    }
+  }
+
+  private void seekToTarget(long liveEdgeMs) {
+    setPlaybackRate(1);
+    player.seekTo((int) Math.max(bounds[0], liveEdgeMs - targetLatencyMs));
+  }
+
+  private void setPlaybackRate(float rate) {
+    if (rate != playbackRate) {
+      playbackRate = rate;
+      player.setPlaybackRate(rate);
+    }
+  }
+}
@@ -0,0 +1,631 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.UriDataSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the manifests (DASH MPDs and HLS playlists) which have been downloaded, in memory and on
+ * disk, so that opening the same video again does not have to download the manifest again.
+ *
+ * <p>The cache follows the Cache-Control header of the responses: a manifest is served without a
+ * request while it is fresh (max-age), and revalidated with a conditional GET (If-None-Match and
+ * If-Modified-Since) once it is stale. Responses with no-store are not cached. Responses without
+ * max-age are revalidated every time they are used, so live manifests stay up to date.
+ *
+ * <p>A manifest is served with the URL it was downloaded from after redirects, against which its
+ * relative URLs are resolved. Live manifests are put in the cache on every refresh, so their
+ * copy on disk is rewritten at most every {@link #MIN_DISK_WRITE_INTERVAL_MS}.
+ *
+ * <p>The renderer builders read their manifests through {@link #createDataSource(Context, String)}.
+ * This class is thread safe.
+ */
+public final class ManifestCache {
+
+  private static final String TAG = "ManifestCache";
+
+  /**
+   * The name of the directory in the application's cache directory which holds the manifests.
+   */
+  private static final String DIRECTORY_NAME = "manifests";
+
+  /**
+   * By default, the manifests held in memory use at most this many bytes.
+   */
+  public static final int DEFAULT_MAX_MEMORY_BYTES = 2 * 1024 * 1024;
+
+  /**
+   * By default, at most this many manifests are kept on disk.
+   */
+  public static final int DEFAULT_MAX_DISK_ENTRIES = 64;
+
+  /**
+   * The file of a manifest is rewritten at most once in this many milliseconds. The copy in memory
+   * is always up to date.
+   */
+  public static final int MIN_DISK_WRITE_INTERVAL_MS = 60000;
+
+  /**
+   * The version of the format of the files which hold the manifests.
+   */
+  private static final int FILE_VERSION = 2;
+
+  private static final int HTTP_NOT_MODIFIED = 304;
+
+  private static ManifestCache instance;
+
+  /**
+   * A cached manifest.
+   */
+  /* package */ static final class Entry {
+
+    /**
+     * The bytes of the manifest.
+     */
+    public final byte[] data;
+
+    /**
+     * The URL from which the manifest was downloaded, after redirects.
+     */
+    public final String finalUrl;
+
+    /**
+     * The ETag of the response, or null.
+     */
+    public final String etag;
+
+    /**
+     * The Last-Modified date of the response, or null.
+     */
+    public final String lastModified;
+
+    /**
+     * The wall clock time until which the manifest may be used without revalidating it.
+     */
+    public final long expiresAtMs;
+
+    /**
+     * The wall clock time at which the entry was last written to disk, or 0. Guarded by the cache.
+     */
+    private long diskWriteTimeMs;
+
+    public Entry(byte[] data, String finalUrl, String etag, String lastModified,
+                 long expiresAtMs) {
+      this.data = data;
+      this.finalUrl = finalUrl;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expiresAtMs = expiresAtMs;
+    }
+
+    public boolean isFresh(long nowMs) {
+      return nowMs < expiresAtMs;
+    }
+  }
+
+  /**
+   * The directory which holds the manifests, or null if they are only kept in memory.
+   */
+  private final File directory;
+
+  private final int maxMemoryBytes;
+
+  private final int maxDiskEntries;
+
+  /**
+   * The manifests held in memory, from the least to the most recently used.
+   */
+  private final LinkedHashMap<String, Entry> memoryEntries;
+
+  private int memoryBytes;
+
+  private int hitCount;
+  private int revalidatedCount;
+  private int missCount;
+
+  /**
+   * @param directory The directory which holds the manifests, or null to only keep them in
+   *                  memory.
+   * @param maxMemoryBytes The maximum number of bytes of the manifests held in memory.
+   * @param maxDiskEntries The maximum number of manifests kept on disk.
+   */
+  public ManifestCache(File directory, int maxMemoryBytes, int maxDiskEntries) {
+    this.directory = directory;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.maxDiskEntries = maxDiskEntries;
+    memoryEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns the cache shared by all the players of the application, which stores the manifests
+   * in the application's cache directory.
+   * @param context The context (ex {@link android.app.Activity}) in which the video is played.
+   */
+  public static synchronized ManifestCache getInstance(Context context) {
+    if (instance == null) {
+      File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+      instance = new ManifestCache(directory, DEFAULT_MAX_MEMORY_BYTES, DEFAULT_MAX_DISK_ENTRIES);
+    }
+    return instance;
+  }
+
+  /**
+   * Create a data source which reads HTTP manifests through this cache. Other URIs are read
+   * without caching.
+   * @param context The context (ex {@link android.app.Activity}) in which the video is played.
+   * @param userAgent The User-Agent sent with the requests.
+   */
+  public UriDataSource createDataSource(Context context, String userAgent) {
+    HttpTransport transport = HttpTransport.getInstance();
+    return new ManifestDataSource(transport.createHttpDataSource(userAgent, null),
+        transport.createDataSource(context, null, userAgent));
+  }
+
+  /**
+   * Remove all the manifests from memory and from disk.
+   */
+  public synchronized void clear() {
+    memoryEntries.clear();
+    memoryBytes = 0;
+    File[] files = directory != null ? directory.listFiles() : null;
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of manifests served without a request.
+   */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of manifests served after the server confirmed they were not modified.
+   */
+  public synchronized int getRevalidatedCount() {
+    return revalidatedCount;
+  }
+
+  /**
+   * Returns the number of manifests which had to be downloaded.
+   */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the manifest cached for the given URL, or null.
+   */
+  /* package */ synchronized Entry get(String url) {
+    Entry entry = memoryEntries.get(url);
+    if (entry == null) {
+      entry = readFromDisk(url);
+      if (entry != null) {
+        putInMemory(url, entry);
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Cache the manifest of the given URL. The file of the manifest is only rewritten if it was
+   * written more than {@link #MIN_DISK_WRITE_INTERVAL_MS} ago.
+   */
+  /* package */ synchronized void put(String url, Entry entry) {
+    Entry previousEntry = memoryEntries.remove(url);
+    if (previousEntry != null) {
+      memoryBytes -= previousEntry.data.length;
+    }
+    putInMemory(url, entry);
+    long nowMs = System.currentTimeMillis();
+    if (previousEntry != null
+        && nowMs - previousEntry.diskWriteTimeMs < MIN_DISK_WRITE_INTERVAL_MS) {
+      entry.diskWriteTimeMs = previousEntry.diskWriteTimeMs;
+    } else {
+      writeToDisk(url, entry);
+      entry.diskWriteTimeMs = nowMs;
+    }
+  }
+
+  private synchronized void onHit(boolean revalidated) {
+    if (revalidated) {
+      revalidatedCount++;
+    } else {
+      hitCount++;
+    }
+  }
+
+  private synchronized void onMiss() {
+    missCount++;
+  }
+
+  private void putInMemory(String url, Entry entry) {
+    memoryEntries.put(url, entry);
+    memoryBytes += entry.data.length;
+    Iterator<Entry> iterator = memoryEntries.values().iterator();
+    while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+      Entry eldestEntry = iterator.next();
+      if (eldestEntry == entry) {
+        break;
+      }
+      memoryBytes -= eldestEntry.data.length;
+      iterator.remove();
+    }
+  }
+
+  private Entry readFromDisk(String url) {
+    if (directory == null) {
+      return null;
+    }
+    File file = getFile(url);
+    if (!file.exists()) {
+      return null;
+    }
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (input.readInt() != FILE_VERSION || !url.equals(input.readUTF())) {
+        return null;
+      }
+      String finalUrl = input.readUTF();
+      String etag = input.readBoolean() ? input.readUTF() : null;
+      String lastModified = input.readBoolean() ? input.readUTF() : null;
+      long expiresAtMs = input.readLong();
+      byte[] data = new byte[input.readInt()];
+      input.readFully(data);
+      // Keep the most recently used files when trimming the directory.
+      file.setLastModified(System.currentTimeMillis());
+      return new Entry(data, finalUrl, etag, lastModified, expiresAtMs);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read cached manifest of " + url, e);
+      file.delete();
+      return null;
+    } finally {
+      closeQuietly(input);
+    }
+  }
+
+  private void writeToDisk(String url, Entry entry) {
+    if (directory == null || (!directory.exists() && !directory.mkdirs())) {
+      return;
+    }
+    File file = getFile(url);
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      output.writeInt(FILE_VERSION);
+      output.writeUTF(url);
+      output.writeUTF(entry.finalUrl);
+      output.writeBoolean(entry.etag != null);
+      if (entry.etag != null) {
+        output.writeUTF(entry.etag);
+      }
+      output.writeBoolean(entry.lastModified != null);
+      if (entry.lastModified != null) {
+        output.writeUTF(entry.lastModified);
+      }
+      output.writeLong(entry.expiresAtMs);
+      output.writeInt(entry.data.length);
+      output.write(entry.data);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write cached manifest of " + url, e);
+      file.delete();
+    } finally {
+      closeQuietly(output);
+    }
+    trimDisk();
+  }
+
+  /**
+   * Delete the least recently used files until at most {@link #maxDiskEntries} remain.
+   */
+  private void trimDisk() {
+    File[] files = directory.listFiles();
+    if (files == null || files.length <= maxDiskEntries) {
+      return;
+    }
+    final long[] lastModified = new long[files.length];
+    Integer[] order = new Integer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      lastModified[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        return lastModified[lhs] < lastModified[rhs] ? -1
+            : lastModified[lhs] == lastModified[rhs] ? 0 : 1;
+      }
+    });
+    for (int i = 0; i < files.length - maxDiskEntries; i++) {
+      files[order[i]].delete();
+    }
+  }
+
+  private File getFile(String url) {
+    return new File(directory, getFileName(url));
+  }
+
+  /**
+   * Returns a file name which identifies the given URL.
+   */
+  /* package */ static String getFileName(String url) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        name.append(Character.forDigit((b >> 4) & 0xF, 16));
+        name.append(Character.forDigit(b & 0xF, 16));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return Integer.toHexString(url.hashCode());
+    } catch (IOException e) {
+      return Integer.toHexString(url.hashCode());
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+    }
+  }
+
+  /**
+   * Returns the first value of the given header, ignoring case, or null.
+   */
+  private static String getHeader(Map<String, List<String>> headers, String name) {
+    if (headers == null) {
+      return null;
+    }
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the time until which a response with the given headers is fresh, or -1 if the
+   * response must not be stored.
+   */
+  private static long getExpiresAtMs(Map<String, List<String>> headers, long nowMs) {
+    String cacheControl = getHeader(headers, "Cache-Control");
+    if (cacheControl == null) {
+      return nowMs;
+    }
+    long maxAgeMs = 0;
+    for (String directive : cacheControl.split(",")) {
+      directive = directive.trim().toLowerCase(Locale.ROOT);
+      if (directive.equals("no-store")) {
+        return -1;
+      } else if (directive.equals("no-cache")) {
+        return nowMs;
+      } else if (directive.startsWith("max-age=")) {
+        try {
+          maxAgeMs = Long.parseLong(directive.substring("max-age=".length())) * 1000;
+        } catch (NumberFormatException e) {
+          maxAgeMs = 0;
+        }
+      }
+    }
+    return nowMs + maxAgeMs;
+  }
+
+  /**
+   * Reads HTTP manifests through the cache.
+   */
+  private final class ManifestDataSource implements UriDataSource {
+
+    private final HttpDataSource httpDataSource;
+    private final UriDataSource uriDataSource;
+
+    /**
+     * The data source which is open, if the manifest is not served from the cache.
+     */
+    private UriDataSource openedDataSource;
+
+    /**
+     * The URL of the manifest which is being downloaded, or null if it is not cached.
+     */
+    private String downloadUrl;
+
+    /**
+     * The URL from which the manifest is being downloaded, after redirects.
+     */
+    private String downloadFinalUrl;
+
+    /**
+     * The bytes of the manifest which is being downloaded.
+     */
+    private ByteArrayOutputStream downloadedData;
+
+    /**
+     * The headers of the response to the download.
+     */
+    private Map<String, List<String>> downloadHeaders;
+
+    private long downloadLength;
+    private boolean downloadEnded;
+
+    /**
+     * The manifest which is served from the cache, or null.
+     */
+    private byte[] cachedData;
+    private int cachedDataOffset;
+
+    /**
+     * The URL which {@link #getUri()} returns when the data source is not open on the network.
+     * For a manifest served from the cache, it is the URL the manifest was downloaded from.
+     */
+    private String uri;
+
+    public ManifestDataSource(HttpDataSource httpDataSource, UriDataSource uriDataSource) {
+      this.httpDataSource = httpDataSource;
+      this.uriDataSource = uriDataSource;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      uri = dataSpec.uri.toString();
+      String scheme = dataSpec.uri.getScheme();
+      boolean cacheable = ("http".equals(scheme) || "https".equals(scheme))
+          && dataSpec.position == 0;
+      if (!cacheable) {
+        openedDataSource = uriDataSource;
+        return uriDataSource.open(dataSpec);
+      }
+
+      long nowMs = System.currentTimeMillis();
+      Entry entry = get(uri);
+      if (entry != null && entry.isFresh(nowMs)) {
+        onHit(false);
+        return serve(entry);
+      }
+
+      if (entry != null) {
+        if (entry.etag != null) {
+          httpDataSource.setRequestProperty("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+          httpDataSource.setRequestProperty("If-Modified-Since", entry.lastModified);
+        }
+      }
+      try {
+        downloadLength = httpDataSource.open(dataSpec);
+      } catch (HttpDataSource.InvalidResponseCodeException e) {
+        if (e.responseCode != HTTP_NOT_MODIFIED || entry == null) {
+          throw e;
+        }
+        long expiresAtMs = getExpiresAtMs(e.headerFields, nowMs);
+        if (expiresAtMs != -1) {
+          put(uri, new Entry(entry.data, entry.finalUrl, entry.etag, entry.lastModified,
+              expiresAtMs));
+        }
+        onHit(true);
+        return serve(entry);
+      } finally {
+        httpDataSource.clearAllRequestProperties();
+      }
+      onMiss();
+      openedDataSource = httpDataSource;
+      downloadUrl = uri;
+      downloadFinalUrl = httpDataSource.getUri();
+      if (downloadFinalUrl == null) {
+        downloadFinalUrl = uri;
+      }
+      downloadHeaders = httpDataSource.getResponseHeaders();
+      downloadedData = new ByteArrayOutputStream(
+          downloadLength > 0 && downloadLength < Integer.MAX_VALUE ? (int) downloadLength : 4096);
+      downloadEnded = false;
+      return downloadLength;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      if (cachedData != null) {
+        if (cachedDataOffset == cachedData.length) {
+          return -1;
+        }
+        int bytesRead = Math.min(readLength, cachedData.length - cachedDataOffset);
+        System.arraycopy(cachedData, cachedDataOffset, buffer, offset, bytesRead);
+        cachedDataOffset += bytesRead;
+        return bytesRead;
+      }
+      int bytesRead = openedDataSource.read(buffer, offset, readLength);
+      if (downloadedData != null) {
+        if (bytesRead == -1) {
+          downloadEnded = true;
+        } else {
+          downloadedData.write(buffer, offset, bytesRead);
+        }
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (openedDataSource != null) {
+          openedDataSource.close();
+        }
+        // The parser may stop reading before the end of the stream is signaled.
+        if (downloadedData != null
+            && (downloadEnded || downloadedData.size() == downloadLength)) {
+          long expiresAtMs = getExpiresAtMs(downloadHeaders, System.currentTimeMillis());
+          if (expiresAtMs != -1) {
+            put(downloadUrl, new Entry(downloadedData.toByteArray(), downloadFinalUrl,
+                getHeader(downloadHeaders, "ETag"), getHeader(downloadHeaders, "Last-Modified"),
+                expiresAtMs));
+          }
+        }
+      } finally {
+        openedDataSource = null;
+        downloadUrl = null;
+        downloadFinalUrl = null;
+        downloadedData = null;
+        downloadHeaders = null;
+        cachedData = null;
+      }
+    }
+
+    @Override
+    public String getUri() {
+      return openedDataSource != null ? openedDataSource.getUri() : uri;
+    }
+
+    private long serve(Entry entry) {
+      cachedData = entry.data;
+      cachedDataOffset = 0;
+      uri = entry.finalUrl;
+      return entry.data.length;
+    }
+  }
+}
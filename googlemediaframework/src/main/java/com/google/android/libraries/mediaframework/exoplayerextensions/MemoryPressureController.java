@@ -0,0 +1,240 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+
+import com.google.android.exoplayer.chunk.Format;
+
+/**
+ * Shrinks the buffer of an {@link ExoplayerWrapper} when the system is low on memory, and lets it
+ * grow back once the pressure has cleared.
+ *
+ * <p>The pressure is either derived from the trim levels passed to {@link #onTrimMemory(int)}
+ * (ex. from {@link android.app.Activity#onTrimMemory(int)}) or set directly with
+ * {@link #setPressure(float)}. Under pressure, the segments kept for reuse by the
+ * {@link SharedAllocator} are freed first, since they hold no media. Then the ceiling of the
+ * player's {@link SharedAllocator.Partition} is lowered in proportion to the pressure, so that the
+ * player stops loading ahead and its forward buffer drains to the new ceiling as it plays. Media
+ * which has already been loaded is not discarded, since that would interrupt playback.
+ *
+ * <p>The ceiling never goes below the bytes needed to buffer the playback thresholds of the
+ * {@link BufferPolicy} plus {@link #FLOOR_MARGIN_MS} at the bitrate of the current formats, so that
+ * a player which is buffering can always become ready. Until the formats are known, the ceiling is
+ * not lowered.
+ *
+ * <p>Android does not report the end of memory pressure, so the ceiling is restored when no trim
+ * level has been received for {@link #RESTORE_DELAY_MS}, or when the pressure is set to 0.
+ *
+ * <p>This class must be used from the main thread.
+ */
+public class MemoryPressureController {
+
+  /**
+   * The buffer ceiling never goes below this many bytes.
+   */
+  public static final int DEFAULT_MIN_CEILING_BYTES = 2 * 1024 * 1024;
+
+  /**
+   * The buffer ceiling leaves room for this much media beyond the playback thresholds.
+   */
+  public static final int FLOOR_MARGIN_MS = 2000;
+
+  /**
+   * The ceiling is restored when no trim level has been received for this many milliseconds.
+   */
+  public static final int RESTORE_DELAY_MS = 30000;
+
+  /**
+   * The partition whose ceiling is adjusted.
+   */
+  private final SharedAllocator.Partition allocator;
+
+  /**
+   * The buffer size of the player when there is no pressure.
+   */
+  private final int fullCeilingBytes;
+
+  /**
+   * The duration of media which must fit under the ceiling, in milliseconds.
+   */
+  private final int floorDurationMs;
+
+  private final Handler handler;
+
+  /**
+   * The bitrate of the current format of each renderer type, or 0 if it is unknown.
+   */
+  private final int[] bitrates;
+
+  /**
+   * Clears the pressure once the system has stopped reporting it.
+   */
+  private final Runnable restoreRunnable = new Runnable() {
+    @Override
+    public void run() {
+      setPressure(0);
+    }
+  };
+
+  /**
+   * The current pressure, between 0 (none) and 1 (critical).
+   */
+  private float pressure;
+
+  /**
+   * The ceiling applied whatever the pressure (ex. while the player is preloading), or
+   * Integer.MAX_VALUE.
+   */
+  private int capBytes;
+
+  /**
+   * @param allocator The partition whose ceiling is adjusted.
+   * @param bufferPolicy The buffer policy of the player.
+   * @param handler Delivers the restoration of the ceiling. It must run on the main thread.
+   */
+  /* package */ MemoryPressureController(SharedAllocator.Partition allocator,
+                                         BufferPolicy bufferPolicy, Handler handler) {
+    this.allocator = allocator;
+    this.handler = handler;
+    fullCeilingBytes = Math.max(
+        bufferPolicy.videoBufferSize + bufferPolicy.audioBufferSize,
+        bufferPolicy.mainBufferSize) + bufferPolicy.textBufferSize;
+    floorDurationMs = Math.max(bufferPolicy.minBufferMs, bufferPolicy.minRebufferMs)
+        + FLOOR_MARGIN_MS;
+    bitrates = new int[ExoplayerWrapper.RENDERER_COUNT];
+    capBytes = Integer.MAX_VALUE;
+  }
+
+  /**
+   * Respond to the system asking the application to release memory.
+   * @param level One of the ComponentCallbacks2.TRIM_MEMORY_* constants.
+   */
+  public void onTrimMemory(int level) {
+    float levelPressure;
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      levelPressure = 1;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      levelPressure = 0.5f;
+    } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      levelPressure = 0.25f;
+    } else {
+      // TRIM_MEMORY_UI_HIDDEN only signals that the UI is no longer visible.
+      return;
+    }
+    setPressure(Math.max(pressure, levelPressure));
+    handler.removeCallbacks(restoreRunnable);
+    handler.postDelayed(restoreRunnable, RESTORE_DELAY_MS);
+  }
+
+  /**
+   * Set the memory pressure directly (ex. from an application-specific signal).
+   * @param pressure Between 0 (none) and 1 (critical).
+   */
+  public void setPressure(float pressure) {
+    pressure = Math.max(0, Math.min(1, pressure));
+    if (pressure == 0) {
+      handler.removeCallbacks(restoreRunnable);
+    } else {
+      // Free the memory which holds no media before shrinking the buffer.
+      allocator.getPool().trim();
+    }
+    this.pressure = pressure;
+    allocator.setCeiling(getCeilingBytes());
+  }
+
+  /**
+   * Respond to the format of a renderer changing, which changes the bytes needed to buffer the
+   * playback thresholds.
+   * @param type The renderer type (one of the ExoplayerWrapper TYPE_* constants).
+   * @param format The new format, or null if it is unknown.
+   */
+  /* package */ void onFormatChanged(int type, Format format) {
+    if (type < 0 || type >= bitrates.length) {
+      return;
+    }
+    bitrates[type] = format != null ? Math.max(format.bitrate, 0) : 0;
+    if (pressure != 0) {
+      allocator.setCeiling(getCeilingBytes());
+    }
+  }
+
+  /**
+   * Forget the formats of the previous video.
+   */
+  /* package */ void resetFormats() {
+    for (int i = 0; i < bitrates.length; i++) {
+      bitrates[i] = 0;
+    }
+    if (pressure != 0) {
+      allocator.setCeiling(getCeilingBytes());
+    }
+  }
+
+  /**
+   * Cap the buffer of the player whatever the pressure, until the cap is lifted.
+   * @param capBytes A number of bytes, or Integer.MAX_VALUE to lift the cap.
+   */
+  /* package */ void setCapBytes(int capBytes) {
+    this.capBytes = capBytes;
+    allocator.setCeiling(getCeilingBytes());
+  }
+
+  /**
+   * Returns the current pressure, between 0 (none) and 1 (critical).
+   */
+  public float getPressure() {
+    return pressure;
+  }
+
+  /**
+   * Returns the number of bytes the player may buffer under the current pressure.
+   */
+  public int getCeilingBytes() {
+    if (pressure == 0) {
+      return capBytes;
+    }
+    return Math.min(capBytes,
+        Math.max(getFloorBytes(), (int) (fullCeilingBytes * (1 - pressure))));
+  }
+
+  /**
+   * Returns the number of bytes below which the ceiling is never lowered.
+   */
+  private int getFloorBytes() {
+    long bitrate = 0;
+    for (int i = 0; i < bitrates.length; i++) {
+      bitrate += bitrates[i];
+    }
+    if (bitrate == 0) {
+      // Without a bitrate, the bytes needed to become ready are unknown.
+      return fullCeilingBytes;
+    }
+    long floorBytes = bitrate * floorDurationMs / 8000;
+    return (int) Math.min(fullCeilingBytes, Math.max(DEFAULT_MIN_CEILING_BYTES, floorBytes));
+  }
+
+  /**
+   * Stop waiting for the pressure to clear.
+   */
+  /* package */ void release() {
+    handler.removeCallbacks(restoreRunnable);
+  }
+}
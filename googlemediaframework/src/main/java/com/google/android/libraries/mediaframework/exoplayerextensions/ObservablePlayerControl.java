@@ -34,11 +34,27 @@ public class ObservablePlayerControl extends PlayerControl {
    */
   List<PlayerControlCallback> callbacks;
 
+  /**
+   * Told about seeks so that the buffering which follows them is not counted as a rebuffer. May
+   * be null.
+   */
+  private final PlaybackMetricsCollector metricsCollector;
+
   /**
    * @param exoPlayer The {@link com.google.android.exoplayer.ExoPlayer} instance to control.
    */
   public ObservablePlayerControl(ExoPlayer exoPlayer) {
+    this(exoPlayer, null);
+  }
+
+  /**
+   * @param exoPlayer The {@link com.google.android.exoplayer.ExoPlayer} instance to control.
+   * @param metricsCollector Told about the seeks made through this control. May be null.
+   */
+  /* package */ ObservablePlayerControl(ExoPlayer exoPlayer,
+                                        PlaybackMetricsCollector metricsCollector) {
     super(exoPlayer);
+    this.metricsCollector = metricsCollector;
     callbacks = new ArrayList<PlayerControlCallback>();
   }
 
@@ -70,6 +86,25 @@ public class ObservablePlayerControl extends PlayerControl {
     callbacks.remove(callback);
   }
 
+  /**
+   * Remove all the callbacks which are currently listening to play and pause events.
+   */
+  public void removeAllCallbacks() {
+    callbacks.clear();
+  }
+
+  /**
+   * Move the seek head to the given position.
+   * @param timeMillis A number of milliseconds after the start of the video.
+   */
+  @Override
+  public void seekTo(int timeMillis) {
+    if (metricsCollector != null) {
+      metricsCollector.onSeek();
+    }
+    super.seekTo(timeMillis);
+  }
+
   /**
    * Play the video and notify the callbacks.
    */
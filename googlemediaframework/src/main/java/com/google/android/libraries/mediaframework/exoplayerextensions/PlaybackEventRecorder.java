@@ -0,0 +1,280 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the events received by an {@link ExoplayerWrapper} into a fixed-size ring buffer, so
+ * that the events which led to a stall or an error can be inspected after the fact (see
+ * {@link ExoplayerWrapper#setEventRecorder(PlaybackEventRecorder)}).
+ *
+ * <p>Each event is stored as {@link #SLOT_LONGS} longs: a monotonic timestamp in nanoseconds, a
+ * header holding the event type and an int argument, and three long arguments. Recording an event
+ * does not allocate, so the recorder can be left on in production. When the buffer is full, the
+ * oldest events are overwritten.
+ *
+ * <p>{@link #dump(File)} writes the buffer to a trace file, which {@link PlaybackEventReplayer} can
+ * play back. The file starts with a header of four ints ({@link #TRACE_MAGIC},
+ * {@link #TRACE_VERSION}, the number of events and {@link #SLOT_LONGS}), followed by the events
+ * from the oldest to the newest, in big endian order.
+ */
+public class PlaybackEventRecorder {
+
+  /**
+   * The first int of a trace file.
+   */
+  public static final int TRACE_MAGIC = 0x474d4654;
+
+  /**
+   * The version of the trace file format.
+   */
+  public static final int TRACE_VERSION = 1;
+
+  /**
+   * The number of longs used to store an event.
+   */
+  public static final int SLOT_LONGS = 5;
+
+  /**
+   * The size of the header of a trace file in bytes.
+   */
+  public static final int TRACE_HEADER_SIZE = 4 * 4;
+
+  /**
+   * By default, this many events are kept.
+   */
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  /**
+   * The reported playback state changed. arg0: the playback state, arg1: 1 if play when ready is
+   * set, 0 otherwise.
+   */
+  public static final int EVENT_STATE_CHANGED = 1;
+
+  /**
+   * A seek was requested. arg1: the position in milliseconds.
+   */
+  public static final int EVENT_SEEK = 2;
+
+  /**
+   * A load started. arg0: the source id, arg1: the length in bytes, arg2: the bitrate of the
+   * format, arg3: the media start time in milliseconds.
+   */
+  public static final int EVENT_LOAD_STARTED = 3;
+
+  /**
+   * A load completed. arg0: the source id, arg1: the bytes loaded, arg2: the load duration in
+   * milliseconds, arg3: the media start time in milliseconds.
+   */
+  public static final int EVENT_LOAD_COMPLETED = 4;
+
+  /**
+   * A load was canceled. arg0: the source id, arg1: the bytes loaded.
+   */
+  public static final int EVENT_LOAD_CANCELED = 5;
+
+  /**
+   * A load failed. arg0: the source id.
+   */
+  public static final int EVENT_LOAD_ERROR = 6;
+
+  /**
+   * The downstream format changed. arg0: the source id, arg1: the bitrate, arg2: the trigger,
+   * arg3: the media time in milliseconds.
+   */
+  public static final int EVENT_FORMAT_CHANGED = 7;
+
+  /**
+   * A bandwidth sample was taken. arg0: the duration of the sample in milliseconds, arg1: the
+   * bytes transferred, arg2: the bandwidth estimate in bits per second.
+   */
+  public static final int EVENT_BANDWIDTH_SAMPLE = 8;
+
+  /**
+   * Frames were dropped. arg0: the number of frames, arg1: the elapsed time in milliseconds.
+   */
+  public static final int EVENT_DROPPED_FRAMES = 9;
+
+  /**
+   * A decoder was initialized. arg1: the initialization duration in milliseconds.
+   */
+  public static final int EVENT_DECODER_INITIALIZED = 10;
+
+  /**
+   * A decoder failed to initialize.
+   */
+  public static final int EVENT_DECODER_ERROR = 11;
+
+  /**
+   * The DRM keys were loaded.
+   */
+  public static final int EVENT_DRM_KEYS_LOADED = 12;
+
+  /**
+   * The DRM session manager failed.
+   */
+  public static final int EVENT_DRM_ERROR = 13;
+
+  /**
+   * A crypto error occurred.
+   */
+  public static final int EVENT_CRYPTO_ERROR = 14;
+
+  /**
+   * The audio track underran. arg0: the buffer size in bytes, arg1: the buffer size in
+   * milliseconds, arg2: the time since the last feed in milliseconds.
+   */
+  public static final int EVENT_AUDIO_UNDERRUN = 15;
+
+  /**
+   * The audio track failed to initialize or to be written to.
+   */
+  public static final int EVENT_AUDIO_ERROR = 16;
+
+  /**
+   * The player failed.
+   */
+  public static final int EVENT_PLAYER_ERROR = 17;
+
+  /**
+   * The renderers failed to build.
+   */
+  public static final int EVENT_RENDERERS_ERROR = 18;
+
+  /**
+   * Media was discarded upstream. arg0: the source id, arg1: the media start time in
+   * milliseconds, arg2: the media end time in milliseconds.
+   */
+  public static final int EVENT_UPSTREAM_DISCARDED = 19;
+
+  /**
+   * The video size changed. arg0: the width, arg1: the height.
+   */
+  public static final int EVENT_VIDEO_SIZE_CHANGED = 20;
+
+  /**
+   * A request for media completed. arg0: the source id, arg1: the time to first byte in
+   * milliseconds, arg2: the transfer time in milliseconds, arg3: the number of bytes.
+   */
+  public static final int EVENT_REQUEST_COMPLETED = 21;
+
+  /**
+   * The events. Event i is stored in slots [i * SLOT_LONGS, (i + 1) * SLOT_LONGS).
+   */
+  private final long[] events;
+
+  /**
+   * The maximum number of events kept.
+   */
+  private final int capacity;
+
+  /**
+   * The index at which the next event is written.
+   */
+  private int writeIndex;
+
+  /**
+   * The number of events in the buffer.
+   */
+  private int size;
+
+  public PlaybackEventRecorder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity The maximum number of events kept. Must be positive.
+   */
+  public PlaybackEventRecorder(int capacity) {
+    if (capacity <= 0 || capacity > Integer.MAX_VALUE / SLOT_LONGS) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    this.capacity = capacity;
+    events = new long[capacity * SLOT_LONGS];
+  }
+
+  /**
+   * Record an event.
+   * @param type One of the EVENT_* constants.
+   * @param arg0 The int argument of the event.
+   * @param arg1 The first long argument of the event.
+   * @param arg2 The second long argument of the event.
+   * @param arg3 The third long argument of the event.
+   */
+  public synchronized void record(int type, int arg0, long arg1, long arg2, long arg3) {
+    int offset = writeIndex * SLOT_LONGS;
+    events[offset] = System.nanoTime();
+    events[offset + 1] = ((long) type << 32) | (arg0 & 0xFFFFFFFFL);
+    events[offset + 2] = arg1;
+    events[offset + 3] = arg2;
+    events[offset + 4] = arg3;
+    writeIndex = (writeIndex + 1) % capacity;
+    if (size < capacity) {
+      size++;
+    }
+  }
+
+  /**
+   * Returns the number of events in the buffer.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Discard all the recorded events.
+   */
+  public synchronized void clear() {
+    writeIndex = 0;
+    size = 0;
+  }
+
+  /**
+   * Write the recorded events to a trace file, from the oldest to the newest. The recorded events
+   * are kept.
+   * @param file The file to write. It is overwritten if it exists.
+   * @throws IOException If the file could not be written.
+   */
+  public synchronized void dump(File file) throws IOException {
+    int length = TRACE_HEADER_SIZE + size * SLOT_LONGS * 8;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(length);
+      FileChannel channel = randomAccessFile.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+      buffer.putInt(TRACE_MAGIC);
+      buffer.putInt(TRACE_VERSION);
+      buffer.putInt(size);
+      buffer.putInt(SLOT_LONGS);
+      int readIndex = (writeIndex - size + capacity) % capacity;
+      for (int i = 0; i < size; i++) {
+        int offset = ((readIndex + i) % capacity) * SLOT_LONGS;
+        for (int j = 0; j < SLOT_LONGS; j++) {
+          buffer.putLong(events[offset + j]);
+        }
+      }
+      buffer.force();
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+}
@@ -0,0 +1,404 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the events of a trace written by {@link PlaybackEventRecorder#dump(File)} to the same
+ * listeners an {@link ExoplayerWrapper} would call, without a player, a codec or a network.
+ *
+ * <p>The events can be replayed with their original timing, time-compressed or as fast as
+ * possible (see {@link #replay(float)}). The time spent in the listeners is measured, which makes
+ * it possible to benchmark the cost of the listeners and of any attached layers or collectors.
+ *
+ * <p>{@link #getClock()} follows the timestamps of the trace rather than the wall clock, so that
+ * components which read the time (ex. a {@link PlaybackMetricsCollector} created by
+ * {@link #newMetricsCollector()}) produce the same results whatever the replay speed.
+ *
+ * <p>The events are dispatched straight to the listeners and collectors, as the wrapper finally
+ * calls them. The path of the events inside the wrapper is not replayed: they are not batched by
+ * its event queues, filtered by session, or passed to its seek scheduler and live latency
+ * controller, so the replay measures the cost of the listeners rather than that of the wrapper.
+ * The bandwidth samples are not fed to a bandwidth meter or an {@link AbrStrategy} either, so the
+ * formats are those which were recorded; {@link AbrSimulator} replays the decisions of a strategy
+ * instead.
+ *
+ * <p>This class only depends on plain Java and on ExoPlayer classes which do not need a device, so
+ * it can run on a development machine. DRM and decoder errors are recorded without their details
+ * and are not replayed.
+ */
+public class PlaybackEventReplayer {
+
+  /**
+   * Pass to {@link #replay(float)} to dispatch the events without waiting between them.
+   */
+  public static final float MAX_SPEED = 0;
+
+  /**
+   * A clock which returns the timestamp of the event being replayed.
+   */
+  private final class ReplayClock implements Clock {
+    @Override
+    public long elapsedRealtime() {
+      return currentTimeNs / 1000000;
+    }
+  }
+
+  /**
+   * The events, in the layout of {@link PlaybackEventRecorder}.
+   */
+  private final long[] events;
+
+  private final int eventCount;
+
+  /**
+   * The format of each event which carries one, or null. Formats are created up front so that
+   * replaying does not allocate.
+   */
+  private final Format[] formats;
+
+  private final CopyOnWriteArrayList<ExoplayerWrapper.PlaybackListener> playbackListeners;
+
+  private final CopyOnWriteArrayList<PlaybackMetricsCollector> metricsCollectors;
+
+  private final ReplayClock clock;
+
+  /**
+   * Passed to the listeners in place of the exceptions, which are not recorded.
+   */
+  private final IOException replayedException;
+
+  private ExoplayerWrapper.InfoListener infoListener;
+
+  private ExoplayerWrapper.RequestListener requestListener;
+
+  private ExoplayerWrapper.InternalErrorListener internalErrorListener;
+
+  /**
+   * The timestamp of the event being replayed in nanoseconds.
+   */
+  private long currentTimeNs;
+
+  /**
+   * The time spent in the listeners during the last replay.
+   */
+  private long dispatchTimeNs;
+
+  /**
+   * @param events The events, in the layout of {@link PlaybackEventRecorder}.
+   * @param eventCount The number of events.
+   */
+  public PlaybackEventReplayer(long[] events, int eventCount) {
+    this.events = events;
+    this.eventCount = eventCount;
+    formats = new Format[eventCount];
+    // The formats are shared by the events with the same source and bitrate.
+    Map<Long, Format> formatsByKey = new HashMap<Long, Format>();
+    // Loads and requests are attributed to the format of the load in progress for their source.
+    Format[] loadingFormats = new Format[ExoplayerWrapper.RENDERER_COUNT];
+    for (int i = 0; i < eventCount; i++) {
+      int offset = i * PlaybackEventRecorder.SLOT_LONGS;
+      int type = getType(offset);
+      int sourceId = getArg0(offset);
+      boolean hasSource = sourceId >= 0 && sourceId < ExoplayerWrapper.RENDERER_COUNT;
+      if (type == PlaybackEventRecorder.EVENT_FORMAT_CHANGED
+          || type == PlaybackEventRecorder.EVENT_LOAD_STARTED) {
+        int bitrate = (int) events[offset + (type == PlaybackEventRecorder.EVENT_FORMAT_CHANGED
+            ? 2 : 3)];
+        formats[i] = findOrCreateFormat(formatsByKey, sourceId, bitrate);
+      }
+      if (type == PlaybackEventRecorder.EVENT_LOAD_STARTED && hasSource) {
+        loadingFormats[sourceId] = formats[i];
+      } else if ((type == PlaybackEventRecorder.EVENT_LOAD_COMPLETED
+          || type == PlaybackEventRecorder.EVENT_LOAD_CANCELED
+          || type == PlaybackEventRecorder.EVENT_LOAD_ERROR) && hasSource) {
+        formats[i] = loadingFormats[sourceId];
+        loadingFormats[sourceId] = null;
+      } else if (type == PlaybackEventRecorder.EVENT_REQUEST_COMPLETED && hasSource) {
+        formats[i] = loadingFormats[sourceId];
+      }
+    }
+    playbackListeners = new CopyOnWriteArrayList<ExoplayerWrapper.PlaybackListener>();
+    metricsCollectors = new CopyOnWriteArrayList<PlaybackMetricsCollector>();
+    clock = new ReplayClock();
+    replayedException = new IOException("Replayed error");
+    currentTimeNs = eventCount > 0 ? events[0] : 0;
+  }
+
+  /**
+   * Read a trace file written by {@link PlaybackEventRecorder#dump(File)}.
+   * @param file The trace file.
+   * @throws IOException If the file could not be read or is not a trace file.
+   */
+  public static PlaybackEventReplayer fromFile(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < PlaybackEventRecorder.TRACE_HEADER_SIZE
+          || buffer.getInt() != PlaybackEventRecorder.TRACE_MAGIC) {
+        throw new IOException("Not a playback trace: " + file);
+      }
+      int version = buffer.getInt();
+      if (version != PlaybackEventRecorder.TRACE_VERSION) {
+        throw new IOException("Unsupported playback trace version: " + version);
+      }
+      int eventCount = buffer.getInt();
+      int slotLongs = buffer.getInt();
+      if (eventCount < 0 || slotLongs != PlaybackEventRecorder.SLOT_LONGS) {
+        throw new IOException("Corrupt playback trace header: " + file);
+      }
+      if (buffer.remaining() < (long) eventCount * slotLongs * 8) {
+        throw new IOException("Truncated playback trace: " + file);
+      }
+      long[] events = new long[eventCount * slotLongs];
+      buffer.asLongBuffer().get(events);
+      return new PlaybackEventReplayer(events, eventCount);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Add a listener which responds to the replayed state changes, errors and video size changes.
+   */
+  public void addListener(ExoplayerWrapper.PlaybackListener playbackListener) {
+    playbackListeners.add(playbackListener);
+  }
+
+  public void removeListener(ExoplayerWrapper.PlaybackListener playbackListener) {
+    playbackListeners.remove(playbackListener);
+  }
+
+  public void setInfoListener(ExoplayerWrapper.InfoListener listener) {
+    infoListener = listener;
+  }
+
+  public void setRequestListener(ExoplayerWrapper.RequestListener listener) {
+    requestListener = listener;
+  }
+
+  public void setInternalErrorListener(ExoplayerWrapper.InternalErrorListener listener) {
+    internalErrorListener = listener;
+  }
+
+  /**
+   * Create a metrics collector which is fed the replayed events and reads the time from
+   * {@link #getClock()}.
+   */
+  public PlaybackMetricsCollector newMetricsCollector() {
+    PlaybackMetricsCollector metricsCollector = new PlaybackMetricsCollector(clock);
+    metricsCollector.onPrepare();
+    metricsCollectors.add(metricsCollector);
+    return metricsCollector;
+  }
+
+  /**
+   * Returns a clock which follows the timestamps of the replayed events.
+   */
+  public Clock getClock() {
+    return clock;
+  }
+
+  /**
+   * Returns the number of events in the trace.
+   */
+  public int getEventCount() {
+    return eventCount;
+  }
+
+  /**
+   * Returns the time spent in the listeners during the last replay in nanoseconds. Time spent
+   * waiting between events is not included.
+   */
+  public long getDispatchTimeNs() {
+    return dispatchTimeNs;
+  }
+
+  /**
+   * Dispatch all the events of the trace on the calling thread.
+   * @param speed The factor by which the original timing is compressed (ex. 1 for the original
+   *              timing, 10 to replay ten times faster), or {@link #MAX_SPEED}.
+   * @throws InterruptedException If the thread is interrupted while waiting for the next event.
+   */
+  public void replay(float speed) throws InterruptedException {
+    dispatchTimeNs = 0;
+    if (eventCount == 0) {
+      return;
+    }
+    long firstEventTimeNs = events[0];
+    long startTimeNs = System.nanoTime();
+    for (int i = 0; i < eventCount; i++) {
+      int offset = i * PlaybackEventRecorder.SLOT_LONGS;
+      currentTimeNs = events[offset];
+      if (speed > 0) {
+        long dueTimeNs = startTimeNs + (long) ((currentTimeNs - firstEventTimeNs) / speed);
+        long waitTimeNs = dueTimeNs - System.nanoTime();
+        if (waitTimeNs > 0) {
+          TimeUnit.NANOSECONDS.sleep(waitTimeNs);
+        }
+      }
+      long dispatchStartTimeNs = System.nanoTime();
+      dispatch(offset, formats[i]);
+      dispatchTimeNs += System.nanoTime() - dispatchStartTimeNs;
+    }
+  }
+
+  /**
+   * Call the listeners which would have been called for the event at the given offset.
+   */
+  private void dispatch(int offset, Format format) {
+    int arg0 = getArg0(offset);
+    long arg1 = events[offset + 2];
+    long arg2 = events[offset + 3];
+    long arg3 = events[offset + 4];
+    switch (getType(offset)) {
+      case PlaybackEventRecorder.EVENT_STATE_CHANGED:
+        boolean playWhenReady = arg1 == 1;
+        for (PlaybackMetricsCollector metricsCollector : metricsCollectors) {
+          metricsCollector.onStateChanged(playWhenReady, arg0);
+        }
+        for (ExoplayerWrapper.PlaybackListener playbackListener : playbackListeners) {
+          playbackListener.onStateChanged(playWhenReady, arg0);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_SEEK:
+        for (PlaybackMetricsCollector metricsCollector : metricsCollectors) {
+          metricsCollector.onSeek();
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_LOAD_STARTED:
+        if (infoListener != null) {
+          infoListener.onLoadStarted(arg0, arg1, 0, 0, format, arg3, -1);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_LOAD_COMPLETED:
+        for (PlaybackMetricsCollector metricsCollector : metricsCollectors) {
+          metricsCollector.onLoadCompleted(arg1);
+        }
+        if (infoListener != null) {
+          infoListener.onLoadCompleted(arg0, arg1, 0, 0, format, arg3, -1,
+              clock.elapsedRealtime(), arg2);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_LOAD_ERROR:
+        if (internalErrorListener != null) {
+          internalErrorListener.onLoadError(arg0, replayedException);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_FORMAT_CHANGED:
+        if (arg0 == ExoplayerWrapper.TYPE_VIDEO) {
+          for (PlaybackMetricsCollector metricsCollector : metricsCollectors) {
+            metricsCollector.onVideoFormatChanged(format);
+          }
+          if (infoListener != null) {
+            infoListener.onVideoFormatEnabled(format, (int) arg2, arg3);
+          }
+        } else if (arg0 == ExoplayerWrapper.TYPE_AUDIO && infoListener != null) {
+          infoListener.onAudioFormatEnabled(format, (int) arg2, arg3);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_BANDWIDTH_SAMPLE:
+        for (PlaybackMetricsCollector metricsCollector : metricsCollectors) {
+          metricsCollector.onBandwidthSample(arg0, arg1, arg2);
+        }
+        if (infoListener != null) {
+          infoListener.onBandwidthSample(arg0, arg1, arg2);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_DROPPED_FRAMES:
+        for (PlaybackMetricsCollector metricsCollector : metricsCollectors) {
+          metricsCollector.onDroppedFrames(arg0);
+        }
+        if (infoListener != null) {
+          infoListener.onDroppedFrames(arg0, arg1);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_DECODER_INITIALIZED:
+        if (infoListener != null) {
+          infoListener.onDecoderInitialized("replayed", clock.elapsedRealtime(), arg1);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_AUDIO_UNDERRUN:
+        if (internalErrorListener != null) {
+          internalErrorListener.onAudioTrackUnderrun(arg0, arg1, arg2);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_PLAYER_ERROR:
+      case PlaybackEventRecorder.EVENT_RENDERERS_ERROR:
+        for (ExoplayerWrapper.PlaybackListener playbackListener : playbackListeners) {
+          playbackListener.onError(replayedException);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_REQUEST_COMPLETED:
+        for (PlaybackMetricsCollector metricsCollector : metricsCollectors) {
+          metricsCollector.onRequestCompleted(arg1, arg2);
+        }
+        if (requestListener != null) {
+          requestListener.onRequestCompleted(arg0, format, arg1, arg2, arg3);
+        }
+        break;
+      case PlaybackEventRecorder.EVENT_VIDEO_SIZE_CHANGED:
+        for (ExoplayerWrapper.PlaybackListener playbackListener : playbackListeners) {
+          playbackListener.onVideoSizeChanged(arg0, (int) arg1, 0, 1);
+        }
+        break;
+      default:
+        // The remaining events are recorded for inspection only.
+        break;
+    }
+  }
+
+  /**
+   * Returns a format with the given bitrate for the given source, reusing the format of an
+   * earlier event if there is one.
+   * @param formatsByKey The formats created so far, by source and bitrate.
+   */
+  private static Format findOrCreateFormat(Map<Long, Format> formatsByKey, int sourceId,
+                                           int bitrate) {
+    Long key = ((long) sourceId << 32) | (bitrate & 0xFFFFFFFFL);
+    Format format = formatsByKey.get(key);
+    if (format == null) {
+      String mimeType = sourceId == ExoplayerWrapper.TYPE_AUDIO
+          ? MimeTypes.AUDIO_MP4 : MimeTypes.VIDEO_MP4;
+      format = new Format(sourceId + ":" + bitrate, mimeType, -1, -1, -1, -1, -1, bitrate);
+      formatsByKey.put(key, format);
+    }
+    return format;
+  }
+
+  private int getType(int offset) {
+    return (int) (events[offset + 1] >>> 32);
+  }
+
+  private int getArg0(int offset) {
+    return (int) events[offset + 1];
+  }
+}
@@ -0,0 +1,465 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.util.Clock;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates the events of an {@link ExoplayerWrapper} into quality of experience metrics: startup
+ * time, rebuffering, bitrate switches, time spent at each rendition and throughput.
+ *
+ * <p>Every {@link ExoplayerWrapper} owns a collector which it feeds internally, so the metrics are
+ * available without registering a listener (see {@link ExoplayerWrapper#getPlaybackMetrics()}).
+ * The aggregates are kept in preallocated counters, so recording an event does not allocate.
+ *
+ * <p>This class is thread safe. The load, request and bandwidth events are recorded on the event
+ * thread of the player, and the other events on the main thread.
+ */
+public class PlaybackMetricsCollector {
+
+  /**
+   * The number of distinct video renditions for which room is made at first. The arrays grow if
+   * more renditions are played.
+   */
+  private static final int INITIAL_RENDITION_CAPACITY = 16;
+
+  /**
+   * The startup stage which fetches the manifest.
+   */
+  public static final int STARTUP_STAGE_MANIFEST = 0;
+
+  /**
+   * The startup stage which synchronizes the clock with the server of a live stream.
+   */
+  public static final int STARTUP_STAGE_CLOCK_SYNC = 1;
+
+  /**
+   * The startup stage which opens the DRM session manager and reads the security level.
+   */
+  public static final int STARTUP_STAGE_DRM = 2;
+
+  /**
+   * The startup stage which queries the capabilities of the decoders.
+   */
+  public static final int STARTUP_STAGE_CAPABILITY_PROBE = 3;
+
+  /**
+   * The startup stage which builds the renderers once their inputs are available.
+   */
+  public static final int STARTUP_STAGE_RENDERER_BUILD = 4;
+
+  /**
+   * The number of startup stages.
+   */
+  public static final int STARTUP_STAGE_COUNT = 5;
+
+  /**
+   * An immutable copy of the metrics at the time {@link #getSnapshot()} was called.
+   */
+  public static final class Snapshot {
+
+    /**
+     * The time between the player being prepared and it first becoming ready, or -1 if it has
+     * not become ready yet.
+     */
+    public final long startupTimeMs;
+
+    /**
+     * The time spent playing (ready with play when ready set).
+     */
+    public final long playingTimeMs;
+
+    /**
+     * The number of times playback stalled because the buffer ran out. Buffering caused by a seek
+     * is not counted.
+     */
+    public final int rebufferCount;
+
+    /**
+     * The time spent stalled because the buffer ran out.
+     */
+    public final long rebufferTimeMs;
+
+    /**
+     * The share of the time spent stalled rather than playing, between 0 and 1.
+     */
+    public final float rebufferRatio;
+
+    /**
+     * The number of times the video bitrate changed.
+     */
+    public final int bitrateSwitchCount;
+
+    /**
+     * The number of video frames which were dropped.
+     */
+    public final long droppedFrameCount;
+
+    /**
+     * The number of bytes of media which were loaded.
+     */
+    public final long bytesLoaded;
+
+    /**
+     * The throughput measured over all the bandwidth samples in bits per second, or -1 if there
+     * has been no sample.
+     */
+    public final long averageThroughputBps;
+
+    /**
+     * The last bandwidth estimate in bits per second, or -1 if there is none.
+     */
+    public final long bandwidthEstimateBps;
+
+    /**
+     * The average bitrate of the video played, weighted by the time spent in each rendition, or -1
+     * if no video has been played.
+     */
+    public final int averageVideoBitrate;
+
+    /**
+     * The bitrates of the video renditions which have been played. The time spent in the
+     * rendition at index i is at index i of {@link #renditionTimesMs}.
+     */
+    public final int[] renditionBitrates;
+
+    /**
+     * The time spent playing each of the {@link #renditionBitrates}.
+     */
+    public final long[] renditionTimesMs;
+
+    /**
+     * The duration of each startup stage, indexed by the STARTUP_STAGE_* constants, or -1 for the
+     * stages which did not run. Stages may overlap.
+     */
+    public final long[] startupStageDurationsMs;
+
+    /**
+     * The number of media requests which completed.
+     */
+    public final int requestCount;
+
+    /**
+     * The average time between opening a media request and receiving its first byte, or -1 if no
+     * request has completed.
+     */
+    public final long averageTimeToFirstByteMs;
+
+    /**
+     * The average time between the first byte of a media request and its end, or -1 if no request
+     * has completed.
+     */
+    public final long averageTransferTimeMs;
+
+    private Snapshot(long startupTimeMs, long playingTimeMs, int rebufferCount,
+                     long rebufferTimeMs, int bitrateSwitchCount, long droppedFrameCount,
+                     long bytesLoaded, long averageThroughputBps, long bandwidthEstimateBps,
+                     int averageVideoBitrate, int[] renditionBitrates, long[] renditionTimesMs,
+                     long[] startupStageDurationsMs, int requestCount,
+                     long averageTimeToFirstByteMs, long averageTransferTimeMs) {
+      this.startupTimeMs = startupTimeMs;
+      this.playingTimeMs = playingTimeMs;
+      this.rebufferCount = rebufferCount;
+      this.rebufferTimeMs = rebufferTimeMs;
+      long watchTimeMs = playingTimeMs + rebufferTimeMs;
+      this.rebufferRatio = watchTimeMs == 0 ? 0 : (float) rebufferTimeMs / watchTimeMs;
+      this.bitrateSwitchCount = bitrateSwitchCount;
+      this.droppedFrameCount = droppedFrameCount;
+      this.bytesLoaded = bytesLoaded;
+      this.averageThroughputBps = averageThroughputBps;
+      this.bandwidthEstimateBps = bandwidthEstimateBps;
+      this.averageVideoBitrate = averageVideoBitrate;
+      this.renditionBitrates = renditionBitrates;
+      this.renditionTimesMs = renditionTimesMs;
+      this.startupStageDurationsMs = startupStageDurationsMs;
+      this.requestCount = requestCount;
+      this.averageTimeToFirstByteMs = averageTimeToFirstByteMs;
+      this.averageTransferTimeMs = averageTransferTimeMs;
+    }
+  }
+
+  /**
+   * The source of the timestamps.
+   */
+  private final Clock clock;
+
+  /**
+   * The bitrates of the renditions which have been played. Only the first
+   * {@link #renditionCount} entries are used.
+   */
+  private int[] renditionBitrates;
+
+  /**
+   * The time spent playing each rendition in {@link #renditionBitrates}.
+   */
+  private long[] renditionTimesMs;
+
+  /**
+   * The duration of each startup stage, or -1.
+   */
+  private final long[] startupStageDurationsMs;
+
+  private int renditionCount;
+
+  /**
+   * The index of the rendition which is playing in {@link #renditionBitrates}, or -1.
+   */
+  private int currentRendition;
+
+  /**
+   * The time at which the player was prepared, or -1 if it has not been prepared.
+   */
+  private long prepareTimeMs;
+
+  /**
+   * The time at which the time counters were last brought up to date.
+   */
+  private long lastUpdateTimeMs;
+
+  private int playbackState;
+  private boolean playWhenReady;
+  private boolean hasBeenReady;
+  private boolean seeking;
+  private boolean rebuffering;
+
+  private long startupTimeMs;
+  private long playingTimeMs;
+  private int rebufferCount;
+  private long rebufferTimeMs;
+  private int bitrateSwitchCount;
+  private long droppedFrameCount;
+  private long bytesLoaded;
+  private long sampledBytes;
+  private long sampledTimeMs;
+  private long bandwidthEstimateBps;
+  private int requestCount;
+  private long timeToFirstByteSumMs;
+  private long transferTimeSumMs;
+
+  /**
+   * @param clock The source of the timestamps (ex.
+   *              {@link com.google.android.exoplayer.util.SystemClock}).
+   */
+  public PlaybackMetricsCollector(Clock clock) {
+    this.clock = clock;
+    renditionBitrates = new int[INITIAL_RENDITION_CAPACITY];
+    renditionTimesMs = new long[INITIAL_RENDITION_CAPACITY];
+    startupStageDurationsMs = new long[STARTUP_STAGE_COUNT];
+    reset();
+  }
+
+  /**
+   * Clear all the metrics.
+   */
+  public synchronized void reset() {
+    Arrays.fill(renditionTimesMs, 0);
+    Arrays.fill(startupStageDurationsMs, -1);
+    renditionCount = 0;
+    currentRendition = -1;
+    prepareTimeMs = -1;
+    lastUpdateTimeMs = clock.elapsedRealtime();
+    playbackState = ExoPlayer.STATE_IDLE;
+    playWhenReady = false;
+    hasBeenReady = false;
+    seeking = false;
+    rebuffering = false;
+    startupTimeMs = -1;
+    playingTimeMs = 0;
+    rebufferCount = 0;
+    rebufferTimeMs = 0;
+    bitrateSwitchCount = 0;
+    droppedFrameCount = 0;
+    bytesLoaded = 0;
+    sampledBytes = 0;
+    sampledTimeMs = 0;
+    bandwidthEstimateBps = -1;
+    requestCount = 0;
+    timeToFirstByteSumMs = 0;
+    transferTimeSumMs = 0;
+  }
+
+  /**
+   * Record the player starting to prepare a video. This clears the metrics of the previous video.
+   */
+  public synchronized void onPrepare() {
+    reset();
+    prepareTimeMs = lastUpdateTimeMs;
+  }
+
+  /**
+   * Record a change of the state reported to the playback listeners.
+   * @param playWhenReady Whether playback proceeds when the player is ready.
+   * @param playbackState One of the ExoPlayer.STATE_* constants.
+   */
+  public synchronized void onStateChanged(boolean playWhenReady, int playbackState) {
+    update();
+    if (playbackState == ExoPlayer.STATE_READY) {
+      if (!hasBeenReady && prepareTimeMs != -1) {
+        startupTimeMs = lastUpdateTimeMs - prepareTimeMs;
+      }
+      hasBeenReady = true;
+      seeking = false;
+    }
+    if (playbackState == ExoPlayer.STATE_BUFFERING) {
+      if (!rebuffering && playWhenReady && hasBeenReady && !seeking) {
+        rebuffering = true;
+        rebufferCount++;
+      }
+      // A stall is not visible while paused.
+      rebuffering = rebuffering && playWhenReady;
+    } else {
+      rebuffering = false;
+    }
+    this.playWhenReady = playWhenReady;
+    this.playbackState = playbackState;
+  }
+
+  /**
+   * Record a seek. The buffering which follows it is not counted as a rebuffer.
+   */
+  public synchronized void onSeek() {
+    update();
+    seeking = true;
+    rebuffering = false;
+  }
+
+  /**
+   * Record the video format changing.
+   * @param format The new format.
+   */
+  public synchronized void onVideoFormatChanged(Format format) {
+    update();
+    int previousRendition = currentRendition;
+    currentRendition = -1;
+    for (int i = 0; i < renditionCount; i++) {
+      if (renditionBitrates[i] == format.bitrate) {
+        currentRendition = i;
+        break;
+      }
+    }
+    if (currentRendition == -1) {
+      if (renditionCount == renditionBitrates.length) {
+        renditionBitrates = Arrays.copyOf(renditionBitrates, renditionCount * 2);
+        renditionTimesMs = Arrays.copyOf(renditionTimesMs, renditionCount * 2);
+      }
+      renditionBitrates[renditionCount] = format.bitrate;
+      currentRendition = renditionCount++;
+    }
+    if (previousRendition != -1 && currentRendition != previousRendition) {
+      bitrateSwitchCount++;
+    }
+  }
+
+  /**
+   * Record the completion of a startup stage.
+   * @param stage One of the STARTUP_STAGE_* constants.
+   * @param durationMs The duration of the stage.
+   */
+  public synchronized void onStartupStageCompleted(int stage, long durationMs) {
+    startupStageDurationsMs[stage] = durationMs;
+  }
+
+  /**
+   * Record frames being dropped.
+   * @param count The number of dropped frames.
+   */
+  public synchronized void onDroppedFrames(int count) {
+    droppedFrameCount += count;
+  }
+
+  /**
+   * Record a bandwidth sample.
+   * @param elapsedMs The duration of the sample.
+   * @param bytes The number of bytes transferred during the sample.
+   * @param bandwidthEstimate The bandwidth estimate in bits per second.
+   */
+  public synchronized void onBandwidthSample(int elapsedMs, long bytes, long bandwidthEstimate) {
+    sampledTimeMs += elapsedMs;
+    sampledBytes += bytes;
+    bandwidthEstimateBps = bandwidthEstimate;
+  }
+
+  /**
+   * Record the completion of a load.
+   * @param bytesLoaded The number of bytes loaded.
+   */
+  public synchronized void onLoadCompleted(long bytesLoaded) {
+    this.bytesLoaded += bytesLoaded;
+  }
+
+  /**
+   * Record the completion of a media request.
+   * @param timeToFirstByteMs The time between opening the request and receiving its first byte.
+   * @param transferTimeMs The time between the first byte and the end of the request.
+   */
+  public synchronized void onRequestCompleted(long timeToFirstByteMs, long transferTimeMs) {
+    requestCount++;
+    timeToFirstByteSumMs += timeToFirstByteMs;
+    transferTimeSumMs += transferTimeMs;
+  }
+
+  /**
+   * Returns an immutable copy of the metrics.
+   */
+  public synchronized Snapshot getSnapshot() {
+    update();
+    long weightedBitrateSum = 0;
+    long renditionTimeSumMs = 0;
+    for (int i = 0; i < renditionCount; i++) {
+      weightedBitrateSum += (long) renditionBitrates[i] * renditionTimesMs[i];
+      renditionTimeSumMs += renditionTimesMs[i];
+    }
+    return new Snapshot(
+        startupTimeMs,
+        playingTimeMs,
+        rebufferCount,
+        rebufferTimeMs,
+        bitrateSwitchCount,
+        droppedFrameCount,
+        bytesLoaded,
+        sampledTimeMs == 0 ? -1 : sampledBytes * 8000 / sampledTimeMs,
+        bandwidthEstimateBps,
+        renditionTimeSumMs == 0 ? -1 : (int) (weightedBitrateSum / renditionTimeSumMs),
+        Arrays.copyOf(renditionBitrates, renditionCount),
+        Arrays.copyOf(renditionTimesMs, renditionCount),
+        startupStageDurationsMs.clone(),
+        requestCount,
+        requestCount == 0 ? -1 : timeToFirstByteSumMs / requestCount,
+        requestCount == 0 ? -1 : transferTimeSumMs / requestCount);
+  }
+
+  /**
+   * Add the time elapsed since the last update to the counters of the current state.
+   */
+  private void update() {
+    long nowMs = clock.elapsedRealtime();
+    long elapsedMs = nowMs - lastUpdateTimeMs;
+    lastUpdateTimeMs = nowMs;
+    if (playbackState == ExoPlayer.STATE_READY && playWhenReady) {
+      playingTimeMs += elapsedMs;
+      if (currentRendition != -1) {
+        renditionTimesMs[currentRendition] += elapsedMs;
+      }
+    } else if (rebuffering) {
+      rebufferTimeMs += elapsedMs;
+    }
+  }
+}
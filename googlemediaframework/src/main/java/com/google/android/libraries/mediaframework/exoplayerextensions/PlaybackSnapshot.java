@@ -0,0 +1,105 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.exoplayer.chunk.Format;
+
+/**
+ * An immutable view of the state of an {@link ExoplayerWrapper}, which it republishes on the main
+ * thread every {@link ExoplayerWrapper#SNAPSHOT_INTERVAL_MS} while a video is playing or buffering,
+ * and whenever the state changes.
+ *
+ * <p>The latest snapshot is read with {@link ExoplayerWrapper#getPlaybackSnapshot()} from any
+ * thread, without locking and without allocating, and its values are consistent with each other
+ * (ex. the position and the duration belong to the same video).
+ */
+public final class PlaybackSnapshot {
+
+  /**
+   * The value of {@link android.os.SystemClock#elapsedRealtime()} when the snapshot was taken.
+   */
+  public final long elapsedRealtimeMs;
+
+  /**
+   * The position of the seek head in milliseconds after the start of the video.
+   */
+  public final long positionMs;
+
+  /**
+   * The duration of the video in milliseconds, or {@link ExoPlayer#UNKNOWN_TIME}.
+   */
+  public final long durationMs;
+
+  /**
+   * The position up to which the video is buffered in milliseconds, or
+   * {@link ExoPlayer#UNKNOWN_TIME}.
+   */
+  public final long bufferedPositionMs;
+
+  /**
+   * The percentage of the video which is buffered, between 0 and 100.
+   */
+  public final int bufferedPercentage;
+
+  /**
+   * The state of the player, as returned by {@link ExoplayerWrapper#getPlaybackState()}.
+   */
+  public final int playbackState;
+
+  public final boolean playWhenReady;
+
+  /**
+   * The format of the video which is being played, or null.
+   */
+  public final Format format;
+
+  /**
+   * The estimate of the bandwidth in bits per second, or -1 if there is no estimate.
+   */
+  public final long bandwidthEstimateBps;
+
+  /**
+   * Shared with the other snapshots which have the same selection, so it is never modified.
+   */
+  private final int[] selectedTracks;
+
+  /* package */ PlaybackSnapshot(long elapsedRealtimeMs, long positionMs, long durationMs,
+                                 long bufferedPositionMs, int bufferedPercentage,
+                                 int playbackState, boolean playWhenReady, int[] selectedTracks,
+                                 Format format, long bandwidthEstimateBps) {
+    this.elapsedRealtimeMs = elapsedRealtimeMs;
+    this.positionMs = positionMs;
+    this.durationMs = durationMs;
+    this.bufferedPositionMs = bufferedPositionMs;
+    this.bufferedPercentage = bufferedPercentage;
+    this.playbackState = playbackState;
+    this.playWhenReady = playWhenReady;
+    this.selectedTracks = selectedTracks;
+    this.format = format;
+    this.bandwidthEstimateBps = bandwidthEstimateBps;
+  }
+
+  /**
+   * Returns the index of the track selected for a renderer type, or
+   * {@link ExoPlayer#TRACK_DISABLED}.
+   * @param type One of the ExoplayerWrapper TYPE_* constants.
+   */
+  public int getSelectedTrack(int type) {
+    return selectedTracks[type];
+  }
+}
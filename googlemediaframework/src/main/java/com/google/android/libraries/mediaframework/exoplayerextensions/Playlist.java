@@ -0,0 +1,215 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+
+import com.google.android.exoplayer.ExoPlayer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plays a queue of {@link Video} objects one after another through a single
+ * {@link ExoplayerWrapper}.
+ *
+ * <p>The surface, the listeners and the layers attached to the player are kept across items. While
+ * an item plays, the renderers of the next item are built ahead of time (see
+ * {@link ExoplayerWrapper#prebuildNext(ExoplayerWrapper.RendererBuilder)}), so that moving to the
+ * next item only has to wait for its initial buffering.
+ *
+ * <p>This class must be used from the main thread.
+ */
+public class Playlist implements ExoplayerWrapper.PlaybackListener {
+
+  /**
+   * Listens to the playlist moving from one item to another.
+   */
+  public interface Listener {
+
+    /**
+     * Respond to the playlist starting to play another item.
+     * @param index The index of the item in the playlist.
+     * @param video The item.
+     */
+    void onItemChanged(int index, Video video);
+
+    /**
+     * Respond to the last item of the playlist ending.
+     */
+    void onPlaylistEnded();
+  }
+
+  /**
+   * The context in which the videos are played.
+   */
+  private final Context context;
+
+  /**
+   * The player which plays the items.
+   */
+  private final ExoplayerWrapper player;
+
+  /**
+   * The items of the playlist, in the order in which they are played.
+   */
+  private final List<Video> videos;
+
+  /**
+   * The index of the item which is currently playing.
+   */
+  private int currentIndex;
+
+  /**
+   * The index of the item passed to the player as its next item, or -1.
+   */
+  private int prebuiltIndex;
+
+  /**
+   * Notified when the playlist moves to another item. May be null.
+   */
+  private Listener listener;
+
+  /**
+   * Moves to the next item once the current one has ended. This is posted rather than run
+   * directly so that the player's other listeners see the end of the current item first.
+   */
+  private final Runnable advanceRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if (!next() && listener != null) {
+        listener.onPlaylistEnded();
+      }
+    }
+  };
+
+  /**
+   * @param context The context (ex {@link android.app.Activity}) in which the videos are played.
+   * @param player The player which has been prepared with the first item of the playlist.
+   * @param currentVideo The video which the player has been prepared with.
+   */
+  public Playlist(Context context, ExoplayerWrapper player, Video currentVideo) {
+    this.context = context;
+    this.player = player;
+    videos = new ArrayList<Video>();
+    videos.add(currentVideo);
+    currentIndex = 0;
+    prebuiltIndex = -1;
+    player.addListener(this);
+  }
+
+  /**
+   * Add a video at the end of the playlist.
+   * @param video The video to add.
+   */
+  public void add(Video video) {
+    videos.add(video);
+    if (player.getPlaybackState() == ExoPlayer.STATE_READY) {
+      maybePrebuildNext();
+    }
+  }
+
+  /**
+   * Returns the index of the item which is currently playing.
+   */
+  public int getCurrentIndex() {
+    return currentIndex;
+  }
+
+  /**
+   * Returns the item which is currently playing.
+   */
+  public Video getCurrentVideo() {
+    return videos.get(currentIndex);
+  }
+
+  /**
+   * Returns the number of items in the playlist.
+   */
+  public int size() {
+    return videos.size();
+  }
+
+  /**
+   * Set the listener which responds to the playlist moving to another item.
+   * @param listener The listener.
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Skip to the next item of the playlist.
+   * @return False if the current item is the last one.
+   */
+  public boolean next() {
+    if (currentIndex + 1 >= videos.size()) {
+      return false;
+    }
+    maybePrebuildNext();
+    currentIndex++;
+    prebuiltIndex = -1;
+    player.playNext();
+    if (listener != null) {
+      listener.onItemChanged(currentIndex, videos.get(currentIndex));
+    }
+    return true;
+  }
+
+  /**
+   * Stop driving the player. The player itself is not released.
+   */
+  public void release() {
+    player.getMainHandler().removeCallbacks(advanceRunnable);
+    player.removeListener(this);
+    player.cancelNext();
+    prebuiltIndex = -1;
+  }
+
+  @Override
+  public void onStateChanged(boolean playWhenReady, int playbackState) {
+    if (playbackState == ExoPlayer.STATE_READY) {
+      maybePrebuildNext();
+    } else if (playbackState == ExoPlayer.STATE_ENDED) {
+      player.getMainHandler().post(advanceRunnable);
+    }
+  }
+
+  @Override
+  public void onError(Exception e) {
+    // Do nothing. The error is reported to the player's other listeners.
+  }
+
+  @Override
+  public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees,
+                                 float pixelWidthHeightRatio) {
+    // Do nothing. Playlist doesn't care about size changes.
+  }
+
+  /**
+   * If the item after the current one is not being built yet, start building it.
+   */
+  private void maybePrebuildNext() {
+    int nextIndex = currentIndex + 1;
+    if (nextIndex >= videos.size() || (prebuiltIndex == nextIndex && player.hasNext())) {
+      return;
+    }
+    prebuiltIndex = nextIndex;
+    player.prebuildNext(
+        RendererBuilderFactory.createRendererBuilder(context, videos.get(nextIndex)));
+  }
+}
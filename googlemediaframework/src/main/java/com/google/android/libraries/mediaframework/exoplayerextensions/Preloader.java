@@ -0,0 +1,167 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+
+/**
+ * Prepares the next {@link Video} in the background while the current one plays, so that
+ * switching to it does not have to wait for the manifest fetch, the renderer build and the initial
+ * buffering.
+ *
+ * <p>A call to {@link #preload(Video, long)} builds the renderers of the video in a separate
+ * {@link ExoplayerWrapper} which buffers the video without playing it. When the video is about to
+ * be displayed, {@link #take(Video)} hands over the prepared player (ex. to
+ * {@link com.google.android.libraries.mediaframework.layeredvideo.LayerManager}).
+ *
+ * <p>Only one video is preloaded at a time. While it waits, the preloading player gets a low
+ * priority in the {@link SharedAllocator} and a ceiling of {@link #PRELOAD_BUFFER_BYTES}, so that
+ * it does not take buffer away from the player which is playing. Both are restored when the
+ * player is taken. This class must be used from the main thread.
+ */
+public class Preloader {
+
+  /**
+   * The priority of the partition of a preloading player. The players which are playing have
+   * {@link SharedAllocator#DEFAULT_PRIORITY}.
+   */
+  public static final int PRELOAD_PRIORITY = 1;
+
+  /**
+   * A preloading player stops loading once this many bytes are buffered, which covers the start of
+   * an HD video.
+   */
+  public static final int PRELOAD_BUFFER_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * The context in which the videos are played.
+   */
+  private final Context context;
+
+  /**
+   * The pool from which preloading players are acquired and to which discarded players are
+   * returned. May be null.
+   */
+  private final ExoplayerWrapperPool exoplayerWrapperPool;
+
+  /**
+   * The video which is currently being preloaded, or null.
+   */
+  private Video preloadedVideo;
+
+  /**
+   * The player which is preloading {@link #preloadedVideo}, or null.
+   */
+  private ExoplayerWrapper preloadedPlayer;
+
+  /**
+   * @param context The context (ex {@link android.app.Activity}) in which the videos are played.
+   */
+  public Preloader(Context context) {
+    this(context, null);
+  }
+
+  /**
+   * @param context The context (ex {@link android.app.Activity}) in which the videos are played.
+   * @param exoplayerWrapperPool The pool from which preloading players are acquired. May be null.
+   */
+  public Preloader(Context context, ExoplayerWrapperPool exoplayerWrapperPool) {
+    this.context = context;
+    this.exoplayerWrapperPool = exoplayerWrapperPool;
+  }
+
+  /**
+   * Start building the renderers of the given video and buffering it from the given position.
+   * Any video which was previously preloaded is discarded.
+   * @param video The video which is likely to be played next.
+   * @param startPositionMs The position from which the video will be played.
+   */
+  public void preload(Video video, long startPositionMs) {
+    if (isPreloaded(video)) {
+      return;
+    }
+    cancel();
+
+    ExoplayerWrapper.RendererBuilder rendererBuilder =
+        RendererBuilderFactory.createRendererBuilder(context, video);
+    ExoplayerWrapper player = exoplayerWrapperPool != null
+        ? exoplayerWrapperPool.acquire(rendererBuilder)
+        : new ExoplayerWrapper(rendererBuilder, BufferPolicy.forDevice(context));
+    player.getAllocator().setPriority(PRELOAD_PRIORITY);
+    player.getMemoryPressureController().setCapBytes(PRELOAD_BUFFER_BYTES);
+    player.setPlayWhenReady(false);
+    player.prepare();
+    if (startPositionMs > 0) {
+      player.seekTo((int) startPositionMs);
+    }
+
+    preloadedVideo = video;
+    preloadedPlayer = player;
+  }
+
+  /**
+   * Returns whether the given video is the one which is currently being preloaded.
+   * @param video The video which is about to be played.
+   */
+  public boolean isPreloaded(Video video) {
+    return preloadedVideo != null && video != null
+        && preloadedVideo.getVideoType() == video.getVideoType()
+        && preloadedVideo.getUrl().equals(video.getUrl());
+  }
+
+  /**
+   * Hand over the player which has been preloading the given video. The caller becomes
+   * responsible for releasing the returned player.
+   * @param video The video which is about to be played.
+   * @return The prepared player, or null if the given video is not the one being preloaded.
+   */
+  public ExoplayerWrapper take(Video video) {
+    if (!isPreloaded(video)) {
+      return null;
+    }
+    ExoplayerWrapper player = preloadedPlayer;
+    restoreBuffer(player);
+    preloadedVideo = null;
+    preloadedPlayer = null;
+    return player;
+  }
+
+  /**
+   * Discard the video which is currently being preloaded, if any.
+   */
+  public void cancel() {
+    if (preloadedPlayer == null) {
+      return;
+    }
+    restoreBuffer(preloadedPlayer);
+    if (exoplayerWrapperPool != null) {
+      exoplayerWrapperPool.release(preloadedPlayer);
+    } else {
+      preloadedPlayer.release();
+    }
+    preloadedVideo = null;
+    preloadedPlayer = null;
+  }
+
+  /**
+   * Give the player the priority and the buffer ceiling of a player which is playing.
+   */
+  private static void restoreBuffer(ExoplayerWrapper player) {
+    player.getAllocator().setPriority(SharedAllocator.DEFAULT_PRIORITY);
+    player.getMemoryPressureController().setCapBytes(Integer.MAX_VALUE);
+  }
+}
@@ -24,6 +24,80 @@ import android.net.Uri;
  */
 public class RendererBuilderFactory {
 
+  /**
+   * Creates the strategies which select the formats of the videos played by the players of the
+   * application, or null for the default selection.
+   */
+  private static AbrStrategy.Factory abrStrategyFactory;
+
+  /**
+   * Prefetches the segments of the DASH videos played by the players of the application, or null
+   * to load them one at a time.
+   */
+  private static SegmentPrefetcher segmentPrefetcher;
+
+  /**
+   * The latency which the live DASH streams keep behind the live edge.
+   */
+  private static long targetLiveLatencyMs = LiveLatencyController.NO_TARGET;
+
+  /**
+   * Whether the videos downloaded by the {@link DownloadManager} are played from the device.
+   */
+  private static boolean offlinePlaybackEnabled;
+
+  /**
+   * Whether the segments of the videos are read through the {@link SegmentCache}.
+   */
+  private static boolean segmentCacheEnabled;
+
+  /**
+   * Set the factory of the strategies which select the formats of adaptive videos, for all the
+   * renderer builders created afterwards without an explicit factory. Only DASH videos use it.
+   * @param factory A factory (ex {@link BufferBasedAbrStrategy#FACTORY}), or null for the
+   *                default selection.
+   */
+  public static synchronized void setAbrStrategyFactory(AbrStrategy.Factory factory) {
+    abrStrategyFactory = factory;
+  }
+
+  /**
+   * Set the prefetcher which keeps several segment requests in flight for each track of the DASH
+   * videos, for all the renderer builders created afterwards. Its statistics cover all of them.
+   * @param prefetcher A prefetcher, or null to load the segments one at a time.
+   */
+  public static synchronized void setSegmentPrefetcher(SegmentPrefetcher prefetcher) {
+    segmentPrefetcher = prefetcher;
+  }
+
+  /**
+   * Set the latency which live DASH streams keep behind the live edge, for all the renderer
+   * builders created afterwards.
+   * @param targetLatencyMs The target latency, or LiveLatencyController.NO_TARGET to start 30
+   *                        seconds behind the edge and only measure the latency.
+   */
+  public static synchronized void setTargetLiveLatencyMs(long targetLatencyMs) {
+    targetLiveLatencyMs = targetLatencyMs;
+  }
+
+  /**
+   * Set whether the videos which have been downloaded are played from the device, for all the
+   * renderer builders created afterwards. Looking up the downloads starts the
+   * {@link DownloadManager}, so it is disabled by default.
+   */
+  public static synchronized void setOfflinePlaybackEnabled(boolean enabled) {
+    offlinePlaybackEnabled = enabled;
+  }
+
+  /**
+   * Set whether the segments are read through the {@link SegmentCache}, for all the renderer
+   * builders created afterwards. The cache uses up to 256 MB of disk, so it is disabled by
+   * default.
+   */
+  public static synchronized void setSegmentCacheEnabled(boolean enabled) {
+    segmentCacheEnabled = enabled;
+  }
+
   /**
    * Create a renderer builder which can build the given video.
    * @param ctx The context (ex {@link android.app.Activity} in whicb the video has been created.
@@ -31,18 +105,66 @@ public class RendererBuilderFactory {
    */
   public static ExoplayerWrapper.RendererBuilder createRendererBuilder(Context ctx,
                                                                        Video video) {
+    AbrStrategy.Factory factory;
+    synchronized (RendererBuilderFactory.class) {
+      factory = abrStrategyFactory;
+    }
+    return createRendererBuilder(ctx, video, factory);
+  }
+
+  /**
+   * Create a renderer builder which can build the given video.
+   * @param ctx The context (ex {@link android.app.Activity} in whicb the video has been created.
+   * @param video The video which will be played.
+   * @param abrStrategyFactory Creates the strategies which select the formats of the video, or
+   *                           null for the default selection. Only DASH videos use it.
+   */
+  public static ExoplayerWrapper.RendererBuilder createRendererBuilder(
+      Context ctx, Video video, AbrStrategy.Factory abrStrategyFactory) {
+    DashRendererBuilder dashRendererBuilder;
+    boolean offlinePlayback;
+    boolean useSegmentCache;
+    synchronized (RendererBuilderFactory.class) {
+      offlinePlayback = offlinePlaybackEnabled;
+      useSegmentCache = segmentCacheEnabled;
+    }
+    Download download = offlinePlayback ? DownloadManager.getInstance(ctx).getDownload(video)
+        : null;
+    if (download != null && download.getState() == Download.STATE_COMPLETED) {
+      // Play the downloaded video without any network access.
+      switch (video.getVideoType()) {
+        case HLS:
+          return new HlsRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx), download);
+        case DASH:
+          dashRendererBuilder =
+              new DashRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx), download);
+          dashRendererBuilder.setAbrStrategyFactory(abrStrategyFactory);
+          return dashRendererBuilder;
+      }
+    }
+    SegmentCache segmentCache = useSegmentCache ? SegmentCache.getInstance(ctx) : null;
     switch (video.getVideoType()) {
       case HLS:
         return new HlsRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx),
-                                      video.getUrl());
+                                      video.getUrl(), segmentCache);
       case DASH:
-        return new DashRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx),
-                                       video.getUrl(),
-                                       new WidevineTestMediaDrmCallback(video.getContentId()));
+        dashRendererBuilder = new DashRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx),
+                                                      video.getUrl(),
+                                                      new WidevineTestMediaDrmCallback(
+                                                          video.getContentId()),
+                                                      segmentCache);
+        dashRendererBuilder.setAbrStrategyFactory(abrStrategyFactory);
+        synchronized (RendererBuilderFactory.class) {
+          dashRendererBuilder.setSegmentPrefetcher(segmentPrefetcher);
+          dashRendererBuilder.setTargetLiveLatencyMs(targetLiveLatencyMs);
+        }
+        return dashRendererBuilder;
       case MP4:
-        return new ExtractorRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx), Uri.parse(video.getUrl()));
+        return new ExtractorRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx), Uri.parse(video.getUrl()),
+                                            segmentCache);
       case OTHER:
-        return new ExtractorRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx), Uri.parse(video.getUrl()));
+        return new ExtractorRendererBuilder(ctx, ExoplayerUtil.getUserAgent(ctx), Uri.parse(video.getUrl()),
+                                            segmentCache);
       default:
         return null;
     }
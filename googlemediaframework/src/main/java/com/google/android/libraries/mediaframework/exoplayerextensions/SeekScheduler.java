@@ -0,0 +1,267 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.Handler;
+
+import com.google.android.exoplayer.ExoPlayer;
+
+/**
+ * Coalesces the seeks of an {@link ExoplayerWrapper}, so that scrubbing through a video does not
+ * flush the renderers and start a new load on every seek bar tick.
+ *
+ * <p>At most one seek is in flight. A seek is considered complete once the player has buffered at
+ * the new position, or after a timeout. Seeks requested while one is in flight are not issued:
+ * only the latest target is kept, and the player jumps to it when the seek in flight completes.
+ *
+ * <p>While the user drags a seek bar ({@link #startScrubbing()} to {@link #stopScrubbing()}),
+ * preview seeks can be turned off with {@link #setPreviewSeeksEnabled(boolean)}. The player then
+ * only seeks once, to the position at which the seek bar is released.
+ *
+ * <p>This class must be used from the main thread.
+ */
+public class SeekScheduler {
+
+  /**
+   * A seek which has not completed after this many milliseconds is considered complete.
+   */
+  public static final int DEFAULT_SEEK_TIMEOUT_MS = 1000;
+
+  /**
+   * Indicates that there is no position.
+   */
+  private static final long NO_POSITION = -1;
+
+  /**
+   * The player which is seeked.
+   */
+  private final ExoplayerWrapper player;
+
+  /**
+   * Delivers the seek timeouts.
+   */
+  private final Handler handler;
+
+  /**
+   * A seek which has not completed after this many milliseconds is considered complete.
+   */
+  private final int seekTimeoutMs;
+
+  /**
+   * Completes the seek in flight when it times out.
+   */
+  private final Runnable seekTimeoutRunnable = new Runnable() {
+    @Override
+    public void run() {
+      onSeekCompleted();
+    }
+  };
+
+  /**
+   * Whether a seek has been issued to the player and has not completed yet.
+   */
+  private boolean seekInFlight;
+
+  /**
+   * Whether the player has left the ready state since the seek in flight was issued.
+   */
+  private boolean seekBuffering;
+
+  /**
+   * The position to seek to once the seek in flight completes, or {@link #NO_POSITION}.
+   */
+  private long pendingPositionMs;
+
+  /**
+   * The position of the latest seek request, or {@link #NO_POSITION}.
+   */
+  private long targetPositionMs;
+
+  /**
+   * Whether the user is dragging a seek bar.
+   */
+  private boolean scrubbing;
+
+  /**
+   * Whether the player seeks while the user is dragging a seek bar.
+   */
+  private boolean previewSeeksEnabled;
+
+  /**
+   * The number of seeks issued to the player.
+   */
+  private int issuedSeekCount;
+
+  /**
+   * The number of seek requests which were replaced by a later one before being issued.
+   */
+  private int coalescedSeekCount;
+
+  /**
+   * @param player The player which is seeked.
+   * @param handler Delivers the seek timeouts. It must run on the main thread.
+   */
+  /* package */ SeekScheduler(ExoplayerWrapper player, Handler handler) {
+    this(player, handler, DEFAULT_SEEK_TIMEOUT_MS);
+  }
+
+  /**
+   * @param player The player which is seeked.
+   * @param handler Delivers the seek timeouts. It must run on the main thread.
+   * @param seekTimeoutMs A seek which has not completed after this many milliseconds is
+   *                      considered complete.
+   */
+  /* package */ SeekScheduler(ExoplayerWrapper player, Handler handler, int seekTimeoutMs) {
+    this.player = player;
+    this.handler = handler;
+    this.seekTimeoutMs = seekTimeoutMs;
+    pendingPositionMs = NO_POSITION;
+    targetPositionMs = NO_POSITION;
+    previewSeeksEnabled = true;
+  }
+
+  /**
+   * Seek to the given position as soon as the seek in flight, if any, completes.
+   * @param positionMs A number of milliseconds after the start of the video.
+   */
+  public void seekTo(long positionMs) {
+    targetPositionMs = positionMs;
+    if (seekInFlight) {
+      if (pendingPositionMs != NO_POSITION) {
+        coalescedSeekCount++;
+      }
+      pendingPositionMs = positionMs;
+    } else {
+      issueSeek(positionMs);
+    }
+  }
+
+  /**
+   * Set whether the player seeks while the user drags a seek bar. If not, it only seeks when the
+   * seek bar is released. Preview seeks are enabled by default.
+   */
+  public void setPreviewSeeksEnabled(boolean previewSeeksEnabled) {
+    this.previewSeeksEnabled = previewSeeksEnabled;
+  }
+
+  /**
+   * Respond to the user starting to drag a seek bar.
+   */
+  public void startScrubbing() {
+    scrubbing = true;
+  }
+
+  /**
+   * Respond to the seek bar being dragged to the given position.
+   * @param positionMs A number of milliseconds after the start of the video.
+   */
+  public void scrubTo(long positionMs) {
+    if (scrubbing && !previewSeeksEnabled) {
+      targetPositionMs = positionMs;
+    } else {
+      seekTo(positionMs);
+    }
+  }
+
+  /**
+   * Respond to the user releasing the seek bar. The player seeks to the position at which the seek
+   * bar was released.
+   */
+  public void stopScrubbing() {
+    if (!scrubbing) {
+      return;
+    }
+    scrubbing = false;
+    if (!previewSeeksEnabled && targetPositionMs != NO_POSITION) {
+      seekTo(targetPositionMs);
+    }
+  }
+
+  /**
+   * Returns whether a seek is in flight or waiting to be issued.
+   */
+  public boolean isSeeking() {
+    return seekInFlight || pendingPositionMs != NO_POSITION;
+  }
+
+  /**
+   * Returns the position of the latest seek request, or -1 if no seek has been requested.
+   */
+  public long getTargetPositionMs() {
+    return targetPositionMs;
+  }
+
+  /**
+   * Returns the number of seeks issued to the player.
+   */
+  public int getIssuedSeekCount() {
+    return issuedSeekCount;
+  }
+
+  /**
+   * Returns the number of seek requests which were replaced by a later one before being issued.
+   */
+  public int getCoalescedSeekCount() {
+    return coalescedSeekCount;
+  }
+
+  /**
+   * Drop the pending seek and stop waiting for the seek in flight.
+   */
+  public void cancel() {
+    handler.removeCallbacks(seekTimeoutRunnable);
+    seekInFlight = false;
+    pendingPositionMs = NO_POSITION;
+    targetPositionMs = NO_POSITION;
+    scrubbing = false;
+  }
+
+  /**
+   * Respond to the underlying player changing state.
+   * @param playbackState One of the ExoPlayer.STATE_* constants.
+   */
+  /* package */ void onPlayerStateChanged(int playbackState) {
+    if (!seekInFlight) {
+      return;
+    }
+    if (playbackState == ExoPlayer.STATE_BUFFERING || playbackState == ExoPlayer.STATE_PREPARING) {
+      seekBuffering = true;
+    } else if ((playbackState == ExoPlayer.STATE_READY && seekBuffering)
+        || playbackState == ExoPlayer.STATE_ENDED || playbackState == ExoPlayer.STATE_IDLE) {
+      onSeekCompleted();
+    }
+  }
+
+  private void issueSeek(long positionMs) {
+    seekInFlight = true;
+    // A ready state reported before the seek is issued must not complete it.
+    seekBuffering = player.getPlaybackState() != ExoPlayer.STATE_READY;
+    issuedSeekCount++;
+    player.seekTo((int) positionMs);
+    handler.postDelayed(seekTimeoutRunnable, seekTimeoutMs);
+  }
+
+  private void onSeekCompleted() {
+    handler.removeCallbacks(seekTimeoutRunnable);
+    seekInFlight = false;
+    if (pendingPositionMs != NO_POSITION) {
+      long positionMs = pendingPositionMs;
+      pendingPositionMs = NO_POSITION;
+      issueSeek(positionMs);
+    }
+  }
+}
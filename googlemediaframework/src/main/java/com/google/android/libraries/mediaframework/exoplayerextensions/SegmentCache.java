@@ -0,0 +1,257 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.content.Context;
+
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.cache.Cache;
+import com.google.android.exoplayer.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer.upstream.cache.SimpleCache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps the media segments (DASH and HLS chunks, and ranges of progressive files) which have
+ * been downloaded on disk, so that replaying a video, seeking back past the buffer or watching a
+ * video again reads them from disk instead of the network.
+ *
+ * <p>The cache is bounded in size and evicts the least recently used segments first. The cached
+ * data is indexed by byte range: a request which is only partially cached reads the cached ranges
+ * from disk and fills the gaps with range requests to the network.
+ *
+ * <p>Only media is cached. Requests which allow gzip (HLS media playlists and AES keys, which
+ * ExoPlayer requests through the same data source as the segments) and playlist URLs are read
+ * from the network every time, since a cached live playlist would never be refreshed and keys
+ * must not be written to disk.
+ *
+ * <p>The renderer builders read their media through
+ * {@link #createDataSource(Context, TransferListener, String)}. This class is thread safe.
+ */
+public final class SegmentCache {
+
+  /**
+   * The name of the directory in the application's cache directory which holds the segments.
+   */
+  private static final String DIRECTORY_NAME = "segments";
+
+  /**
+   * By default, the segments use at most this many bytes of disk.
+   */
+  public static final long DEFAULT_MAX_BYTES = 256 * 1024 * 1024;
+
+  private static SegmentCache instance;
+
+  private final Cache cache;
+
+  /**
+   * The number of bytes read through the cache.
+   */
+  private long bytesRead;
+
+  /**
+   * The number of bytes of {@link #bytesRead} which were downloaded from the network.
+   */
+  private long bytesDownloaded;
+
+  /**
+   * @param directory The directory which holds the segments. It must not be used by another
+   *                  cache.
+   * @param maxBytes The maximum number of bytes of the segments.
+   */
+  public SegmentCache(File directory, long maxBytes) {
+    cache = new SimpleCache(directory, new LeastRecentlyUsedCacheEvictor(maxBytes));
+  }
+
+  /**
+   * Returns the cache shared by all the players of the application, which stores the segments
+   * in the application's cache directory.
+   * @param context The context (ex {@link android.app.Activity}) in which the video is played.
+   */
+  public static synchronized SegmentCache getInstance(Context context) {
+    if (instance == null) {
+      File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+      instance = new SegmentCache(directory, DEFAULT_MAX_BYTES);
+    }
+    return instance;
+  }
+
+  /**
+   * Create a data source which reads HTTP media through this cache. Other URIs are read without
+   * caching.
+   * @param context The context (ex {@link android.app.Activity}) in which the video is played.
+   * @param bandwidthMeter Notified of the transfers from the network. May be null.
+   * @param userAgent The User-Agent sent with the requests.
+   */
+  public DataSource createDataSource(Context context, TransferListener bandwidthMeter,
+                                     String userAgent) {
+    return new SegmentDataSource(
+        HttpTransport.getInstance().createDataSource(context, bandwidthMeter, userAgent));
+  }
+
+  /**
+   * Returns the number of bytes on disk.
+   */
+  public long getCacheSpace() {
+    return cache.getCacheSpace();
+  }
+
+  /**
+   * Returns the number of bytes read through the cache.
+   */
+  public synchronized long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Returns the number of bytes which were read from disk instead of the network.
+   */
+  public synchronized long getBytesSaved() {
+    return bytesRead - bytesDownloaded;
+  }
+
+  /**
+   * Returns the share of the bytes read through the cache which were read from disk.
+   */
+  public synchronized float getHitRatio() {
+    return bytesRead == 0 ? 0 : (float) (bytesRead - bytesDownloaded) / bytesRead;
+  }
+
+  /**
+   * Count bytes read through the cache.
+   * @param downloaded Whether the bytes were downloaded from the network by the cache, rather
+   *                   than returned to the reader.
+   */
+  /* package */ synchronized void onBytesRead(int byteCount, boolean downloaded) {
+    if (downloaded) {
+      bytesDownloaded += byteCount;
+    } else {
+      bytesRead += byteCount;
+    }
+  }
+
+  /**
+   * Returns whether the given request is for media which can be cached.
+   */
+  /* package */ static boolean isCacheable(DataSpec dataSpec) {
+    String scheme = dataSpec.uri.getScheme();
+    if (!"http".equals(scheme) && !"https".equals(scheme)) {
+      return false;
+    }
+    // The chunk sources only allow gzip for playlists and keys, never for media segments.
+    if ((dataSpec.flags & DataSpec.FLAG_ALLOW_GZIP) != 0) {
+      return false;
+    }
+    String path = dataSpec.uri.getPath();
+    return path == null || !(path.endsWith(".m3u8") || path.endsWith(".m3u"));
+  }
+
+  /**
+   * Returns a copy of the given spec whose cache key is its URI. The chunk sources key the DASH
+   * segments by representation, which would make the segments of a representation which are
+   * stored in separate files share the same cached byte ranges.
+   */
+  /* package */ static DataSpec keyByUri(DataSpec dataSpec) {
+    return new DataSpec(dataSpec.uri, dataSpec.absoluteStreamPosition, dataSpec.length,
+        dataSpec.uri.toString(), dataSpec.flags);
+  }
+
+  /**
+   * Reads HTTP media through the cache, and other media directly.
+   */
+  private final class SegmentDataSource implements DataSource {
+
+    private final DataSource uriDataSource;
+    private final CacheDataSource cacheDataSource;
+
+    /**
+     * The data source which is open, or null.
+     */
+    private DataSource openDataSource;
+
+    public SegmentDataSource(DataSource uriDataSource) {
+      this.uriDataSource = uriDataSource;
+      // Read the network directly rather than wait when another reader is filling the same range,
+      // and fall back to the network when the cache fails.
+      cacheDataSource = new CacheDataSource(cache, new DownloadCountingDataSource(uriDataSource),
+          false, true);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      if (isCacheable(dataSpec)) {
+        openDataSource = cacheDataSource;
+        return cacheDataSource.open(keyByUri(dataSpec));
+      }
+      openDataSource = uriDataSource;
+      return uriDataSource.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      int bytesRead = openDataSource.read(buffer, offset, readLength);
+      if (bytesRead > 0 && openDataSource == cacheDataSource) {
+        onBytesRead(bytesRead, false);
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (openDataSource != null) {
+        DataSource dataSource = openDataSource;
+        openDataSource = null;
+        dataSource.close();
+      }
+    }
+  }
+
+  /**
+   * Counts the bytes which the cache reads from the network.
+   */
+  private final class DownloadCountingDataSource implements DataSource {
+
+    private final DataSource upstream;
+
+    public DownloadCountingDataSource(DataSource upstream) {
+      this.upstream = upstream;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      return upstream.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      int bytesRead = upstream.read(buffer, offset, readLength);
+      if (bytesRead > 0) {
+        onBytesRead(bytesRead, true);
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+      upstream.close();
+    }
+  }
+}
@@ -0,0 +1,688 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.dash.DashSegmentIndex;
+import com.google.android.exoplayer.dash.mpd.AdaptationSet;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.dash.mpd.Period;
+import com.google.android.exoplayer.dash.mpd.RangedUri;
+import com.google.android.exoplayer.dash.mpd.Representation;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.util.ManifestFetcher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps several segment requests in flight for each track of a DASH video, so that the throughput
+ * on high latency networks is limited by the bandwidth rather than by the round trip of each
+ * request. The chunk sources still load one segment at a time: when one of them requests a media
+ * segment, the next segments of the same representation are fetched in parallel, and they are
+ * served from memory when the chunk source gets to them, in playback order.
+ *
+ * <p>Each track prefetches at most {@link #getSegmentCount()} segments and about
+ * {@link #getMaxBufferedBytes()} bytes ahead. Each segment is read into an array of its size,
+ * which is reserved in the allocator partition of the player until the segment has been read or
+ * dropped, so that the prefetched segments count towards the memory which its load control and
+ * memory pressure controller allow. A request which is not the next one expected (after a seek or
+ * a switch of representation) cancels the pending prefetches of its track, and so does the
+ * release of the data source (see {@link PrefetchingDataSource#release()}). Only videos whose
+ * segments are listed in the manifest are prefetched, which excludes live streams and
+ * representations indexed by a sidx box.
+ *
+ * <p>The segments served from memory are not reported as requests by an
+ * {@link InstrumentedDataSource} (see {@link InstrumentedDataSource.MemorySource}).
+ */
+public final class SegmentPrefetcher {
+
+  /**
+   * Creates the data sources through which the segments are prefetched.
+   */
+  /* package */ interface UpstreamFactory {
+    DataSource createUpstream();
+  }
+
+  public static final int DEFAULT_SEGMENT_COUNT = 2;
+  public static final int DEFAULT_MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private static final ExecutorService prefetchExecutor = Executors.newCachedThreadPool();
+
+  private final int segmentCount;
+  private final int maxBufferedBytes;
+
+  /**
+   * The manifest for which {@link #representations} was built.
+   */
+  private MediaPresentationDescription manifest;
+
+  /**
+   * The representations of {@link #manifest} whose segments are listed, by cache key.
+   */
+  private Map<String, Track> representations;
+
+  private long bytesDownloaded;
+
+  /**
+   * The sum of the durations of the downloads.
+   */
+  private long downloadTimeMs;
+
+  /**
+   * The time during which at least one download was in progress.
+   */
+  private long busyTimeMs;
+
+  private int activeDownloadCount;
+  private long busyStartTimeMs;
+  private int prefetchHitCount;
+  private int prefetchMissCount;
+
+  public SegmentPrefetcher() {
+    this(DEFAULT_SEGMENT_COUNT, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  /**
+   * @param segmentCount The maximum number of segments prefetched ahead of each track.
+   * @param maxBufferedBytes The maximum number of bytes prefetched ahead of each track. At least
+   *                         one segment is prefetched whatever its size, if the partition of the
+   *                         player has room for it.
+   */
+  public SegmentPrefetcher(int segmentCount, int maxBufferedBytes) {
+    this.segmentCount = segmentCount;
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  public int getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  /**
+   * Returns the throughput of the downloads in bits per second, over the time during which at
+   * least one of them was in progress, or -1 if there has been no download. This is the
+   * throughput achieved with the prefetching.
+   */
+  public synchronized long getEffectiveThroughputBps() {
+    return busyTimeMs == 0 ? -1 : bytesDownloaded * 8000 / busyTimeMs;
+  }
+
+  /**
+   * Returns the average throughput of a single download in bits per second, over the sum of their
+   * durations, or -1 if there has been no download. The parallel downloads share the link, so each
+   * of them is slower than it would be alone: this is not the throughput of the same downloads made
+   * one after the other, and comparing it with {@link #getEffectiveThroughputBps()} overstates the
+   * gain of prefetching.
+   */
+  public synchronized long getPerDownloadThroughputBps() {
+    return downloadTimeMs == 0 ? -1 : bytesDownloaded * 8000 / downloadTimeMs;
+  }
+
+  /**
+   * Returns the number of segments which had been prefetched when the player requested them.
+   */
+  public synchronized int getPrefetchHitCount() {
+    return prefetchHitCount;
+  }
+
+  /**
+   * Returns the number of media segments which the player requested from the network.
+   */
+  public synchronized int getPrefetchMissCount() {
+    return prefetchMissCount;
+  }
+
+  /**
+   * Create the data source of a track.
+   * @param upstream The data source through which the track reads the segments which were not
+   *                 prefetched.
+   * @param upstreamFactory Creates the data sources through which the segments are prefetched.
+   * @param manifestFetcher Provides the manifest in which the segments are looked up.
+   * @param allocator The allocator partition of the player, in which the prefetched bytes are
+   *                  reserved.
+   */
+  /* package */ PrefetchingDataSource createDataSource(
+      DataSource upstream, UpstreamFactory upstreamFactory,
+      ManifestFetcher<MediaPresentationDescription> manifestFetcher,
+      SharedAllocator.Partition allocator) {
+    return new PrefetchingDataSource(upstream, upstreamFactory, manifestFetcher, allocator);
+  }
+
+  /**
+   * Returns the representation which has the given cache key and listed segments, or null.
+   */
+  private synchronized Track getTrack(MediaPresentationDescription manifest, String cacheKey) {
+    if (manifest != this.manifest) {
+      this.manifest = manifest;
+      representations = new HashMap<String, Track>();
+      // Live streams have an unbounded list of segments, which is not prefetched.
+      if (manifest != null && !manifest.dynamic) {
+        for (int i = 0; i < manifest.getPeriodCount(); i++) {
+          Period period = manifest.getPeriod(i);
+          long periodDurationUs = manifest.getPeriodDuration(i) * 1000;
+          for (AdaptationSet adaptationSet : period.adaptationSets) {
+            for (Representation representation : adaptationSet.representations) {
+              DashSegmentIndex index = representation.getIndex();
+              if (index != null && index.getLastSegmentNum(periodDurationUs)
+                  != DashSegmentIndex.INDEX_UNBOUNDED) {
+                representations.put(representation.getCacheKey(),
+                    new Track(representation, index, periodDurationUs));
+              }
+            }
+          }
+        }
+      }
+    }
+    // Before the first manifest is loaded, there is no representation to look up.
+    return cacheKey != null && representations != null ? representations.get(cacheKey) : null;
+  }
+
+  private synchronized void onDownloadStarted() {
+    if (activeDownloadCount++ == 0) {
+      busyStartTimeMs = SystemClock.elapsedRealtime();
+    }
+  }
+
+  private synchronized void onDownloadEnded(long startTimeMs, long bytes) {
+    long nowMs = SystemClock.elapsedRealtime();
+    downloadTimeMs += nowMs - startTimeMs;
+    bytesDownloaded += bytes;
+    if (--activeDownloadCount == 0) {
+      busyTimeMs += nowMs - busyStartTimeMs;
+    }
+  }
+
+  private synchronized void onSegmentRequested(boolean prefetched) {
+    if (prefetched) {
+      prefetchHitCount++;
+    } else {
+      prefetchMissCount++;
+    }
+  }
+
+  private static boolean matches(RangedUri rangedUri, DataSpec dataSpec) {
+    return rangedUri != null && rangedUri.start == dataSpec.absoluteStreamPosition
+        && rangedUri.length == dataSpec.length && rangedUri.getUri().equals(dataSpec.uri);
+  }
+
+  /**
+   * A representation whose segments are listed in the manifest.
+   */
+  private static final class Track {
+
+    public final Representation representation;
+    public final DashSegmentIndex index;
+    public final int firstSegmentNum;
+    public final int lastSegmentNum;
+    public final long periodDurationUs;
+
+    public Track(Representation representation, DashSegmentIndex index, long periodDurationUs) {
+      this.representation = representation;
+      this.index = index;
+      this.periodDurationUs = periodDurationUs;
+      firstSegmentNum = index.getFirstSegmentNum();
+      lastSegmentNum = index.getLastSegmentNum(periodDurationUs);
+    }
+
+    /**
+     * Returns the number of the segment requested by the given data spec, or -1.
+     * @param expectedSegmentNum The segment number to try first.
+     */
+    public int getSegmentNum(DataSpec dataSpec, int expectedSegmentNum) {
+      if (expectedSegmentNum >= firstSegmentNum && expectedSegmentNum <= lastSegmentNum
+          && matches(index.getSegmentUrl(expectedSegmentNum), dataSpec)) {
+        return expectedSegmentNum;
+      }
+      for (int i = firstSegmentNum; i <= lastSegmentNum; i++) {
+        if (matches(index.getSegmentUrl(i), dataSpec)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the expected size of the given segment, from the bitrate of the representation.
+     */
+    public long getExpectedBytes(int segmentNum) {
+      return (long) representation.format.bitrate
+          * index.getDurationUs(segmentNum, periodDurationUs) / 8000000;
+    }
+  }
+
+  /**
+   * The data source of a track, which serves the prefetched segments from memory.
+   */
+  /* package */ final class PrefetchingDataSource
+      implements DataSource, InstrumentedDataSource.MemorySource {
+
+    private final DataSource upstream;
+    private final UpstreamFactory upstreamFactory;
+    private final ManifestFetcher<MediaPresentationDescription> manifestFetcher;
+    private final SharedAllocator.Partition allocator;
+
+    /**
+     * The pending prefetches, in playback order. Guarded by this data source, since it is released
+     * from another thread than the one which loads.
+     */
+    private final LinkedList<Prefetch> prefetches;
+
+    private boolean released;
+
+    /**
+     * The representation and the number of the last segment requested, or null and -1.
+     */
+    private Track lastTrack;
+    private int lastSegmentNum;
+
+    /**
+     * The prefetch being read, its data and its length, or null if the request is served by the
+     * upstream.
+     */
+    private Prefetch servedPrefetch;
+    private byte[] data;
+    private int dataLength;
+    private int readPosition;
+
+    private boolean upstreamOpen;
+    private boolean countDownload;
+    private long openTimeMs;
+    private long bytesRead;
+
+    public PrefetchingDataSource(DataSource upstream, UpstreamFactory upstreamFactory,
+                                 ManifestFetcher<MediaPresentationDescription> manifestFetcher,
+                                 SharedAllocator.Partition allocator) {
+      this.upstream = upstream;
+      this.upstreamFactory = upstreamFactory;
+      this.manifestFetcher = manifestFetcher;
+      this.allocator = allocator;
+      prefetches = new LinkedList<Prefetch>();
+      lastSegmentNum = -1;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      Track track = getTrack(manifestFetcher.getManifest(), dataSpec.key);
+      int segmentNum = track == null ? -1
+          : track.getSegmentNum(dataSpec, track == lastTrack ? lastSegmentNum + 1 : -1);
+
+      Prefetch prefetch = takePrefetch(dataSpec, segmentNum != -1);
+      if (segmentNum != -1) {
+        lastTrack = track;
+        lastSegmentNum = segmentNum;
+        schedulePrefetches(track, segmentNum);
+      }
+
+      data = prefetch != null ? awaitPrefetch(prefetch) : null;
+      if (segmentNum != -1) {
+        onSegmentRequested(data != null);
+      }
+      if (data != null) {
+        servedPrefetch = prefetch;
+        dataLength = prefetch.getLength();
+        readPosition = 0;
+        return dataLength;
+      }
+
+      // Initialization segments and segments which were not prefetched are read directly.
+      countDownload = segmentNum != -1;
+      if (countDownload) {
+        openTimeMs = SystemClock.elapsedRealtime();
+        bytesRead = 0;
+        onDownloadStarted();
+      }
+      try {
+        long length = upstream.open(dataSpec);
+        upstreamOpen = true;
+        return length;
+      } catch (IOException e) {
+        endDownload();
+        throw e;
+      }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      if (data != null) {
+        if (readPosition == dataLength) {
+          return C.RESULT_END_OF_INPUT;
+        }
+        int length = Math.min(readLength, dataLength - readPosition);
+        System.arraycopy(data, readPosition, buffer, offset, length);
+        readPosition += length;
+        return length;
+      }
+      int read = upstream.read(buffer, offset, readLength);
+      if (read > 0) {
+        bytesRead += read;
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (data != null) {
+        data = null;
+        servedPrefetch.release();
+        servedPrefetch = null;
+        return;
+      }
+      if (upstreamOpen) {
+        upstreamOpen = false;
+        try {
+          upstream.close();
+        } finally {
+          endDownload();
+        }
+      }
+    }
+
+    @Override
+    public boolean isOpenFromMemory() {
+      return data != null;
+    }
+
+    /**
+     * Cancel the pending prefetches and stop prefetching, once the player no longer plays the
+     * track. The data source can still read segments from the upstream.
+     */
+    public synchronized void release() {
+      released = true;
+      for (Prefetch prefetch : prefetches) {
+        prefetch.cancel();
+      }
+      prefetches.clear();
+    }
+
+    private void endDownload() {
+      if (countDownload) {
+        countDownload = false;
+        onDownloadEnded(openTimeMs, bytesRead);
+      }
+    }
+
+    /**
+     * Remove the prefetch of the given request from the pending ones, and cancel the prefetches
+     * which come before it. If none matches the request, all the prefetches are canceled, unless
+     * the request is for the initialization data of their representation.
+     * @param isSegment Whether the request is for a listed segment.
+     * @return The prefetch of the request, or null.
+     */
+    private synchronized Prefetch takePrefetch(DataSpec dataSpec, boolean isSegment) {
+      Prefetch match = null;
+      for (Prefetch prefetch : prefetches) {
+        if (prefetch.matches(dataSpec)) {
+          match = prefetch;
+          break;
+        }
+      }
+      Iterator<Prefetch> iterator = prefetches.iterator();
+      while (iterator.hasNext()) {
+        Prefetch prefetch = iterator.next();
+        if (prefetch == match) {
+          iterator.remove();
+          break;
+        }
+        if (match != null || isSegment || !prefetch.isOfRepresentation(dataSpec.key)) {
+          prefetch.cancel();
+          iterator.remove();
+        }
+      }
+      return match;
+    }
+
+    /**
+     * Prefetch the segments which follow the given one, within the limits of the track and the
+     * room left in the partition of the player.
+     */
+    private synchronized void schedulePrefetches(Track track, int segmentNum) {
+      if (released) {
+        return;
+      }
+      long bufferedBytes = 0;
+      // The bytes of the prefetches which have not reserved their array yet.
+      long unreservedBytes = 0;
+      int nextSegmentNum = segmentNum + 1;
+      for (Prefetch prefetch : prefetches) {
+        bufferedBytes += prefetch.expectedBytes;
+        unreservedBytes += Math.max(prefetch.expectedBytes - prefetch.getReservedBytes(), 0);
+        nextSegmentNum = Math.max(nextSegmentNum, prefetch.segmentNum + 1);
+      }
+      while (prefetches.size() < segmentCount && nextSegmentNum <= track.lastSegmentNum) {
+        long expectedBytes = track.getExpectedBytes(nextSegmentNum);
+        if (!prefetches.isEmpty() && bufferedBytes + expectedBytes > maxBufferedBytes) {
+          break;
+        }
+        if (!allocator.hasRoomFor((int) Math.min(unreservedBytes + expectedBytes,
+            Integer.MAX_VALUE))) {
+          break;
+        }
+        RangedUri segmentUri = track.index.getSegmentUrl(nextSegmentNum);
+        DataSpec dataSpec = new DataSpec(segmentUri.getUri(), segmentUri.start,
+            segmentUri.length, track.representation.getCacheKey());
+        Prefetch prefetch = new Prefetch(dataSpec, nextSegmentNum, expectedBytes,
+            upstreamFactory.createUpstream(), allocator);
+        prefetches.add(prefetch);
+        prefetchExecutor.execute(prefetch);
+        bufferedBytes += expectedBytes;
+        unreservedBytes += expectedBytes;
+        nextSegmentNum++;
+      }
+    }
+
+    /**
+     * Wait for a prefetch to complete.
+     * @return Its data, or null if it failed.
+     */
+    private byte[] awaitPrefetch(Prefetch prefetch) throws IOException {
+      try {
+        return prefetch.await();
+      } catch (InterruptedException e) {
+        // The load of the chunk source was canceled.
+        prefetch.cancel();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * Downloads a segment into memory. The array which holds the segment is reserved in the
+   * partition of the player until the prefetch is released, or fails, or is canceled.
+   */
+  /* package */ final class Prefetch implements Runnable {
+
+    public final DataSpec dataSpec;
+    public final int segmentNum;
+    public final long expectedBytes;
+
+    private final DataSource dataSource;
+    private final SharedAllocator.Partition allocator;
+
+    private volatile boolean canceled;
+
+    private boolean done;
+    private byte[] data;
+    private int length;
+
+    /**
+     * The number of bytes reserved in the partition.
+     */
+    private int reservedBytes;
+
+    public Prefetch(DataSpec dataSpec, int segmentNum, long expectedBytes,
+                    DataSource dataSource, SharedAllocator.Partition allocator) {
+      this.dataSpec = dataSpec;
+      this.segmentNum = segmentNum;
+      this.expectedBytes = expectedBytes;
+      this.dataSource = dataSource;
+      this.allocator = allocator;
+    }
+
+    public boolean matches(DataSpec dataSpec) {
+      return this.dataSpec.absoluteStreamPosition == dataSpec.absoluteStreamPosition
+          && this.dataSpec.length == dataSpec.length && this.dataSpec.uri.equals(dataSpec.uri);
+    }
+
+    /**
+     * Returns whether the prefetched segment belongs to the representation with the given cache
+     * key.
+     */
+    public boolean isOfRepresentation(String cacheKey) {
+      return dataSpec.key != null && dataSpec.key.equals(cacheKey);
+    }
+
+    /**
+     * Cancel the prefetch. A prefetch which is already done is released.
+     */
+    public void cancel() {
+      canceled = true;
+      synchronized (this) {
+        if (done) {
+          release();
+        }
+      }
+    }
+
+    /**
+     * Drop the data of the prefetch and give back its reservation.
+     */
+    public synchronized void release() {
+      data = null;
+      length = 0;
+      if (reservedBytes > 0) {
+        allocator.releaseReserved(reservedBytes);
+        reservedBytes = 0;
+      }
+    }
+
+    public synchronized int getReservedBytes() {
+      return reservedBytes;
+    }
+
+    /**
+     * Grow the reservation of the prefetch to the given size.
+     * @throws IOException If the partition has no room for it.
+     */
+    private synchronized void reserve(int bytes) throws IOException {
+      if (bytes > reservedBytes) {
+        if (!allocator.reserve(bytes - reservedBytes)) {
+          throw new IOException("No room for the segment.");
+        }
+        reservedBytes = bytes;
+      }
+    }
+
+    /**
+     * Wait for the prefetch to complete.
+     * @return Its data, of which the first {@link #getLength()} bytes are the segment, or null if
+     *     it failed.
+     */
+    public synchronized byte[] await() throws InterruptedException {
+      while (!done) {
+        wait();
+      }
+      return data;
+    }
+
+    public synchronized int getLength() {
+      return length;
+    }
+
+    @Override
+    public void run() {
+      byte[] result = null;
+      int resultLength = 0;
+      if (!canceled) {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        onDownloadStarted();
+        try {
+          long contentLength = dataSource.open(dataSpec);
+          if (contentLength != C.LENGTH_UNBOUNDED) {
+            // Read straight into an array of the size of the segment, if there is room for it.
+            if (contentLength > Integer.MAX_VALUE) {
+              throw new IOException("The segment is too long to be held.");
+            }
+            reserve((int) contentLength);
+            result = new byte[(int) contentLength];
+          } else {
+            int size = (int) Math.min(Math.max(expectedBytes, BUFFER_SIZE), maxBufferedBytes);
+            reserve(size);
+            result = new byte[size];
+          }
+          while (!canceled) {
+            if (resultLength == result.length) {
+              if (contentLength != C.LENGTH_UNBOUNDED) {
+                break;
+              }
+              if (result.length >= maxBufferedBytes) {
+                throw new IOException("The segment is too long to be held.");
+              }
+              int size = (int) Math.min((long) result.length * 2, maxBufferedBytes);
+              reserve(size);
+              result = Arrays.copyOf(result, size);
+            }
+            int read = dataSource.read(result, resultLength, result.length - resultLength);
+            if (read == C.RESULT_END_OF_INPUT) {
+              break;
+            }
+            resultLength += read;
+          }
+          if (canceled || (contentLength != C.LENGTH_UNBOUNDED
+              && resultLength != contentLength)) {
+            result = null;
+          }
+        } catch (IOException e) {
+          // The chunk source will request the segment itself.
+          result = null;
+        } finally {
+          try {
+            dataSource.close();
+          } catch (IOException e) {
+            // Ignore.
+          }
+          onDownloadEnded(startTimeMs, resultLength);
+        }
+      }
+      synchronized (this) {
+        done = true;
+        if (result != null && !canceled) {
+          data = result;
+          length = resultLength;
+        } else {
+          release();
+        }
+        notifyAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,383 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import java.util.Arrays;
+
+/**
+ * A process-wide pool of buffer segments shared by all the players, with a global byte budget.
+ *
+ * <p>Each {@link ExoplayerWrapper} gets a {@link Partition} of the pool, which its renderer
+ * builders use as their {@link Allocator}. The budget is shared between the partitions in
+ * proportion to their priority. A partition may use more than its share while the pool has room,
+ * but once the budget is reached, the partitions which are above their share report themselves as
+ * full, so that their load controls stop loading until playback consumes their buffer.
+ *
+ * <p>Memory which a player holds outside the pool (ex. prefetched segments) can be counted against
+ * its partition too (see {@link Partition#reserve(int)}).
+ *
+ * <p>Released segments are kept and handed out again instead of being garbage collected, until
+ * {@link #trim()} is called. Trimming a partition does not free them. This class is thread safe.
+ */
+public final class SharedAllocator {
+
+  /**
+   * By default, the partitions share this many bytes.
+   */
+  public static final int DEFAULT_BUDGET_BYTES = 32 * 1024 * 1024;
+
+  /**
+   * The priority of a partition unless it is changed.
+   */
+  public static final int DEFAULT_PRIORITY = 2;
+
+  /**
+   * Reported by a full partition as its number of allocated bytes. It is larger than any buffer
+   * size a load control could target.
+   */
+  private static final int FULL_PARTITION_BYTES = Integer.MAX_VALUE / 2;
+
+  private static SharedAllocator instance;
+
+  /**
+   * A share of the pool, used as the allocator of one player.
+   */
+  public final class Partition implements Allocator {
+
+    private int priority;
+    private int bytesAllocated;
+    private boolean released;
+
+    /**
+     * The partition reports itself as full when this many bytes are allocated to it.
+     */
+    private int ceiling;
+
+    private Partition(int priority) {
+      this.priority = priority;
+      ceiling = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Set the number of bytes at which the partition reports itself as full, whatever its share.
+     * Segments which are already allocated are kept until they are released.
+     * @param ceiling A number of bytes, or Integer.MAX_VALUE for no ceiling.
+     */
+    public void setCeiling(int ceiling) {
+      synchronized (SharedAllocator.this) {
+        this.ceiling = ceiling;
+        SharedAllocator.this.notifyAll();
+      }
+    }
+
+    public int getCeiling() {
+      synchronized (SharedAllocator.this) {
+        return ceiling;
+      }
+    }
+
+    /**
+     * Returns the pool which the partition is a share of.
+     */
+    public SharedAllocator getPool() {
+      return SharedAllocator.this;
+    }
+
+    /**
+     * Set the priority of the partition. The budget is shared in proportion to the priorities.
+     * @param priority A positive number.
+     */
+    public void setPriority(int priority) {
+      synchronized (SharedAllocator.this) {
+        if (!released) {
+          activePriorities += priority - this.priority;
+        }
+        this.priority = priority;
+        SharedAllocator.this.notifyAll();
+      }
+    }
+
+    /**
+     * Returns the number of bytes the partition is entitled to when the pool is full.
+     */
+    public int getShare() {
+      synchronized (SharedAllocator.this) {
+        return activePriorities == 0 ? budget : (int) ((long) budget * priority / activePriorities);
+      }
+    }
+
+    /**
+     * Returns the number of bytes which are allocated to the partition.
+     */
+    public int getBytesAllocated() {
+      synchronized (SharedAllocator.this) {
+        return bytesAllocated;
+      }
+    }
+
+    /**
+     * Stop counting the partition when sharing the budget. The segments which are still allocated
+     * to it are recycled when they are released.
+     */
+    public void release() {
+      synchronized (SharedAllocator.this) {
+        if (!released) {
+          released = true;
+          activePriorities -= priority;
+          partitionCount--;
+          SharedAllocator.this.notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Returns whether the given number of bytes could be allocated to the partition without making
+     * it full.
+     */
+    /* package */ boolean hasRoomFor(int bytes) {
+      synchronized (SharedAllocator.this) {
+        long allocated = (long) bytesAllocated + bytes;
+        return allocated < budget && allocated < ceiling
+            && ((long) totalBytesAllocated + bytes < budget || allocated < getShare());
+      }
+    }
+
+    /**
+     * Count memory which is held outside the pool (ex. prefetched segments) as allocated to the
+     * partition, if the partition has room for it. The bytes are given back with
+     * {@link #releaseReserved(int)}.
+     * @return Whether the bytes were reserved.
+     */
+    /* package */ boolean reserve(int bytes) {
+      synchronized (SharedAllocator.this) {
+        if (!hasRoomFor(bytes)) {
+          return false;
+        }
+        bytesAllocated += bytes;
+        totalBytesAllocated += bytes;
+        peakBytesAllocated = Math.max(peakBytesAllocated, totalBytesAllocated);
+        return true;
+      }
+    }
+
+    /**
+     * Give back bytes counted by {@link #reserve(int)}.
+     */
+    /* package */ void releaseReserved(int bytes) {
+      synchronized (SharedAllocator.this) {
+        bytesAllocated -= bytes;
+        totalBytesAllocated -= bytes;
+        SharedAllocator.this.notifyAll();
+      }
+    }
+
+    @Override
+    public Allocation allocate() {
+      synchronized (SharedAllocator.this) {
+        bytesAllocated += segmentSize;
+        return SharedAllocator.this.allocate();
+      }
+    }
+
+    @Override
+    public void release(Allocation allocation) {
+      synchronized (SharedAllocator.this) {
+        bytesAllocated -= segmentSize;
+        SharedAllocator.this.release(allocation);
+      }
+    }
+
+    /**
+     * Does nothing. The load controls and sample sources of a player trim its allocator when it
+     * seeks, disables a track or is released, but the recycled segments are shared by all the
+     * partitions and are kept within the budget, so freeing them would only cost the other players
+     * their reuse. The pool is trimmed under memory pressure instead (see
+     * {@link SharedAllocator#trim()}).
+     */
+    @Override
+    public void trim(int targetSize) {
+      // Do nothing.
+    }
+
+    @Override
+    public void blockWhileTotalBytesAllocatedExceeds(int limit) throws InterruptedException {
+      synchronized (SharedAllocator.this) {
+        while (getTotalBytesAllocated() > limit) {
+          SharedAllocator.this.wait();
+        }
+      }
+    }
+
+    /**
+     * Returns the number of bytes allocated to the partition, or a number larger than any buffer
+     * size if the pool is full and the partition is above its share.
+     */
+    @Override
+    public int getTotalBytesAllocated() {
+      synchronized (SharedAllocator.this) {
+        boolean full = bytesAllocated >= budget || bytesAllocated >= ceiling
+            || (totalBytesAllocated >= budget && bytesAllocated >= getShare());
+        return full ? FULL_PARTITION_BYTES : bytesAllocated;
+      }
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return segmentSize;
+    }
+  }
+
+  private final int segmentSize;
+
+  private int budget;
+  private int activePriorities;
+  private int partitionCount;
+  private int totalBytesAllocated;
+  private int peakBytesAllocated;
+
+  /**
+   * The segments which have been released and can be handed out again.
+   */
+  private Allocation[] recycledSegments;
+  private int recycledSegmentCount;
+
+  private long allocationCount;
+  private long recycledAllocationCount;
+
+  /**
+   * @param segmentSize The size of the segments.
+   * @param budget The number of bytes shared by the partitions.
+   */
+  public SharedAllocator(int segmentSize, int budget) {
+    this.segmentSize = segmentSize;
+    this.budget = budget;
+    recycledSegments = new Allocation[budget / segmentSize];
+  }
+
+  /**
+   * Returns the pool shared by all the players of the application.
+   */
+  public static synchronized SharedAllocator getInstance() {
+    if (instance == null) {
+      instance = new SharedAllocator(BufferPolicy.DEFAULT_SEGMENT_SIZE, DEFAULT_BUDGET_BYTES);
+    }
+    return instance;
+  }
+
+  /**
+   * Create a partition for a player.
+   * @param priority A positive number. The budget is shared in proportion to the priorities.
+   */
+  public synchronized Partition createPartition(int priority) {
+    activePriorities += priority;
+    partitionCount++;
+    return new Partition(priority);
+  }
+
+  /**
+   * Change the number of bytes shared by the partitions. Recycled segments beyond the new budget
+   * are freed.
+   */
+  public synchronized void setBudget(int budget) {
+    this.budget = budget;
+    int maxRecycledSegmentCount = budget / segmentSize;
+    if (recycledSegmentCount > maxRecycledSegmentCount) {
+      Arrays.fill(recycledSegments, maxRecycledSegmentCount, recycledSegmentCount, null);
+      recycledSegmentCount = maxRecycledSegmentCount;
+    }
+    recycledSegments = Arrays.copyOf(recycledSegments, maxRecycledSegmentCount);
+    notifyAll();
+  }
+
+  public synchronized int getBudget() {
+    return budget;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Returns the number of partitions which have not been released.
+   */
+  public synchronized int getPartitionCount() {
+    return partitionCount;
+  }
+
+  /**
+   * Returns the number of bytes allocated to all the partitions.
+   */
+  public synchronized int getTotalBytesAllocated() {
+    return totalBytesAllocated;
+  }
+
+  /**
+   * Returns the largest number of bytes which have been allocated at once.
+   */
+  public synchronized int getPeakBytesAllocated() {
+    return peakBytesAllocated;
+  }
+
+  /**
+   * Returns the number of bytes held by released segments which are kept for reuse.
+   */
+  public synchronized int getRecycledBytes() {
+    return recycledSegmentCount * segmentSize;
+  }
+
+  /**
+   * Returns the share of the allocations which were served by a recycled segment.
+   */
+  public synchronized float getRecycleRatio() {
+    return allocationCount == 0 ? 0 : (float) recycledAllocationCount / allocationCount;
+  }
+
+  /**
+   * Free the recycled segments so that the memory which is not allocated is given back (ex. when
+   * the system is low on memory).
+   */
+  public synchronized void trim() {
+    Arrays.fill(recycledSegments, 0, recycledSegmentCount, null);
+    recycledSegmentCount = 0;
+  }
+
+  private Allocation allocate() {
+    allocationCount++;
+    totalBytesAllocated += segmentSize;
+    peakBytesAllocated = Math.max(peakBytesAllocated, totalBytesAllocated);
+    if (recycledSegmentCount > 0) {
+      recycledAllocationCount++;
+      Allocation allocation = recycledSegments[--recycledSegmentCount];
+      recycledSegments[recycledSegmentCount] = null;
+      return allocation;
+    }
+    return new Allocation(new byte[segmentSize], 0);
+  }
+
+  private void release(Allocation allocation) {
+    totalBytesAllocated -= segmentSize;
+    // Keep the segment unless recycled and allocated segments would exceed the budget.
+    if (recycledSegmentCount < recycledSegments.length
+        && totalBytesAllocated + getRecycledBytes() < budget) {
+      recycledSegments[recycledSegmentCount++] = allocation;
+    }
+    notifyAll();
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+/**
+ * Selects the highest bitrate which fits in a fraction of the estimated bandwidth, like ExoPlayer's
+ * AdaptiveEvaluator. The quality only increases once enough media is buffered, and only decreases
+ * while little media is buffered.
+ */
+public class ThroughputAbrStrategy implements AbrStrategy {
+
+  public static final int DEFAULT_MAX_INITIAL_BITRATE = 800000;
+  public static final int DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS = 10000;
+  public static final int DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS = 25000;
+  public static final float DEFAULT_BANDWIDTH_FRACTION = 0.75f;
+
+  /**
+   * Creates strategies with the default parameters.
+   */
+  public static final Factory FACTORY = new Factory() {
+    @Override
+    public AbrStrategy createAbrStrategy() {
+      return new ThroughputAbrStrategy();
+    }
+  };
+
+  /**
+   * The bitrate used while the bandwidth has not been measured.
+   */
+  private final int maxInitialBitrate;
+  private final long minDurationForQualityIncreaseUs;
+  private final long maxDurationForQualityDecreaseUs;
+
+  /**
+   * The fraction of the estimated bandwidth which the selected bitrate may use.
+   */
+  private final float bandwidthFraction;
+
+  public ThroughputAbrStrategy() {
+    this(DEFAULT_MAX_INITIAL_BITRATE, DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
+        DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS, DEFAULT_BANDWIDTH_FRACTION);
+  }
+
+  /**
+   * @param maxInitialBitrate The bitrate used while the bandwidth has not been measured.
+   * @param minDurationForQualityIncreaseMs The quality only increases when at least this much
+   *                                        media is buffered.
+   * @param maxDurationForQualityDecreaseMs The quality only decreases when less than this much
+   *                                        media is buffered.
+   * @param bandwidthFraction The fraction of the estimated bandwidth which the selected bitrate
+   *                          may use.
+   */
+  public ThroughputAbrStrategy(int maxInitialBitrate, int minDurationForQualityIncreaseMs,
+                               int maxDurationForQualityDecreaseMs, float bandwidthFraction) {
+    this.maxInitialBitrate = maxInitialBitrate;
+    this.minDurationForQualityIncreaseUs = minDurationForQualityIncreaseMs * 1000L;
+    this.maxDurationForQualityDecreaseUs = maxDurationForQualityDecreaseMs * 1000L;
+    this.bandwidthFraction = bandwidthFraction;
+  }
+
+  @Override
+  public int selectFormat(int[] bitrates, int selectedIndex, long bufferedDurationUs,
+                          long bandwidthEstimateBps) {
+    long effectiveBitrate = bandwidthEstimateBps == NO_ESTIMATE ? maxInitialBitrate
+        : (long) (bandwidthEstimateBps * bandwidthFraction);
+    int idealIndex = getIndexForBitrate(bitrates, effectiveBitrate);
+    if (selectedIndex == -1) {
+      return idealIndex;
+    }
+    if (idealIndex < selectedIndex && bufferedDurationUs < minDurationForQualityIncreaseUs) {
+      // Not enough media is buffered to risk a higher bitrate.
+      return selectedIndex;
+    }
+    if (idealIndex > selectedIndex && bufferedDurationUs >= maxDurationForQualityDecreaseUs) {
+      // Enough media is buffered to keep the current bitrate.
+      return selectedIndex;
+    }
+    return idealIndex;
+  }
+
+  /**
+   * Returns the index of the highest bitrate which does not exceed the given one, or of the
+   * lowest bitrate if they all do.
+   */
+  /* package */ static int getIndexForBitrate(int[] bitrates, long bitrate) {
+    for (int i = 0; i < bitrates.length; i++) {
+      if (bitrates[i] <= bitrate) {
+        return i;
+      }
+    }
+    return bitrates.length - 1;
+  }
+}
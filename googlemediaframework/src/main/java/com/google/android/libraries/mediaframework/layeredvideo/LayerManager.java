@@ -20,8 +20,11 @@ import android.app.Activity;
 import android.graphics.Color;
 import android.widget.FrameLayout;
 
+import com.google.android.libraries.mediaframework.exoplayerextensions.BufferPolicy;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapperPool;
 import com.google.android.libraries.mediaframework.exoplayerextensions.ObservablePlayerControl;
+import com.google.android.libraries.mediaframework.exoplayerextensions.Preloader;
 import com.google.android.libraries.mediaframework.exoplayerextensions.RendererBuilderFactory;
 import com.google.android.libraries.mediaframework.exoplayerextensions.Video;
 
@@ -60,6 +63,12 @@ public class LayerManager {
    */
   private ExoplayerWrapper exoplayerWrapper;
 
+  /**
+   * The pool from which the {@link ExoplayerWrapper} was acquired. May be null, in which case the
+   * wrapper is created by this {@link LayerManager} and released with it.
+   */
+  private ExoplayerWrapperPool exoplayerWrapperPool;
+
   /**
    * Given a container, create the video layers and add them to the container.
    * @param activity The activity which will display the video player.
@@ -71,15 +80,61 @@ public class LayerManager {
                       FrameLayout container,
                       Video video,
                       List<Layer> layers) {
+    this(activity, container, video, layers, null);
+  }
+
+  /**
+   * Given a container, create the video layers and add them to the container.
+   * @param activity The activity which will display the video player.
+   * @param container The frame layout which will contain the views.
+   * @param video the video that will be played by this LayerManager.
+   * @param layers The layers which should be displayed on top of the container.
+   * @param exoplayerWrapperPool The pool from which the player is acquired and to which it is
+   *                             returned on {@link #release()}. May be null.
+   */
+  public LayerManager(Activity activity,
+                      FrameLayout container,
+                      Video video,
+                      List<Layer> layers,
+                      ExoplayerWrapperPool exoplayerWrapperPool) {
+    this(activity, container, video, layers, exoplayerWrapperPool, null);
+  }
+
+  /**
+   * Given a container, create the video layers and add them to the container.
+   * @param activity The activity which will display the video player.
+   * @param container The frame layout which will contain the views.
+   * @param video the video that will be played by this LayerManager.
+   * @param layers The layers which should be displayed on top of the container.
+   * @param exoplayerWrapperPool The pool from which the player is acquired and to which it is
+   *                             returned on {@link #release()}. May be null.
+   * @param preloader If the video has been preloaded by this preloader, its prepared player is
+   *                  used instead of building a new one. May be null.
+   */
+  public LayerManager(Activity activity,
+                      FrameLayout container,
+                      Video video,
+                      List<Layer> layers,
+                      ExoplayerWrapperPool exoplayerWrapperPool,
+                      Preloader preloader) {
     this.activity = activity;
     this.container = container;
+    this.exoplayerWrapperPool = exoplayerWrapperPool;
     container.setBackgroundColor(Color.BLACK);
 
-    ExoplayerWrapper.RendererBuilder rendererBuilder =
-        RendererBuilderFactory.createRendererBuilder(activity, video);
-
-    exoplayerWrapper = new ExoplayerWrapper(rendererBuilder);
-    exoplayerWrapper.prepare();
+    exoplayerWrapper = preloader != null ? preloader.take(video) : null;
+    if (exoplayerWrapper == null) {
+      ExoplayerWrapper.RendererBuilder rendererBuilder =
+          RendererBuilderFactory.createRendererBuilder(activity, video);
+
+      if (exoplayerWrapperPool != null) {
+        exoplayerWrapper = exoplayerWrapperPool.acquire(rendererBuilder);
+      } else {
+        exoplayerWrapper = new ExoplayerWrapper(rendererBuilder,
+            BufferPolicy.forDevice(activity));
+      }
+      exoplayerWrapper.prepare();
+    }
 
     this.control = exoplayerWrapper.getPlayerControl();
 
@@ -128,7 +183,11 @@ public class LayerManager {
   public void release() {
     container.removeAllViews();
     if (exoplayerWrapper != null) {
-      exoplayerWrapper.release();
+      if (exoplayerWrapperPool != null) {
+        exoplayerWrapperPool.release(exoplayerWrapper);
+      } else {
+        exoplayerWrapper.release();
+      }
       exoplayerWrapper = null;
     }
   }
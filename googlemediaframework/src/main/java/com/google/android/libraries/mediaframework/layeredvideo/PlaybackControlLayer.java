@@ -38,15 +38,16 @@ import android.widget.RelativeLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
+import com.google.android.exoplayer.ExoPlayer;
 import com.google.android.exoplayer.util.PlayerControl;
 import com.google.android.libraries.mediaframework.R;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper;
+import com.google.android.libraries.mediaframework.exoplayerextensions.PlaybackSnapshot;
 import com.google.android.libraries.mediaframework.exoplayerextensions.PlayerControlCallback;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Formatter;
 import java.util.List;
-import java.util.Locale;
 
 
 /**
@@ -172,6 +173,11 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
    */
   public static final int DEFAULT_CHROME_COLOR = Color.argb(140, 0, 0, 0);
 
+  /**
+   * The maximum length of a time formatted by {@link #formatTime(int, char[])}.
+   */
+  private static final int MAX_TIME_CHARS = 16;
+
   /**
    * By default, there is no tint to the controls.
    */
@@ -343,14 +349,25 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
   private boolean shouldBePlaying;
 
   /**
-   * Encodes the HH:MM:SS or MM:SS time format.
+   * Holds the text of {@link #currentTime}. It is reused so that updating the progress does not
+   * allocate.
+   */
+  private final char[] currentTimeChars = new char[MAX_TIME_CHARS];
+
+  /**
+   * Holds the text of {@link #endTime}.
    */
-  private StringBuilder timeFormat;
+  private final char[] endTimeChars = new char[MAX_TIME_CHARS];
 
   /**
-   * Formats times to HH:MM:SS or MM:SS form.
+   * The second displayed in {@link #currentTime}, or -1 if it has not been set.
    */
-  private Formatter timeFormatter;
+  private int displayedPositionSeconds = -1;
+
+  /**
+   * The second displayed in {@link #endTime}, or -1 if it has not been set.
+   */
+  private int displayedDurationSeconds = -1;
 
   /**
    * Contains the logo, video title, and other actions button. It can be tinted with a color for
@@ -891,9 +908,15 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
         PlayerControl playerControl = getLayerManager().getControl();
         long duration = playerControl.getDuration();
         long newposition = (duration * progress) / 1000L;
-        playerControl.seekTo((int) newposition);
+        // Seeks are coalesced, since this is called on every tick while the seek bar is dragged.
+        getLayerManager().getExoplayerWrapper().getSeekScheduler().scrubTo(newposition);
         if (currentTime != null) {
-          currentTime.setText(stringForTime((int) newposition));
+          int newpositionSeconds = (int) (newposition / 1000);
+          if (newpositionSeconds != displayedPositionSeconds) {
+            displayedPositionSeconds = newpositionSeconds;
+            currentTime.setText(currentTimeChars, 0,
+                formatTime((int) newposition, currentTimeChars));
+          }
         }
       }
 
@@ -901,12 +924,14 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
       public void onStartTrackingTouch(SeekBar seekBar) {
         show(0);
         isSeekbarDragging = true;
+        getLayerManager().getExoplayerWrapper().getSeekScheduler().startScrubbing();
         handler.removeMessages(SHOW_PROGRESS);
       }
 
       @Override
       public void onStopTrackingTouch(SeekBar seekBar) {
         isSeekbarDragging = false;
+        getLayerManager().getExoplayerWrapper().getSeekScheduler().stopScrubbing();
         updateProgress();
         updatePlayPauseButton();
         show(DEFAULT_TIMEOUT_MS);
@@ -917,8 +942,9 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
 
     videoTitleView.setText(videoTitle);
 
-    timeFormat = new StringBuilder();
-    timeFormatter = new Formatter(timeFormat, Locale.getDefault());
+    // The time views have just been bound, so their text must be set again.
+    displayedPositionSeconds = -1;
+    displayedDurationSeconds = -1;
 
   }
 
@@ -935,18 +961,51 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
    * Format the milliseconds to HH:MM:SS or MM:SS format.
    */
   public String stringForTime(int timeMs) {
-    int totalSeconds = timeMs / 1000;
+    char[] chars = new char[MAX_TIME_CHARS];
+    return new String(chars, 0, formatTime(timeMs, chars));
+  }
+
+  /**
+   * Format the milliseconds to HH:MM:SS or MM:SS format into the given buffer without allocating.
+   * @param timeMs The time to format.
+   * @param chars Receives the formatted time. It must hold at least {@link #MAX_TIME_CHARS}
+   *              characters.
+   * @return The number of characters written.
+   */
+  /* package */ static int formatTime(int timeMs, char[] chars) {
+    int totalSeconds = Math.max(timeMs, 0) / 1000;
 
     int seconds = totalSeconds % 60;
     int minutes = (totalSeconds / 60) % 60;
     int hours = totalSeconds / 3600;
 
-    timeFormat.setLength(0);
+    int length = 0;
     if (hours > 0) {
-      return timeFormatter.format("%d:%02d:%02d", hours, minutes, seconds).toString();
-    } else {
-      return timeFormatter.format("%02d:%02d", minutes, seconds).toString();
+      length = writeNumber(hours, chars, length);
+      chars[length++] = ':';
+    }
+    chars[length++] = (char) ('0' + minutes / 10);
+    chars[length++] = (char) ('0' + minutes % 10);
+    chars[length++] = ':';
+    chars[length++] = (char) ('0' + seconds / 10);
+    chars[length++] = (char) ('0' + seconds % 10);
+    return length;
+  }
+
+  /**
+   * Write the decimal digits of a positive number into the given buffer.
+   * @return The index after the last digit written.
+   */
+  private static int writeNumber(int number, char[] chars, int start) {
+    int digitCount = 1;
+    for (int remainder = number / 10; remainder > 0; remainder /= 10) {
+      digitCount++;
+    }
+    for (int i = start + digitCount - 1; i >= start; i--) {
+      chars[i] = (char) ('0' + number % 10);
+      number /= 10;
     }
+    return start + digitCount;
   }
 
   /**
@@ -1069,29 +1128,40 @@ public class PlaybackControlLayer implements Layer, PlayerControlCallback {
    * Adjust the position of the action bar to reflect the progress of the video.
    */
   public int updateProgress() {
-    PlayerControl playerControl = getLayerManager().getControl();
-    if (playerControl == null || isSeekbarDragging) {
+    ExoplayerWrapper player = getLayerManager().getExoplayerWrapper();
+    if (player == null || isSeekbarDragging) {
       return 0;
     }
 
-    int position = playerControl.getCurrentPosition();
-    int duration = playerControl.getDuration();
+    // The position, duration and buffer are read from one snapshot, so they are consistent.
+    PlaybackSnapshot snapshot = player.getPlaybackSnapshot();
+    int position = (int) snapshot.positionMs;
+    int duration = snapshot.durationMs == ExoPlayer.UNKNOWN_TIME ? 0 : (int) snapshot.durationMs;
 
     if (seekBar != null) {
       if (duration > 0) {
-        long pos = 1000L * position / duration;
-        seekBar.setProgress((int) pos);
+        int pos = (int) (1000L * position / duration);
+        if (pos != seekBar.getProgress()) {
+          seekBar.setProgress(pos);
+        }
       }
 
-      int percent = playerControl.getBufferPercentage();
-      seekBar.setSecondaryProgress(percent * 10);
+      int secondaryProgress = snapshot.bufferedPercentage * 10;
+      if (secondaryProgress != seekBar.getSecondaryProgress()) {
+        seekBar.setSecondaryProgress(secondaryProgress);
+      }
     }
 
-    if (endTime != null) {
-      endTime.setText(stringForTime(duration));
+    // Only redraw the times when the displayed second changes.
+    int durationSeconds = duration / 1000;
+    if (endTime != null && durationSeconds != displayedDurationSeconds) {
+      displayedDurationSeconds = durationSeconds;
+      endTime.setText(endTimeChars, 0, formatTime(duration, endTimeChars));
     }
-    if (currentTime != null) {
-      currentTime.setText(stringForTime(position));
+    int positionSeconds = position / 1000;
+    if (currentTime != null && positionSeconds != displayedPositionSeconds) {
+      displayedPositionSeconds = positionSeconds;
+      currentTime.setText(currentTimeChars, 0, formatTime(position, currentTimeChars));
     }
 
     return position;
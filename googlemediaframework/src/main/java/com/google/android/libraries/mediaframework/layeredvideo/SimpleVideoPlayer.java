@@ -22,6 +22,10 @@ import android.view.View;
 import android.widget.FrameLayout;
 
 import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapper;
+import com.google.android.libraries.mediaframework.exoplayerextensions.ExoplayerWrapperPool;
+import com.google.android.libraries.mediaframework.exoplayerextensions.PlaybackSnapshot;
+import com.google.android.libraries.mediaframework.exoplayerextensions.Playlist;
+import com.google.android.libraries.mediaframework.exoplayerextensions.Preloader;
 import com.google.android.libraries.mediaframework.exoplayerextensions.Video;
 
 import java.util.ArrayList;
@@ -66,6 +70,17 @@ public class SimpleVideoPlayer {
    */
   private boolean autoplay;
 
+  /**
+   * The video this player was created with.
+   */
+  private final Video video;
+
+  /**
+   * Plays further videos in this player once the current one ends. Created on demand by
+   * {@link #getPlaylist()}.
+   */
+  private Playlist playlist;
+
   /**
    * @param activity The activity that will contain the video player.
    * @param container The {@link FrameLayout} which will contain the video player.
@@ -97,7 +112,57 @@ public class SimpleVideoPlayer {
                            boolean autoplay,
                            int startPostitionMs,
                            PlaybackControlLayer.FullscreenCallback fullscreenCallback) {
+    this(activity, container, video, videoTitle, autoplay, startPostitionMs, fullscreenCallback,
+        null);
+  }
+
+  /**
+   * @param activity The activity that will contain the video player.
+   * @param container The {@link FrameLayout} which will contain the video player.
+   * @param video The video that should be played.
+   * @param videoTitle The title of the video (displayed on the left of the top chrome).
+   * @param autoplay Whether the video should start playing immediately.
+   * @param fullscreenCallback The callback which gets triggered when the player enters or leaves
+   *                           fullscreen mode.
+   * @param exoplayerWrapperPool The pool from which the underlying player is acquired and to which
+   *                             it is returned on {@link #release()}. May be null.
+   */
+  public SimpleVideoPlayer(Activity activity,
+                           FrameLayout container,
+                           Video video,
+                           String videoTitle,
+                           boolean autoplay,
+                           int startPostitionMs,
+                           PlaybackControlLayer.FullscreenCallback fullscreenCallback,
+                           ExoplayerWrapperPool exoplayerWrapperPool) {
+    this(activity, container, video, videoTitle, autoplay, startPostitionMs, fullscreenCallback,
+        exoplayerWrapperPool, null);
+  }
+
+  /**
+   * @param activity The activity that will contain the video player.
+   * @param container The {@link FrameLayout} which will contain the video player.
+   * @param video The video that should be played.
+   * @param videoTitle The title of the video (displayed on the left of the top chrome).
+   * @param autoplay Whether the video should start playing immediately.
+   * @param fullscreenCallback The callback which gets triggered when the player enters or leaves
+   *                           fullscreen mode.
+   * @param exoplayerWrapperPool The pool from which the underlying player is acquired and to which
+   *                             it is returned on {@link #release()}. May be null.
+   * @param preloader If the video has been preloaded by this preloader, playback starts from the
+   *                  preloaded player (and the position it was preloaded from). May be null.
+   */
+  public SimpleVideoPlayer(Activity activity,
+                           FrameLayout container,
+                           Video video,
+                           String videoTitle,
+                           boolean autoplay,
+                           int startPostitionMs,
+                           PlaybackControlLayer.FullscreenCallback fullscreenCallback,
+                           ExoplayerWrapperPool exoplayerWrapperPool,
+                           Preloader preloader) {
     this.activity = activity;
+    this.video = video;
 
     playbackControlLayer = new PlaybackControlLayer(videoTitle, fullscreenCallback);
     subtitleLayer = new SubtitleLayer();
@@ -109,14 +174,20 @@ public class SimpleVideoPlayer {
     layers.add(playbackControlLayer);
     layers.add(subtitleLayer);
 
+    // A preloaded player has already buffered from its start position, so seeking it again would
+    // throw that buffer away.
+    boolean preloaded = preloader != null && preloader.isPreloaded(video);
+
     layerManager = new LayerManager(activity,
         container,
         video,
-        layers);
+        layers,
+        exoplayerWrapperPool,
+        preloader);
 
     layerManager.getExoplayerWrapper().setTextListener(subtitleLayer);
 
-    if (startPostitionMs > 0) {
+    if (startPostitionMs > 0 && !preloaded) {
       layerManager.getExoplayerWrapper().seekTo(startPostitionMs);
     }
   }
@@ -145,6 +216,18 @@ public class SimpleVideoPlayer {
     layerManager.getExoplayerWrapper().addListener(listener);
   }
 
+  /**
+   * Returns the playlist of this player, whose first item is the video the player was created
+   * with. Videos added to the playlist are played one after another in this player, without
+   * rebuilding its layers.
+   */
+  public Playlist getPlaylist() {
+    if (playlist == null) {
+      playlist = new Playlist(activity, layerManager.getExoplayerWrapper(), video);
+    }
+    return playlist;
+  }
+
   /**
    * Hides the seek bar thumb and prevents the user from seeking to different time points in the
    * video.
@@ -176,6 +259,14 @@ public class SimpleVideoPlayer {
     return layerManager.getControl().getDuration();
   }
 
+  /**
+   * Returns the latest snapshot of the state of the player, which holds a consistent position,
+   * duration and buffer. It may be read from any thread.
+   */
+  public PlaybackSnapshot getPlaybackSnapshot() {
+    return layerManager.getExoplayerWrapper().getPlaybackSnapshot();
+  }
+
   /**
    * Fades the playback control layer out and then removes it from the {@link LayerManager}'s
    * container.
@@ -227,6 +318,15 @@ public class SimpleVideoPlayer {
     videoSurfaceLayer.moveSurfaceToForeground();
   }
 
+  /**
+   * Give buffer memory back when the system asks the application to release memory. Forward the
+   * level received by {@link android.app.Activity#onTrimMemory(int)}.
+   * @param level One of the ComponentCallbacks2.TRIM_MEMORY_* constants.
+   */
+  public void onTrimMemory(int level) {
+    layerManager.getExoplayerWrapper().onTrimMemory(level);
+  }
+
   /**
    * Pause video playback.
    */
@@ -349,6 +449,10 @@ public class SimpleVideoPlayer {
    * When you are finished using this {@link SimpleVideoPlayer}, make sure to call this method.
    */
   public void release() {
+    if (playlist != null) {
+      playlist.release();
+      playlist = null;
+    }
     videoSurfaceLayer.release();
     layerManager.release();
   }
@@ -0,0 +1,155 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Tests the sessions simulated by {@link AbrSimulator}.
+ */
+public class AbrSimulatorTest {
+
+  private static final int[] BITRATES = new int[] {1000000, 500000};
+  private static final int SEGMENT_DURATION_MS = 2000;
+
+  @Test
+  public void trace_withZeroDuration_isRejected() {
+    try {
+      new AbrSimulator.Trace(new long[] {1000, 0}, new long[] {1000000, 1000000});
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void trace_withNegativeBandwidth_isRejected() {
+    try {
+      new AbrSimulator.Trace(new long[] {1000}, new long[] {-1});
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void parse_withZeroDuration_throws() {
+    try {
+      AbrSimulator.Trace.parse(new StringReader("0 1000000\n"));
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void simulate_withAmpleBandwidth_neverRebuffers() throws IOException {
+    AbrSimulator.Trace trace =
+        AbrSimulator.Trace.parse(new StringReader("# Constant 4 Mbps.\n\n1000 4000000\n"));
+    AbrSimulator simulator = new AbrSimulator(BITRATES, SEGMENT_DURATION_MS, 10);
+
+    AbrSimulator.Result result = simulator.simulate(new FixedStrategy(0), trace);
+
+    assertEquals(1000000, result.averageBitrate);
+    assertEquals(0, result.switchCount);
+    // Each segment takes 500 ms, and playback starts once two are buffered.
+    assertEquals(1000, result.startupTimeMs);
+    assertEquals(0, result.rebufferCount);
+    assertEquals(1000, result.score, 0.001);
+  }
+
+  @Test
+  public void simulate_withScarceBandwidth_countsRebuffers() {
+    AbrSimulator.Trace trace = new AbrSimulator.Trace(new long[] {1000}, new long[] {500000});
+    AbrSimulator simulator = new AbrSimulator(BITRATES, SEGMENT_DURATION_MS, 5);
+
+    AbrSimulator.Result result = simulator.simulate(new FixedStrategy(0), trace);
+
+    // Each segment takes 4 s: the third one drains the buffer, the fourth one stalls playback 2 s
+    // before it is downloaded, and playback resumes once the fifth one is.
+    assertEquals(8000, result.startupTimeMs);
+    assertEquals(1, result.rebufferCount);
+    assertEquals(6000, result.rebufferTimeMs);
+    assertEquals(1000 - AbrSimulator.REBUFFER_PENALTY_KBPS * 6 / 5, result.score, 0.001);
+  }
+
+  @Test
+  public void simulate_withSegmentsShorterThanMinBuffer_waitsForMinBufferAfterStall() {
+    // 3 s at 1 Mbps, then 4 s at 250 kbps.
+    AbrSimulator.Trace trace =
+        new AbrSimulator.Trace(new long[] {3000, 4000}, new long[] {1000000, 250000});
+    AbrSimulator simulator = new AbrSimulator(new int[] {1000000}, 1000, 6, 2500, 30000);
+
+    AbrSimulator.Result result = simulator.simulate(new FixedStrategy(0), trace);
+
+    // Playback starts at 3 s with 3 s buffered. The fourth segment takes 4 s, so playback stalls
+    // at 6 s, and resumes at 9 s once three segments are buffered again.
+    assertEquals(3000, result.startupTimeMs);
+    assertEquals(1, result.rebufferCount);
+    assertEquals(3000, result.rebufferTimeMs);
+  }
+
+  @Test
+  public void simulate_countsSwitches() {
+    AbrSimulator.Trace trace = new AbrSimulator.Trace(new long[] {1000}, new long[] {4000000});
+    AbrSimulator simulator = new AbrSimulator(BITRATES, SEGMENT_DURATION_MS, 4);
+
+    AbrSimulator.Result result = simulator.simulate(new AbrStrategy() {
+      @Override
+      public int selectFormat(int[] bitrates, int selectedIndex, long bufferedDurationUs,
+                              long bandwidthEstimateBps) {
+        return selectedIndex == 0 ? 1 : 0;
+      }
+    }, trace);
+
+    assertEquals(3, result.switchCount);
+    assertEquals(750000, result.averageBitrate);
+  }
+
+  @Test
+  public void simulate_withoutBandwidth_throws() {
+    AbrSimulator.Trace trace = new AbrSimulator.Trace(new long[] {1000, 500}, new long[] {0, 0});
+    AbrSimulator simulator = new AbrSimulator(BITRATES, SEGMENT_DURATION_MS, 1);
+    try {
+      simulator.simulate(new FixedStrategy(0), trace);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  private static final class FixedStrategy implements AbrStrategy {
+
+    private final int index;
+
+    public FixedStrategy(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public int selectFormat(int[] bitrates, int selectedIndex, long bufferedDurationUs,
+                            long bandwidthEstimateBps) {
+      return index;
+    }
+  }
+}
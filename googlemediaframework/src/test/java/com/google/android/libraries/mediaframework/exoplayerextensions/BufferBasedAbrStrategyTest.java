@@ -0,0 +1,72 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests the selections of {@link BufferBasedAbrStrategy}.
+ */
+public class BufferBasedAbrStrategyTest {
+
+  private static final int[] BITRATES = new int[] {3000000, 1500000, 500000};
+  private static final long HIGH_ESTIMATE_BPS = 10000000;
+  private static final long LOW_ESTIMATE_BPS = 1000000;
+
+  private final BufferBasedAbrStrategy strategy = new BufferBasedAbrStrategy(10000, 30000);
+
+  @Test
+  public void selectFormat_firstSegment_followsBandwidth() {
+    assertEquals(0, strategy.selectFormat(BITRATES, -1, 0, HIGH_ESTIMATE_BPS));
+    assertEquals(2, strategy.selectFormat(BITRATES, -1, 0, LOW_ESTIMATE_BPS));
+    assertEquals(2, strategy.selectFormat(BITRATES, -1, 0, AbrStrategy.NO_ESTIMATE));
+  }
+
+  @Test
+  public void selectFormat_atMinimumBuffer_selectsLowestBitrate() {
+    assertEquals(2, strategy.selectFormat(BITRATES, 0, 0, HIGH_ESTIMATE_BPS));
+    assertEquals(2, strategy.selectFormat(BITRATES, 0, 10000000, HIGH_ESTIMATE_BPS));
+  }
+
+  @Test
+  public void selectFormat_atTargetBuffer_selectsHighestBitrate() {
+    assertEquals(0, strategy.selectFormat(BITRATES, 2, 30000000, HIGH_ESTIMATE_BPS));
+  }
+
+  @Test
+  public void selectFormat_withLowBandwidth_doesNotIncreaseBitrate() {
+    assertEquals(2, strategy.selectFormat(BITRATES, 2, 30000000, LOW_ESTIMATE_BPS));
+  }
+
+  @Test
+  public void selectFormat_singleBitrate_selectsIt() {
+    assertEquals(0, strategy.selectFormat(new int[] {500000}, 0, 0, LOW_ESTIMATE_BPS));
+  }
+
+  @Test
+  public void constructor_targetBelowMinimum_isRejected() {
+    try {
+      new BufferBasedAbrStrategy(10000, 10000);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.exoplayer.dash.mpd.SegmentBase.SegmentTimelineElement;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Tests the sharing and the compaction of the segment stores of {@link CompactMpdParser}.
+ */
+public class CompactMpdParserTest {
+
+  private static final long DURATION = 10;
+
+  private final CompactMpdParser parser = new CompactMpdParser();
+
+  @Test
+  public void parseSegmentTimeline_expandsRepeatedSegments() throws Exception {
+    parser.startManifest();
+    List<SegmentTimelineElement> timeline = parseTimeline(
+        "<SegmentTimeline><S t=\"100\" d=\"10\" r=\"2\"/><S d=\"20\"/></SegmentTimeline>");
+    parser.endManifest();
+
+    assertEquals(4, timeline.size());
+    assertSegment(timeline.get(0), 100, 10);
+    assertSegment(timeline.get(2), 120, 10);
+    assertSegment(timeline.get(3), 130, 20);
+  }
+
+  @Test
+  public void parseSegmentTimeline_identicalTimelines_shareStore() throws Exception {
+    parser.startManifest();
+    List<SegmentTimelineElement> first = parseTimeline(timeline(0, 10));
+    List<SegmentTimelineElement> second = parseTimeline(timeline(0, 10));
+    parser.endManifest();
+
+    assertEquals(1, parser.getStoreCount());
+    assertEquals(10, parser.getStoredSegmentCount());
+    assertTimeline(first, 0, 10);
+    assertTimeline(second, 0, 10);
+  }
+
+  @Test
+  public void parseSegmentTimeline_divergingTimelines_useSeparateStores() throws Exception {
+    parser.startManifest();
+    List<SegmentTimelineElement> first = parseTimeline(timeline(0, 10));
+    List<SegmentTimelineElement> second = parseTimeline(
+        "<SegmentTimeline><S t=\"0\" d=\"10\" r=\"4\"/><S d=\"5\"/></SegmentTimeline>");
+    parser.endManifest();
+
+    assertEquals(2, parser.getStoreCount());
+    assertTimeline(first, 0, 10);
+    assertEquals(6, second.size());
+    assertSegment(second.get(4), 40, 10);
+    assertSegment(second.get(5), 50, 5);
+  }
+
+  @Test
+  public void parseSegmentTimeline_refresh_appendsNewSegmentsToStore() throws Exception {
+    parser.startManifest();
+    List<SegmentTimelineElement> previous = parseTimeline(timeline(0, 10));
+    parser.endManifest();
+
+    parser.startManifest();
+    List<SegmentTimelineElement> refreshed = parseTimeline(timeline(2, 10));
+    parser.endManifest();
+
+    // The window moved by two segments, which stay in the store until it is compacted.
+    assertEquals(1, parser.getStoreCount());
+    assertEquals(12, parser.getStoredSegmentCount());
+    assertTimeline(refreshed, 2, 10);
+    // The timeline of the previous manifest is unaffected by the appended segments.
+    assertTimeline(previous, 0, 10);
+  }
+
+  @Test
+  public void parseSegmentTimeline_windowMovedPastHalf_compactsStore() throws Exception {
+    parser.startManifest();
+    parseTimeline(timeline(0, 10));
+    parser.endManifest();
+    parser.startManifest();
+    parseTimeline(timeline(2, 10));
+    parser.endManifest();
+
+    parser.startManifest();
+    List<SegmentTimelineElement> refreshed = parseTimeline(timeline(8, 10));
+    parser.endManifest();
+
+    assertEquals(1, parser.getStoreCount());
+    assertEquals(10, parser.getStoredSegmentCount());
+    assertTimeline(refreshed, 8, 10);
+  }
+
+  private List<SegmentTimelineElement> parseTimeline(String xml)
+      throws XmlPullParserException, IOException {
+    XmlPullParser xpp = new KXmlParser();
+    xpp.setInput(new StringReader(xml));
+    xpp.next();
+    return parser.parseSegmentTimeline(xpp);
+  }
+
+  /**
+   * Returns a timeline of segments of {@link #DURATION}, from the given segment number.
+   */
+  private static String timeline(int firstSegment, int segmentCount) {
+    return "<SegmentTimeline><S t=\"" + firstSegment * DURATION + "\" d=\"" + DURATION
+        + "\" r=\"" + (segmentCount - 1) + "\"/></SegmentTimeline>";
+  }
+
+  private static void assertTimeline(List<SegmentTimelineElement> timeline, int firstSegment,
+                                     int segmentCount) {
+    assertEquals(segmentCount, timeline.size());
+    for (int i = 0; i < segmentCount; i++) {
+      assertSegment(timeline.get(i), (firstSegment + i) * DURATION, DURATION);
+    }
+  }
+
+  private static void assertSegment(SegmentTimelineElement segment, long startTime,
+                                    long duration) {
+    assertEquals(startTime, segment.startTime);
+    assertEquals(duration, segment.duration);
+  }
+}
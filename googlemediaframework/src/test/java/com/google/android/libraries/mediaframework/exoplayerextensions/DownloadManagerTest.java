@@ -0,0 +1,241 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Tests the restoration and the removal of downloads by {@link DownloadManager}. The tasks of the
+ * manager are captured instead of run, so that no download reaches the network.
+ */
+public class DownloadManagerTest {
+
+  private static final String URL = "https://example.com/video.mpd";
+  private static final int MAX_BITRATE = 1000000;
+  private static final int MAX_HEIGHT = 720;
+
+  private File directory;
+  private File cacheDirectory;
+  private Video video;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("downloads", "");
+    directory.delete();
+    directory.mkdirs();
+    cacheDirectory = new File(directory, ManifestCache.getFileName(URL));
+    video = new Video(URL, Video.VideoType.DASH);
+    executor = mock(ExecutorService.class);
+  }
+
+  @After
+  public void tearDown() {
+    deleteRecursively(directory);
+  }
+
+  @Test
+  public void constructor_restoresDownloadsAsPaused() throws IOException {
+    saveDownload();
+
+    DownloadManager downloadManager = newDownloadManager();
+
+    Download download = downloadManager.getDownload(video);
+    assertEquals(Download.STATE_PAUSED, download.getState());
+    assertEquals(MAX_BITRATE, download.getMaxBitrate());
+    assertEquals(MAX_HEIGHT, download.getMaxHeight());
+  }
+
+  @Test
+  public void constructor_withCorruptState_deletesIt() throws IOException {
+    File stateFile = new File(directory, "corrupt.download");
+    FileOutputStream output = new FileOutputStream(stateFile);
+    output.write(new byte[] {0, 0, 0, 42});
+    output.close();
+
+    DownloadManager downloadManager = newDownloadManager();
+
+    assertTrue(downloadManager.getDownloads().isEmpty());
+    assertFalse(stateFile.exists());
+  }
+
+  @Test
+  public void remove_deletesStateAndThenData() throws IOException {
+    File stateFile = saveDownload();
+    File dataFile = saveData();
+    DownloadManager downloadManager = newDownloadManager();
+    Download download = downloadManager.getDownload(video);
+
+    downloadManager.remove(download);
+
+    assertTrue(download.isRemoved());
+    assertFalse(stateFile.exists());
+    assertTrue(dataFile.exists());
+    runTasks(1);
+    assertFalse(dataFile.exists());
+    assertFalse(cacheDirectory.exists());
+  }
+
+  @Test
+  public void remove_twice_deletesDataOnce() throws IOException {
+    saveDownload();
+    DownloadManager downloadManager = newDownloadManager();
+    Download download = downloadManager.getDownload(video);
+
+    downloadManager.remove(download);
+    downloadManager.remove(download);
+
+    assertEquals(1, captureTasks().size());
+  }
+
+  @Test
+  public void download_whileDeletionPending_startsAfterDeletion() throws IOException {
+    saveDownload();
+    File dataFile = saveData();
+    DownloadManager downloadManager = newDownloadManager();
+    downloadManager.remove(downloadManager.getDownload(video));
+
+    Download download = downloadManager.download(video, MAX_BITRATE, MAX_HEIGHT);
+
+    // Only the deletion has been scheduled: the new download waits for it.
+    assertEquals(Download.STATE_QUEUED, download.getState());
+    List<Runnable> tasks = captureTasks();
+    assertEquals(1, tasks.size());
+
+    tasks.get(0).run();
+
+    assertFalse(dataFile.exists());
+    assertEquals(Download.STATE_DOWNLOADING, download.getState());
+    assertEquals(2, captureTasks().size());
+  }
+
+  @Test
+  public void resume_whileDeletionPending_queuesDownload() throws IOException {
+    saveDownload();
+    DownloadManager downloadManager = newDownloadManager();
+    downloadManager.remove(downloadManager.getDownload(video));
+    Download download = downloadManager.download(video, MAX_BITRATE, MAX_HEIGHT);
+    downloadManager.pause(download);
+    assertEquals(Download.STATE_PAUSED, download.getState());
+
+    downloadManager.resume(download);
+
+    assertEquals(Download.STATE_QUEUED, download.getState());
+    assertEquals(1, captureTasks().size());
+  }
+
+  @Test
+  public void download_withOtherCaps_replacesDownload() throws IOException {
+    saveDownload();
+    DownloadManager downloadManager = newDownloadManager();
+    Download previousDownload = downloadManager.getDownload(video);
+
+    Download download = downloadManager.download(video, MAX_BITRATE / 2, MAX_HEIGHT);
+
+    assertNotSame(previousDownload, download);
+    assertTrue(previousDownload.isRemoved());
+    assertSame(download, downloadManager.getDownload(video));
+    assertEquals(MAX_BITRATE / 2, download.getMaxBitrate());
+    assertEquals(Download.STATE_QUEUED, download.getState());
+  }
+
+  @Test
+  public void download_withSameCaps_resumesDownload() throws IOException {
+    saveDownload();
+    DownloadManager downloadManager = newDownloadManager();
+    Download previousDownload = downloadManager.getDownload(video);
+
+    Download download = downloadManager.download(video, MAX_BITRATE, MAX_HEIGHT);
+
+    assertSame(previousDownload, download);
+    assertEquals(Download.STATE_DOWNLOADING, download.getState());
+  }
+
+  private DownloadManager newDownloadManager() {
+    return new DownloadManager(mock(Context.class), directory, 1, "Test", executor,
+        mock(Handler.class));
+  }
+
+  /**
+   * Save the state of a download of {@link #video}, as an earlier process would have.
+   */
+  private File saveDownload() throws IOException {
+    File stateFile = new File(cacheDirectory.getPath() + ".download");
+    DataOutputStream output = new DataOutputStream(new FileOutputStream(stateFile));
+    new Download(video, MAX_BITRATE, MAX_HEIGHT, cacheDirectory).writeState(output);
+    output.close();
+    return stateFile;
+  }
+
+  /**
+   * Put a file in the directory which holds the data of the download of {@link #video}.
+   */
+  private File saveData() throws IOException {
+    cacheDirectory.mkdirs();
+    File dataFile = new File(cacheDirectory, "0.v2.exo");
+    FileOutputStream output = new FileOutputStream(dataFile);
+    output.write(new byte[16]);
+    output.close();
+    return dataFile;
+  }
+
+  private List<Runnable> captureTasks() {
+    ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor, atLeastOnce()).execute(tasks.capture());
+    return tasks.getAllValues();
+  }
+
+  private void runTasks(int count) {
+    List<Runnable> tasks = captureTasks();
+    assertEquals(count, tasks.size());
+    for (Runnable task : tasks) {
+      task.run();
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the coalescing and the recycling of the events of {@link EventQueue}.
+ */
+public class EventQueueTest {
+
+  private Handler handler;
+  private List<Integer> dispatchedTypes;
+  private EventQueue queue;
+
+  @Before
+  public void setUp() {
+    handler = mock(Handler.class);
+    dispatchedTypes = new ArrayList<Integer>();
+    queue = new EventQueue(handler, new EventQueue.Dispatcher() {
+      @Override
+      public void dispatch(EventQueue.Event event) {
+        dispatchedTypes.add(event.type);
+      }
+    });
+  }
+
+  @Test
+  public void post_whilePending_postsOnce() {
+    queue.post(queue.obtain(1, 0));
+    queue.post(queue.obtain(2, 0));
+    queue.post(queue.obtain(3, 0));
+
+    verify(handler, times(1)).post(queue);
+  }
+
+  @Test
+  public void run_dispatchesInOrder() {
+    queue.post(queue.obtain(1, 0));
+    queue.post(queue.obtain(2, 0));
+    queue.run();
+
+    assertEquals(2, dispatchedTypes.size());
+    assertEquals(1, (int) dispatchedTypes.get(0));
+    assertEquals(2, (int) dispatchedTypes.get(1));
+  }
+
+  @Test
+  public void post_afterRun_postsAgain() {
+    queue.post(queue.obtain(1, 0));
+    queue.run();
+    queue.post(queue.obtain(2, 0));
+
+    verify(handler, times(2)).post(queue);
+  }
+
+  @Test
+  public void obtain_afterRun_reusesClearedEvent() {
+    EventQueue.Event event = queue.obtain(1, 0);
+    event.error = new IOException();
+    queue.post(event);
+    queue.run();
+
+    EventQueue.Event reused = queue.obtain(2, 7);
+
+    assertSame(event, reused);
+    assertEquals(2, reused.type);
+    assertEquals(7, reused.session);
+    assertNull(reused.error);
+  }
+}
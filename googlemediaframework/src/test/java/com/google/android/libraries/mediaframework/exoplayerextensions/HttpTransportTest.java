@@ -0,0 +1,391 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tests the connection reuse and the coalescing of byte ranges of {@link HttpTransport} against a
+ * local HTTP server.
+ */
+public class HttpTransportTest {
+
+  private static final int RESOURCE_LENGTH = 100 * 1024;
+
+  private byte[] resource;
+  private FakeServer server;
+  private HttpTransport transport;
+  private HttpDataSource dataSource;
+  private Uri uri;
+
+  @Before
+  public void setUp() throws IOException {
+    resource = new byte[RESOURCE_LENGTH];
+    for (int i = 0; i < resource.length; i++) {
+      resource[i] = (byte) i;
+    }
+    server = new FakeServer(resource);
+    transport = new HttpTransport();
+    dataSource = transport.createHttpDataSource("Test", null);
+    uri = newUri(server.getUrl("/resource"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    dataSource.close();
+    server.close();
+  }
+
+  @Test
+  public void open_afterResponseReadToEnd_reusesConnection() throws IOException {
+    assertArrayEquals(resource, read(new DataSpec(uri)));
+    assertArrayEquals(resource, read(new DataSpec(uri)));
+
+    assertEquals(2, server.getRequests().size());
+    assertEquals(server.getRequests().get(0).connectionId,
+        server.getRequests().get(1).connectionId);
+  }
+
+  @Test
+  public void close_withShortRemainder_drainsAndReusesConnection() throws IOException {
+    dataSource.open(new DataSpec(uri));
+    readFully(RESOURCE_LENGTH - 1000);
+    dataSource.close();
+    read(new DataSpec(uri));
+
+    assertEquals(server.getRequests().get(0).connectionId,
+        server.getRequests().get(1).connectionId);
+  }
+
+  @Test
+  public void close_withLargeRemainder_disconnects() throws IOException {
+    dataSource.open(new DataSpec(uri));
+    readFully(1000);
+    dataSource.close();
+    read(new DataSpec(uri));
+
+    assertNotEquals(server.getRequests().get(0).connectionId,
+        server.getRequests().get(1).connectionId);
+  }
+
+  @Test
+  public void open_adjacentRanges_coalescesRequests() throws IOException {
+    assertArrayEquals(slice(0, 1000), read(new DataSpec(uri, 0, 1000, null)));
+    assertArrayEquals(slice(1000, 1000), read(new DataSpec(uri, 1000, 1000, null)));
+    assertArrayEquals(slice(2000, 1000), read(new DataSpec(uri, 2000, 1000, null)));
+
+    // The second range follows the first, so it asks for the rest of the resource, and the third
+    // range is read from its response.
+    List<FakeServer.Request> requests = server.getRequests();
+    assertEquals(2, requests.size());
+    assertEquals("bytes=0-999", requests.get(0).headers.get("range"));
+    assertEquals("bytes=1000-", requests.get(1).headers.get("range"));
+    assertEquals(3, transport.getRequestCount());
+    assertEquals(1, transport.getCoalescedRequestCount());
+  }
+
+  @Test
+  public void open_nonAdjacentRange_asksForExactRange() throws IOException {
+    read(new DataSpec(uri, 0, 1000, null));
+    assertArrayEquals(slice(2000, 1000), read(new DataSpec(uri, 2000, 1000, null)));
+
+    assertEquals("bytes=2000-2999", server.getRequests().get(1).headers.get("range"));
+    assertEquals(0, transport.getCoalescedRequestCount());
+  }
+
+  @Test
+  public void open_adjacentRangesAllowingGzip_areNotCoalesced() throws IOException {
+    read(new DataSpec(uri, 0, 1000, null, DataSpec.FLAG_ALLOW_GZIP));
+    read(new DataSpec(uri, 1000, 1000, null, DataSpec.FLAG_ALLOW_GZIP));
+    read(new DataSpec(uri, 2000, 1000, null, DataSpec.FLAG_ALLOW_GZIP));
+
+    assertEquals(3, server.getRequests().size());
+    assertEquals("bytes=1000-1999", server.getRequests().get(1).headers.get("range"));
+    assertEquals(0, transport.getCoalescedRequestCount());
+  }
+
+  @Test
+  public void open_withRequestProperty_doesNotUseHeldResponse() throws IOException {
+    read(new DataSpec(uri, 0, 1000, null));
+    read(new DataSpec(uri, 1000, 1000, null));
+    dataSource.setRequestProperty("X-Test", "1");
+
+    assertArrayEquals(slice(2000, 1000), read(new DataSpec(uri, 2000, 1000, null)));
+
+    assertEquals(3, server.getRequests().size());
+    assertEquals("1", server.getRequests().get(2).headers.get("x-test"));
+  }
+
+  @Test
+  public void open_notModified_throwsWithResponseCode() throws IOException {
+    dataSource.setRequestProperty("If-None-Match", "\"v1\"");
+    try {
+      dataSource.open(new DataSpec(uri));
+      fail();
+    } catch (HttpDataSource.InvalidResponseCodeException e) {
+      assertEquals(304, e.responseCode);
+    }
+    dataSource.close();
+    dataSource.clearAllRequestProperties();
+
+    // The next request succeeds, and only it is reported as completed.
+    assertArrayEquals(resource, read(new DataSpec(uri)));
+    assertEquals(1, transport.getRequestCount());
+  }
+
+  @Test
+  public void open_notFound_throwsWithResponseCode() throws IOException {
+    try {
+      dataSource.open(new DataSpec(newUri(server.getUrl("/missing"))));
+      fail();
+    } catch (HttpDataSource.InvalidResponseCodeException e) {
+      assertEquals(404, e.responseCode);
+    }
+  }
+
+  @Test
+  public void read_pastEndOfTruncatedResponse_throws() throws IOException {
+    dataSource.open(new DataSpec(uri, RESOURCE_LENGTH - 1000, 2000, null));
+    try {
+      readFully(2000);
+      fail();
+    } catch (HttpDataSource.HttpDataSourceException e) {
+      assertEquals(HttpDataSource.HttpDataSourceException.TYPE_READ, e.type);
+    }
+  }
+
+  private byte[] read(DataSpec dataSpec) throws IOException {
+    try {
+      dataSource.open(dataSpec);
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        output.write(buffer, 0, read);
+      }
+      return output.toByteArray();
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  private void readFully(int length) throws IOException {
+    byte[] buffer = new byte[4096];
+    while (length > 0) {
+      int read = dataSource.read(buffer, 0, Math.min(length, buffer.length));
+      if (read == C.RESULT_END_OF_INPUT) {
+        throw new IOException("Unexpected end of input");
+      }
+      length -= read;
+    }
+  }
+
+  private byte[] slice(int position, int length) {
+    return Arrays.copyOfRange(resource, position, position + length);
+  }
+
+  private static Uri newUri(String url) {
+    Uri uri = mock(Uri.class);
+    when(uri.toString()).thenReturn(url);
+    return uri;
+  }
+
+  /**
+   * A minimal HTTP/1.1 server which keeps its connections alive and serves byte ranges of a
+   * resource. It answers conditional requests with 304, and other paths with 404.
+   */
+  private static final class FakeServer implements Runnable {
+
+    /**
+     * A request received by the server.
+     */
+    public static final class Request {
+
+      /**
+       * The number of the connection which carried the request.
+       */
+      public final int connectionId;
+      public final String path;
+
+      /**
+       * The headers of the request, by lower case name.
+       */
+      public final Map<String, String> headers;
+
+      public Request(int connectionId, String path, Map<String, String> headers) {
+        this.connectionId = connectionId;
+        this.path = path;
+        this.headers = headers;
+      }
+    }
+
+    private final byte[] resource;
+    private final ServerSocket serverSocket;
+    private final List<Request> requests;
+    private final List<Socket> sockets;
+    private int connectionCount;
+
+    public FakeServer(byte[] resource) throws IOException {
+      this.resource = resource;
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      requests = new ArrayList<Request>();
+      sockets = new ArrayList<Socket>();
+      Thread thread = new Thread(this, "FakeServer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    public String getUrl(String path) {
+      return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    public synchronized List<Request> getRequests() {
+      return new ArrayList<Request>(requests);
+    }
+
+    public synchronized void close() throws IOException {
+      serverSocket.close();
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          final int connectionId;
+          synchronized (this) {
+            connectionId = connectionCount++;
+            sockets.add(socket);
+          }
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              serve(socket, connectionId);
+            }
+          }, "FakeServer:" + connectionId);
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // The server has been closed.
+      }
+    }
+
+    private void serve(Socket socket, int connectionId) {
+      try {
+        InputStream input = socket.getInputStream();
+        OutputStream output = socket.getOutputStream();
+        String requestLine;
+        while ((requestLine = readLine(input)) != null) {
+          Map<String, String> headers = new HashMap<String, String>();
+          String line;
+          while ((line = readLine(input)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                line.substring(colon + 1).trim());
+          }
+          String path = requestLine.split(" ")[1];
+          synchronized (this) {
+            requests.add(new Request(connectionId, path, headers));
+          }
+          respond(output, path, headers);
+        }
+      } catch (IOException e) {
+        // The connection has been closed.
+      }
+    }
+
+    private void respond(OutputStream output, String path, Map<String, String> headers)
+        throws IOException {
+      if (!path.equals("/resource")) {
+        writeResponse(output, "404 Not Found", "", "Not found".getBytes("UTF-8"));
+        return;
+      }
+      if (headers.containsKey("if-none-match")) {
+        output.write("HTTP/1.1 304 Not Modified\r\n\r\n".getBytes("UTF-8"));
+        output.flush();
+        return;
+      }
+      String range = headers.get("range");
+      if (range == null) {
+        writeResponse(output, "200 OK", "", resource);
+        return;
+      }
+      String[] bounds = range.substring("bytes=".length()).split("-", -1);
+      int start = Integer.parseInt(bounds[0]);
+      int end = bounds[1].isEmpty() ? resource.length - 1
+          : Math.min(resource.length - 1, Integer.parseInt(bounds[1]));
+      writeResponse(output, "206 Partial Content",
+          "Content-Range: bytes " + start + "-" + end + "/" + resource.length + "\r\n",
+          Arrays.copyOfRange(resource, start, end + 1));
+    }
+
+    private static void writeResponse(OutputStream output, String status, String headers,
+                                      byte[] body) throws IOException {
+      output.write(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: " + body.length
+          + "\r\n\r\n").getBytes("UTF-8"));
+      output.write(body);
+      output.flush();
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = input.read()) != -1) {
+        if (c == '\n') {
+          int length = line.length();
+          return length > 0 && line.charAt(length - 1) == '\r'
+              ? line.substring(0, length - 1) : line.toString();
+        }
+        line.append((char) c);
+      }
+      return line.length() == 0 ? null : line.toString();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.android.exoplayer.upstream.UriLoadable;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests that {@link IncrementalManifestParser} only parses the manifests which have changed.
+ */
+public class IncrementalManifestParserTest {
+
+  private static final String URL = "http://example.com/live.mpd";
+
+  private final CountingParser upstream = new CountingParser();
+  private final IncrementalManifestParser<String> parser =
+      new IncrementalManifestParser<String>(upstream);
+
+  @Test
+  public void parse_unchangedManifest_returnsPreviousManifest() throws IOException {
+    String first = parser.parse(URL, stream("manifest"));
+    String second = parser.parse(URL, stream("manifest"));
+
+    assertSame(first, second);
+    assertEquals(1, upstream.parseCount);
+    assertEquals(1, parser.getParseCount());
+    assertEquals(1, parser.getSkippedParseCount());
+  }
+
+  @Test
+  public void parse_changedManifest_parsesAgain() throws IOException {
+    parser.parse(URL, stream("manifest 1"));
+    String manifest = parser.parse(URL, stream("manifest 2"));
+
+    assertEquals("manifest 2", manifest);
+    assertEquals(2, parser.getParseCount());
+    assertEquals(0, parser.getSkippedParseCount());
+  }
+
+  @Test
+  public void parse_changedConnectionUrl_parsesAgain() throws IOException {
+    String first = parser.parse(URL, stream("manifest"));
+    String second = parser.parse("http://cdn.example.com/live.mpd", stream("manifest"));
+
+    assertNotSame(first, second);
+    assertEquals(2, upstream.parseCount);
+  }
+
+  @Test
+  public void parse_afterFailedParse_parsesAgain() throws IOException {
+    parser.parse(URL, stream("manifest"));
+    upstream.fail = true;
+    try {
+      parser.parse(URL, stream("broken"));
+    } catch (IOException e) {
+      // Expected.
+    }
+    upstream.fail = false;
+
+    parser.parse(URL, stream("broken"));
+
+    assertEquals(2, parser.getParseCount());
+  }
+
+  private static InputStream stream(String manifest) {
+    return new ByteArrayInputStream(manifest.getBytes());
+  }
+
+  /**
+   * Returns the text of the manifest as a new string, and counts its calls.
+   */
+  private static final class CountingParser implements UriLoadable.Parser<String> {
+
+    private int parseCount;
+    private boolean fail;
+
+    @Override
+    public String parse(String connectionUrl, InputStream inputStream) throws IOException {
+      if (fail) {
+        throw new IOException();
+      }
+      parseCount++;
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      int read;
+      while ((read = inputStream.read()) != -1) {
+        output.write(read);
+      }
+      return new String(output.toByteArray());
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.Handler;
+
+import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.exoplayer.TimeRange;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests the corrections of the live latency by {@link LiveLatencyController}.
+ */
+public class LiveLatencyControllerTest {
+
+  private static final long LIVE_EDGE_MS = 100000;
+  private static final long TARGET_LATENCY_MS = 10000;
+
+  private ExoplayerWrapper player;
+  private Handler handler;
+  private LiveLatencyController controller;
+  private Runnable updateRunnable;
+
+  @Before
+  public void setUp() {
+    player = mock(ExoplayerWrapper.class);
+    handler = mock(Handler.class);
+    when(player.getPlaybackState()).thenReturn(ExoPlayer.STATE_READY);
+    when(player.getPlayWhenReady()).thenReturn(true);
+    controller = new LiveLatencyController(player, handler);
+
+    TimeRange availableRange = mock(TimeRange.class);
+    when(availableRange.isStatic()).thenReturn(false);
+    doAnswer(new Answer<long[]>() {
+      @Override
+      public long[] answer(InvocationOnMock invocation) {
+        long[] bounds = (long[]) invocation.getArguments()[0];
+        bounds[0] = 0;
+        bounds[1] = LIVE_EDGE_MS;
+        return bounds;
+      }
+    }).when(availableRange).getCurrentBoundsMs(any(long[].class));
+    controller.onAvailableRangeChanged(availableRange);
+
+    ArgumentCaptor<Runnable> runnable = ArgumentCaptor.forClass(Runnable.class);
+    verify(handler).postDelayed(runnable.capture(),
+        eq((long) LiveLatencyController.UPDATE_INTERVAL_MS));
+    updateRunnable = runnable.getValue();
+  }
+
+  @Test
+  public void update_withoutTarget_onlyMeasuresLatency() {
+    setLatencyMs(30000);
+
+    updateRunnable.run();
+
+    assertEquals(30000, controller.getLatencyMs());
+    assertEquals(30000, controller.getAverageLatencyMs());
+    verify(player, never()).seekTo(anyInt());
+    verify(player, never()).setPlaybackRate(anyFloat());
+  }
+
+  @Test
+  public void update_whilePaused_doesNotMeasure() {
+    when(player.getPlayWhenReady()).thenReturn(false);
+    setLatencyMs(30000);
+
+    updateRunnable.run();
+
+    assertEquals(-1, controller.getLatencyMs());
+  }
+
+  @Test
+  public void update_smallDriftWithRateControl_speedsUp() {
+    when(player.canSetPlaybackRate()).thenReturn(true);
+    controller.setTargetLatencyMs(TARGET_LATENCY_MS);
+    setLatencyMs(TARGET_LATENCY_MS + 2000);
+
+    updateRunnable.run();
+
+    verify(player).setPlaybackRate(1 + LiveLatencyController.CATCH_UP_RATE_CHANGE);
+    assertEquals(1 + LiveLatencyController.CATCH_UP_RATE_CHANGE, controller.getPlaybackRate(),
+        0);
+    assertEquals(1, controller.getCatchUpCount());
+
+    setLatencyMs(TARGET_LATENCY_MS);
+    updateRunnable.run();
+
+    verify(player).setPlaybackRate(1);
+    assertEquals(1, controller.getCatchUpCount());
+  }
+
+  @Test
+  public void update_driftWithoutRateControl_seeksToTarget() {
+    controller.setTargetLatencyMs(TARGET_LATENCY_MS);
+    setLatencyMs(TARGET_LATENCY_MS + 2000);
+    updateRunnable.run();
+    verify(player, never()).seekTo(anyInt());
+
+    setLatencyMs(TARGET_LATENCY_MS + LiveLatencyController.SEEK_CATCH_UP_THRESHOLD_MS + 1000);
+    updateRunnable.run();
+
+    verify(player).seekTo((int) (LIVE_EDGE_MS - TARGET_LATENCY_MS));
+    verify(player, never()).setPlaybackRate(anyFloat());
+    assertEquals(1, controller.getCatchUpCount());
+  }
+
+  @Test
+  public void update_largeDrift_resyncs() {
+    when(player.canSetPlaybackRate()).thenReturn(true);
+    controller.setTargetLatencyMs(TARGET_LATENCY_MS);
+    setLatencyMs(TARGET_LATENCY_MS + LiveLatencyController.MAX_DRIFT_MS + 1000);
+
+    updateRunnable.run();
+
+    verify(player).seekTo((int) (LIVE_EDGE_MS - TARGET_LATENCY_MS));
+    assertEquals(1, controller.getResyncCount());
+    assertEquals(0, controller.getCatchUpCount());
+  }
+
+  private void setLatencyMs(long latencyMs) {
+    when(player.getCurrentPosition()).thenReturn(LIVE_EDGE_MS - latencyMs);
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+
+import com.google.android.exoplayer.chunk.Format;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests the buffer ceilings set by {@link MemoryPressureController}.
+ */
+public class MemoryPressureControllerTest {
+
+  private static final int SEGMENT_SIZE = 64 * 1024;
+
+  /**
+   * 160 video, 32 audio, 2 text and 192 muxed segments, so that the full ceiling is 194 segments.
+   */
+  private static final BufferPolicy BUFFER_POLICY =
+      new BufferPolicy(1000, 5000, 15000, 30000, SEGMENT_SIZE, 160, 32, 2, 192);
+  private static final int FULL_CEILING_BYTES = 194 * SEGMENT_SIZE;
+
+  private SharedAllocator pool;
+  private SharedAllocator.Partition allocator;
+  private Handler handler;
+  private MemoryPressureController controller;
+
+  @Before
+  public void setUp() {
+    pool = new SharedAllocator(SEGMENT_SIZE, 32 * 1024 * 1024);
+    allocator = pool.createPartition(SharedAllocator.DEFAULT_PRIORITY);
+    handler = mock(Handler.class);
+    controller = new MemoryPressureController(allocator, BUFFER_POLICY, handler);
+  }
+
+  @Test
+  public void setPressure_freesRecycledSegments() {
+    allocator.release(allocator.allocate());
+
+    controller.setPressure(0.5f);
+
+    assertEquals(0, pool.getRecycledBytes());
+  }
+
+  @Test
+  public void setPressure_withoutFormats_keepsFullCeiling() {
+    controller.setPressure(1);
+
+    assertEquals(FULL_CEILING_BYTES, allocator.getCeiling());
+  }
+
+  @Test
+  public void setPressure_withFormats_lowersCeilingInProportion() {
+    controller.onFormatChanged(ExoplayerWrapper.TYPE_VIDEO, newFormat(4000000));
+
+    controller.setPressure(0.5f);
+
+    assertEquals(FULL_CEILING_BYTES / 2, allocator.getCeiling());
+  }
+
+  @Test
+  public void setPressure_critical_stopsAtPlaybackThresholds() {
+    controller.onFormatChanged(ExoplayerWrapper.TYPE_VIDEO, newFormat(4000000));
+
+    controller.setPressure(1);
+
+    // 4 Mbps for the rebuffer threshold (5 s) and the margin (2 s).
+    assertEquals(3500000, allocator.getCeiling());
+  }
+
+  @Test
+  public void setPressure_critical_stopsAtMinCeiling() {
+    controller.onFormatChanged(ExoplayerWrapper.TYPE_AUDIO, newFormat(128000));
+
+    controller.setPressure(1);
+
+    assertEquals(MemoryPressureController.DEFAULT_MIN_CEILING_BYTES, allocator.getCeiling());
+  }
+
+  @Test
+  public void setPressure_outOfRange_isClamped() {
+    controller.setPressure(2);
+
+    assertEquals(1, controller.getPressure(), 0);
+  }
+
+  @Test
+  public void resetFormats_underPressure_restoresFullCeiling() {
+    controller.onFormatChanged(ExoplayerWrapper.TYPE_VIDEO, newFormat(4000000));
+    controller.setPressure(1);
+
+    controller.resetFormats();
+
+    assertEquals(FULL_CEILING_BYTES, allocator.getCeiling());
+  }
+
+  @Test
+  public void onTrimMemory_uiHidden_isIgnored() {
+    controller.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+    assertEquals(0, controller.getPressure(), 0);
+    assertEquals(Integer.MAX_VALUE, allocator.getCeiling());
+    verify(handler, never()).postDelayed(any(Runnable.class), anyLong());
+  }
+
+  @Test
+  public void onTrimMemory_lowerLevel_keepsHigherPressure() {
+    controller.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+    controller.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+
+    assertEquals(1, controller.getPressure(), 0);
+  }
+
+  @Test
+  public void onTrimMemory_afterRestoreDelay_clearsPressure() {
+    controller.onFormatChanged(ExoplayerWrapper.TYPE_VIDEO, newFormat(4000000));
+    controller.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+    ArgumentCaptor<Runnable> restoreRunnable = ArgumentCaptor.forClass(Runnable.class);
+    verify(handler).postDelayed(restoreRunnable.capture(),
+        eq((long) MemoryPressureController.RESTORE_DELAY_MS));
+    assertEquals(0.5f, controller.getPressure(), 0);
+
+    restoreRunnable.getValue().run();
+
+    assertEquals(0, controller.getPressure(), 0);
+    assertEquals(Integer.MAX_VALUE, allocator.getCeiling());
+  }
+
+  @Test
+  public void setCapBytes_appliesWithoutPressure() {
+    controller.setCapBytes(SEGMENT_SIZE);
+
+    assertEquals(SEGMENT_SIZE, allocator.getCeiling());
+
+    controller.setPressure(1);
+
+    assertEquals(SEGMENT_SIZE, allocator.getCeiling());
+
+    controller.setCapBytes(Integer.MAX_VALUE);
+
+    assertEquals(FULL_CEILING_BYTES, allocator.getCeiling());
+  }
+
+  private static Format newFormat(int bitrate) {
+    return new Format(Integer.toString(bitrate), "video/mp4", 1280, 720, 30, -1, -1, bitrate);
+  }
+}
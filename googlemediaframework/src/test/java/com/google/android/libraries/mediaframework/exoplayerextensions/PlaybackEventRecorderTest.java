@@ -0,0 +1,157 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Tests the ring buffer and the trace file format of {@link PlaybackEventRecorder}.
+ */
+public class PlaybackEventRecorderTest {
+
+  private File traceFile;
+
+  @Before
+  public void setUp() throws IOException {
+    traceFile = File.createTempFile("trace", ".bin");
+  }
+
+  @After
+  public void tearDown() {
+    traceFile.delete();
+  }
+
+  @Test
+  public void constructor_withZeroCapacity_throws() {
+    try {
+      new PlaybackEventRecorder(0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void constructor_withNegativeCapacity_throws() {
+    try {
+      new PlaybackEventRecorder(-1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void dump_writesHeaderAndEventsInOrder() throws IOException {
+    PlaybackEventRecorder recorder = new PlaybackEventRecorder(8);
+    recorder.record(PlaybackEventRecorder.EVENT_SEEK, 0, 1000, 0, 0);
+    recorder.record(PlaybackEventRecorder.EVENT_LOAD_COMPLETED, 1, 4096, 20, -3000);
+
+    recorder.dump(traceFile);
+
+    DataInputStream input = new DataInputStream(new FileInputStream(traceFile));
+    try {
+      assertEquals(PlaybackEventRecorder.TRACE_MAGIC, input.readInt());
+      assertEquals(PlaybackEventRecorder.TRACE_VERSION, input.readInt());
+      assertEquals(2, input.readInt());
+      assertEquals(PlaybackEventRecorder.SLOT_LONGS, input.readInt());
+
+      long firstTimestampNs = input.readLong();
+      assertEquals(PlaybackEventRecorder.EVENT_SEEK, (int) (input.readLong() >>> 32));
+      assertEquals(1000, input.readLong());
+      assertEquals(0, input.readLong());
+      assertEquals(0, input.readLong());
+
+      assertTrue(input.readLong() >= firstTimestampNs);
+      long header = input.readLong();
+      assertEquals(PlaybackEventRecorder.EVENT_LOAD_COMPLETED, (int) (header >>> 32));
+      assertEquals(1, (int) header);
+      assertEquals(4096, input.readLong());
+      assertEquals(20, input.readLong());
+      assertEquals(-3000, input.readLong());
+      assertEquals(-1, input.read());
+    } finally {
+      input.close();
+    }
+  }
+
+  @Test
+  public void record_whenFull_overwritesOldestEvents() throws IOException {
+    PlaybackEventRecorder recorder = new PlaybackEventRecorder(3);
+    for (int i = 0; i < 5; i++) {
+      recorder.record(PlaybackEventRecorder.EVENT_SEEK, 0, i, 0, 0);
+    }
+    assertEquals(3, recorder.size());
+
+    recorder.dump(traceFile);
+
+    DataInputStream input = new DataInputStream(new FileInputStream(traceFile));
+    try {
+      input.skipBytes(8);
+      assertEquals(3, input.readInt());
+      input.skipBytes(4);
+      for (int i = 2; i < 5; i++) {
+        input.skipBytes(16);
+        assertEquals(i, input.readLong());
+        input.skipBytes(16);
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  @Test
+  public void record_negativeArg0_isKept() throws IOException {
+    PlaybackEventRecorder recorder = new PlaybackEventRecorder(1);
+    recorder.record(PlaybackEventRecorder.EVENT_LOAD_ERROR, -1, 0, 0, 0);
+
+    recorder.dump(traceFile);
+
+    DataInputStream input = new DataInputStream(new FileInputStream(traceFile));
+    try {
+      input.skipBytes(PlaybackEventRecorder.TRACE_HEADER_SIZE + 8);
+      long header = input.readLong();
+      assertEquals(PlaybackEventRecorder.EVENT_LOAD_ERROR, (int) (header >>> 32));
+      assertEquals(-1, (int) header);
+    } finally {
+      input.close();
+    }
+  }
+
+  @Test
+  public void clear_discardsEvents() throws IOException {
+    PlaybackEventRecorder recorder = new PlaybackEventRecorder(4);
+    recorder.record(PlaybackEventRecorder.EVENT_SEEK, 0, 0, 0, 0);
+    recorder.clear();
+    assertEquals(0, recorder.size());
+
+    recorder.dump(traceFile);
+
+    assertEquals(PlaybackEventRecorder.TRACE_HEADER_SIZE, traceFile.length());
+  }
+}
@@ -0,0 +1,252 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.exoplayer.TimeRange;
+import com.google.android.exoplayer.chunk.Format;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the traces of {@link PlaybackEventRecorder} are replayed by
+ * {@link PlaybackEventReplayer}.
+ */
+public class PlaybackEventReplayerTest {
+
+  private static final long MS = 1000000;
+
+  private File traceFile;
+
+  @Before
+  public void setUp() throws IOException {
+    traceFile = File.createTempFile("trace", ".bin");
+  }
+
+  @After
+  public void tearDown() {
+    traceFile.delete();
+  }
+
+  @Test
+  public void replay_ofDumpedTrace_dispatchesRecordedEvents() throws Exception {
+    PlaybackEventRecorder recorder = new PlaybackEventRecorder();
+    recorder.record(PlaybackEventRecorder.EVENT_STATE_CHANGED, ExoPlayer.STATE_BUFFERING, 1, 0, 0);
+    recorder.record(PlaybackEventRecorder.EVENT_VIDEO_SIZE_CHANGED, 1280, 720, 0, 0);
+    recorder.record(PlaybackEventRecorder.EVENT_STATE_CHANGED, ExoPlayer.STATE_READY, 1, 0, 0);
+    recorder.record(PlaybackEventRecorder.EVENT_PLAYER_ERROR, 0, 0, 0, 0);
+    recorder.dump(traceFile);
+
+    PlaybackEventReplayer replayer = PlaybackEventReplayer.fromFile(traceFile);
+    RecordingListener listener = new RecordingListener();
+    replayer.addListener(listener);
+    replayer.replay(PlaybackEventReplayer.MAX_SPEED);
+
+    assertEquals(4, replayer.getEventCount());
+    List<String> expected = new ArrayList<String>();
+    expected.add("state true " + ExoPlayer.STATE_BUFFERING);
+    expected.add("size 1280x720");
+    expected.add("state true " + ExoPlayer.STATE_READY);
+    expected.add("error");
+    assertEquals(expected, listener.calls);
+  }
+
+  @Test
+  public void replay_feedsMetricsWithTraceTimestamps() throws Exception {
+    long[] events = new long[4 * PlaybackEventRecorder.SLOT_LONGS];
+    setEvent(events, 0, 0, PlaybackEventRecorder.EVENT_STATE_CHANGED, ExoPlayer.STATE_BUFFERING,
+        1, 0, 0);
+    setEvent(events, 1, 500 * MS, PlaybackEventRecorder.EVENT_FORMAT_CHANGED,
+        ExoplayerWrapper.TYPE_VIDEO, 1000000, 0, 0);
+    setEvent(events, 2, 800 * MS, PlaybackEventRecorder.EVENT_STATE_CHANGED,
+        ExoPlayer.STATE_READY, 1, 0, 0);
+    setEvent(events, 3, 2800 * MS, PlaybackEventRecorder.EVENT_LOAD_COMPLETED,
+        ExoplayerWrapper.TYPE_VIDEO, 4096, 30, 0);
+
+    PlaybackEventReplayer replayer = new PlaybackEventReplayer(events, 4);
+    PlaybackMetricsCollector metricsCollector = replayer.newMetricsCollector();
+    replayer.replay(PlaybackEventReplayer.MAX_SPEED);
+
+    PlaybackMetricsCollector.Snapshot metrics = metricsCollector.getSnapshot();
+    assertEquals(800, metrics.startupTimeMs);
+    assertEquals(2000, metrics.playingTimeMs);
+    assertEquals(4096, metrics.bytesLoaded);
+    assertEquals(1000000, metrics.averageVideoBitrate);
+    assertEquals(0, metrics.rebufferCount);
+  }
+
+  @Test
+  public void replay_loadCompleted_passesLoadingFormat() throws Exception {
+    long[] events = new long[3 * PlaybackEventRecorder.SLOT_LONGS];
+    setEvent(events, 0, 0, PlaybackEventRecorder.EVENT_LOAD_STARTED, ExoplayerWrapper.TYPE_VIDEO,
+        4096, 800000, 0);
+    setEvent(events, 1, 100 * MS, PlaybackEventRecorder.EVENT_LOAD_COMPLETED,
+        ExoplayerWrapper.TYPE_VIDEO, 4096, 100, 0);
+    setEvent(events, 2, 200 * MS, PlaybackEventRecorder.EVENT_LOAD_STARTED,
+        ExoplayerWrapper.TYPE_VIDEO, 4096, 800000, 2000);
+
+    PlaybackEventReplayer replayer = new PlaybackEventReplayer(events, 3);
+    RecordingInfoListener listener = new RecordingInfoListener();
+    replayer.setInfoListener(listener);
+    replayer.replay(PlaybackEventReplayer.MAX_SPEED);
+
+    assertEquals(3, listener.formats.size());
+    assertNotNull(listener.formats.get(1));
+    assertEquals(800000, listener.formats.get(1).bitrate);
+    // Events with the same source and bitrate share their format.
+    assertSame(listener.formats.get(0), listener.formats.get(1));
+    assertSame(listener.formats.get(0), listener.formats.get(2));
+  }
+
+  @Test
+  public void fromFile_negativeEventCount_throws() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(traceFile, "rw");
+    try {
+      file.writeInt(PlaybackEventRecorder.TRACE_MAGIC);
+      file.writeInt(PlaybackEventRecorder.TRACE_VERSION);
+      file.writeInt(-1);
+      file.writeInt(PlaybackEventRecorder.SLOT_LONGS);
+    } finally {
+      file.close();
+    }
+    try {
+      PlaybackEventReplayer.fromFile(traceFile);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void fromFile_withoutMagic_throws() throws IOException {
+    FileOutputStream output = new FileOutputStream(traceFile);
+    try {
+      output.write(new byte[PlaybackEventRecorder.TRACE_HEADER_SIZE]);
+    } finally {
+      output.close();
+    }
+    try {
+      PlaybackEventReplayer.fromFile(traceFile);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void fromFile_truncated_throws() throws IOException {
+    PlaybackEventRecorder recorder = new PlaybackEventRecorder();
+    recorder.record(PlaybackEventRecorder.EVENT_SEEK, 0, 0, 0, 0);
+    recorder.record(PlaybackEventRecorder.EVENT_SEEK, 0, 0, 0, 0);
+    recorder.dump(traceFile);
+    long length = traceFile.length();
+    RandomAccessFile file = new RandomAccessFile(traceFile, "rw");
+    try {
+      file.setLength(length - 8);
+    } finally {
+      file.close();
+    }
+    try {
+      PlaybackEventReplayer.fromFile(traceFile);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  private static void setEvent(long[] events, int index, long timeNs, int type, int arg0,
+                               long arg1, long arg2, long arg3) {
+    int offset = index * PlaybackEventRecorder.SLOT_LONGS;
+    events[offset] = timeNs;
+    events[offset + 1] = ((long) type << 32) | (arg0 & 0xFFFFFFFFL);
+    events[offset + 2] = arg1;
+    events[offset + 3] = arg2;
+    events[offset + 4] = arg3;
+  }
+
+  private static final class RecordingInfoListener implements ExoplayerWrapper.InfoListener {
+
+    private final List<Format> formats = new ArrayList<Format>();
+
+    @Override
+    public void onVideoFormatEnabled(Format format, int trigger, long mediaTimeMs) {}
+
+    @Override
+    public void onAudioFormatEnabled(Format format, int trigger, long mediaTimeMs) {}
+
+    @Override
+    public void onDroppedFrames(int count, long elapsed) {}
+
+    @Override
+    public void onBandwidthSample(int elapsedMs, long bytes, long bandwidthEstimate) {}
+
+    @Override
+    public void onLoadStarted(int sourceId, long length, int type, int trigger, Format format,
+                              long mediaStartTimeMs, long mediaEndTimeMs) {
+      formats.add(format);
+    }
+
+    @Override
+    public void onLoadCompleted(int sourceId, long bytesLoaded, int type, int trigger,
+                                Format format, long mediaStartTimeMs, long mediaEndTimeMs,
+                                long elapsedRealtimeMs, long loadDurationMs) {
+      formats.add(format);
+    }
+
+    @Override
+    public void onDecoderInitialized(String decoderName, long elapsedRealtimeMs,
+                                     long initializationDurationMs) {}
+
+    @Override
+    public void onAvailableRangeChanged(int sourceId, TimeRange availableRange) {}
+  }
+
+  private static final class RecordingListener implements ExoplayerWrapper.PlaybackListener {
+
+    private final List<String> calls = new ArrayList<String>();
+
+    @Override
+    public void onStateChanged(boolean playWhenReady, int playbackState) {
+      calls.add("state " + playWhenReady + " " + playbackState);
+    }
+
+    @Override
+    public void onError(Exception e) {
+      calls.add("error");
+    }
+
+    @Override
+    public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees,
+                                   float pixelWidthHeightRatio) {
+      calls.add("size " + width + "x" + height);
+    }
+  }
+}
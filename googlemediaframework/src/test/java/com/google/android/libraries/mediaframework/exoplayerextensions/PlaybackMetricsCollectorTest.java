@@ -0,0 +1,68 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.util.Clock;
+
+import org.junit.Test;
+
+/**
+ * Tests the metrics computed by {@link PlaybackMetricsCollector}.
+ */
+public class PlaybackMetricsCollectorTest {
+
+  @Test
+  public void onVideoFormatChanged_withManyRenditions_tracksTimeInEach() {
+    FakeClock clock = new FakeClock();
+    PlaybackMetricsCollector collector = new PlaybackMetricsCollector(clock);
+    collector.onPrepare();
+    collector.onStateChanged(true, ExoPlayer.STATE_READY);
+
+    int renditionCount = 40;
+    for (int i = 0; i < renditionCount; i++) {
+      collector.onVideoFormatChanged(newFormat(100000 * (i + 1)));
+      clock.timeMs += 1000;
+    }
+
+    PlaybackMetricsCollector.Snapshot snapshot = collector.getSnapshot();
+    assertEquals(renditionCount, snapshot.renditionBitrates.length);
+    for (int i = 0; i < renditionCount; i++) {
+      assertEquals(100000 * (i + 1), snapshot.renditionBitrates[i]);
+      assertEquals(1000, snapshot.renditionTimesMs[i]);
+    }
+    assertEquals(renditionCount - 1, snapshot.bitrateSwitchCount);
+    assertEquals(100000 * (renditionCount + 1) / 2, snapshot.averageVideoBitrate);
+  }
+
+  private static Format newFormat(int bitrate) {
+    return new Format(Integer.toString(bitrate), "video/mp4", 1280, 720, 30, -1, -1, bitrate);
+  }
+
+  private static final class FakeClock implements Clock {
+
+    public long timeMs;
+
+    @Override
+    public long elapsedRealtime() {
+      return timeMs;
+    }
+  }
+}
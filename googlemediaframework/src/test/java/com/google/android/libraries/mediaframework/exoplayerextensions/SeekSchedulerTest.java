@@ -0,0 +1,141 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.Handler;
+
+import com.google.android.exoplayer.ExoPlayer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests the coalescing of seeks by {@link SeekScheduler}.
+ */
+public class SeekSchedulerTest {
+
+  private static final int SEEK_TIMEOUT_MS = 500;
+
+  private ExoplayerWrapper player;
+  private Handler handler;
+  private SeekScheduler seekScheduler;
+
+  @Before
+  public void setUp() {
+    player = mock(ExoplayerWrapper.class);
+    handler = mock(Handler.class);
+    when(player.getPlaybackState()).thenReturn(ExoPlayer.STATE_READY);
+    seekScheduler = new SeekScheduler(player, handler, SEEK_TIMEOUT_MS);
+  }
+
+  @Test
+  public void seekTo_whileSeekInFlight_onlyIssuesLatestPosition() {
+    seekScheduler.seekTo(1000);
+    seekScheduler.seekTo(2000);
+    seekScheduler.seekTo(3000);
+
+    verify(player).seekTo(1000);
+    verify(player, times(1)).seekTo(anyInt());
+    assertTrue(seekScheduler.isSeeking());
+
+    seekScheduler.onPlayerStateChanged(ExoPlayer.STATE_BUFFERING);
+    seekScheduler.onPlayerStateChanged(ExoPlayer.STATE_READY);
+
+    verify(player).seekTo(3000);
+    verify(player, never()).seekTo(2000);
+    assertEquals(2, seekScheduler.getIssuedSeekCount());
+    assertEquals(1, seekScheduler.getCoalescedSeekCount());
+    assertEquals(3000, seekScheduler.getTargetPositionMs());
+  }
+
+  @Test
+  public void seekTo_readyBeforeBuffering_doesNotCompleteSeek() {
+    seekScheduler.seekTo(1000);
+    seekScheduler.seekTo(2000);
+
+    seekScheduler.onPlayerStateChanged(ExoPlayer.STATE_READY);
+
+    verify(player, times(1)).seekTo(anyInt());
+    assertTrue(seekScheduler.isSeeking());
+  }
+
+  @Test
+  public void seekTo_afterTimeout_issuesPendingSeek() {
+    seekScheduler.seekTo(1000);
+    seekScheduler.seekTo(2000);
+
+    ArgumentCaptor<Runnable> timeoutRunnable = ArgumentCaptor.forClass(Runnable.class);
+    verify(handler).postDelayed(timeoutRunnable.capture(), eq((long) SEEK_TIMEOUT_MS));
+    timeoutRunnable.getValue().run();
+
+    verify(player).seekTo(2000);
+  }
+
+  @Test
+  public void seekCompleted_withoutPendingSeek_stopsSeeking() {
+    seekScheduler.seekTo(1000);
+
+    seekScheduler.onPlayerStateChanged(ExoPlayer.STATE_BUFFERING);
+    seekScheduler.onPlayerStateChanged(ExoPlayer.STATE_READY);
+
+    assertFalse(seekScheduler.isSeeking());
+    verify(handler).removeCallbacks(any(Runnable.class));
+  }
+
+  @Test
+  public void scrubTo_withoutPreviewSeeks_seeksOnceOnRelease() {
+    seekScheduler.setPreviewSeeksEnabled(false);
+
+    seekScheduler.startScrubbing();
+    seekScheduler.scrubTo(1000);
+    seekScheduler.scrubTo(5000);
+    seekScheduler.scrubTo(4000);
+    verify(player, never()).seekTo(anyInt());
+
+    seekScheduler.stopScrubbing();
+    verify(player).seekTo(4000);
+    verify(player, times(1)).seekTo(anyInt());
+  }
+
+  @Test
+  public void cancel_dropsPendingSeek() {
+    seekScheduler.seekTo(1000);
+    seekScheduler.seekTo(2000);
+
+    seekScheduler.cancel();
+    seekScheduler.onPlayerStateChanged(ExoPlayer.STATE_BUFFERING);
+    seekScheduler.onPlayerStateChanged(ExoPlayer.STATE_READY);
+
+    assertFalse(seekScheduler.isSeeking());
+    verify(player, times(1)).seekTo(anyInt());
+    verify(handler, times(1)).postDelayed(any(Runnable.class), anyLong());
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.upstream.DataSpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests which requests {@link SegmentCache} caches, and how it counts the bytes read through it.
+ */
+public class SegmentCacheTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("segments", "");
+    directory.delete();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void isCacheable_httpSegment_isTrue() {
+    assertTrue(SegmentCache.isCacheable(newDataSpec("http", "/video/segment1.m4s", 0)));
+    assertTrue(SegmentCache.isCacheable(newDataSpec("https", "/video/segment1.ts", 0)));
+  }
+
+  @Test
+  public void isCacheable_withoutPath_isTrue() {
+    assertTrue(SegmentCache.isCacheable(newDataSpec("https", null, 0)));
+  }
+
+  @Test
+  public void isCacheable_localFile_isFalse() {
+    assertFalse(SegmentCache.isCacheable(newDataSpec("file", "/sdcard/video.mp4", 0)));
+    assertFalse(SegmentCache.isCacheable(newDataSpec(null, "video.mp4", 0)));
+  }
+
+  @Test
+  public void isCacheable_playlist_isFalse() {
+    assertFalse(SegmentCache.isCacheable(newDataSpec("https", "/video/media.m3u8", 0)));
+    assertFalse(SegmentCache.isCacheable(newDataSpec("https", "/video/media.m3u", 0)));
+  }
+
+  @Test
+  public void isCacheable_allowingGzip_isFalse() {
+    assertFalse(SegmentCache.isCacheable(
+        newDataSpec("https", "/video/key.bin", DataSpec.FLAG_ALLOW_GZIP)));
+  }
+
+  @Test
+  public void keyByUri_keysByUriAndKeepsRange() {
+    Uri uri = newUri("https", "/video/segment1.m4s");
+    when(uri.toString()).thenReturn("https://example.com/video/segment1.m4s");
+    DataSpec dataSpec = new DataSpec(uri, 1000, 500, "representation1", DataSpec.FLAG_ALLOW_GZIP);
+
+    DataSpec keyedDataSpec = SegmentCache.keyByUri(dataSpec);
+
+    assertSame(uri, keyedDataSpec.uri);
+    assertEquals("https://example.com/video/segment1.m4s", keyedDataSpec.key);
+    assertEquals(1000, keyedDataSpec.absoluteStreamPosition);
+    assertEquals(500, keyedDataSpec.length);
+    assertEquals(DataSpec.FLAG_ALLOW_GZIP, keyedDataSpec.flags);
+  }
+
+  @Test
+  public void getHitRatio_countsBytesNotDownloaded() {
+    SegmentCache segmentCache = new SegmentCache(directory, 1024 * 1024);
+    assertEquals(0, segmentCache.getHitRatio(), 0);
+
+    segmentCache.onBytesRead(1000, true);
+    segmentCache.onBytesRead(1000, false);
+    segmentCache.onBytesRead(3000, false);
+
+    assertEquals(4000, segmentCache.getBytesRead());
+    assertEquals(3000, segmentCache.getBytesSaved());
+    assertEquals(0.75f, segmentCache.getHitRatio(), 0.001f);
+  }
+
+  private static DataSpec newDataSpec(String scheme, String path, int flags) {
+    return new DataSpec(newUri(scheme, path), 0, 1000, null, flags);
+  }
+
+  private static Uri newUri(String scheme, String path) {
+    Uri uri = mock(Uri.class);
+    when(uri.getScheme()).thenReturn(scheme);
+    when(uri.getPath()).thenReturn(path);
+    return uri;
+  }
+}
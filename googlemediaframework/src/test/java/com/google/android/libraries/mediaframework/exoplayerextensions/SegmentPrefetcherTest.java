@@ -0,0 +1,307 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.util.ManifestFetcher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests how the prefetches of {@link SegmentPrefetcher} reserve their memory in the partition of
+ * the player, and give it back when they fail, are canceled or are released.
+ */
+public class SegmentPrefetcherTest {
+
+  private static final int SEGMENT_SIZE = 1024;
+  private static final int BUDGET = 1024 * 1024;
+  private static final String CACHE_KEY = "video.1.0";
+
+  private SharedAllocator.Partition partition;
+  private DataSpec dataSpec;
+
+  @Before
+  public void setUp() {
+    partition = new SharedAllocator(SEGMENT_SIZE, BUDGET)
+        .createPartition(SharedAllocator.DEFAULT_PRIORITY);
+    dataSpec = new DataSpec(mock(Uri.class), 0, 1000, CACHE_KEY);
+  }
+
+  @Test
+  public void run_withContentLength_reservesSegmentUntilReleased() throws Exception {
+    byte[] data = newData(1000);
+    FakeDataSource source = new FakeDataSource(data, data.length);
+    SegmentPrefetcher.Prefetch prefetch = newPrefetch(new SegmentPrefetcher(), source, 1000);
+
+    prefetch.run();
+
+    assertEquals(1000, prefetch.getLength());
+    assertArrayEquals(data, Arrays.copyOf(prefetch.await(), prefetch.getLength()));
+    assertEquals(1000, prefetch.getReservedBytes());
+    assertEquals(1000, partition.getBytesAllocated());
+    assertEquals(1, source.closeCount);
+
+    prefetch.release();
+    assertEquals(0, prefetch.getReservedBytes());
+    assertEquals(0, partition.getBytesAllocated());
+  }
+
+  @Test
+  public void run_withoutRoomForSegment_failsAndReservesNothing() throws Exception {
+    partition.setCeiling(512);
+    FakeDataSource source = new FakeDataSource(newData(1000), 1000);
+    SegmentPrefetcher.Prefetch prefetch = newPrefetch(new SegmentPrefetcher(), source, 1000);
+
+    prefetch.run();
+
+    assertNull(prefetch.await());
+    assertEquals(0, partition.getBytesAllocated());
+    assertEquals(1, source.closeCount);
+  }
+
+  @Test
+  public void run_upstreamFails_releasesReservation() throws Exception {
+    FakeDataSource source = new FakeDataSource(newData(1000), 1000);
+    source.failPosition = 500;
+    SegmentPrefetcher.Prefetch prefetch = newPrefetch(new SegmentPrefetcher(), source, 1000);
+
+    prefetch.run();
+
+    assertNull(prefetch.await());
+    assertEquals(0, prefetch.getReservedBytes());
+    assertEquals(0, partition.getBytesAllocated());
+    assertEquals(1, source.closeCount);
+  }
+
+  @Test
+  public void run_truncatedSegment_isDropped() throws Exception {
+    FakeDataSource source = new FakeDataSource(newData(600), 1000);
+    SegmentPrefetcher.Prefetch prefetch = newPrefetch(new SegmentPrefetcher(), source, 1000);
+
+    prefetch.run();
+
+    assertNull(prefetch.await());
+    assertEquals(0, partition.getBytesAllocated());
+  }
+
+  @Test
+  public void run_unboundedLength_growsReservationWithData() throws Exception {
+    byte[] data = newData(40000);
+    FakeDataSource source = new FakeDataSource(data, C.LENGTH_UNBOUNDED);
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher(2, 64 * 1024);
+    SegmentPrefetcher.Prefetch prefetch = newPrefetch(prefetcher, source, 1000);
+
+    prefetch.run();
+
+    assertEquals(data.length, prefetch.getLength());
+    assertArrayEquals(data, Arrays.copyOf(prefetch.await(), prefetch.getLength()));
+    // The array doubled from 16 KB until the data fit, and its whole size is reserved.
+    assertEquals(64 * 1024, prefetch.getReservedBytes());
+    assertEquals(64 * 1024, partition.getBytesAllocated());
+
+    prefetch.release();
+    assertEquals(0, partition.getBytesAllocated());
+  }
+
+  @Test
+  public void run_unboundedLengthAboveMaxBufferedBytes_failsAndReleasesReservation()
+      throws Exception {
+    FakeDataSource source = new FakeDataSource(newData(40000), C.LENGTH_UNBOUNDED);
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher(2, 32 * 1024);
+    SegmentPrefetcher.Prefetch prefetch = newPrefetch(prefetcher, source, 1000);
+
+    prefetch.run();
+
+    assertNull(prefetch.await());
+    assertEquals(0, partition.getBytesAllocated());
+    assertEquals(1, source.closeCount);
+  }
+
+  @Test
+  public void cancel_beforeRun_doesNotOpenUpstream() throws Exception {
+    FakeDataSource source = new FakeDataSource(newData(1000), 1000);
+    SegmentPrefetcher.Prefetch prefetch = newPrefetch(new SegmentPrefetcher(), source, 1000);
+
+    prefetch.cancel();
+    prefetch.run();
+
+    assertNull(prefetch.await());
+    assertEquals(0, source.openCount);
+    assertEquals(0, partition.getBytesAllocated());
+  }
+
+  @Test
+  public void cancel_afterDone_releasesReservation() throws Exception {
+    FakeDataSource source = new FakeDataSource(newData(1000), 1000);
+    SegmentPrefetcher.Prefetch prefetch = newPrefetch(new SegmentPrefetcher(), source, 1000);
+    prefetch.run();
+    assertEquals(1000, partition.getBytesAllocated());
+
+    prefetch.cancel();
+
+    assertNull(prefetch.await());
+    assertEquals(0, partition.getBytesAllocated());
+  }
+
+  @Test
+  public void open_beforeManifestIsLoaded_readsFromUpstream() throws Exception {
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher();
+    byte[] data = newData(100);
+    FakeDataSource upstream = new FakeDataSource(data, data.length);
+    SegmentPrefetcher.PrefetchingDataSource dataSource = newDataSource(prefetcher, upstream);
+
+    assertEquals(data.length, dataSource.open(dataSpec));
+    assertFalse(dataSource.isOpenFromMemory());
+    byte[] buffer = new byte[data.length];
+    assertEquals(data.length, dataSource.read(buffer, 0, buffer.length));
+    assertEquals(C.RESULT_END_OF_INPUT, dataSource.read(buffer, 0, buffer.length));
+    dataSource.close();
+
+    assertArrayEquals(data, buffer);
+    assertEquals(1, upstream.closeCount);
+    // The request was not for a listed segment.
+    assertEquals(0, prefetcher.getPrefetchHitCount());
+    assertEquals(0, prefetcher.getPrefetchMissCount());
+  }
+
+  @Test
+  public void open_afterRelease_readsFromUpstream() throws Exception {
+    FakeDataSource upstream = new FakeDataSource(newData(100), 100);
+    SegmentPrefetcher.PrefetchingDataSource dataSource =
+        newDataSource(new SegmentPrefetcher(), upstream);
+
+    dataSource.release();
+
+    assertEquals(100, dataSource.open(dataSpec));
+    assertFalse(dataSource.isOpenFromMemory());
+    dataSource.close();
+    assertEquals(1, upstream.closeCount);
+  }
+
+  @Test
+  public void open_upstreamFails_closeDoesNotCloseUpstream() throws Exception {
+    FakeDataSource upstream = new FakeDataSource(newData(100), 100);
+    upstream.failOpen = true;
+    SegmentPrefetcher.PrefetchingDataSource dataSource =
+        newDataSource(new SegmentPrefetcher(), upstream);
+
+    try {
+      dataSource.open(dataSpec);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    dataSource.close();
+
+    assertEquals(0, upstream.closeCount);
+  }
+
+  private SegmentPrefetcher.Prefetch newPrefetch(SegmentPrefetcher prefetcher,
+                                                 DataSource dataSource, long expectedBytes) {
+    return prefetcher.new Prefetch(dataSpec, 1, expectedBytes, dataSource, partition);
+  }
+
+  @SuppressWarnings("unchecked")
+  private SegmentPrefetcher.PrefetchingDataSource newDataSource(SegmentPrefetcher prefetcher,
+                                                                DataSource upstream) {
+    ManifestFetcher<MediaPresentationDescription> manifestFetcher = mock(ManifestFetcher.class);
+    return prefetcher.createDataSource(upstream, new SegmentPrefetcher.UpstreamFactory() {
+      @Override
+      public DataSource createUpstream() {
+        throw new AssertionError("Nothing should be prefetched.");
+      }
+    }, manifestFetcher, partition);
+  }
+
+  private static byte[] newData(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) i;
+    }
+    return data;
+  }
+
+  /**
+   * Serves an array, reporting the given length when it is opened.
+   */
+  private static final class FakeDataSource implements DataSource {
+
+    private final byte[] data;
+    private final long length;
+
+    private boolean failOpen;
+    private int failPosition = -1;
+    private int position;
+    private int openCount;
+    private int closeCount;
+
+    public FakeDataSource(byte[] data, long length) {
+      this.data = data;
+      this.length = length;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      openCount++;
+      if (failOpen) {
+        throw new IOException("Open failed.");
+      }
+      position = 0;
+      return length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      if (position == failPosition) {
+        throw new IOException("Read failed.");
+      }
+      if (position == data.length) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      int end = data.length;
+      if (failPosition > position) {
+        end = Math.min(end, failPosition);
+      }
+      int read = Math.min(readLength, end - position);
+      System.arraycopy(data, position, buffer, offset, read);
+      position += read;
+      return read;
+    }
+
+    @Override
+    public void close() {
+      closeCount++;
+    }
+  }
+}
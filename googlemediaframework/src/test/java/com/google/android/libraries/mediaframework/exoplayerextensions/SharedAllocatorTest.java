@@ -0,0 +1,198 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.exoplayerextensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.exoplayer.upstream.Allocation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the sharing of the budget of {@link SharedAllocator} between its partitions.
+ */
+public class SharedAllocatorTest {
+
+  private static final int SEGMENT_SIZE = 1024;
+  private static final int BUDGET = 4 * SEGMENT_SIZE;
+
+  private SharedAllocator pool;
+
+  @Before
+  public void setUp() {
+    pool = new SharedAllocator(SEGMENT_SIZE, BUDGET);
+  }
+
+  @Test
+  public void allocate_afterRelease_reusesSegment() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+    Allocation allocation = partition.allocate();
+    partition.release(allocation);
+
+    assertSame(allocation, partition.allocate());
+    assertEquals(0.5f, pool.getRecycleRatio(), 0.001f);
+  }
+
+  @Test
+  public void getTotalBytesAllocated_whenPoolFullAndAboveShare_reportsFull() {
+    SharedAllocator.Partition first = pool.createPartition(1);
+    SharedAllocator.Partition second = pool.createPartition(1);
+    for (int i = 0; i < 3; i++) {
+      first.allocate();
+    }
+    second.allocate();
+
+    assertEquals(BUDGET, pool.getTotalBytesAllocated());
+    assertTrue(first.getTotalBytesAllocated() > BUDGET);
+    assertEquals(SEGMENT_SIZE, second.getTotalBytesAllocated());
+  }
+
+  @Test
+  public void getTotalBytesAllocated_aboveShareWhilePoolHasRoom_reportsBytes() {
+    SharedAllocator.Partition first = pool.createPartition(1);
+    pool.createPartition(1);
+    for (int i = 0; i < 3; i++) {
+      first.allocate();
+    }
+
+    assertEquals(3 * SEGMENT_SIZE, first.getTotalBytesAllocated());
+  }
+
+  @Test
+  public void getTotalBytesAllocated_atCeiling_reportsFull() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+    partition.setCeiling(SEGMENT_SIZE);
+    partition.allocate();
+
+    assertTrue(partition.getTotalBytesAllocated() > BUDGET);
+  }
+
+  @Test
+  public void release_ofPartition_givesItsShareToOthers() {
+    SharedAllocator.Partition first = pool.createPartition(1);
+    SharedAllocator.Partition second = pool.createPartition(3);
+    assertEquals(BUDGET / 4, first.getShare());
+
+    second.release();
+
+    assertEquals(BUDGET, first.getShare());
+    assertEquals(1, pool.getPartitionCount());
+  }
+
+  @Test
+  public void reserve_withRoom_countsAgainstPartitionAndPool() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+
+    assertTrue(partition.reserve(1000));
+
+    assertEquals(1000, partition.getBytesAllocated());
+    assertEquals(1000, pool.getTotalBytesAllocated());
+    assertEquals(1000, pool.getPeakBytesAllocated());
+  }
+
+  @Test
+  public void reserve_withoutRoom_fails() {
+    SharedAllocator.Partition first = pool.createPartition(1);
+    SharedAllocator.Partition second = pool.createPartition(1);
+    second.allocate();
+    second.allocate();
+    second.allocate();
+
+    // The pool would be full and the first partition is at its share.
+    assertFalse(first.reserve(2 * SEGMENT_SIZE));
+    assertEquals(0, first.getBytesAllocated());
+    assertEquals(3 * SEGMENT_SIZE, pool.getTotalBytesAllocated());
+  }
+
+  @Test
+  public void reserve_aboveCeiling_fails() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+    partition.setCeiling(SEGMENT_SIZE);
+
+    assertFalse(partition.reserve(SEGMENT_SIZE));
+  }
+
+  @Test
+  public void releaseReserved_givesBytesBack() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+    partition.reserve(1000);
+
+    partition.releaseReserved(1000);
+
+    assertEquals(0, partition.getBytesAllocated());
+    assertEquals(0, pool.getTotalBytesAllocated());
+    assertEquals(1000, pool.getPeakBytesAllocated());
+    assertTrue(partition.hasRoomFor(3 * SEGMENT_SIZE));
+  }
+
+  @Test
+  public void setBudget_belowRecycledBytes_freesRecycledSegments() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+    Allocation[] allocations = new Allocation[3];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = partition.allocate();
+    }
+    for (Allocation allocation : allocations) {
+      partition.release(allocation);
+    }
+    assertEquals(3 * SEGMENT_SIZE, pool.getRecycledBytes());
+
+    pool.setBudget(SEGMENT_SIZE);
+
+    assertEquals(SEGMENT_SIZE, pool.getRecycledBytes());
+  }
+
+  @Test
+  public void release_beyondBudget_doesNotRecycle() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+    Allocation[] allocations = new Allocation[4];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = partition.allocate();
+    }
+    pool.setBudget(2 * SEGMENT_SIZE);
+
+    for (Allocation allocation : allocations) {
+      partition.release(allocation);
+    }
+
+    assertEquals(2 * SEGMENT_SIZE, pool.getRecycledBytes());
+  }
+
+  @Test
+  public void trim_freesRecycledSegments() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+    partition.release(partition.allocate());
+
+    pool.trim();
+
+    assertEquals(0, pool.getRecycledBytes());
+  }
+
+  @Test
+  public void trim_ofPartition_keepsRecycledSegments() {
+    SharedAllocator.Partition partition = pool.createPartition(1);
+    partition.release(partition.allocate());
+
+    partition.trim(0);
+
+    assertEquals(SEGMENT_SIZE, pool.getRecycledBytes());
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ Copyright 2016 Google Inc. All rights reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.google.android.libraries.mediaframework.layeredvideo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Tests the formatting of times by {@link PlaybackControlLayer}.
+ */
+public class PlaybackControlLayerTest {
+
+  private static final int MAX_TIME_CHARS = 16;
+
+  @Test
+  public void formatTime_belowOneHour_usesMinutesAndSeconds() {
+    assertEquals("00:00", format(0));
+    assertEquals("00:59", format(59999));
+    assertEquals("01:05", format(65000));
+    assertEquals("59:59", format(3599999));
+  }
+
+  @Test
+  public void formatTime_aboveOneHour_addsHours() {
+    assertEquals("1:00:00", format(3600000));
+    assertEquals("10:02:03", format(36123000));
+    assertEquals("596:31:23", format(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void formatTime_negativeTime_isZero() {
+    assertEquals("00:00", format(-5000));
+  }
+
+  @Test
+  public void formatTime_doesNotAllocate() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean =
+        (com.sun.management.ThreadMXBean) threadMXBean;
+    assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+    allocationBean.setThreadAllocatedMemoryEnabled(true);
+    long threadId = Thread.currentThread().getId();
+
+    char[] chars = new char[MAX_TIME_CHARS];
+    int calls = 100000;
+    // Let the method be compiled before measuring.
+    int length = formatTimes(chars, calls);
+    long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+    length += formatTimes(chars, calls);
+    long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+    assertTrue(length > 0);
+    // Leave room for the allocations of the measurement itself, but not for one per call.
+    assertTrue("Allocated " + allocated + " bytes", allocated < calls);
+  }
+
+  private static int formatTimes(char[] chars, int calls) {
+    int length = 0;
+    for (int i = 0; i < calls; i++) {
+      length += PlaybackControlLayer.formatTime(i * 1000, chars);
+    }
+    return length;
+  }
+
+  private static String format(int timeMs) {
+    char[] chars = new char[MAX_TIME_CHARS];
+    return new String(chars, 0, PlaybackControlLayer.formatTime(timeMs, chars));
+  }
+}